@@ -0,0 +1,50 @@
+package io.brennan.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpMessage.forwardMessage() for each body type and a range of body sizes, from a response in memory to an output
+ * stream that discards everything.  Each operation parses the head and forwards the whole message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ForwardBenchmark {
+
+    @Param({"None", "ContentLength", "Chunked", "Identity"})
+    public BodyType type;
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private byte[] message;
+
+    @Setup
+    public void setup() {
+        message = Messages.response("browser", type, size);
+    }
+
+    @Benchmark
+    public HttpResponse forward() throws IOException {
+        HttpResponse response = new HttpResponse(new ByteArrayInputStream(message));
+        response.forwardMessage(Messages.DISCARD);
+        return response;
+    }
+}
@@ -0,0 +1,71 @@
+package io.brennan.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header parsing, lookup and output.  Each benchmark parses a fresh HttpHeaders, since values are decoded lazily and
+ * cached, so reusing one object would only measure the cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeadersBenchmark {
+
+    @Param({"small", "browser"})
+    public String head;
+
+    private byte[] bytes;
+    private int start;
+    private int end;
+
+    @Setup
+    public void setup() {
+        bytes = Messages.request(head);
+        start = HttpMessage.indexOf(bytes, '\n', 0, bytes.length) + 1; // skip the request line
+        end = bytes.length - 2;                                       // leave off the empty line
+    }
+
+    @Benchmark
+    public HttpHeaders parse() throws IOException {
+        return new HttpHeaders(bytes, start, end, HttpInputStream.DEFAULT_MAX_HEADER_COUNT);
+    }
+
+    /**
+     * What the proxy does with every request: a few lookups, then a couple of changes.
+     */
+    @Benchmark
+    public HttpHeaders parseAndEdit() throws IOException {
+        HttpHeaders headers = new HttpHeaders(bytes, start, end, HttpInputStream.DEFAULT_MAX_HEADER_COUNT);
+        headers.get(HeaderName.CONNECTION);
+        headers.get(HeaderName.PROXY_CONNECTION);
+        headers.remove(HeaderName.PROXY_CONNECTION);
+        headers.set(HeaderName.CONNECTION, "keep-alive");
+        return headers;
+    }
+
+    @Benchmark
+    public String parseAndAssemble() throws IOException {
+        return new HttpHeaders(bytes, start, end, HttpInputStream.DEFAULT_MAX_HEADER_COUNT).assemble();
+    }
+
+    @Benchmark
+    public void parseEditAndWrite() throws IOException {
+        parseAndEdit().writeTo(Messages.DISCARD);
+    }
+}
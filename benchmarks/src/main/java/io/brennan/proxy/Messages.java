@@ -0,0 +1,118 @@
+package io.brennan.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Canned messages for the benchmarks.
+ */
+final class Messages {
+
+    private Messages() {}
+
+    /**
+     * An OutputStream that throws everything away.
+     */
+    static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    /**
+     * Return a request head.  "small" is the least a client could send; "browser" is what a desktop browser sends for
+     * a page, cookies and all.
+     */
+    static byte[] request(String kind) {
+        if (kind.equals("small")) {
+            return ascii("GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\n\r\n");
+        }
+        return ascii("GET http://www.example.com/articles/2016/05/some-long-article-name?ref=front HTTP/1.1\r\n" +
+                "Host: www.example.com\r\n" +
+                "Proxy-Connection: keep-alive\r\n" +
+                "Upgrade-Insecure-Requests: 1\r\n" +
+                "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) " +
+                "Chrome/50.0.2661.102 Safari/537.36\r\n" +
+                "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n" +
+                "Referer: http://www.example.com/\r\n" +
+                "Accept-Encoding: gzip, deflate, sdch\r\n" +
+                "Accept-Language: en-US,en;q=0.8\r\n" +
+                "Cookie: session=8f14e45fceea167a5a36dedd4bea2543; theme=dark; _ga=GA1.2.1234567890.1462000000; " +
+                "_gid=GA1.2.987654321.1463000000\r\n" +
+                "If-None-Match: \"5f3c-52f7a1b2c3d40\"\r\n" +
+                "If-Modified-Since: Mon, 16 May 2016 10:00:00 GMT\r\n" +
+                "\r\n");
+    }
+
+    /**
+     * Return a response head with no body framing headers.  "small" and "browser" are as for request().
+     */
+    static byte[] responseHead(String kind) {
+        if (kind.equals("small")) {
+            return ascii("HTTP/1.1 200 OK\r\n");
+        }
+        return ascii("HTTP/1.1 200 OK\r\n" +
+                "Date: Tue, 17 May 2016 12:00:00 GMT\r\n" +
+                "Server: Apache/2.4.18 (Ubuntu)\r\n" +
+                "Last-Modified: Mon, 16 May 2016 10:00:00 GMT\r\n" +
+                "ETag: \"5f3c-52f7a1b2c3d40\"\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Cache-Control: max-age=600\r\n" +
+                "Expires: Tue, 17 May 2016 12:10:00 GMT\r\n" +
+                "Vary: Accept-Encoding\r\n" +
+                "Content-Type: text/html; charset=UTF-8\r\n" +
+                "X-Frame-Options: SAMEORIGIN\r\n" +
+                "Keep-Alive: timeout=5, max=100\r\n" +
+                "Connection: Keep-Alive\r\n");
+    }
+
+    /**
+     * Return a whole response: a head, then a body of the given size using the given framing.  Chunked bodies are cut
+     * into 8K chunks; identity bodies just run to the end.
+     */
+    static byte[] response(String kind, BodyType type, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 1024);
+        byte[] head = responseHead(kind);
+        out.write(head, 0, head.length);
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        switch (type) {
+            case None:
+                write(out, "\r\n");
+                break;
+            case ContentLength:
+                write(out, "Content-Length: " + size + "\r\n\r\n");
+                out.write(body, 0, size);
+                break;
+            case Chunked:
+                write(out, "Transfer-Encoding: chunked\r\n\r\n");
+                for (int start = 0; start < size; start += 8192) {
+                    int n = Math.min(8192, size - start);
+                    write(out, Integer.toHexString(n) + "\r\n");
+                    out.write(body, start, n);
+                    write(out, "\r\n");
+                }
+                write(out, "0\r\n\r\n");
+                break;
+            case Identity:
+                write(out, "Transfer-Encoding: identity\r\n\r\n");
+                out.write(body, 0, size);
+                break;
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        byte[] bytes = ascii(text);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
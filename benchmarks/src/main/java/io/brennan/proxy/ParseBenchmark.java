@@ -0,0 +1,51 @@
+package io.brennan.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How fast HttpRequest and HttpResponse can be built from a message head sitting in memory.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    @Param({"small", "browser"})
+    public String head;
+
+    private byte[] request;
+    private byte[] response;
+
+    @Setup
+    public void setup() {
+        request = Messages.request(head);
+        response = Messages.response(head, BodyType.None, 0);
+    }
+
+    @Benchmark
+    public HttpRequest request() throws IOException {
+        return new HttpRequest(new ByteArrayInputStream(request));
+    }
+
+    @Benchmark
+    public HttpResponse response() throws IOException {
+        return new HttpResponse(new ByteArrayInputStream(response));
+    }
+}
@@ -0,0 +1,97 @@
+package io.brennan.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a ConnectTunnelOneDirection over loopback.  A writer thread pushes bytes into one end of the tunnel as
+ * fast as it can, and each benchmark operation reads one block out of the other end, so ops/s times the block size is
+ * the tunnel's throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TunnelBenchmark {
+
+    @Param({"4096", "65536"})
+    public int block;
+
+    private Socket writer;
+    private Socket reader;
+    private Thread tunnel;
+    private Thread pump;
+    private InputStream input;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        Socket tunnelFrom;
+        Socket tunnelTo;
+        try (ServerSocket server = new ServerSocket(0, 2, loopback)) {
+            writer = new Socket(loopback, server.getLocalPort());
+            tunnelFrom = server.accept();
+            tunnelTo = new Socket(loopback, server.getLocalPort());
+            reader = server.accept();
+        }
+        tunnel = new Thread(new ConnectTunnelOneDirection(tunnelFrom, tunnelTo, "benchmark"), "tunnel");
+        tunnel.start();
+
+        pump = new Thread(() -> {
+            byte[] data = new byte[65536];
+            try {
+                OutputStream output = writer.getOutputStream();
+                for (;;) {
+                    output.write(data);
+                }
+            } catch (IOException e) {
+                // the benchmark is over
+            }
+        }, "pump");
+        pump.setDaemon(true);
+        pump.start();
+
+        input = reader.getInputStream();
+        buffer = new byte[block];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        writer.close();
+        reader.close();
+        tunnel.join(5000);
+    }
+
+    @Benchmark
+    public int transfer() throws IOException {
+        int done = 0;
+        while (done < block) {
+            int n = input.read(buffer, done, block - done);
+            if (n == -1) throw new IOException("Tunnel closed.");
+            done += n;
+        }
+        return done;
+    }
+}
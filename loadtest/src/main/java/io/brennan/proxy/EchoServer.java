@@ -0,0 +1,72 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A target for CONNECT tunnels in the load test: it sends back whatever it receives.
+ */
+class EchoServer implements Runnable {
+
+    private final ServerSocket server;
+
+    /**
+     * Open the echo server on an unused loopback port.
+     * @throws IOException if the socket can't be opened
+     */
+    EchoServer() throws IOException {
+        server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Return the port the server listens on.
+     */
+    int port() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accept connections until the server socket is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                final Socket client = server.accept();
+                Thread thread = new Thread(() -> echo(client), "echo");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Stop accepting connections.
+     */
+    void close() {
+        try {
+            server.close();
+        } catch (IOException e) {}
+    }
+
+    private void echo(Socket client) {
+        try (Socket socket = client) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[16384];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package io.brennan.proxy;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One simulated client.  It sends requests on a fixed schedule (open loop), so when the proxy falls behind, the
+ * requests that should have gone out in the meantime are late rather than never sent.  Each latency is measured from
+ * when the request was supposed to start, which keeps a stall from hiding itself.
+ *
+ * A keep-alive client holds its connection (or CONNECT tunnel) open between requests; the other kind opens a new one
+ * every time.  Any error, including a body of the wrong length, throws the connection away.
+ */
+class LoadClient implements Runnable {
+
+    private final LoadConfig config;
+    private final InetSocketAddress proxy;
+    private final String target;
+    private final boolean keepAlive;
+    private final long interval;
+    private final long firstStart;
+    private final long measureStart;
+    private final long measureEnd;
+
+    /**
+     * Latencies of the measured requests, in microseconds.
+     */
+    final Histogram histogram = new Histogram(TimeUnit.MINUTES.toMicros(1), 3);
+
+    long completed;
+    long errors;
+    long bytes;
+
+    /**
+     * Description of the first error, warmup included, if there was one.
+     */
+    String firstError;
+
+    private Socket socket;
+    private HttpInputStream in;
+    private OutputStream out;
+    private final byte[] scratch = new byte[16384];
+    private final byte[] payload;
+
+    /**
+     * Create a client.  Times are System.nanoTime() values.
+     * @param config Load test settings.
+     * @param proxy Where the proxy is.
+     * @param target host:port of the origin, or of the echo server in connect mode.
+     * @param keepAlive Whether to reuse connections.
+     * @param interval Nanoseconds between this client's requests.
+     * @param firstStart When to send the first request.
+     * @param measureStart Requests scheduled before this are warmup and aren't recorded.
+     * @param measureEnd No requests are scheduled from this time on.
+     */
+    LoadClient(LoadConfig config, InetSocketAddress proxy, String target, boolean keepAlive, long interval,
+               long firstStart, long measureStart, long measureEnd) {
+        this.config = config;
+        this.proxy = proxy;
+        this.target = target;
+        this.keepAlive = keepAlive;
+        this.interval = interval;
+        this.firstStart = firstStart;
+        this.measureStart = measureStart;
+        this.measureEnd = measureEnd;
+        this.payload = config.mode.equals("connect") ? new byte[config.size] : null;
+    }
+
+    @Override
+    public void run() {
+        long giveUp = measureEnd + TimeUnit.MILLISECONDS.toNanos(config.timeout);
+        for (long scheduled = firstStart; scheduled < measureEnd; scheduled += interval) {
+            if (System.nanoTime() > giveUp) {
+                // We are so far behind that the rest of the schedule would never finish.  Count what's left of it as
+                // failures rather than run on forever.
+                long left = (measureEnd - Math.max(scheduled, measureStart) + interval - 1) / interval;
+                if (firstError == null) firstError = "fell " + left + " requests behind schedule";
+                errors += Math.max(0, left);
+                break;
+            }
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean measured = scheduled >= measureStart;
+            try {
+                long received = config.mode.equals("connect") ? roundTrip() : request();
+                if (measured) {
+                    long latency = (System.nanoTime() - scheduled) / 1000;
+                    histogram.recordValue(Math.min(latency, histogram.getHighestTrackableValue()));
+                    completed++;
+                    bytes += received;
+                }
+            } catch (IOException e) {
+                if (firstError == null) firstError = e.toString();
+                if (measured) errors++;
+                disconnect();
+            }
+            if (!keepAlive) {
+                disconnect();
+            }
+        }
+        disconnect();
+    }
+
+    /**
+     * Send one GET through the proxy and read the whole response.
+     * @return body bytes received
+     */
+    private long request() throws IOException {
+        if (socket == null) {
+            connect();
+        }
+        String url = "http://" + target + "/" + config.mode + "?size=" + config.size + "&delay=" + config.delay;
+        write("GET " + url + " HTTP/1.1\r\nHost: " + target + "\r\n" +
+                (keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n") + "\r\n");
+        out.flush();
+
+        HttpResponse response = new HttpResponse(in);
+        if (!response.getStatus().equals("200")) {
+            throw new IOException("status " + response.getStatus());
+        }
+        HttpHeaders headers = response.getHeaders();
+        long received;
+        boolean reusable = response.keepsConnectionAlive();
+        if (headers.contains(HeaderName.CONTENT_LENGTH)) {
+            received = skip(Long.parseLong(headers.get(HeaderName.CONTENT_LENGTH).trim()));
+        } else if (headers.contains(HeaderName.TRANSFER_ENCODING)
+                && !headers.get(HeaderName.TRANSFER_ENCODING).equalsIgnoreCase("identity")) {
+            received = skipChunked();
+        } else {
+            received = skip(Long.MAX_VALUE);
+            reusable = false;
+        }
+        if (received != config.size) {
+            throw new IOException("expected " + config.size + " body bytes, got " + received);
+        }
+        if (!reusable) {
+            disconnect();
+        }
+        return received;
+    }
+
+    /**
+     * Send a block through a CONNECT tunnel to the echo server and read it back.
+     * @return bytes echoed
+     */
+    private long roundTrip() throws IOException {
+        if (socket == null) {
+            connect();
+            write("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n");
+            out.flush();
+            HttpResponse response = new HttpResponse(in);
+            if (!response.getStatus().equals("200")) {
+                throw new IOException("CONNECT status " + response.getStatus());
+            }
+        }
+        out.write(payload);
+        out.flush();
+        long received = 0;
+        while (received < payload.length) {
+            int n = in.read(scratch, 0, (int) Math.min(scratch.length, payload.length - received));
+            if (n == -1) throw new IOException("tunnel closed after " + received + " bytes");
+            received += n;
+        }
+        return received;
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(config.timeout);
+        socket.connect(proxy, config.timeout);
+        in = new HttpInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+            socket = null;
+        }
+    }
+
+    /**
+     * Read and discard up to n bytes, stopping early at the end of the stream.
+     * @return bytes read
+     */
+    private long skip(long n) throws IOException {
+        long done = 0;
+        while (done < n) {
+            int read = in.read(scratch, 0, (int) Math.min(scratch.length, n - done));
+            if (read == -1) {
+                if (n == Long.MAX_VALUE) break;
+                throw new IOException("connection closed after " + done + " of " + n + " body bytes");
+            }
+            done += read;
+        }
+        return done;
+    }
+
+    /**
+     * Read and discard a chunked body, including trailers.
+     * @return bytes of chunk data (not counting framing)
+     */
+    private long skipChunked() throws IOException {
+        long total = 0;
+        for (;;) {
+            String line = new String(in.readLine(), StandardCharsets.ISO_8859_1).trim();
+            int semicolon = line.indexOf(';');
+            long size = Long.parseLong(semicolon == -1 ? line : line.substring(0, semicolon).trim(), 16);
+            if (size == 0) break;
+            total += skip(size);
+            in.readLine();
+        }
+        while (in.readLine().length != 2) {
+            // trailers
+        }
+        return total;
+    }
+
+    private void write(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
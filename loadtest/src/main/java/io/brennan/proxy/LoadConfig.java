@@ -0,0 +1,178 @@
+package io.brennan.proxy;
+
+/**
+ * Settings for a load test run, parsed from the command line the same way as ProxyConfig: every option is
+ * --name=value.
+ */
+class LoadConfig {
+
+    /**
+     * host:port of a proxy that is already running.  If null, the load test starts its own.
+     */
+    String proxy = null;
+
+    /**
+     * Port for the proxy the load test starts.
+     */
+    int proxyPort = 18888;
+
+    /**
+     * Extra options for the proxy the load test starts, separated by spaces.
+     */
+    String proxyArgs = "";
+
+    /**
+     * Where the started proxy's output goes.
+     */
+    String proxyLog = "proxy.log";
+
+    /**
+     * What the origin sends back: "fixed" (Content-Length), "chunked", "close" (delimited by closing the connection),
+     * "slow" (Content-Length after a delay), or "connect" to echo bytes through CONNECT tunnels instead.
+     */
+    String mode = "fixed";
+
+    /**
+     * Response body size, or bytes per round trip in connect mode.
+     */
+    int size = 1024;
+
+    /**
+     * How long the origin waits before answering in slow mode, in milliseconds.
+     */
+    long delay = 50;
+
+    /**
+     * Requests per second to send, across all clients.
+     */
+    double rate = 1000;
+
+    /**
+     * Clients that keep their connection (or tunnel) open between requests.
+     */
+    int keepAliveClients = 16;
+
+    /**
+     * Clients that open a new connection (or tunnel) for every request.
+     */
+    int closeClients = 0;
+
+    /**
+     * How long to send requests before measuring, in seconds.
+     */
+    int warmup = 2;
+
+    /**
+     * How long to measure for, in seconds.
+     */
+    int duration = 10;
+
+    /**
+     * How long a client waits on a read before giving up on a request, in milliseconds.
+     */
+    int timeout = 5000;
+
+    /**
+     * Return a usage string describing the options.
+     * @return usage message
+     */
+    static String usage() {
+        return "usage: io.brennan.proxy.LoadTest [options]\n" +
+                "options:\n" +
+                "  --proxy=HOST:PORT         use a proxy that is already running instead of starting one\n" +
+                "  --proxy-port=N            port for the proxy we start (default 18888)\n" +
+                "  --proxy-args=\"ARGS\"       options for the proxy we start, e.g. \"--engine=nio\"\n" +
+                "  --proxy-log=PATH          where the started proxy's output goes (default proxy.log)\n" +
+                "  --mode=MODE               fixed|chunked|close|slow|connect (default fixed)\n" +
+                "  --size=BYTES              response body size, or bytes per round trip for connect (default 1024)\n" +
+                "  --delay=MS                how long the origin stalls in slow mode (default 50)\n" +
+                "  --rate=N                  requests per second across all clients (default 1000)\n" +
+                "  --keepalive-clients=N     clients that reuse their connection (default 16)\n" +
+                "  --close-clients=N         clients that connect for every request (default 0)\n" +
+                "  --warmup=SECONDS          run this long before measuring (default 2)\n" +
+                "  --duration=SECONDS        measure for this long (default 10)\n" +
+                "  --timeout=MS              give up on a request after this long (default 5000)\n";
+    }
+
+    /**
+     * Parse the command line arguments into a configuration.
+     * @param args Arguments given to main().
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException if the arguments are malformed.
+     */
+    static LoadConfig parse(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("bad argument " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            try {
+                config.set(name, value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad value for --" + name + ": " + value);
+            }
+        }
+        if (config.keepAliveClients + config.closeClients <= 0) {
+            throw new IllegalArgumentException("need at least one client");
+        }
+        if (config.rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        return config;
+    }
+
+    /**
+     * Set a single option by name.
+     */
+    private void set(String name, String value) {
+        switch (name) {
+            case "proxy":
+                proxy = value;
+                break;
+            case "proxy-port":
+                proxyPort = Integer.parseInt(value);
+                break;
+            case "proxy-args":
+                proxyArgs = value;
+                break;
+            case "proxy-log":
+                proxyLog = value;
+                break;
+            case "mode":
+                if (!value.matches("fixed|chunked|close|slow|connect")) {
+                    throw new IllegalArgumentException("unknown mode " + value);
+                }
+                mode = value;
+                break;
+            case "size":
+                size = Integer.parseInt(value);
+                break;
+            case "delay":
+                delay = Long.parseLong(value);
+                break;
+            case "rate":
+                rate = Double.parseDouble(value);
+                break;
+            case "keepalive-clients":
+                keepAliveClients = Integer.parseInt(value);
+                break;
+            case "close-clients":
+                closeClients = Integer.parseInt(value);
+                break;
+            case "warmup":
+                warmup = Integer.parseInt(value);
+                break;
+            case "duration":
+                duration = Integer.parseInt(value);
+                break;
+            case "timeout":
+                timeout = Integer.parseInt(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option --" + name);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package io.brennan.proxy;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end load test.  This starts a local origin (and an echo server for CONNECT), starts the proxy in its own JVM
+ * unless told to use one that is already running, and then drives requests through the proxy at a fixed rate from a
+ * set of keep-alive and connection-per-request clients.  At the end it reports throughput and latency percentiles for
+ * each kind of client.
+ *
+ * The latencies include any time a request spent waiting for its client to be free, because the schedule doesn't slow
+ * down for a slow proxy.  If the proxy can't keep up with --rate, that shows up as huge percentiles, which is the point.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config;
+        try {
+            config = LoadConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(LoadConfig.usage());
+            return;
+        }
+
+        Origin origin = new Origin();
+        EchoServer echo = new EchoServer();
+        start(origin, "origin");
+        start(echo, "echo");
+        String target = "127.0.0.1:" + (config.mode.equals("connect") ? echo.port() : origin.port());
+
+        Process proxyProcess = null;
+        InetSocketAddress proxy;
+        if (config.proxy != null) {
+            int colon = config.proxy.lastIndexOf(':');
+            proxy = new InetSocketAddress(config.proxy.substring(0, colon),
+                    Integer.parseInt(config.proxy.substring(colon + 1)));
+        } else {
+            proxy = new InetSocketAddress("127.0.0.1", config.proxyPort);
+            if (accepts(proxy)) {
+                System.err.println("something is already listening on port " + config.proxyPort +
+                        ", use --proxy to test it or --proxy-port to pick another");
+                return;
+            }
+            proxyProcess = startProxy(config);
+            if (!waitForProxy(proxy, proxyProcess)) {
+                System.err.println("proxy did not start, see " + config.proxyLog);
+                proxyProcess.destroy();
+                return;
+            }
+        }
+
+        try {
+            run(config, proxy, target);
+        } finally {
+            if (proxyProcess != null) {
+                proxyProcess.destroy();
+                proxyProcess.waitFor(5, TimeUnit.SECONDS);
+            }
+            origin.close();
+            echo.close();
+        }
+    }
+
+    /**
+     * Run the clients and print the report.
+     */
+    private static void run(LoadConfig config, InetSocketAddress proxy, String target) throws InterruptedException {
+        int clients = config.keepAliveClients + config.closeClients;
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) * clients / config.rate);
+        long begin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureStart = begin + TimeUnit.SECONDS.toNanos(config.warmup);
+        long measureEnd = measureStart + TimeUnit.SECONDS.toNanos(config.duration);
+
+        List<LoadClient> keepAlive = new ArrayList<>();
+        List<LoadClient> close = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            boolean reuse = i < config.keepAliveClients;
+            // Spread the clients' schedules out so they don't all fire at once.
+            LoadClient client = new LoadClient(config, proxy, target, reuse, interval, begin + interval * i / clients,
+                    measureStart, measureEnd);
+            (reuse ? keepAlive : close).add(client);
+            Thread thread = new Thread(client, "client-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        System.out.printf("%s, %d byte bodies, %.0f req/s from %d keep-alive and %d close clients, via %s%n",
+                config.mode, config.size, config.rate, config.keepAliveClients, config.closeClients, proxy);
+        System.out.printf("warming up for %ds, measuring for %ds%n", config.warmup, config.duration);
+        if (config.mode.equals("slow") && config.delay * config.rate / 1000 > clients) {
+            System.out.printf("warning: %d clients can't sustain %.0f req/s with %dms responses, so latency will " +
+                    "mostly be time spent waiting for a client%n", clients, config.rate, config.delay);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double seconds = config.duration;
+        System.out.printf("%n%-12s %10s %8s %10s %10s %10s %10s %10s %10s%n",
+                "clients", "requests", "errors", "req/s", "MB/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        List<LoadClient> all = new ArrayList<>(keepAlive);
+        all.addAll(close);
+        if (!keepAlive.isEmpty()) report("keep-alive", keepAlive, seconds);
+        if (!close.isEmpty()) report("close", close, seconds);
+        if (!keepAlive.isEmpty() && !close.isEmpty()) report("all", all, seconds);
+        for (LoadClient client : all) {
+            if (client.firstError != null) {
+                System.out.println("first error: " + client.firstError);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Print one line of the report, merging the clients' results.
+     */
+    private static void report(String name, List<LoadClient> clients, double seconds) {
+        Histogram histogram = new Histogram(TimeUnit.MINUTES.toMicros(1), 3);
+        long completed = 0;
+        long errors = 0;
+        long bytes = 0;
+        for (LoadClient client : clients) {
+            histogram.add(client.histogram);
+            completed += client.completed;
+            errors += client.errors;
+            bytes += client.bytes;
+        }
+        System.out.printf("%-12s %10d %8d %10.1f %10.2f %10.3f %10.3f %10.3f %10.3f%n",
+                name, completed, errors, completed / seconds, bytes / seconds / 1e6,
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue()));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static void start(Runnable server, String name) {
+        Thread thread = new Thread(server, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start io.brennan.proxy.Main in a separate JVM, with the same classpath as this one.
+     */
+    private static Process startProxy(LoadConfig config) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        if (!config.proxyArgs.trim().isEmpty()) {
+            command.addAll(Arrays.asList(config.proxyArgs.trim().split("\\s+")));
+        }
+        command.add(Integer.toString(config.proxyPort));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(config.proxyLog));
+        return builder.start();
+    }
+
+    /**
+     * Wait up to ten seconds for the proxy to accept connections.
+     * @return true once it does, false if it died or never did
+     */
+    private static boolean waitForProxy(InetSocketAddress proxy, Process process) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) return false;
+            if (accepts(proxy)) return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    /**
+     * Return true if something accepts connections at an address.
+     */
+    private static boolean accepts(InetSocketAddress address) {
+        try (Socket socket = new Socket()) {
+            socket.connect(address, 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
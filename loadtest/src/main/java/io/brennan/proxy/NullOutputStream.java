@@ -0,0 +1,19 @@
+package io.brennan.proxy;
+
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that throws everything away.
+ */
+final class NullOutputStream extends OutputStream {
+
+    static final NullOutputStream INSTANCE = new NullOutputStream();
+
+    private NullOutputStream() {}
+
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+}
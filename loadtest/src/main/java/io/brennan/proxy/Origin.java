@@ -0,0 +1,165 @@
+package io.brennan.proxy;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A small origin server for load testing.  The path picks how the response body is framed, and the query gives its
+ * size (and delay, for /slow):
+ *
+ *   /fixed?size=N           Content-Length
+ *   /chunked?size=N         Transfer-Encoding: chunked, in 8K chunks
+ *   /close?size=N           no length at all, the body ends when the connection closes
+ *   /slow?size=N&delay=MS   Content-Length, after waiting MS milliseconds
+ *
+ * Responses are marked no-store so a caching proxy still has to come here.  Every connection gets its own thread, and
+ * connections are kept alive unless the client or the response type says otherwise.
+ */
+class Origin implements Runnable {
+
+    private static final byte[] FILLER = new byte[8192];
+
+    static {
+        for (int i = 0; i < FILLER.length; i++) {
+            FILLER[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    private final ServerSocket server;
+
+    /**
+     * Open the origin on an unused loopback port.
+     * @throws IOException if the socket can't be opened
+     */
+    Origin() throws IOException {
+        server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Return the port the origin listens on.
+     */
+    int port() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accept connections until the server socket is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                final Socket client = server.accept();
+                Thread thread = new Thread(() -> serve(client), "origin");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Stop accepting connections.
+     */
+    void close() {
+        try {
+            server.close();
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Answer requests on one connection until it closes.
+     */
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            socket.setTcpNoDelay(true);
+            HttpInputStream in = new HttpInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+            for (;;) {
+                HttpRequest request = new HttpRequest(in);
+                request.forwardMessage(NullOutputStream.INSTANCE); // read past any request body
+                String connection = request.getHeaders().get(HeaderName.CONNECTION);
+                boolean close = connection != null && connection.equalsIgnoreCase("close");
+                if (!respond(request.getUrl(), out, close)) {
+                    return;
+                }
+                out.flush();
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the client went away, which is how most connections end
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the response for one request.
+     * @return false if the connection has to close after this response
+     */
+    private boolean respond(String url, OutputStream out, boolean close) throws IOException, InterruptedException {
+        int query = url.indexOf('?');
+        String path = query == -1 ? url : url.substring(0, query);
+        int size = (int) parameter(url, "size", 1024);
+        String connection = close ? "Connection: close\r\n" : "";
+        switch (path) {
+            case "/slow":
+                Thread.sleep(parameter(url, "delay", 50));
+                // fall through
+            case "/fixed":
+                write(out, "HTTP/1.1 200 OK\r\nCache-Control: no-store\r\nContent-Length: " + size + "\r\n" +
+                        connection + "\r\n");
+                body(out, size);
+                return true;
+            case "/chunked":
+                write(out, "HTTP/1.1 200 OK\r\nCache-Control: no-store\r\nTransfer-Encoding: chunked\r\n" +
+                        connection + "\r\n");
+                for (int sent = 0; sent < size; sent += FILLER.length) {
+                    int n = Math.min(FILLER.length, size - sent);
+                    write(out, Integer.toHexString(n) + "\r\n");
+                    out.write(FILLER, 0, n);
+                    write(out, "\r\n");
+                }
+                write(out, "0\r\n\r\n");
+                return true;
+            case "/close":
+                write(out, "HTTP/1.1 200 OK\r\nCache-Control: no-store\r\nConnection: close\r\n\r\n");
+                body(out, size);
+                out.flush();
+                return false;
+            default:
+                write(out, "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n" + connection + "\r\n");
+                return true;
+        }
+    }
+
+    /**
+     * Return a numeric query parameter, or a default if it's missing.
+     */
+    static long parameter(String url, String name, long otherwise) {
+        int start = url.indexOf("?" + name + "=");
+        if (start == -1) start = url.indexOf("&" + name + "=");
+        if (start == -1) return otherwise;
+        start += name.length() + 2;
+        int end = url.indexOf('&', start);
+        return Long.parseLong(url.substring(start, end == -1 ? url.length() : end));
+    }
+
+    private static void body(OutputStream out, int size) throws IOException {
+        for (int sent = 0; sent < size; sent += FILLER.length) {
+            out.write(FILLER, 0, Math.min(FILLER.length, size - sent));
+        }
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
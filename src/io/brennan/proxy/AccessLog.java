@@ -0,0 +1,345 @@
+package io.brennan.proxy;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The access log: one line per request or tunnel, written by a background thread so that proxy threads never wait on
+ * the disk (or the console).
+ *
+ * Proxy threads put records into a fixed ring of preallocated slots.  Claiming a slot is a compare-and-set on the tail
+ * counter, and each slot has a sequence number saying whether it is free or holds a finished record (the bounded queue
+ * from Dmitry Vyukov), so there are no locks and nothing is allocated per record.  Only references to strings the
+ * request already had are stored; all the formatting happens on the writer thread.  If the ring is full because the
+ * writer has fallen behind, the record is dropped and counted, and the writer notes how many were lost.
+ *
+ * Each line is tab separated:
+ *
+ *   time  connection  client  method  host:port  url  status  received  sent  micros  note
+ *
+ * where time is ISO 8601 UTC, received and sent are bytes from and to the client (for a tunnel, just the bytes that went
+ * through it), micros is how long the request took, and note says how it was served (MISS, HIT, REVALIDATED, TUNNEL,
+ * ...).  A field we don't have is "-".  Lines go to
+ * standard output, or to a file which is rotated (access.log becomes access.log.1, and so on) when it gets too big.
+ *
+ * Like the logger, the access log is static, so either engine can record without having it passed around.
+ */
+final class AccessLog implements MetricsSource, Runnable {
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private static volatile AccessLog current;
+
+    /**
+     * One slot in the ring.  The fields are written by the thread that claimed the slot and read by the writer, with
+     * the slot's sequence number ordering the two.
+     */
+    private static final class Record {
+        long time;
+        long connection;
+        InetAddress client;
+        String method;
+        String host;
+        int port;
+        String url;
+        String status;
+        long received;
+        long sent;
+        long nanos;
+        String note;
+    }
+
+    private final Record[] ring;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // only touched by the writer thread
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+
+    private final File file; // null for standard output
+    private final long maxFileSize;
+    private final int maxFiles;
+    private OutputStream out;
+    private long fileSize;
+    private final Thread writer;
+    private volatile boolean stopping;
+
+    /**
+     * Open the log and start its writer thread.
+     * @param path File to write, or "-" for standard output.
+     * @param capacity Number of records the ring holds (rounded up to a power of two).
+     * @param maxFileSize Rotate the file when it gets this big.
+     * @param maxFiles How many rotated files to keep.
+     * @throws IOException if the file can't be opened
+     */
+    AccessLog(String path, int capacity, long maxFileSize, int maxFiles) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Record[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        if (path.equals("-")) {
+            this.file = null;
+            this.out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536);
+        } else {
+            this.file = new File(path);
+            open();
+        }
+        this.writer = new Thread(this, "access-log");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Start the access log described by the configuration, if there is one.  Records made before this (or when the log
+     * is off) are ignored.
+     * @throws IOException if the file can't be opened
+     */
+    static void start(ProxyConfig config) throws IOException {
+        if (config.accessLog.isEmpty()) {
+            return;
+        }
+        AccessLog log = new AccessLog(config.accessLog, config.accessLogBuffer, config.accessLogSize,
+                config.accessLogFiles);
+        log.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(log::stop, "access-log-shutdown"));
+        Metrics.register(log);
+        current = log;
+    }
+
+    /**
+     * Record one request or tunnel.  This never blocks; if the log is full, the record is dropped.
+     * @param connection Connection ID.
+     * @param client Client address.
+     * @param request The request, or null if we couldn't parse one.
+     * @param status Response status, or null.
+     * @param received Bytes received from the client.
+     * @param sent Bytes sent to the client.
+     * @param nanos How long it took, in nanoseconds.
+     * @param note How it was served.
+     */
+    static void log(long connection, InetAddress client, HttpRequest request, String status, long received,
+                    long sent, long nanos, String note) {
+        AccessLog log = current;
+        if (log == null) {
+            return;
+        }
+        String method = null;
+        String host = null;
+        int port = 0;
+        String url = null;
+        if (request != null) {
+            method = request.getMethod();
+            url = request.getUrl();
+            try {
+                if (method.equals("CONNECT")) {
+                    int colon = url.lastIndexOf(':');
+                    host = url.substring(0, colon);
+                    port = Integer.parseInt(url.substring(colon + 1));
+                } else if (request.hasHostInUrl() || request.getHeaders().contains(HeaderName.HOST)) {
+                    host = request.getDestinationHost();
+                    port = request.getDestinationPort();
+                }
+            } catch (RuntimeException e) {
+                // a malformed host or port; log what we have
+            }
+        }
+        log.add(connection, client, method, host, port, url, status, received, sent, nanos, note);
+    }
+
+    /**
+     * Claim a slot in the ring and fill it in, or count a drop if there is no free slot.
+     */
+    private void add(long connection, InetAddress client, String method, String host, int port, String url,
+                     String status, long received, long sent, long nanos, String note) {
+        long position;
+        for (;;) {
+            position = tail.get();
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) break;
+            } else if (sequence < position) {
+                dropped.increment(); // full
+                return;
+            }
+            // else another thread claimed this slot first; try again
+        }
+        int index = (int) position & mask;
+        Record r = ring[index];
+        r.time = System.currentTimeMillis();
+        r.connection = connection;
+        r.client = client;
+        r.method = method;
+        r.host = host;
+        r.port = port;
+        r.url = url;
+        r.status = status;
+        r.received = received;
+        r.sent = sent;
+        r.nanos = nanos;
+        r.note = note;
+        sequences.lazySet(index, position + 1); // publish
+    }
+
+    /**
+     * The writer thread: take whatever records are ready, write them out in one go, and when there are none, flush and
+     * wait a little before looking again.
+     */
+    @Override
+    public void run() {
+        StringBuilder line = new StringBuilder(256);
+        for (;;) {
+            boolean stop = stopping;
+            int batch = drain(line);
+            try {
+                if (batch == 0) {
+                    out.flush();
+                    if (stop) {
+                        return;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+            } catch (IOException e) {
+                ProxyThread.logger.warning("Access log write failed: " + e.getMessage());
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * Write out every finished record in the ring.
+     * @return number of records written
+     */
+    private int drain(StringBuilder line) {
+        int count = 0;
+        for (;;) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            format(ring[index], line);
+            ring[index].client = null; // don't keep strings alive until the slot comes around again
+            ring[index].method = null;
+            ring[index].host = null;
+            ring[index].url = null;
+            ring[index].status = null;
+            ring[index].note = null;
+            sequences.lazySet(index, head + mask + 1); // free the slot for the next lap
+            head++;
+            count++;
+            write(line);
+            written.increment();
+        }
+        long lost = dropped.sum();
+        if (lost != droppedReported) {
+            line.setLength(0);
+            line.append("# access log full, dropped ").append(lost - droppedReported).append(" records\n");
+            droppedReported = lost;
+            write(line);
+        }
+        return count;
+    }
+
+    private static void format(Record r, StringBuilder line) {
+        line.setLength(0);
+        TIME.formatTo(Instant.ofEpochMilli(r.time), line);
+        line.append('\t').append(r.connection);
+        line.append('\t').append(r.client == null ? "-" : r.client.getHostAddress());
+        line.append('\t').append(r.method == null ? "-" : r.method);
+        if (r.host == null) {
+            line.append("\t-");
+        } else {
+            line.append('\t').append(r.host).append(':').append(r.port);
+        }
+        line.append('\t').append(r.url == null ? "-" : r.url);
+        line.append('\t').append(r.status == null ? "-" : r.status);
+        line.append('\t').append(r.received);
+        line.append('\t').append(r.sent);
+        line.append('\t').append(TimeUnit.NANOSECONDS.toMicros(r.nanos));
+        line.append('\t').append(r.note == null ? "-" : r.note);
+        line.append('\n');
+    }
+
+    private void write(StringBuilder line) {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (file != null && fileSize + bytes.length > maxFileSize && fileSize > 0) {
+                rotate();
+            }
+            out.write(bytes);
+            fileSize += bytes.length;
+        } catch (IOException e) {
+            ProxyThread.logger.warning("Access log write failed: " + e.getMessage());
+        }
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(file, true), 65536);
+        fileSize = file.length();
+    }
+
+    /**
+     * Close the current file, shift the old ones along (dropping the oldest), and start a new one.
+     */
+    private void rotate() throws IOException {
+        out.close();
+        File oldest = new File(file.getPath() + "." + maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            ProxyThread.logger.warning("Could not delete old access log " + oldest);
+        }
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File from = new File(file.getPath() + "." + i);
+            if (from.exists() && !from.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                ProxyThread.logger.warning("Could not rotate access log " + from);
+            }
+        }
+        if (maxFiles > 0 && !file.renameTo(new File(file.getPath() + ".1"))) {
+            ProxyThread.logger.warning("Could not rotate access log " + file);
+        }
+        if (maxFiles == 0 && !file.delete()) {
+            ProxyThread.logger.warning("Could not delete access log " + file);
+        }
+        open();
+    }
+
+    /**
+     * Write out whatever is left and stop the writer, e.g. when the JVM is shutting down.
+     */
+    private void stop() {
+        stopping = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        sink.counter("proxy_access_log_records_total", "Access log lines written.", written.sum());
+        sink.counter("proxy_access_log_dropped_total", "Access log records dropped because the buffer was full.",
+                dropped.sum());
+    }
+}
@@ -0,0 +1,304 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides, as each client connection is accepted, whether the proxy has room for it.  Every connection we take costs a
+ * thread (or at least buffers and a place in a selector), so when a spike of clients turns up, taking them all just
+ * makes the proxy slow for everyone, and then it runs out of memory or threads.  Instead, past --max-connections a few
+ * more connections may wait for a place (--accept-queue of them, for up to --accept-queue-timeout), and the rest are
+ * shed: sent a 503 with a Retry-After header and closed, straight from the accept loop, so that refusing a client costs
+ * next to nothing.
+ *
+ * The 503 goes out before the client's request has been read, which is allowed, but closing a socket with unread data
+ * in it makes the kernel reset the connection, and a reset can throw away the response before the client reads it.  So
+ * after the 503, shed connections linger on a small selector thread that reads and discards whatever the client sends
+ * until it hangs up, or a couple of seconds pass.
+ *
+ * Admitted connections hold a Slot until they close, which gives their place to the next waiting connection.
+ */
+final class Admission implements MetricsSource {
+
+    /**
+     * Longest a shed connection lingers for the client to read its 503 and hang up, in milliseconds.
+     */
+    private static final long LINGER = 2000;
+
+    /**
+     * Most shed connections to linger at once.  Past this they are just closed.
+     */
+    private static final int MAX_LINGERING = 1024;
+
+    private final int maxConnections;
+    private final int maxWaiting;
+    private final long waitTimeout;
+    private final byte[] busy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition freed = lock.newCondition();
+    private int active;
+    private int waiting;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    private final ConcurrentLinkedQueue<SocketChannel> toLinger = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger lingering = new AtomicInteger();
+    private final Selector selector;
+
+    /**
+     * Create the admission controller, and if there is a connection limit, the thread that shed connections linger on.
+     * @param config Proxy configuration, for the limits and the Retry-After value.
+     * @throws IOException if the selector can't be opened.
+     */
+    Admission(ProxyConfig config) throws IOException {
+        this.maxConnections = config.maxConnections;
+        this.maxWaiting = config.acceptQueue;
+        this.waitTimeout = config.acceptQueueTimeout;
+        this.busy = busyResponse(config.retryAfter);
+        if (maxConnections > 0) {
+            selector = Selector.open();
+            Thread linger = new Thread(this::lingerLoop, "admission-linger");
+            linger.setDaemon(true);
+            linger.start();
+        } else {
+            selector = null;
+        }
+    }
+
+    /**
+     * Return the bytes of a 503 response telling the client to come back in a while.
+     * @param retryAfter Seconds for the Retry-After header.
+     */
+    static byte[] busyResponse(int retryAfter) {
+        return ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + retryAfter +
+                "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes();
+    }
+
+    /**
+     * Decide what to do with a client connection that was just accepted.  This never blocks, so it is safe to call
+     * from an accept loop.
+     * @param mayWait Whether the connection may wait for a place when there is none.  The nio engine doesn't queue
+     *                connections, since they don't cost it a thread each.
+     * @return A slot for the connection, which must be released when it closes, or null if it must be shed.
+     */
+    Slot admit(boolean mayWait) {
+        lock.lock();
+        try {
+            // Connections that are already waiting come first, so a new one doesn't jump the queue.
+            if (maxConnections <= 0 || (waiting == 0 && active < maxConnections)) {
+                active++;
+                admitted.increment();
+                return new Slot(false);
+            }
+            if (mayWait && waiting < maxWaiting) {
+                waiting++;
+                queued.increment();
+                return new Slot(true);
+            }
+            shed.increment();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Refuse a connection: send it a 503 and close it.  The write can't block, since nothing else has been written to
+     * the socket.
+     * @param channel The client's channel.
+     */
+    void shed(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            channel.write(ByteBuffer.wrap(busy));
+            channel.shutdownOutput();
+            if (selector != null && lingering.incrementAndGet() <= MAX_LINGERING) {
+                toLinger.add(channel);
+                selector.wakeup();
+                return;
+            }
+            lingering.decrementAndGet();
+        } catch (IOException e) {
+            // the client has gone already
+        }
+        closeQuietly(channel);
+    }
+
+    /**
+     * Read and throw away whatever shed clients send, until they hang up or have lingered long enough.  Connections
+     * are kept in the order they arrived, which is also the order they expire in.
+     */
+    private void lingerLoop() {
+        ByteBuffer discard = ByteBuffer.allocateDirect(4096);
+        ArrayDeque<SelectionKey> keys = new ArrayDeque<>();
+        for (;;) {
+            try {
+                selector.select(LINGER / 4);
+            } catch (IOException e) {
+                ProxyThread.logger.severe("admission-linger: select failed: " + e.getMessage());
+                return;
+            }
+            long now = System.currentTimeMillis();
+            SocketChannel channel;
+            while ((channel = toLinger.poll()) != null) {
+                try {
+                    keys.addLast(channel.register(selector, SelectionKey.OP_READ, now + LINGER));
+                } catch (IOException e) {
+                    finish(channel);
+                }
+            }
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+                try {
+                    int n;
+                    do {
+                        discard.clear();
+                        n = ((SocketChannel) key.channel()).read(discard);
+                    } while (n > 0);
+                    if (n == -1) {
+                        key.cancel();
+                    }
+                } catch (IOException e) {
+                    key.cancel();
+                }
+            }
+            while (!keys.isEmpty() && (!keys.peekFirst().isValid() || (Long) keys.peekFirst().attachment() <= now)) {
+                SelectionKey key = keys.pollFirst();
+                key.cancel();
+                finish((SocketChannel) key.channel());
+            }
+        }
+    }
+
+    private void finish(SocketChannel channel) {
+        closeQuietly(channel);
+        lingering.decrementAndGet();
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        int active;
+        int waiting;
+        lock.lock();
+        try {
+            active = this.active;
+            waiting = this.waiting;
+        } finally {
+            lock.unlock();
+        }
+        sink.counter("proxy_admission_admitted_total", "Client connections admitted, at once or after waiting.",
+                admitted.sum());
+        sink.counter("proxy_admission_queued_total", "Client connections that had to wait for a place.",
+                queued.sum());
+        sink.counter("proxy_admission_shed_total", "Client connections refused with a 503 because the proxy was full.",
+                shed.sum());
+        sink.counter("proxy_admission_timed_out_total",
+                "Client connections refused with a 503 after waiting too long for a place.", timedOut.sum());
+        sink.gauge("proxy_admission_active", "Client connections holding a place.", active);
+        sink.gauge("proxy_admission_waiting", "Client connections waiting for a place.", waiting);
+        sink.gauge("proxy_admission_lingering", "Shed client connections waiting to be closed.", lingering.get());
+    }
+
+    /**
+     * A client connection's place in the proxy.
+     */
+    final class Slot {
+        private boolean waiting;
+        private boolean released;
+
+        private Slot(boolean waiting) {
+            this.waiting = waiting;
+        }
+
+        /**
+         * If the connection was queued, wait for a place to come free.  If none does in time, the client is shed.
+         * Run this on the connection's own thread, never on the accept loop.
+         * @param channel The client's channel, to shed if need be.
+         * @return true if the connection may go ahead, false if it was shed
+         */
+        boolean await(SocketChannel channel) {
+            if (!waiting) {
+                return true;
+            }
+            boolean admitted = false;
+            lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+                while (active >= maxConnections && remaining > 0) {
+                    remaining = freed.awaitNanos(remaining);
+                }
+                admitted = active < maxConnections;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                Admission.this.waiting--;
+                waiting = false;
+                if (admitted) {
+                    active++;
+                    Admission.this.admitted.increment();
+                } else {
+                    released = true; // never held a place
+                    timedOut.increment();
+                }
+                lock.unlock();
+            }
+            if (!admitted) {
+                shed(channel);
+            }
+            return admitted;
+        }
+
+        /**
+         * Return a slot for something served within this connection, such as one of its HTTP/2 streams.  It holds no
+         * place of its own, since the connection's covers it, so it never waits and releasing it does nothing.
+         * @return a slot that holds no place
+         */
+        Slot child() {
+            Slot child = new Slot(false);
+            child.released = true;
+            return child;
+        }
+
+        /**
+         * Give the place back, waking a waiting connection.  Safe to call more than once.
+         */
+        void release() {
+            lock.lock();
+            try {
+                if (released) return;
+                released = true;
+                if (waiting) {
+                    Admission.this.waiting--; // gave up before its turn came
+                    return;
+                }
+                active--;
+                freed.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.brennan.proxy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tracks where a message body ends when the body arrives a few bytes at a time, as it does in the non-blocking engine.
+ * This is the incremental counterpart of the forward*Body() methods in HttpMessage: it understands the same body types,
+ * but instead of reading from a stream until the body is over, it is handed whatever bytes have arrived so far and
+ * says how many of them belong to the body.  The bytes themselves are forwarded unchanged (except for identity bodies,
+ * which the caller wraps in chunks, just like HttpMessage.forwardMessage() does).
+ */
+class BodyFramer {
+
+    /**
+     * States for walking through a chunked body.
+     */
+    private enum ChunkState {
+        Size, Extension, SizeLF, Data, Trailer, TrailerLF
+    }
+
+    private final BodyType type;
+    private long remaining;
+    private ChunkState chunkState = ChunkState.Size;
+    private long chunkSize;
+    private int sizeDigits;
+    private int trailerLineLength;
+    private boolean complete;
+
+    /**
+     * Create a framer for one message body.
+     * @param type The body type from HttpMessage.bodyType().
+     * @param contentLength The Content-Length value, only used for BodyType.ContentLength.
+     */
+    BodyFramer(BodyType type, long contentLength) {
+        this.type = type;
+        this.remaining = contentLength;
+        this.complete = type == BodyType.None || (type == BodyType.ContentLength && contentLength == 0);
+    }
+
+    /**
+     * Return the body type being framed.
+     * @return body type
+     */
+    BodyType getType() {
+        return type;
+    }
+
+    /**
+     * Return true once the whole body has been seen.  Identity bodies only finish through endOfStream().
+     * @return true when complete
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Tell the framer that the connection was closed.  This ends an identity body, and is an error for anything else
+     * that has not finished yet.
+     * @return true if the body ended cleanly
+     */
+    boolean endOfStream() {
+        if (type == BodyType.Identity) {
+            complete = true;
+        }
+        return complete;
+    }
+
+    /**
+     * Look at the bytes between buf's position and limit, and count how many of them belong to this body.  The
+     * buffer's position is not changed; the caller forwards the counted bytes and advances past them itself.
+     * @param buf Buffer in read mode.
+     * @param max Don't count more than this many bytes (e.g. the room left in the output buffer).
+     * @return Number of bytes at the front of the buffer which are part of the body.
+     * @throws IllegalStateException if a chunk header is malformed.
+     */
+    int scan(ByteBuffer buf, int max) {
+        int available = Math.min(buf.remaining(), max);
+        if (complete || available == 0) {
+            return 0;
+        }
+        switch (type) {
+            case Identity:
+                return available;
+            case ContentLength:
+                int n = (int) Math.min(available, remaining);
+                remaining -= n;
+                complete = remaining == 0;
+                return n;
+            case Chunked:
+                return scanChunked(buf, available);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Walk through chunk headers, chunk data and trailers.  This follows HttpMessage.forwardChunkedBody(), one byte of
+     * header at a time but whole runs of chunk data at once.
+     */
+    private int scanChunked(ByteBuffer buf, int available) {
+        int start = buf.position();
+        int i = 0;
+        while (i < available && !complete) {
+            if (chunkState == ChunkState.Data) {
+                int n = (int) Math.min(available - i, remaining);
+                i += n;
+                remaining -= n;
+                if (remaining == 0) {
+                    chunkState = ChunkState.Size;
+                    chunkSize = 0;
+                    sizeDigits = 0;
+                }
+                continue;
+            }
+            byte b = buf.get(start + i);
+            i++;
+            switch (chunkState) {
+                case Size:
+                    // As in HttpMessage.chunkSize(): refuse a size before it overflows, rather than let it wrap round
+                    // to something small (or zero, which would end the body early and leave the rest of it to be
+                    // taken for the next message), and refuse a size line with no digits at all.
+                    int digit = Character.digit(b, 16);
+                    if (digit != -1) {
+                        if (++sizeDigits > 15 && chunkSize >= 0x800000000000000L) {
+                            throw new IllegalStateException("Chunk too large.");
+                        }
+                        chunkSize = chunkSize << 4 | digit;
+                    } else if (sizeDigits == 0) {
+                        throw new IllegalStateException("Bad chunk header.");
+                    } else if (b == '\r') {
+                        chunkState = ChunkState.SizeLF;
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        chunkState = ChunkState.Extension;
+                    } else {
+                        throw new IllegalStateException("Bad chunk header.");
+                    }
+                    break;
+                case Extension:
+                    if (b == '\r') chunkState = ChunkState.SizeLF;
+                    break;
+                case SizeLF:
+                    if (b != '\n') throw new IllegalStateException("Bad chunk header.");
+                    if (chunkSize == 0) {
+                        chunkState = ChunkState.Trailer;
+                        trailerLineLength = 0;
+                    } else {
+                        chunkState = ChunkState.Data;
+                        remaining = chunkSize + 2; // chunk data plus its CRLF
+                    }
+                    break;
+                case Trailer:
+                    if (b == '\r') {
+                        chunkState = ChunkState.TrailerLF;
+                    } else {
+                        trailerLineLength++;
+                    }
+                    break;
+                case TrailerLF:
+                    if (b != '\n') throw new IllegalStateException("Bad chunk trailer.");
+                    if (trailerLineLength == 0) {
+                        complete = true;
+                    } else {
+                        chunkState = ChunkState.Trailer;
+                        trailerLineLength = 0;
+                    }
+                    break;
+            }
+        }
+        return i;
+    }
+}
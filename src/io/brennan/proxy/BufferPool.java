@@ -0,0 +1,286 @@
+package io.brennan.proxy;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The buffers that bodies and tunnels are forwarded through.  Both engines move every byte through a buffer of a few
+ * KB, and allocating a fresh one per message (or worse, per chunk) gives the garbage collector a lot of work for
+ * nothing, so buffers are borrowed from here and given back.
+ *
+ * There are two kinds.  Code that reads and writes channels gets direct ByteBuffers, which channels use without an
+ * extra copy through a temporary native buffer, and which are expensive to allocate and slow to be freed.  Code that
+ * works with streams has to have a byte array, so it gets one of those, from the heap.
+ *
+ * Sizes are rounded up to a power of two from 4KB to 64KB, and each size class is pooled separately; anything bigger is
+ * just allocated.  Each platform thread keeps a few free buffers of each class to itself, so that the usual borrow and
+ * return doesn't touch anything shared.  Behind those is a shared lock-free queue per class.  Virtual threads only use
+ * the shared queues, since there are lots of them and a cache would die with each one.
+ *
+ * Buffers must be given back at most once, and not used afterwards.  The stats count buffers that are out, and the
+ * most that have been out at once, so one that is never given back shows up as a leak.
+ *
+ * Like the access log, the pool is static, so forwarding code anywhere can use it without having it passed around.
+ */
+final class BufferPool implements MetricsSource {
+
+    private static final int MIN_SHIFT = 12; // 4KB
+    private static final int MAX_SHIFT = 16; // 64KB
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /**
+     * Most bytes of free buffers of each class, and of each kind, to keep in the shared queues.
+     */
+    private static final int SHARED_BYTES_PER_CLASS = 8 * 1024 * 1024;
+
+    /**
+     * Most free buffers of each class, and of each kind, a thread keeps to itself.
+     */
+    private static final int LOCAL_PER_CLASS = 4;
+
+    private static final Method IS_VIRTUAL = isVirtualMethod();
+
+    private static final BufferPool instance = new BufferPool();
+
+    private final Kind arrays = new Kind("heap");
+    private final Kind directs = new Kind("direct");
+
+    private final ThreadLocal<Local> locals = new ThreadLocal<Local>() {
+        @Override
+        protected Local initialValue() {
+            return isVirtual(Thread.currentThread()) ? null : new Local();
+        }
+    };
+
+    private BufferPool() {}
+
+    /**
+     * Return the pool, e.g. to register its metrics.
+     */
+    static BufferPool get() {
+        return instance;
+    }
+
+    /**
+     * Borrow a byte array of at least the given size.  It may hold old data.
+     * @param size Bytes needed.
+     * @return an array, to be given back with release()
+     */
+    static byte[] array(int size) {
+        int c = sizeClass(size);
+        if (c == -1) {
+            return new byte[size];
+        }
+        BufferPool pool = instance;
+        pool.arrays.acquired();
+        Local local = pool.locals.get();
+        if (local != null && local.arrayCounts[c] > 0) {
+            byte[] array = local.arrays[c][--local.arrayCounts[c]];
+            local.arrays[c][local.arrayCounts[c]] = null;
+            return array;
+        }
+        byte[] array = (byte[]) pool.arrays.poll(c);
+        if (array == null) {
+            pool.arrays.allocated.increment();
+            array = new byte[1 << (c + MIN_SHIFT)];
+        }
+        return array;
+    }
+
+    /**
+     * Give back an array from array().  Arrays that aren't one of the pooled sizes are left for the garbage collector.
+     * @param array The array, which the caller must not use again.
+     */
+    static void release(byte[] array) {
+        int c = exactClass(array.length);
+        if (c == -1) {
+            return;
+        }
+        BufferPool pool = instance;
+        pool.arrays.released();
+        Local local = pool.locals.get();
+        if (local != null && local.arrayCounts[c] < LOCAL_PER_CLASS) {
+            local.arrays[c][local.arrayCounts[c]++] = array;
+            return;
+        }
+        pool.arrays.offer(c, array);
+    }
+
+    /**
+     * Borrow a cleared direct buffer of at least the given size.  Its limit is its capacity, which may be more than
+     * was asked for.
+     * @param size Bytes needed.
+     * @return a buffer, to be given back with release()
+     */
+    static ByteBuffer direct(int size) {
+        int c = sizeClass(size);
+        if (c == -1) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        BufferPool pool = instance;
+        pool.directs.acquired();
+        Local local = pool.locals.get();
+        if (local != null && local.directCounts[c] > 0) {
+            ByteBuffer buf = local.directs[c][--local.directCounts[c]];
+            local.directs[c][local.directCounts[c]] = null;
+            return buf;
+        }
+        ByteBuffer buf = (ByteBuffer) pool.directs.poll(c);
+        if (buf == null) {
+            pool.directs.allocated.increment();
+            buf = ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+        }
+        return buf;
+    }
+
+    /**
+     * Give back a buffer from direct().  Buffers that aren't direct, or aren't one of the pooled sizes, are left for the
+     * garbage collector.
+     * @param buf The buffer, which the caller must not use again.
+     */
+    static void release(ByteBuffer buf) {
+        int c = exactClass(buf.capacity());
+        if (c == -1 || !buf.isDirect()) {
+            return;
+        }
+        buf.clear();
+        BufferPool pool = instance;
+        pool.directs.released();
+        Local local = pool.locals.get();
+        if (local != null && local.directCounts[c] < LOCAL_PER_CLASS) {
+            local.directs[c][local.directCounts[c]++] = buf;
+            return;
+        }
+        pool.directs.offer(c, buf);
+    }
+
+    /**
+     * Return the index of the smallest class that holds size bytes, or -1 if it is too big to pool.
+     */
+    private static int sizeClass(int size) {
+        if (size > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    /**
+     * Return the class of a buffer with exactly this capacity, or -1 if it isn't a pooled size.
+     */
+    private static int exactClass(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            return -1;
+        }
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        return shift < MIN_SHIFT || shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null; // before Java 21, every thread is a platform thread
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        arrays.collect(sink);
+        directs.collect(sink);
+    }
+
+    /**
+     * One thread's own free buffers, as a small stack per class.
+     */
+    private static final class Local {
+        final byte[][][] arrays = new byte[CLASSES][LOCAL_PER_CLASS][];
+        final int[] arrayCounts = new int[CLASSES];
+        final ByteBuffer[][] directs = new ByteBuffer[CLASSES][LOCAL_PER_CLASS];
+        final int[] directCounts = new int[CLASSES];
+    }
+
+    /**
+     * The shared queues and stats for one kind of buffer.
+     */
+    private static final class Kind {
+        private final String name;
+        private final ConcurrentLinkedQueue<Object>[] free;
+        private final AtomicInteger[] pooled = new AtomicInteger[CLASSES];
+        private final LongAdder allocated = new LongAdder();
+        private final LongAdder borrowed = new LongAdder();
+        private final AtomicLong out = new AtomicLong();
+        private final AtomicLong highWater = new AtomicLong();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Kind(String name) {
+            this.name = name;
+            this.free = new ConcurrentLinkedQueue[CLASSES];
+            for (int c = 0; c < CLASSES; c++) {
+                free[c] = new ConcurrentLinkedQueue<>();
+                pooled[c] = new AtomicInteger();
+            }
+        }
+
+        void acquired() {
+            borrowed.increment();
+            long n = out.incrementAndGet();
+            long high = highWater.get();
+            while (n > high && !highWater.compareAndSet(high, n)) {
+                high = highWater.get();
+            }
+        }
+
+        void released() {
+            out.decrementAndGet();
+        }
+
+        Object poll(int c) {
+            Object buffer = free[c].poll();
+            if (buffer != null) {
+                pooled[c].decrementAndGet();
+            }
+            return buffer;
+        }
+
+        void offer(int c, Object buffer) {
+            if (pooled[c].incrementAndGet() > SHARED_BYTES_PER_CLASS >> (c + MIN_SHIFT)) {
+                pooled[c].decrementAndGet();
+                return;
+            }
+            free[c].add(buffer);
+        }
+
+        void collect(Metrics.Sink sink) {
+            long bytes = 0;
+            for (int c = 0; c < CLASSES; c++) {
+                bytes += (long) pooled[c].get() << (c + MIN_SHIFT);
+            }
+            sink.counter("proxy_buffers_" + name + "_acquired_total", "Pooled " + name + " buffers borrowed.",
+                    borrowed.sum());
+            sink.counter("proxy_buffers_" + name + "_allocated_total",
+                    "Pooled " + name + " buffers allocated because none were free.", allocated.sum());
+            sink.gauge("proxy_buffers_" + name + "_in_use", "Pooled " + name + " buffers borrowed and not given back.",
+                    out.get());
+            sink.gauge("proxy_buffers_" + name + "_in_use_max", "Most pooled " + name + " buffers out at once.",
+                    highWater.get());
+            sink.gauge("proxy_buffers_" + name + "_free_bytes",
+                    "Bytes of free " + name + " buffers in the shared pool.", bytes);
+        }
+    }
+}
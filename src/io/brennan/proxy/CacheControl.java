@@ -0,0 +1,58 @@
+package io.brennan.proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The parsed directives of a Cache-Control header, e.g. "max-age=60, no-cache".  Directive names are lowercased, and
+ * quotes around values are removed.
+ */
+class CacheControl {
+
+    private final Map<String, String> directives = new HashMap<>();
+
+    /**
+     * Parse a Cache-Control value.
+     * @param value Header value, or null for no header.
+     */
+    CacheControl(String value) {
+        if (value == null) return;
+        for (String part : value.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            int equals = part.indexOf('=');
+            if (equals == -1) {
+                directives.put(part.toLowerCase(), "");
+            } else {
+                String argument = part.substring(equals + 1).trim();
+                if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")) {
+                    argument = argument.substring(1, argument.length() - 1);
+                }
+                directives.put(part.substring(0, equals).trim().toLowerCase(), argument);
+            }
+        }
+    }
+
+    /**
+     * Return true if the directive is present.
+     * @param name Directive name, in lowercase.
+     */
+    boolean has(String name) {
+        return directives.containsKey(name);
+    }
+
+    /**
+     * Return a directive's value as a number of seconds.
+     * @param name Directive name, in lowercase.
+     * @return The value, or -1 if it is missing or not a number.
+     */
+    long seconds(String name) {
+        String value = directives.get(name);
+        if (value == null) return -1;
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package io.brennan.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One response stored in the ResponseCache.  The head is kept as bytes on the heap, and the body (exactly as it was
+ * forwarded, so with its chunk framing if it had any) is kept off the heap in a direct ByteBuffer.  Everything needed
+ * to decide freshness under RFC 7234 is worked out once, when the response is stored.
+ *
+ * The prev/next/inProtected/removed fields belong to the cache's segmented LRU lists and are guarded by its lock.
+ */
+class CachedResponse {
+
+    final String key;
+    final HeaderName[] varyNames;
+    final String[] varyValues;
+    final String status;
+    final byte[] head;
+    final ByteBuffer body;
+    final long requestTime;
+    final long responseTime;
+    final long correctedInitialAge;
+    final long freshnessLifetime;
+    final String etag;
+    final String lastModified;
+    final boolean alwaysRevalidate;
+
+    CachedResponse prev;
+    CachedResponse next;
+    boolean inProtected;
+    boolean removed;
+
+    /**
+     * Create an empty entry, for use as the head of a list.
+     */
+    CachedResponse() {
+        this.key = null;
+        this.varyNames = null;
+        this.varyValues = null;
+        this.status = null;
+        this.head = null;
+        this.body = null;
+        this.requestTime = 0;
+        this.responseTime = 0;
+        this.correctedInitialAge = 0;
+        this.freshnessLifetime = 0;
+        this.etag = null;
+        this.lastModified = null;
+        this.alwaysRevalidate = false;
+    }
+
+    /**
+     * Create a cache entry.  All times are in milliseconds.
+     * @param key Primary cache key (method, host and URL).
+     * @param request The request the response answered, for recording Vary values.
+     * @param response The response, whose headers give the freshness information.
+     * @param head The response head bytes, as forwarded.
+     * @param body The body bytes as forwarded, in a direct buffer.
+     * @param requestTime When we sent the request to the origin.
+     * @param responseTime When we got the response head back.
+     */
+    CachedResponse(String key, HttpRequest request, HttpResponse response, byte[] head, ByteBuffer body,
+                   long requestTime, long responseTime) {
+        this(key, varyNames(response), varyValues(request, varyNames(response)), response, head, body, requestTime,
+                responseTime);
+    }
+
+    /**
+     * Create a cache entry with Vary values that were recorded earlier, e.g. when loading entries back from disk.
+     */
+    CachedResponse(String key, HeaderName[] varyNames, String[] varyValues, HttpResponse response, byte[] head,
+                   ByteBuffer body, long requestTime, long responseTime) {
+        HttpHeaders headers = response.getHeaders();
+        this.key = key;
+        this.varyNames = varyNames;
+        this.varyValues = varyValues;
+        this.status = response.getStatus();
+        this.head = head;
+        this.body = body;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+
+        // RFC 7234 section 4.2.3: work out how old the response already was when we got it.
+        long date = parseDate(headers.get("Date"));
+        if (date == -1) date = responseTime;
+        long apparentAge = Math.max(0, responseTime - date);
+        long ageValue = Math.max(0, parseSeconds(headers.get("Age"))) * 1000;
+        this.correctedInitialAge = Math.max(apparentAge, ageValue + (responseTime - requestTime));
+
+        // Section 4.2.1: s-maxage beats max-age beats Expires, and failing all that, use a heuristic of 10% of the
+        // time since it was last modified (capped at a day) if there is a Last-Modified header.
+        CacheControl cc = new CacheControl(headers.get("Cache-Control"));
+        this.lastModified = headers.get("Last-Modified");
+        long lifetime;
+        if (cc.seconds("s-maxage") != -1) {
+            lifetime = cc.seconds("s-maxage") * 1000;
+        } else if (cc.seconds("max-age") != -1) {
+            lifetime = cc.seconds("max-age") * 1000;
+        } else if (headers.contains("Expires")) {
+            long expires = parseDate(headers.get("Expires"));
+            lifetime = expires == -1 ? 0 : Math.max(0, expires - date);
+        } else if (lastModified != null && parseDate(lastModified) != -1) {
+            lifetime = Math.min(86400000L, Math.max(0, (date - parseDate(lastModified)) / 10));
+        } else {
+            lifetime = 0;
+        }
+        this.freshnessLifetime = lifetime;
+        this.etag = headers.get("ETag");
+        this.alwaysRevalidate = cc.has("no-cache");
+    }
+
+    /**
+     * Return the header names listed in a response's Vary header.
+     */
+    static HeaderName[] varyNames(HttpResponse response) {
+        String vary = response.getHeaders().get("Vary");
+        if (vary == null) {
+            return new HeaderName[0];
+        }
+        String[] names = vary.split(",");
+        HeaderName[] result = new HeaderName[names.length];
+        for (int i = 0; i < names.length; i++) {
+            result[i] = HeaderName.of(names[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * Return a request's values for the given headers.  A missing header gives null.
+     */
+    static String[] varyValues(HttpRequest request, HeaderName[] names) {
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = request.getHeaders().get(names[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Create a copy of an entry with a new head and times, sharing the same body.  This is for updating an entry when
+     * the origin says it is still valid (304 Not Modified).
+     */
+    CachedResponse(CachedResponse old, HttpRequest request, HttpResponse updated, byte[] head, long requestTime,
+                   long responseTime) {
+        this(old.key, request, updated, head, old.body, requestTime, responseTime);
+    }
+
+    /**
+     * Return the number of bytes this entry counts against the cache budget.
+     * @return size in bytes
+     */
+    long size() {
+        return head.length + bodyLength();
+    }
+
+    /**
+     * Return the length of the stored body.
+     * @return body length in bytes
+     */
+    long bodyLength() {
+        return body.capacity();
+    }
+
+    /**
+     * Return how old the response is now, in milliseconds (RFC 7234 section 4.2.3).
+     * @param now Current time.
+     * @return current age
+     */
+    long currentAge(long now) {
+        return correctedInitialAge + (now - responseTime);
+    }
+
+    /**
+     * Decide whether this entry can be served without asking the origin.
+     * @param requestCacheControl The request's Cache-Control directives, which may ask for something fresher.
+     * @param now Current time.
+     * @return true if it is fresh enough
+     */
+    boolean isFresh(CacheControl requestCacheControl, long now) {
+        if (alwaysRevalidate || requestCacheControl.has("no-cache")) {
+            return false;
+        }
+        long age = currentAge(now);
+        long maxAge = requestCacheControl.seconds("max-age");
+        if (maxAge != -1 && age > maxAge * 1000) {
+            return false;
+        }
+        return age < freshnessLifetime;
+    }
+
+    /**
+     * Return true if we can ask the origin whether this entry is still good, i.e. it has an ETag or Last-Modified.
+     * @return true if conditional revalidation is possible
+     */
+    boolean canRevalidate() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * Check that a request asks for the same variant as the one this entry was stored for.
+     * @param request The new request.
+     * @return true if all the Vary headers match
+     */
+    boolean matches(HttpRequest request) {
+        for (int i = 0; i < varyNames.length; i++) {
+            if (varyNames[i].toString().equals("*")) return false;
+            String value = request.getHeaders().get(varyNames[i]);
+            if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the stored head into a response object, e.g. to update or send it.  The result has no body to read.
+     * @return the parsed head
+     * @throws IOException never, really, since the head was valid when we stored it
+     */
+    HttpResponse parseHead() throws IOException {
+        return new HttpResponse(new ByteArrayInputStream(head));
+    }
+
+    /**
+     * Send this response to a client, with an Age header and the client's own Connection header.
+     * @param os Client stream.
+     * @param channel The client's channel, which subclasses may write the body to directly, or null.
+     * @param keepAlive Whether to tell the client the connection stays open.
+     * @param now Current time, for the Age header.
+     * @param progress Counts the bytes written straight to the channel as they go, so that a timeout can see the body
+     *                 is still moving.
+     * @return Bytes that were written straight to the channel rather than through os.
+     * @throws IOException if writing fails
+     */
+    long writeTo(OutputStream os, SocketChannel channel, boolean keepAlive, long now, AtomicLong progress)
+            throws IOException {
+        HttpResponse response = parseHead();
+        HttpHeaders headers = response.getHeaders();
+        headers.set("Age", Long.toString(currentAge(now) / 1000));
+        headers.set(HeaderName.CONNECTION, keepAlive ? "keep-alive" : "close");
+        response.forwardHeaders(os);
+        long direct = writeBody(os, channel, progress);
+        os.flush();
+        return direct;
+    }
+
+    /**
+     * Write the stored body, after the head has been written to os.
+     * @param os Client stream.
+     * @param channel The client's channel, or null.
+     * @param progress Counts the bytes written straight to the channel as they go.
+     * @return Bytes written straight to the channel rather than through os.
+     * @throws IOException if writing fails
+     */
+    protected long writeBody(OutputStream os, SocketChannel channel, AtomicLong progress) throws IOException {
+        ByteBuffer source = body.duplicate();
+        byte[] buffer = BufferPool.array(HttpMessage.BUFFER_SIZE);
+        try {
+            while (source.hasRemaining()) {
+                int n = Math.min(buffer.length, source.remaining());
+                source.get(buffer, 0, n);
+                os.write(buffer, 0, n);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return 0;
+    }
+
+    /**
+     * Parse an HTTP date, returning milliseconds since the epoch, or -1 if it isn't a valid date.
+     */
+    static long parseDate(String value) {
+        if (value == null) return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
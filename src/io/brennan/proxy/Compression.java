@@ -0,0 +1,306 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * On-the-fly compression of responses for the blocking engine.  A response is compressed when the client's
+ * Accept-Encoding takes gzip or deflate, the origin hasn't encoded it already, its Content-Type is one that compresses
+ * well (text, JSON, JavaScript, XML, SVG), and it isn't known to be smaller than the minimum size.  Since we can't know
+ * the compressed length up front, a compressed body is always sent chunked, whatever framing the origin used.
+ *
+ * Deflaters hold a good chunk of native memory and are slow to set up, so they are kept in a pool (one each for gzip's
+ * raw deflate and the zlib format that "deflate" means) and reset between responses.
+ */
+final class Compression implements MetricsSource {
+
+    private static final int POOL_SIZE = 64;
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+    private final int level;
+    private final long minSize;
+    private final ArrayBlockingQueue<Deflater> gzipDeflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<Deflater> zlibDeflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * Create the compression stage.
+     * @param level Deflate level, 1 (fastest) to 9 (smallest).
+     * @param minSize Responses with a Content-Length smaller than this are left alone.
+     */
+    Compression(int level, long minSize) {
+        this.level = level;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Decide whether to compress a response, and if so, change its headers to say how.  The framing headers are left
+     * alone so that the body can still be read; HttpMessage.forwardMessage() swaps them for chunked when it sends it.
+     * @param request The client's request.
+     * @param response The origin's response, before it is forwarded.
+     * @return The encoding to use, "gzip" or "deflate", or null to send the response as it is.
+     */
+    String prepare(HttpRequest request, HttpResponse response) {
+        if (request.getMethod().equals("HEAD") || response.bodyType() == BodyType.None) {
+            return null;
+        }
+        HttpHeaders headers = response.getHeaders();
+        String status = response.getStatus();
+        if (status.equals("206") || status.equals("204") || status.equals("304")) {
+            return null;
+        }
+        String contentEncoding = headers.get("Content-Encoding");
+        if (contentEncoding != null && !contentEncoding.trim().equalsIgnoreCase("identity")) {
+            return null; // already encoded
+        }
+        if (!isCompressible(headers.get("Content-Type"))) {
+            return null;
+        }
+        if (new CacheControl(headers.get("Cache-Control")).has("no-transform")) {
+            return null;
+        }
+        if (response.bodyType() == BodyType.ContentLength) {
+            try {
+                if (Long.parseLong(headers.get(HeaderName.CONTENT_LENGTH).trim()) < minSize) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        String encoding = chooseEncoding(request.getHeaders().get("Accept-Encoding"));
+        if (encoding == null) {
+            return null;
+        }
+
+        headers.set("Content-Encoding", encoding);
+        String vary = headers.get("Vary");
+        if (vary == null) {
+            headers.set("Vary", "Accept-Encoding");
+        } else if (!vary.toLowerCase().contains("accept-encoding") && !vary.trim().equals("*")) {
+            headers.set("Vary", vary + ", Accept-Encoding");
+        }
+        // The compressed bytes differ from the original ones, so a strong validator no longer applies.
+        String etag = headers.get("ETag");
+        if (etag != null && etag.startsWith("\"")) {
+            headers.set("ETag", "W/" + etag);
+        }
+        return encoding;
+    }
+
+    /**
+     * Return true for media types that are worth compressing.
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon == -1 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+        return type.startsWith("text/") || type.equals("application/json") || type.equals("application/javascript") ||
+                type.equals("application/x-javascript") || type.equals("application/xml") ||
+                type.equals("image/svg+xml") || type.endsWith("+json") || type.endsWith("+xml");
+    }
+
+    /**
+     * Pick gzip or deflate from an Accept-Encoding header, preferring gzip.  An encoding with q=0 is refused, and "*"
+     * stands for anything not listed.
+     * @return "gzip", "deflate", or null if neither is acceptable
+     */
+    static String chooseEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Boolean gzip = null;
+        Boolean deflate = null;
+        Boolean any = null;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = accepted;
+            } else if (coding.equals("deflate")) {
+                deflate = accepted;
+            } else if (coding.equals("*")) {
+                any = accepted;
+            }
+        }
+        if (gzip != null ? gzip : any != null && any) {
+            return "gzip";
+        }
+        if (deflate != null ? deflate : any != null && any) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    /**
+     * Open a stream that compresses whatever is written to it and writes it to out as chunks.  close() finishes the
+     * compressed data and writes the last chunk; it does not close out.  If forwarding fails part way, call discard()
+     * instead.  Either way the Deflater and buffer go back to their pools.
+     * @param encoding "gzip" or "deflate", from prepare().
+     * @param out Stream for the chunked, compressed body.
+     * @return The stream to write the plain body to.
+     */
+    Encoder open(String encoding, OutputStream out) throws IOException {
+        boolean gzip = encoding.equals("gzip");
+        ArrayBlockingQueue<Deflater> pool = gzip ? gzipDeflaters : zlibDeflaters;
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, gzip); // gzip wraps raw deflate data in its own header and trailer
+        }
+        responses.increment();
+        return new Encoder(deflater, pool, gzip, out);
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        sink.counter("proxy_compressed_responses_total", "Responses compressed on the way to the client.",
+                responses.sum());
+        sink.counter("proxy_compression_bytes_in_total", "Bytes of response bodies before compression.",
+                bytesIn.sum());
+        sink.counter("proxy_compression_bytes_out_total", "Bytes of response bodies after compression.",
+                bytesOut.sum());
+    }
+
+    /**
+     * Deflates a body into chunks.  Each batch of compressed output becomes one chunk, deflated into the middle of a
+     * pooled buffer so that the chunk's framing fits around it and the whole chunk goes out in one write.
+     */
+    final class Encoder extends OutputStream {
+        private final Deflater deflater;
+        private final ArrayBlockingQueue<Deflater> pool;
+        private final CRC32 crc;
+        private final OutputStream out;
+        private final byte[] buffer = BufferPool.array(BUFFER_SIZE);
+        private final int room = buffer.length - HttpMessage.CHUNK_HEADER_ROOM - 2;
+        private long length;
+        private boolean closed;
+
+        private Encoder(Deflater deflater, ArrayBlockingQueue<Deflater> pool, boolean gzip, OutputStream out)
+                throws IOException {
+            this.deflater = deflater;
+            this.pool = pool;
+            this.crc = gzip ? new CRC32() : null;
+            this.out = out;
+            if (gzip) {
+                writeChunk(GZIP_HEADER, GZIP_HEADER.length);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            deflater.setInput(b, off, len);
+            if (crc != null) {
+                crc.update(b, off, len);
+            }
+            length += len;
+            while (!deflater.needsInput()) {
+                drain(Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * Push out everything written so far, so that a client reading a slow stream isn't kept waiting.
+         */
+        @Override
+        public void flush() throws IOException {
+            int n;
+            do {
+                n = drain(Deflater.SYNC_FLUSH);
+            } while (n == room);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain(Deflater.NO_FLUSH);
+                }
+                if (crc != null) {
+                    byte[] trailer = new byte[8];
+                    writeInt(trailer, 0, crc.getValue());
+                    writeInt(trailer, 4, length);
+                    writeChunk(trailer, trailer.length);
+                }
+                out.write(LAST_CHUNK);
+                bytesIn.add(length);
+                bytesOut.add(deflater.getBytesWritten() + (crc != null ? GZIP_HEADER.length + 8 : 0));
+            } finally {
+                discard();
+            }
+        }
+
+        /**
+         * Give back the Deflater and buffer without finishing the body, e.g. because the client has gone.  Safe to call
+         * more than once, or after close().
+         */
+        void discard() {
+            if (closed) return;
+            closed = true;
+            BufferPool.release(buffer);
+            deflater.reset();
+            if (!pool.offer(deflater)) {
+                deflater.end();
+            }
+        }
+
+        private int drain(int mode) throws IOException {
+            int n = deflater.deflate(buffer, HttpMessage.CHUNK_HEADER_ROOM, room, mode);
+            if (n > 0) {
+                int start = HttpMessage.chunkHeader(buffer, HttpMessage.CHUNK_HEADER_ROOM, n);
+                int end = HttpMessage.CHUNK_HEADER_ROOM + n;
+                buffer[end] = '\r';
+                buffer[end + 1] = '\n';
+                out.write(buffer, start, end + 2 - start);
+            }
+            return n;
+        }
+
+        private void writeChunk(byte[] data, int n) throws IOException {
+            out.write(Integer.toHexString(n).getBytes());
+            out.write(CRLF);
+            out.write(data, 0, n);
+            out.write(CRLF);
+        }
+
+        private void writeInt(byte[] b, int off, long value) {
+            b[off] = (byte) value;
+            b[off + 1] = (byte) (value >> 8);
+            b[off + 2] = (byte) (value >> 16);
+            b[off + 3] = (byte) (value >> 24);
+        }
+    }
+}
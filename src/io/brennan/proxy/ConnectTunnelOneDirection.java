@@ -1,21 +1,25 @@
 package io.brennan.proxy;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 
 /**
- * This is a thread that forwards one half of a TCP connection.
+ * This forwards one half of a TCP connection.  It is a Runnable so that it can run on the same kind of thread (platform
+ * or virtual) as the ProxyThread which started it.
  * Created by stephen on 3/19/16.
  */
-public class ConnectTunnelOneDirection extends Thread {
+public class ConnectTunnelOneDirection implements Runnable {
 
     private Socket from;
     private Socket to;
     private String name;
+    private volatile long bytes;
     private static final int BUFFER_SIZE = 4096;
 
     /**
-     * Create a new thread to forward messages from one socket into another.  To successfully tunnel a connection, you
+     * Create a new task to forward messages from one socket into another.  To successfully tunnel a connection, you
      * need to forward in both directions, so you need two instances of this class.
      * @param from Socket to forward messages from.
      * @param to Socket to forward messages into.
@@ -28,29 +32,39 @@ public class ConnectTunnelOneDirection extends Thread {
     }
 
     /**
-     * Run the thread forever (or until the connection is closed).
+     * Return how many bytes have been forwarded so far, for the access log.
+     * @return byte count
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Run forever (or until the connection is closed).
      */
     public void run() {
-        System.out.println("ConnectTunnelOneDirection " + name + " starting");
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int read;
-        while (true) {
-            try {
-                read = from.getInputStream().read(buffer);
-            } catch (IOException e) {
-                System.out.println("Exception reading in " + name + ".");
-                break;
-            }
-            if (read == -1) {
-                System.out.println("Read returned -1 in  " + name + ".");
-                break;
-            }
-            try {
-                to.getOutputStream().write(buffer, 0, read);
-            } catch (IOException e) {
-                 System.out.println("Exception writing in  " + name + ".");
-                 break;
+        ProxyThread.logger.fine("ConnectTunnelOneDirection " + name + " starting");
+        byte[] buffer = BufferPool.array(BUFFER_SIZE);
+        try {
+            // Get the streams once, rather than on every trip around the loop.  They are the channels' own where the
+            // sockets have them, since the other direction is reading and writing the same sockets at the same time.
+            InputStream input = SocketStreams.input(from);
+            OutputStream output = SocketStreams.output(to);
+            for (;;) {
+                int read = input.read(buffer);
+                if (read == -1) {
+                    ProxyThread.logger.fine("Read returned -1 in " + name + ".");
+                    break;
+                }
+                output.write(buffer, 0, read);
+                bytes += read;
+                Metrics.bytesIn.add(read);
+                Metrics.bytesOut.add(read);
             }
+        } catch (IOException e) {
+            ProxyThread.logger.fine("Exception forwarding in " + name + ": " + e.getMessage());
+        } finally {
+            BufferPool.release(buffer);
         }
         try {
             from.close();
@@ -58,6 +72,6 @@ public class ConnectTunnelOneDirection extends Thread {
         try {
             to.close();
         } catch (IOException e) {}
-        System.out.println("ConnectTunnelOneDirection " + name + " closing.");
+        ProxyThread.logger.fine("ConnectTunnelOneDirection " + name + " closing.");
     }
 }
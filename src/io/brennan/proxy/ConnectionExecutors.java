@@ -0,0 +1,37 @@
+package io.brennan.proxy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor that the blocking engine runs client connections and CONNECT tunnels on.  Either way there is
+ * one thread per task; the only question is what kind of thread.  Platform threads are ordinary OS threads.  Virtual
+ * threads (Java 21 and up) are scheduled by the JVM onto a few carrier threads, so a blocked read costs a small heap
+ * object instead of a whole thread stack.
+ *
+ * The project still compiles for Java 8, so virtual threads are looked up reflectively.
+ */
+class ConnectionExecutors {
+
+    private ConnectionExecutors() {}
+
+    /**
+     * Create an executor for the given thread mode.
+     * @param mode "platform" or "virtual"
+     * @return A thread-per-task executor.
+     * @throws IllegalArgumentException if virtual threads were asked for and this JVM doesn't have them.
+     */
+    static ExecutorService create(String mode) {
+        if (mode.equals("virtual")) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("virtual threads need Java 21 or newer (running " +
+                        System.getProperty("java.version") + ")");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,296 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opens origin connections, racing a host's addresses against each other ("Happy Eyeballs", RFC 8305).  Trying the
+ * addresses one at a time, each with the OS's connect timeout, means that one dead address (typically a broken IPv6
+ * route on a host that also has IPv4) holds a client up for a minute or more.  Instead:
+ * - The addresses are put in an order that alternates between IPv6 and IPv4, starting with whichever family the
+ *   resolver put first, so that a whole family being broken costs one attempt rather than several.
+ * - An attempt is started, and if it hasn't connected after --connect-attempt-delay, the next one starts alongside it,
+ *   and so on.  An attempt that fails lets the next one start at once.  The first to connect wins, and the rest are
+ *   closed.
+ * - Each attempt gives up after --connect-attempt-timeout, and the whole race after --connect-timeout.
+ * - The address that won is remembered for the host, and goes first next time, so a host with a dead address only
+ *   costs a race until we've found one that works.
+ * The blocking engine calls connect(), which races on a selector of its own.  The nio engine races on its event loop,
+ * but uses order() and won() to share the ordering and the remembered winners.
+ */
+final class Connector implements MetricsSource {
+
+    private static final int PRUNE_SIZE = 4096;
+
+    /**
+     * Stands in for a timeout of zero, meaning none.  It is far enough off never to come, but not so far that
+     * subtracting nanoTime() values could overflow.
+     */
+    private static final long NEVER = TimeUnit.DAYS.toNanos(365);
+
+    private final Resolver resolver;
+    final long timeout;
+    final long attemptTimeout;
+    final long attemptDelay;
+    private final ConcurrentHashMap<String, InetAddress> preferred = new ConcurrentHashMap<>();
+
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder raced = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * Create a connector.
+     * @param config Proxy configuration, for the connect timeouts and the delay between attempts.
+     * @param resolver Resolver for origin host names.
+     */
+    Connector(ProxyConfig config, Resolver resolver) {
+        this.resolver = resolver;
+        this.timeout = config.connectTimeout;
+        this.attemptTimeout = config.connectAttemptTimeout;
+        this.attemptDelay = config.connectAttemptDelay;
+    }
+
+    /**
+     * Put a host's addresses in the order to try them: the one that last won for the host, if it is still among them,
+     * then the rest alternating between address families.
+     * @param host Host name the addresses are for.
+     * @param addresses Addresses in the resolver's order.  The array isn't changed.
+     * @return the addresses in the order to try them
+     */
+    InetAddress[] order(String host, InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+        InetAddress winner = preferred.get(host.toLowerCase(Locale.ROOT));
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean v6First = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if (!address.equals(winner)) {
+                ((address instanceof Inet6Address) == v6First ? first : second).add(address);
+            }
+        }
+        InetAddress[] ordered = new InetAddress[addresses.length];
+        int n = 0;
+        if (first.size() + second.size() < addresses.length) {
+            ordered[n++] = winner;
+        }
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) ordered[n++] = first.get(i);
+            if (i < second.size()) ordered[n++] = second.get(i);
+        }
+        return n == ordered.length ? ordered : addresses; // the same address listed twice; don't bother reordering
+    }
+
+    /**
+     * Note the address that won a race, so that it goes first next time.
+     * @param host Host name.
+     * @param address Address that connected.
+     * @param tries Number of attempts the race started.
+     */
+    void won(String host, InetAddress address, int tries) {
+        if (preferred.size() >= PRUNE_SIZE) {
+            preferred.clear(); // a cheap bound; the price is one race per host
+        }
+        preferred.put(host.toLowerCase(Locale.ROOT), address);
+        if (tries > 1) {
+            raced.increment();
+        }
+    }
+
+    /**
+     * Count an attempt started on behalf of the nio engine.
+     */
+    void attempted() {
+        attempts.increment();
+    }
+
+    /**
+     * Count a race that no address won.
+     * @param timeout Whether it ran out of time, rather than every attempt being refused.
+     */
+    void failed(boolean timeout) {
+        failed.increment();
+        if (timeout) {
+            timedOut.increment();
+        }
+    }
+
+    /**
+     * Connect to a host, racing its addresses.  The channel is open in blocking mode, with TCP_NODELAY set.
+     * @param host Host name.
+     * @param port Port.
+     * @return the connected channel
+     * @throws IOException if the name can't be resolved, or no address connected in time.
+     */
+    SocketChannel connect(String host, int port) throws IOException {
+        InetAddress[] addresses = order(host, resolver.resolve(host));
+        if (addresses.length == 1) {
+            // Nothing to race: a plain blocking connect with a timeout is cheaper than a selector.
+            SocketChannel channel = SocketChannel.open();
+            attempts.increment();
+            try {
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().connect(new InetSocketAddress(addresses[0], port), (int) firstTimeout());
+            } catch (IOException e) {
+                close(channel);
+                failed(e instanceof SocketTimeoutException);
+                throw e;
+            }
+            won(host, addresses[0], 1);
+            return channel;
+        }
+        return race(host, port, addresses);
+    }
+
+    /**
+     * Return the timeout for a lone attempt, which is whichever of the two timeouts is shorter, zero meaning none.
+     */
+    private long firstTimeout() {
+        if (timeout <= 0) return attemptTimeout;
+        if (attemptTimeout <= 0) return timeout;
+        return Math.min(timeout, attemptTimeout);
+    }
+
+    private SocketChannel race(String host, int port, InetAddress[] addresses) throws IOException {
+        long now = System.nanoTime();
+        long deadline = now + (timeout > 0 ? TimeUnit.MILLISECONDS.toNanos(timeout) : NEVER);
+        long delay = TimeUnit.MILLISECONDS.toNanos(attemptDelay);
+        List<Attempt> racing = new ArrayList<>();
+        Attempt winner = null;
+        IOException failure = null;
+        int next = 0;
+        long nextAt = now;
+        try (Selector selector = Selector.open()) {
+            while (winner == null) {
+                if (next < addresses.length && (now - nextAt >= 0 || racing.isEmpty())) {
+                    Attempt attempt = new Attempt(addresses[next++], now);
+                    nextAt = now + delay;
+                    attempts.increment();
+                    try {
+                        if (attempt.start(selector, port)) {
+                            winner = attempt;
+                        } else {
+                            racing.add(attempt);
+                        }
+                    } catch (IOException e) {
+                        attempt.close();
+                        failure = e;
+                    }
+                    now = System.nanoTime();
+                    continue;
+                }
+                if (now - deadline >= 0) {
+                    failed(true);
+                    throw new SocketTimeoutException("connect to " + host + " timed out");
+                }
+                // Give up on attempts that have had their time, and work out when next to look.
+                long wakeAt = next < addresses.length && nextAt - deadline < 0 ? nextAt : deadline;
+                for (Iterator<Attempt> i = racing.iterator(); i.hasNext(); ) {
+                    Attempt attempt = i.next();
+                    if (now - attempt.expiresAt >= 0) {
+                        i.remove();
+                        attempt.close();
+                        failure = new SocketTimeoutException("connect to " + attempt.address + " timed out");
+                    } else if (attempt.expiresAt - wakeAt < 0) {
+                        wakeAt = attempt.expiresAt;
+                    }
+                }
+                if (racing.isEmpty()) {
+                    if (next < addresses.length) continue;
+                    failed(failure instanceof SocketTimeoutException);
+                    throw failure;
+                }
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeAt - now + 999999)));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Attempt attempt = (Attempt) key.attachment();
+                    try {
+                        if (attempt.channel.finishConnect()) {
+                            racing.remove(attempt);
+                            winner = attempt;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        racing.remove(attempt);
+                        attempt.close();
+                        failure = e;
+                    }
+                }
+                selector.selectedKeys().clear();
+                now = System.nanoTime();
+            }
+        } finally {
+            for (Attempt attempt : racing) {
+                attempt.close();
+            }
+        }
+        won(host, winner.address, next);
+        // Closing the selector deregistered the winner, so it can go back to blocking mode.
+        winner.channel.configureBlocking(true);
+        return winner.channel;
+    }
+
+    /**
+     * One address's attempt to connect, during a race.
+     */
+    private final class Attempt {
+        final InetAddress address;
+        final long expiresAt;
+        SocketChannel channel;
+
+        Attempt(InetAddress address, long now) {
+            this.address = address;
+            this.expiresAt = now + (attemptTimeout > 0 ? TimeUnit.MILLISECONDS.toNanos(attemptTimeout) : NEVER);
+        }
+
+        /**
+         * Start connecting, and register for the result.
+         * @return true if the connection was made at once
+         */
+        boolean start(Selector selector, int port) throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (channel.connect(new InetSocketAddress(address, port))) {
+                return true;
+            }
+            channel.register(selector, SelectionKey.OP_CONNECT, this);
+            return false;
+        }
+
+        void close() {
+            if (channel != null) {
+                Connector.close(channel);
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        sink.counter("proxy_connect_attempts_total", "Origin connection attempts started, one per address tried.",
+                attempts.sum());
+        sink.counter("proxy_connect_raced_total", "Origin connections that took more than one attempt.", raced.sum());
+        sink.counter("proxy_connect_failed_total", "Origin connections that no address could make.", failed.sum());
+        sink.counter("proxy_connect_timed_out_total", "Origin connections that ran out of time.", timedOut.sum());
+    }
+}
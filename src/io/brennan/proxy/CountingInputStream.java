@@ -0,0 +1,58 @@
+package io.brennan.proxy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An InputStream that adds the number of bytes read through it to a counter.  It goes directly around a socket's
+ * stream, under any buffering, so it counts once per read from the socket rather than per byte.
+ */
+class CountingInputStream extends FilterInputStream {
+
+    private final LongAdder counter;
+    private volatile long count; // read by the timeout check on the timer wheel thread
+
+    CountingInputStream(InputStream in, LongAdder counter) {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            counter.increment();
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            counter.add(n);
+            count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        counter.add(skipped);
+        count += skipped;
+        return skipped;
+    }
+
+    /**
+     * Return the bytes read through this stream alone, e.g. to work out how much one request took, or to see whether
+     * the connection is getting anywhere.
+     * @return bytes read
+     */
+    long count() {
+        return count;
+    }
+}
@@ -0,0 +1,43 @@
+package io.brennan.proxy;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An OutputStream that adds the number of bytes written through it to a counter.  Like CountingInputStream, it belongs
+ * directly around a socket's stream, under any buffering.
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+    private final LongAdder counter;
+    private volatile long count; // read by the timeout check on the timer wheel thread
+
+    CountingOutputStream(OutputStream out, LongAdder counter) {
+        super(out);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        counter.increment();
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        counter.add(len);
+        count += len;
+    }
+
+    /**
+     * Return the bytes written through this stream alone.
+     * @return bytes written
+     */
+    long count() {
+        return count;
+    }
+}
@@ -0,0 +1,811 @@
+package io.brennan.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The on-disk tier of the ResponseCache, for responses too big to keep in memory (packages, images and the like).
+ *
+ * Bodies are appended to segment files of a fixed size.  The segment being written is memory-mapped, and bodies are
+ * copied into it straight from the file they were spilled to while being forwarded.  Heads and everything else we know
+ * about an entry live in memory, and are also written to a journal (index.log), so that on restart the journal can be
+ * replayed and the cache comes back as it was.  A hit writes the head, and then hands the body to the kernel with
+ * FileChannel.transferTo(), so it goes from the page cache to the client socket without passing through the heap.
+ *
+ * A maintenance thread keeps things tidy.  When there are more segments than the capacity allows, the oldest one is
+ * evicted, but entries in it which were hit since they were written get a second chance and are copied forward into
+ * the current segment.  Segments that have become mostly dead space (from replaced or invalidated entries) have their
+ * live entries copied forward and are deleted, and the journal is rewritten when it is mostly stale records.
+ */
+class DiskCache {
+
+    /**
+     * A segment file.  Readers retain() it while they use its channel, so an evicted segment's file is only closed and
+     * deleted when the last of them is done.
+     */
+    static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer map; // only for segments created for writing
+        int writePosition;          // guarded by the cache lock, like the fields below
+        long liveBytes;
+        boolean dead;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Segment(int id, File file, int size, boolean writable) throws IOException {
+            this.id = id;
+            this.file = file;
+            if (writable) {
+                this.channel = new RandomAccessFile(file, "rw").getChannel();
+                this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } else {
+                this.channel = new RandomAccessFile(file, "r").getChannel();
+                this.map = null;
+                this.writePosition = size;
+            }
+        }
+
+        boolean retain() {
+            for (;;) {
+                int n = refs.get();
+                if (n == 0) return false;
+                if (refs.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing to be done
+                }
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * A response whose body is in a segment file.
+     */
+    static final class Entry extends CachedResponse {
+        final Segment segment;
+        final int offset;
+        final int length;
+        volatile boolean hit;
+
+        Entry(String key, HeaderName[] varyNames, String[] varyValues, HttpResponse response, byte[] head,
+              Segment segment, int offset, int length, long requestTime, long responseTime) {
+            super(key, varyNames, varyValues, response, head, null, requestTime, responseTime);
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Return a copy of this entry at a new place.
+         */
+        Entry movedTo(Segment segment, int offset) throws IOException {
+            return new Entry(key, varyNames, varyValues, parseHead(), head, segment, offset, length, requestTime,
+                    responseTime);
+        }
+
+        @Override
+        long bodyLength() {
+            return length;
+        }
+
+        /**
+         * If the segment was evicted between the lookup and now, this fails before writing anything, and the client
+         * connection is closed.  That takes a very unlucky client.
+         */
+        @Override
+        long writeTo(OutputStream os, SocketChannel channel, boolean keepAlive, long now, AtomicLong progress)
+                throws IOException {
+            if (!segment.retain()) {
+                throw new IOException("Cache segment " + segment.id + " was evicted.");
+            }
+            try {
+                return super.writeTo(os, channel, keepAlive, now, progress);
+            } finally {
+                segment.release();
+            }
+        }
+
+        @Override
+        protected long writeBody(OutputStream os, SocketChannel channel, AtomicLong progress) throws IOException {
+            if (channel != null) {
+                os.flush();
+                long done = 0;
+                while (done < length) {
+                    // A slice at a time, since one transferTo() of the lot would show no progress until it was done.
+                    long n = segment.channel.transferTo(offset + done, Math.min(length - done, TRANSFER_SLICE),
+                            channel);
+                    if (n <= 0) throw new EOFException("Cache segment " + segment.id + " is short.");
+                    done += n;
+                    progress.addAndGet(n);
+                }
+                Metrics.bytesOut.add(done); // this skipped the client's counting stream
+                return done;
+            } else {
+                byte[] array = BufferPool.array(HttpMessage.BUFFER_SIZE);
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(array);
+                    long done = 0;
+                    while (done < length) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), length - done));
+                        int n = segment.channel.read(buffer, offset + done);
+                        if (n <= 0) throw new EOFException("Cache segment " + segment.id + " is short.");
+                        os.write(array, 0, n);
+                        done += n;
+                    }
+                } finally {
+                    BufferPool.release(array);
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Most bytes of a body to send in one transferTo(), so that the body timeout sees it moving.
+     */
+    private static final long TRANSFER_SLICE = 1024 * 1024;
+
+    private static final int PUT = 1;
+    private static final int REMOVE = 2;
+
+    private final File directory;
+    private final File spillDirectory;
+    private final File journalFile;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ConcurrentHashMap<String, Entry[]> index = new ConcurrentHashMap<>();
+
+    // Everything below is guarded by lock.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private int nextSegmentId;
+    private DataOutputStream journal;
+    private long journalRecords;
+
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder moves = new LongAdder();
+
+    /**
+     * Open (or create) a disk cache in a directory, loading whatever was in it before, and start its maintenance
+     * thread.
+     * @param directory Where the segment files and journal go.
+     * @param capacity Roughly how many bytes of segment files to keep.
+     * @param segmentSize Size of each segment file; also the largest body we will store.
+     * @throws IOException if the directory can't be used
+     */
+    DiskCache(File directory, long capacity, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.spillDirectory = new File(directory, "spill");
+        this.journalFile = new File(directory, "index.log");
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, capacity / segmentSize);
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            throw new IOException("Can't create cache directory " + spillDirectory);
+        }
+        File[] leftovers = spillDirectory.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) file.delete();
+        }
+
+        lock.lock();
+        try {
+            load();
+            rewriteJournal();
+            active = newSegment();
+        } finally {
+            lock.unlock();
+        }
+        ProxyThread.logger.info("Disk cache " + directory + ": loaded " + countEntries() + " entries in " +
+                (segments.size() - 1) + " segments");
+
+        Thread maintenance = new Thread(this::maintenanceLoop, "disk-cache-maintenance");
+        maintenance.setDaemon(true);
+        maintenance.start();
+    }
+
+    /**
+     * Return the largest body this tier will store.
+     * @return size in bytes
+     */
+    int maxObjectSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Create a file to spill a response body into while it is being forwarded.
+     * @return a new empty file
+     * @throws IOException if it can't be created
+     */
+    File newSpillFile() throws IOException {
+        return File.createTempFile("body", ".tmp", spillDirectory);
+    }
+
+    /**
+     * Find a stored response for a request.  This does not check freshness.
+     * @param key Primary cache key.
+     * @param request The request.
+     * @return the matching entry, or null
+     */
+    Entry lookup(String key, HttpRequest request) {
+        Entry[] variants = index.get(key);
+        if (variants == null) {
+            return null;
+        }
+        for (Entry entry : variants) {
+            if (entry.matches(request)) {
+                entry.hit = true;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store a response whose body was spilled to a file.  The spill file is deleted either way.
+     * @param key Primary cache key.
+     * @param request The request.
+     * @param response The response, with its headers as they were forwarded.
+     * @param head The head bytes as forwarded.
+     * @param spill The file holding the body as forwarded.
+     * @param length Length of the body.
+     * @param requestTime When the request was sent.
+     * @param responseTime When the response head arrived.
+     * @throws IOException if copying the body fails
+     */
+    void store(String key, HttpRequest request, HttpResponse response, byte[] head, File spill, long length,
+               long requestTime, long responseTime) throws IOException {
+        try {
+            if (length > segmentSize) {
+                return;
+            }
+            int size = (int) length;
+            Segment segment;
+            int offset;
+            lock.lock();
+            try {
+                segment = allocate(size, false);
+                offset = segment.writePosition - size;
+                segment.retain();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                try (FileChannel in = new FileInputStream(spill).getChannel()) {
+                    ByteBuffer target = slice(segment, offset, size);
+                    while (target.hasRemaining()) {
+                        if (in.read(target) < 0) throw new EOFException("Spill file is short.");
+                    }
+                }
+                HeaderName[] varyNames = CachedResponse.varyNames(response);
+                Entry entry = new Entry(key, varyNames, CachedResponse.varyValues(request, varyNames), response, head,
+                        segment, offset, size, requestTime, responseTime);
+                lock.lock();
+                try {
+                    if (!segment.dead) {
+                        add(entry);
+                        writePut(entry);
+                        stores.increment();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                segment.release();
+            }
+        } finally {
+            spill.delete();
+        }
+    }
+
+    /**
+     * Replace an entry's head after the origin said it was still valid.  The body stays where it is.
+     * @return the updated entry
+     */
+    Entry revalidated(Entry old, HttpRequest request, HttpResponse merged, byte[] head, long requestTime,
+                      long responseTime) throws IOException {
+        HeaderName[] varyNames = CachedResponse.varyNames(merged);
+        Entry entry = new Entry(old.key, varyNames, CachedResponse.varyValues(request, varyNames), merged, head,
+                old.segment, old.offset, old.length, requestTime, responseTime);
+        lock.lock();
+        try {
+            if (isCurrent(old)) {
+                add(entry);
+                writePut(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return entry;
+    }
+
+    /**
+     * Drop everything stored under a key.
+     * @param key Primary cache key.
+     */
+    void invalidate(String key) {
+        lock.lock();
+        try {
+            Entry[] variants = index.remove(key);
+            if (variants != null) {
+                for (Entry entry : variants) {
+                    entry.segment.liveBytes -= entry.length;
+                    writeRemove(entry);
+                }
+            }
+        } catch (IOException e) {
+            ProxyThread.logger.warning("Disk cache journal write failed: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getStores() {
+        return stores.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getMoves() {
+        return moves.sum();
+    }
+
+    private static ByteBuffer slice(Segment segment, int offset, int length) {
+        ByteBuffer buffer = segment.map.duplicate();
+        buffer.limit(offset + length);
+        buffer.position(offset);
+        return buffer;
+    }
+
+    /**
+     * Reserve room for a body in the active segment, starting a new segment if it doesn't fit.  The body goes at
+     * writePosition - length of the returned segment.  Call with the lock held.
+     * @param length Bytes to reserve.
+     * @param maintenance True when the maintenance thread is copying an entry forward, in which case it is the one
+     *                    evicting, and we mustn't evict the segment it is copying out of.
+     */
+    private Segment allocate(int length, boolean maintenance) throws IOException {
+        if (active.writePosition + length > segmentSize) {
+            active.map.force();
+            active = newSegment();
+            if (segments.size() > maxSegments) {
+                work.signal();
+            }
+            // If the maintenance thread has fallen well behind, don't wait for it.
+            while (!maintenance && segments.size() > maxSegments + 1) {
+                Segment oldest = segments.firstEntry().getValue();
+                for (Entry entry : entriesIn(oldest)) {
+                    remove(entry);
+                    writeRemove(entry);
+                    evictions.increment();
+                }
+                kill(oldest);
+            }
+        }
+        active.writePosition += length;
+        return active;
+    }
+
+    private Segment newSegment() throws IOException {
+        int id = nextSegmentId++;
+        Segment segment = new Segment(id, segmentFile(id), segmentSize, true);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("segment-%08d", id));
+    }
+
+    /**
+     * Put an entry in the index, replacing any entry for the same variant.  Call with the lock held.
+     */
+    private void add(Entry entry) {
+        Entry[] variants = index.get(entry.key);
+        List<Entry> updated = new ArrayList<>();
+        if (variants != null) {
+            for (Entry variant : variants) {
+                if (ResponseCache.sameVariant(variant, entry)) {
+                    variant.segment.liveBytes -= variant.length;
+                } else {
+                    updated.add(variant);
+                }
+            }
+        }
+        updated.add(entry);
+        entry.segment.liveBytes += entry.length;
+        index.put(entry.key, updated.toArray(new Entry[updated.size()]));
+    }
+
+    /**
+     * Take an entry out of the index.  Call with the lock held.
+     */
+    private void remove(Entry entry) {
+        Entry[] variants = index.get(entry.key);
+        if (variants == null) {
+            return;
+        }
+        List<Entry> updated = new ArrayList<>(Arrays.asList(variants));
+        if (!updated.remove(entry)) {
+            return;
+        }
+        entry.segment.liveBytes -= entry.length;
+        if (updated.isEmpty()) {
+            index.remove(entry.key);
+        } else {
+            index.put(entry.key, updated.toArray(new Entry[updated.size()]));
+        }
+    }
+
+    private boolean isCurrent(Entry entry) {
+        Entry[] variants = index.get(entry.key);
+        if (variants != null) {
+            for (Entry variant : variants) {
+                if (variant == entry) return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Entry> entriesIn(Segment segment) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry[] variants : index.values()) {
+            for (Entry entry : variants) {
+                if (entry.segment == segment) result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private int countEntries() {
+        int count = 0;
+        for (Entry[] variants : index.values()) {
+            count += variants.length;
+        }
+        return count;
+    }
+
+    /**
+     * Forget a segment and delete its file once nobody is reading it.  Call with the lock held.
+     */
+    private void kill(Segment segment) {
+        segments.remove(segment.id);
+        segment.dead = true;
+        segment.release();
+    }
+
+    private void maintenanceLoop() {
+        for (;;) {
+            lock.lock();
+            try {
+                work.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                maintain();
+            } catch (IOException e) {
+                ProxyThread.logger.warning("Disk cache maintenance failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Evict old segments, compact sparse ones, and rewrite the journal if it has got long.
+     */
+    private void maintain() throws IOException {
+        for (;;) {
+            Segment oldest;
+            lock.lock();
+            try {
+                if (segments.size() <= maxSegments) break;
+                oldest = segments.firstEntry().getValue();
+                if (oldest == active) break;
+            } finally {
+                lock.unlock();
+            }
+            evacuate(oldest, true);
+        }
+
+        List<Segment> sparse = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.liveBytes < segmentSize / 2) {
+                    sparse.add(segment);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : sparse) {
+            evacuate(segment, false);
+        }
+
+        lock.lock();
+        try {
+            if (journalRecords > 2L * countEntries() + 1024) {
+                rewriteJournal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empty a segment and delete it.  When evicting, only entries which have been hit since they were written are
+     * kept (copied forward); when compacting, all of them are.
+     */
+    private void evacuate(Segment segment, boolean evicting) throws IOException {
+        List<Entry> entries;
+        lock.lock();
+        try {
+            entries = entriesIn(segment);
+        } finally {
+            lock.unlock();
+        }
+        for (Entry entry : entries) {
+            if (!evicting || entry.hit) {
+                move(entry);
+            }
+        }
+        lock.lock();
+        try {
+            for (Entry entry : entriesIn(segment)) {
+                remove(entry);
+                writeRemove(entry);
+                evictions.increment();
+            }
+            if (!segment.dead) {
+                kill(segment);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copy an entry's body into the active segment and point the index at the copy.
+     */
+    private void move(Entry entry) throws IOException {
+        if (!entry.segment.retain()) {
+            return;
+        }
+        try {
+            Segment target;
+            int offset;
+            lock.lock();
+            try {
+                if (!isCurrent(entry)) return;
+                target = allocate(entry.length, true);
+                offset = target.writePosition - entry.length;
+                target.retain();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                ByteBuffer buffer = slice(target, offset, entry.length);
+                while (buffer.hasRemaining()) {
+                    int n = entry.segment.channel.read(buffer, entry.offset + buffer.position() - offset);
+                    if (n < 0) throw new EOFException("Cache segment " + entry.segment.id + " is short.");
+                }
+                Entry moved = entry.movedTo(target, offset);
+                lock.lock();
+                try {
+                    if (isCurrent(entry) && !target.dead) {
+                        add(moved);
+                        writePut(moved);
+                        moves.increment();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                target.release();
+            }
+        } finally {
+            entry.segment.release();
+        }
+    }
+
+    /**
+     * Open the existing segments and replay the journal.  A record cut short by a crash ends the replay.
+     */
+    private void load() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith("segment-")) continue;
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring("segment-".length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segments.put(id, new Segment(id, file, segmentSize, false));
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+            }
+        }
+
+        Map<Long, Entry> live = new LinkedHashMap<>();
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                for (;;) {
+                    int type = in.read();
+                    if (type == PUT) {
+                        Entry entry = readPut(in);
+                        if (entry != null) live.put(location(entry.segment.id, entry.offset), entry);
+                    } else if (type == REMOVE) {
+                        live.remove(location(in.readInt(), in.readInt()));
+                    } else {
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                ProxyThread.logger.info("Disk cache journal ends with a partial record; ignoring it");
+            } catch (IOException e) {
+                ProxyThread.logger.warning("Disk cache journal is damaged, keeping what was read: " + e.getMessage());
+            }
+        }
+        for (Entry entry : live.values()) {
+            add(entry);
+        }
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.liveBytes <= 0) {
+                kill(segment);
+            }
+        }
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xffffffffL);
+    }
+
+    private Entry readPut(DataInputStream in) throws IOException {
+        String key = in.readUTF();
+        int varyCount = in.readInt();
+        HeaderName[] varyNames = new HeaderName[varyCount];
+        String[] varyValues = new String[varyCount];
+        for (int i = 0; i < varyCount; i++) {
+            varyNames[i] = HeaderName.of(in.readUTF());
+            varyValues[i] = in.readBoolean() ? in.readUTF() : null;
+        }
+        int segmentId = in.readInt();
+        int offset = in.readInt();
+        int length = in.readInt();
+        long requestTime = in.readLong();
+        long responseTime = in.readLong();
+        byte[] head = new byte[in.readInt()];
+        in.readFully(head);
+
+        Segment segment = segments.get(segmentId);
+        if (segment == null || (long) offset + length > segment.channel.size()) {
+            return null;
+        }
+        HttpResponse response = new HttpResponse(new ByteArrayInputStream(head));
+        return new Entry(key, varyNames, varyValues, response, head, segment, offset, length, requestTime,
+                responseTime);
+    }
+
+    private static void writePut(DataOutputStream out, Entry entry) throws IOException {
+        out.write(PUT);
+        out.writeUTF(entry.key);
+        out.writeInt(entry.varyNames.length);
+        for (int i = 0; i < entry.varyNames.length; i++) {
+            out.writeUTF(entry.varyNames[i].toString());
+            out.writeBoolean(entry.varyValues[i] != null);
+            if (entry.varyValues[i] != null) out.writeUTF(entry.varyValues[i]);
+        }
+        out.writeInt(entry.segment.id);
+        out.writeInt(entry.offset);
+        out.writeInt(entry.length);
+        out.writeLong(entry.requestTime);
+        out.writeLong(entry.responseTime);
+        out.writeInt(entry.head.length);
+        out.write(entry.head);
+    }
+
+    private void writePut(Entry entry) throws IOException {
+        writePut(journal, entry);
+        journal.flush();
+        journalRecords++;
+    }
+
+    private void writeRemove(Entry entry) throws IOException {
+        journal.write(REMOVE);
+        journal.writeInt(entry.segment.id);
+        journal.writeInt(entry.offset);
+        journal.flush();
+        journalRecords++;
+    }
+
+    /**
+     * Write a fresh journal holding just the live entries, and swap it in.  Call with the lock held.
+     */
+    private void rewriteJournal() throws IOException {
+        File temp = new File(directory, "index.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            for (Entry[] variants : index.values()) {
+                for (Entry entry : variants) {
+                    writePut(out, entry);
+                }
+            }
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        journalRecords = countEntries();
+    }
+
+    /**
+     * Report the disk tier's statistics.  ResponseCache calls this as part of its own.
+     */
+    void collect(Metrics.Sink sink) {
+        int segmentCount;
+        lock.lock();
+        try {
+            segmentCount = segments.size();
+        } finally {
+            lock.unlock();
+        }
+        sink.counter("proxy_disk_cache_stores_total", "Responses stored on disk.", getStores());
+        sink.counter("proxy_disk_cache_moves_total", "Responses copied forward out of an old segment.", getMoves());
+        sink.counter("proxy_disk_cache_evictions_total", "Responses evicted from disk.", getEvictions());
+        sink.gauge("proxy_disk_cache_entries", "Responses held on disk.", countEntries());
+        sink.gauge("proxy_disk_cache_segments", "Segment files on disk.", segmentCount);
+    }
+
+    @Override
+    public String toString() {
+        return "disk cache: " + countEntries() + " entries, " + getStores() + " stored, " + getMoves() + " moved, " +
+                getEvictions() + " evicted";
+    }
+}
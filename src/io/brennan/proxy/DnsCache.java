@@ -0,0 +1,315 @@
+package io.brennan.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A caching Resolver.  The JVM's resolver caches too, but its policy is set by security properties and can't be seen
+ * from outside, so we keep our own cache with TTLs we choose:
+ * - A successful lookup is kept for the positive TTL, and a failed one for the (shorter) negative TTL, so a bad host
+ *   name in a page can't make every request for it wait on the resolver.
+ * - When an entry is used in the last quarter of its life, it is looked up again in the background, so names that are
+ *   in use never expire on a request's time.  If that refresh fails, the old addresses are kept until they expire,
+ *   and the next refresh waits for the negative TTL, so a resolver that is down isn't asked again on every request.
+ * - Concurrent lookups of the same name are coalesced: one thread asks the resolver and the rest wait for its answer.
+ * Every lookup that goes to the underlying resolver is timed.  The latencies are logged at FINE, and the count, total
+ * and maximum are kept for stats.
+ */
+class DnsCache implements Resolver, MetricsSource {
+
+    private static final double REFRESH_AT = 0.75;
+    private static final int PRUNE_SIZE = 4096;
+
+    /**
+     * The result of one lookup: addresses or a failure, with its expiry time (in System.nanoTime() terms).
+     */
+    private static final class Record {
+        final InetAddress[] addresses;
+        final String failure;
+        final long expiresAt;
+        final long refreshAt;
+
+        Record(InetAddress[] addresses, String failure, long resolvedAt, long ttlNanos) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = resolvedAt + ttlNanos;
+            this.refreshAt = resolvedAt + (long) (ttlNanos * REFRESH_AT);
+        }
+
+        /**
+         * The same addresses and expiry, refreshed again no sooner than a given time.
+         */
+        Record(Record record, long refreshAt) {
+            this.addresses = record.addresses;
+            this.failure = record.failure;
+            this.expiresAt = record.expiresAt;
+            this.refreshAt = refreshAt;
+        }
+
+        InetAddress[] result() throws UnknownHostException {
+            if (addresses == null) {
+                throw new UnknownHostException(failure);
+            }
+            return addresses;
+        }
+    }
+
+    private final Resolver delegate;
+    private final long positiveTtl;
+    private final long negativeTtl;
+    private final Executor executor;
+    private final ConcurrentHashMap<String, Record> records = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Record>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final LongAccumulator maxLookupNanos = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Create a cache in front of another resolver.
+     * @param delegate The resolver that does the real lookups.
+     * @param positiveTtl How long to keep addresses, in milliseconds.
+     * @param negativeTtl How long to remember failures, in milliseconds.
+     * @param executor Runs background refreshes and asynchronous lookups.
+     */
+    DnsCache(Resolver delegate, long positiveTtl, long negativeTtl, Executor executor) {
+        this.delegate = delegate;
+        this.positiveTtl = TimeUnit.MILLISECONDS.toNanos(positiveTtl);
+        this.negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+        this.executor = executor;
+    }
+
+    /**
+     * Create a cache in front of the system resolver, with the configured TTLs and two daemon threads for background
+     * work.
+     * @param config Proxy configuration.
+     */
+    DnsCache(ProxyConfig config) {
+        this(Resolver.SYSTEM, config.dnsTtl, config.dnsNegativeTtl, Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "dns-cache");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Look up a host, from the cache if possible.  On a miss, this blocks until the lookup (ours or another thread's)
+     * is done.
+     */
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (isLiteral(host)) {
+            return InetAddress.getAllByName(host);
+        }
+        String key = host.toLowerCase(Locale.ROOT);
+        Record record = cached(key);
+        if (record == null) {
+            record = lookup(key, false, true).join();
+        }
+        return record.result();
+    }
+
+    /**
+     * Look up a host without blocking.  A cache hit gives a future that is already complete; otherwise the lookup runs
+     * on our executor.  The event loops use this.
+     * @param host Host name or address literal.
+     * @return A future for the addresses, which completes exceptionally with UnknownHostException on failure.
+     */
+    CompletableFuture<InetAddress[]> resolveAsync(String host) {
+        CompletableFuture<Record> future;
+        if (isLiteral(host)) {
+            try {
+                return CompletableFuture.completedFuture(InetAddress.getAllByName(host));
+            } catch (UnknownHostException e) {
+                future = CompletableFuture.completedFuture(new Record(null, e.getMessage(), 0, 0));
+            }
+        } else {
+            String key = host.toLowerCase(Locale.ROOT);
+            Record record = cached(key);
+            future = record != null ? CompletableFuture.completedFuture(record) : lookup(key, true, true);
+        }
+        CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+        future.thenAccept(record -> {
+            if (record.addresses != null) {
+                result.complete(record.addresses);
+            } else {
+                result.completeExceptionally(new UnknownHostException(record.failure));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Return an unexpired record for a name, starting a background refresh if it is getting old.  Counts hits.
+     */
+    private Record cached(String key) {
+        Record record = records.get(key);
+        long now = System.nanoTime();
+        if (record == null || now - record.expiresAt >= 0) {
+            return null;
+        }
+        if (record.addresses == null) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+            if (now - record.refreshAt >= 0 && !inFlight.containsKey(key)) {
+                refreshes.increment();
+                lookup(key, true, false);
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Start a lookup, or join one that is already running for the same name.
+     * @param async Run it on the executor rather than this thread.
+     * @param miss Count it as a miss, rather than a refresh of a name that was a hit.
+     */
+    private CompletableFuture<Record> lookup(String key, boolean async, boolean miss) {
+        CompletableFuture<Record> mine = new CompletableFuture<>();
+        CompletableFuture<Record> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            return running;
+        }
+        if (miss) {
+            misses.increment();
+        }
+        if (async) {
+            executor.execute(() -> runLookup(key, mine));
+        } else {
+            runLookup(key, mine);
+        }
+        return mine;
+    }
+
+    private void runLookup(String key, CompletableFuture<Record> future) {
+        long start = System.nanoTime();
+        Record record;
+        try {
+            record = new Record(delegate.resolve(key), null, start, positiveTtl);
+        } catch (UnknownHostException | RuntimeException e) {
+            failures.increment();
+            Record previous = records.get(key);
+            if (previous != null && previous.addresses != null && start - previous.expiresAt < 0) {
+                // A failed refresh doesn't throw away addresses that are still good.
+                record = new Record(previous, start + negativeTtl);
+            } else {
+                record = new Record(null, e.getMessage() != null ? e.getMessage() : key, start, negativeTtl);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        lookups.increment();
+        lookupNanos.add(elapsed);
+        maxLookupNanos.accumulate(elapsed);
+        ProxyThread.logger.fine("DNS " + key + ": " + (record.addresses != null ? record.addresses.length +
+                " addresses" : "failed") + " in " + TimeUnit.NANOSECONDS.toMicros(elapsed) + "us");
+
+        if (records.size() >= PRUNE_SIZE) {
+            records.values().removeIf(r -> start - r.expiresAt >= 0);
+        }
+        records.put(key, record);
+        inFlight.remove(key, future);
+        future.complete(record);
+    }
+
+    /**
+     * Return true for an IPv4 or IPv6 address literal, which needs no lookup.
+     */
+    private static boolean isLiteral(String host) {
+        if (host.indexOf(':') != -1) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) return false;
+        }
+        return !host.isEmpty();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Return the number of lookups that went to the underlying resolver.
+     * @return lookup count
+     */
+    long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * Return the mean time of lookups that went to the underlying resolver.
+     * @return mean latency in microseconds
+     */
+    long getMeanLookupMicros() {
+        long n = lookups.sum();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(lookupNanos.sum() / n);
+    }
+
+    /**
+     * Return the slowest lookup so far.
+     * @return max latency in microseconds
+     */
+    long getMaxLookupMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLookupNanos.get());
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        sink.counter("proxy_dns_hits_total", "Host names answered from the DNS cache.", getHits());
+        sink.counter("proxy_dns_negative_hits_total", "Failed lookups answered from the DNS cache.",
+                getNegativeHits());
+        sink.counter("proxy_dns_misses_total", "Host names that had to be looked up.", getMisses());
+        sink.counter("proxy_dns_coalesced_total", "Lookups that waited on one already in progress.", getCoalesced());
+        sink.counter("proxy_dns_refreshes_total", "Entries refreshed in the background before expiring.",
+                getRefreshes());
+        sink.counter("proxy_dns_failures_total", "Lookups that failed.", getFailures());
+        sink.counter("proxy_dns_lookups_total", "Lookups sent to the system resolver.", getLookups());
+        sink.gauge("proxy_dns_lookup_mean_seconds", "Mean time of a system resolver lookup.",
+                getMeanLookupMicros() / 1e6);
+        sink.gauge("proxy_dns_lookup_max_seconds", "Slowest system resolver lookup.", getMaxLookupMicros() / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        return "dns: " + getHits() + " hits, " + getNegativeHits() + " negative hits, " + getMisses() + " misses, " +
+                getCoalesced() + " coalesced, " + getRefreshes() + " refreshes, " + getFailures() + " failures, " +
+                "lookups mean " + getMeanLookupMicros() + "us max " + getMaxLookupMicros() + "us";
+    }
+}
@@ -0,0 +1,85 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread which owns a Selector and services every channel registered with it.  The non-blocking engine runs a few of
+ * these, and hands each accepted client to one of them.  Other threads must not touch the selector directly, so they
+ * pass work in through execute().
+ */
+class EventLoop extends Thread {
+
+    /**
+     * Anything registered with an event loop attaches one of these to its SelectionKey.
+     */
+    interface Handler {
+        /**
+         * Called on the event loop thread when the key is ready.
+         * @param key The selected key.
+         */
+        void handle(SelectionKey key);
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create an event loop.  It must be start()ed.
+     * @param name Name for the thread.
+     * @throws IOException if the selector can't be opened.
+     */
+    EventLoop(String name) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Return the selector.  Only use this from the event loop thread.
+     * @return the selector
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Run a task on the event loop thread, and wake the loop up so it runs soon.
+     * @param task Task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Loop forever, selecting and dispatching ready keys to their handlers.
+     */
+    @Override
+    public void run() {
+        for (;;) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                ProxyThread.logger.severe(getName() + ": select failed: " + e.getMessage());
+                return;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    ((Handler) key.attachment()).handle(key);
+                }
+            }
+        }
+    }
+}
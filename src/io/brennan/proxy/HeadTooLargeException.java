@@ -0,0 +1,15 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message head goes over the size or header count limits of its HttpInputStream.  ProxyThread answers a
+ * client that does this with a 431 response.
+ */
+public class HeadTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public HeadTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,151 @@
+package io.brennan.proxy;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A header field name.  Header names are case-insensitive, so two HeaderNames are equal if they match ignoring ASCII
+ * case, and the hash code is computed on the lowercase form.
+ *
+ * The names we see all the time are created once, up front, and kept in a small hash table.  When a head is parsed,
+ * each field name is looked up in the table straight from the read buffer, so for the usual headers no String is
+ * created at all and comparisons are mostly a reference check.
+ */
+final class HeaderName {
+
+    private static final int TABLE_SIZE = 256; // a power of two, comfortably more than twice the common names
+    private static final HeaderName[] table = new HeaderName[TABLE_SIZE];
+
+    static final HeaderName CONNECTION = common("Connection");
+    static final HeaderName CONTENT_LENGTH = common("Content-Length");
+    static final HeaderName HOST = common("Host");
+    static final HeaderName PROXY_CONNECTION = common("Proxy-Connection");
+    static final HeaderName TRANSFER_ENCODING = common("Transfer-Encoding");
+    static final HeaderName UPGRADE = common("Upgrade");
+
+    static {
+        String[] others = {
+                "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Age", "Allow",
+                "Authorization", "Cache-Control", "Content-Encoding", "Content-Language", "Content-Location",
+                "Content-Range", "Content-Type", "Cookie", "Date", "ETag", "Expect", "Expires", "From", "If-Match",
+                "If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since", "Keep-Alive", "Last-Modified",
+                "Location", "Max-Forwards", "Origin", "Pragma", "Proxy-Authenticate", "Proxy-Authorization", "Range",
+                "Referer", "Retry-After", "Server", "Set-Cookie", "TE", "Trailer", "User-Agent", "Vary", "Via",
+                "Warning", "WWW-Authenticate", "X-Forwarded-For", "X-Forwarded-Proto", "X-Requested-With",
+                "Strict-Transport-Security", "Access-Control-Allow-Origin", "Content-Security-Policy",
+                "X-Content-Type-Options", "X-Frame-Options", "DNT", "Upgrade-Insecure-Requests", "Link",
+        };
+        for (String name : others) {
+            common(name);
+        }
+    }
+
+    private final String name;
+    private final int hash;
+
+    private HeaderName(String name, int hash) {
+        this.name = name;
+        this.hash = hash;
+    }
+
+    /**
+     * Create a common name and put it in the table.
+     */
+    private static HeaderName common(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        HeaderName headerName = new HeaderName(name, hash(bytes, 0, bytes.length));
+        int slot = headerName.hash & (TABLE_SIZE - 1);
+        while (table[slot] != null) {
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        table[slot] = headerName;
+        return headerName;
+    }
+
+    /**
+     * Get the HeaderName for a string.  Common names come back as the shared instance, with its usual spelling.
+     * @param name Header name, in any case.
+     * @return The header name.
+     */
+    static HeaderName of(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        HeaderName common = lookup(bytes, 0, bytes.length);
+        return common != null ? common : new HeaderName(name, hash(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Get the HeaderName for some bytes in a buffer.  Common names don't allocate anything.
+     * @param buf Buffer holding the name.
+     * @param start Index of the first byte.
+     * @param end Index just past the last byte.
+     * @return The header name.
+     */
+    static HeaderName of(byte[] buf, int start, int end) {
+        HeaderName common = lookup(buf, start, end);
+        if (common != null) {
+            return common;
+        }
+        return new HeaderName(HttpMessage.ascii(buf, start, end), hash(buf, start, end));
+    }
+
+    private static HeaderName lookup(byte[] buf, int start, int end) {
+        int hash = hash(buf, start, end);
+        int slot = hash & (TABLE_SIZE - 1);
+        HeaderName candidate;
+        while ((candidate = table[slot]) != null) {
+            if (candidate.hash == hash && candidate.matches(buf, start, end)) {
+                return candidate;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Hash the lowercase form of a name.
+     */
+    private static int hash(byte[] buf, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + toLower(buf[i]);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int toLower(int b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private boolean matches(byte[] buf, int start, int end) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (toLower(buf[start + i]) != toLower(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HeaderName)) return false;
+        HeaderName other = (HeaderName) o;
+        return hash == other.hash && name.equalsIgnoreCase(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Return the name as it should be written out.
+     * @return header name
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,205 @@
+package io.brennan.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Active health checks for the backends in our routes.  Every --health-interval, each backend gets a GET for
+ * --health-path over a pooled connection, like any other request.  A 2xx or 3xx answer within --health-timeout passes;
+ * anything else (a refused connection, a timeout, a 5xx) fails.  A backend that fails --unhealthy-threshold checks in a
+ * row is taken out of balancing, and one that then passes --healthy-threshold in a row is put back, so one slow answer
+ * doesn't flap it.  Routes only sends requests to backends that are down when all of a route's backends are.
+ *
+ * A backend that passes also has its idle connections topped up to --warm-connections, so that the first requests
+ * after a quiet spell (or after the backend comes back) don't pay for a connect and a TLS handshake, and the checks
+ * themselves use those warm connections, which keeps them from going idle long enough to be evicted.  A check finds
+ * out whether the backend still answers on its existing connections, which is what requests will get.
+ *
+ * Checks run on a few daemon threads of their own, each backend's one at a time, spread over the interval so that they
+ * don't all go at once.  The timeout is enforced by the timer wheel closing the connection.
+ */
+final class HealthChecker implements MetricsSource {
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    private final Collection<Routes.Backend> backends;
+    private final UpstreamPool pool;
+    private final TimerWheel timers;
+    private final String path;
+    private final long interval;
+    private final long timeout;
+    private final int unhealthyThreshold;
+    private final int healthyThreshold;
+    private final int warmConnections;
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder transitions = new LongAdder();
+
+    /**
+     * The check state of one backend.  Only one check of a backend runs at a time, so this needs no locking.
+     */
+    private final class Check implements Runnable {
+        final Routes.Backend backend;
+        int passes; // in a row
+        int fails; // in a row
+
+        Check(Routes.Backend backend) {
+            this.backend = backend;
+        }
+
+        @Override
+        public void run() {
+            Boolean passed;
+            try {
+                passed = probe(backend);
+            } catch (RuntimeException e) {
+                passed = false;
+                ProxyThread.logger.warning("Health check of " + backend + " failed: " + e);
+            }
+            if (passed == null) {
+                return; // busy with requests, so nothing was learned
+            }
+            checks.increment();
+            if (passed) {
+                fails = 0;
+                passes++;
+                if (!backend.healthy && passes >= healthyThreshold) {
+                    backend.healthy = true;
+                    transitions.increment();
+                    ProxyThread.logger.info("Backend " + backend + " is up");
+                }
+                if (backend.healthy && warmConnections > 0) {
+                    try {
+                        pool.warm(backend.host, backend.port, backend.secure, warmConnections);
+                    } catch (IOException e) {
+                        ProxyThread.logger.fine("Couldn't warm connections to " + backend + ": " + e.getMessage());
+                    }
+                }
+            } else {
+                failures.increment();
+                passes = 0;
+                fails++;
+                if (backend.healthy && fails >= unhealthyThreshold) {
+                    backend.healthy = false;
+                    transitions.increment();
+                    ProxyThread.logger.info("Backend " + backend + " is down");
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a health checker.  Nothing is checked until start().
+     * @param config Proxy configuration, for the health check and warm connection settings.
+     * @param routes Routes whose backends to check.
+     * @param pool Pool that the checks (and the connections they warm) go through.
+     * @param timers Timer wheel for the check timeout.
+     */
+    HealthChecker(ProxyConfig config, Routes routes, UpstreamPool pool, TimerWheel timers) {
+        this.backends = routes.backends();
+        this.pool = pool;
+        this.timers = timers;
+        this.path = config.healthPath;
+        this.interval = config.healthInterval;
+        this.timeout = config.healthTimeout;
+        this.unhealthyThreshold = config.unhealthyThreshold;
+        this.healthyThreshold = config.healthyThreshold;
+        this.warmConnections = config.warmConnections;
+        this.scheduler = Executors.newScheduledThreadPool(Math.min(backends.size(), 4), r -> {
+            Thread thread = new Thread(r, "health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start checking every backend, each at a random point in the first interval.
+     */
+    void start() {
+        for (Routes.Backend backend : backends) {
+            scheduler.scheduleWithFixedDelay(new Check(backend), ThreadLocalRandom.current().nextLong(interval),
+                    interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Check one backend.  If a pooled connection turns out to have been closed by the backend, the check is tried again
+     * on another, just as a request would be.
+     * @return whether it passed, or null if it is at its connection cap, so that a check would only queue behind the
+     *         requests it is busy with
+     */
+    private Boolean probe(Routes.Backend backend) {
+        int defaultPort = backend.secure ? 443 : 80;
+        String host = backend.host + (backend.port == defaultPort ? "" : ":" + backend.port);
+        byte[] head = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        for (;;) {
+            UpstreamPool.Connection conn;
+            try {
+                conn = pool.tryAcquire(backend.host, backend.port, backend.secure);
+            } catch (IOException e) {
+                ProxyThread.logger.fine("Health check of " + backend + ": " + e.getMessage());
+                return false;
+            }
+            if (conn == null) {
+                return null;
+            }
+            TimerWheel.Timer timer = timers.newTimer(() -> {
+                try {
+                    conn.getSocket().close();
+                } catch (IOException e) {}
+            });
+            boolean reusable = false;
+            try {
+                HttpRequest request = new HttpRequest(new ByteArrayInputStream(head));
+                timer.arm(timeout);
+                request.forwardMessage(conn.getOutputStream());
+                HttpResponse response = new HttpResponse(conn.getInputStream(), request);
+                while (response.isInterim()) {
+                    response = new HttpResponse(conn.getInputStream(), request);
+                }
+                response.forwardMessage(DISCARD);
+                reusable = response.keepsConnectionAlive();
+                char status = response.getStatus().charAt(0);
+                if (status != '2' && status != '3') {
+                    ProxyThread.logger.fine("Health check of " + backend + ": status " + response.getStatus());
+                    return false;
+                }
+                return true;
+            } catch (IOException e) {
+                boolean expired = !timer.isArmed();
+                if (expired || !conn.isReused()) {
+                    ProxyThread.logger.fine("Health check of " + backend + ": " +
+                            (expired ? "timed out" : e.getMessage()));
+                    return false;
+                }
+            } finally {
+                timer.disarm();
+                pool.release(conn, reusable);
+            }
+        }
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        sink.counter("proxy_health_checks_total", "Health checks of backends.", checks.sum());
+        sink.counter("proxy_health_check_failures_total", "Health checks of backends that failed.", failures.sum());
+        sink.counter("proxy_backend_state_changes_total", "Times a backend went down or came back up.",
+                transitions.sum());
+    }
+}
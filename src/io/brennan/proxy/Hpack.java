@@ -0,0 +1,475 @@
+package io.brennan.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK (RFC 7541), the header compression HTTP/2 uses.  Each side of a connection keeps a table of recently sent
+ * header fields, so a field that was sent before goes as a small index instead of its name and value, and new strings
+ * can be Huffman coded.  The tables are connection state, so an Encoder's output has to go out in the order it was
+ * made, and a Decoder has to see every header block the peer sends, even ones for streams we are about to refuse.
+ *
+ * The Huffman code is canonical: ordered by length and then by symbol, each code follows from the one before, so only
+ * the code lengths are written out here and the codes and the decoding tree are worked out when the class loads.
+ *
+ * Header values are Strings with one character per byte (ISO-8859-1), the same as HttpHeaders uses.
+ */
+final class Hpack {
+
+    private Hpack() {}
+
+    /**
+     * Size of the dynamic tables, which is what HTTP/2 starts with.  We never ask for a bigger one, and never let a
+     * peer make ours bigger.
+     */
+    static final int TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+            {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""},
+    };
+
+    /**
+     * Static table indexes, by name (the first entry with the name) and by name and value together.
+     */
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    /**
+     * Length in bits of the Huffman code for each byte value, and for EOS (256).
+     */
+    private static final byte[] CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28,
+            28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7,
+            7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21,
+            23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24,
+            21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30,
+    };
+    private static final int EOS = 256;
+    private static final int[] CODES = new int[257];
+
+    /**
+     * The decoding tree.  Node n's children are at 2n (for a 0 bit) and 2n + 1 (for a 1 bit): a positive entry is
+     * another node, and a negative one is a leaf holding -(symbol + 1).
+     */
+    private static final int[] TREE = new int[2 * 256];
+
+    static {
+        for (int i = STATIC.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC[i][0] + '\n' + STATIC[i][1], i + 1);
+        }
+        Integer[] order = new Integer[257];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        java.util.Arrays.sort(order, (a, b) -> CODE_LENGTHS[a] != CODE_LENGTHS[b]
+                ? CODE_LENGTHS[a] - CODE_LENGTHS[b] : a - b);
+        int code = 0;
+        int nodes = 1;
+        for (int i = 0; i < order.length; i++) {
+            int symbol = order[i];
+            if (i > 0) {
+                code = (code + 1) << (CODE_LENGTHS[symbol] - CODE_LENGTHS[order[i - 1]]);
+            }
+            CODES[symbol] = code;
+            int node = 0;
+            for (int bit = CODE_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int slot = 2 * node + ((code >>> bit) & 1);
+                if (TREE[slot] == 0) {
+                    TREE[slot] = nodes++;
+                }
+                node = TREE[slot];
+            }
+            TREE[2 * node + (code & 1)] = -(symbol + 1);
+        }
+    }
+
+    /**
+     * The dynamic table: the most recently added fields, newest first, in a ring.  Each entry counts its name and
+     * value lengths plus 32 towards the table size, and the oldest entries go to make room for new ones.
+     */
+    private static final class Table {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int newest; // index of the newest entry in the ring
+        private int count;
+        private int size;
+        private int maxSize = TABLE_SIZE;
+
+        int length() {
+            return count;
+        }
+
+        /**
+         * Return entry i, counting from 0 for the newest.
+         */
+        String name(int i) {
+            return names[(newest - i) & (names.length - 1)];
+        }
+
+        String value(int i) {
+            return values[(newest - i) & (names.length - 1)];
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + 32;
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                return; // too big for the table, which is now empty
+            }
+            if (count == names.length) {
+                String[] biggerNames = new String[count * 2];
+                String[] biggerValues = new String[count * 2];
+                for (int i = 0; i < count; i++) {
+                    biggerNames[count - 1 - i] = name(i);
+                    biggerValues[count - 1 - i] = value(i);
+                }
+                names = biggerNames;
+                values = biggerValues;
+                newest = count - 1;
+            }
+            newest = (newest + 1) & (names.length - 1);
+            names[newest] = name;
+            values[newest] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        /**
+         * Drop the oldest entries until the table is no bigger than a size.
+         */
+        private void evict(int limit) {
+            while (count > 0 && size > limit) {
+                int oldest = (newest - count + 1) & (names.length - 1);
+                size -= names[oldest].length() + values[oldest].length() + 32;
+                names[oldest] = null;
+                values[oldest] = null;
+                count--;
+            }
+        }
+    }
+
+    /**
+     * Encodes header blocks.  Not thread safe: the connection encodes and sends each block under its write lock.
+     */
+    static final class Encoder {
+        private final Table table = new Table();
+        private int sizeUpdate = -1; // a table size change still to be announced, or -1
+
+        /**
+         * Apply the peer's SETTINGS_HEADER_TABLE_SIZE.  We keep to the default size, or less if that's all the peer
+         * will hold, and say so at the start of the next block.
+         * @param size The peer's setting.
+         */
+        void setMaxTableSize(int size) {
+            int newSize = Math.min(size, TABLE_SIZE);
+            if (newSize != table.maxSize) {
+                table.resize(newSize);
+                sizeUpdate = newSize;
+            }
+        }
+
+        /**
+         * Start a header block.
+         * @param out Where the block goes.
+         */
+        void begin(ByteArrayOutputStream out) {
+            if (sizeUpdate != -1) {
+                writeInt(out, 0x20, 5, sizeUpdate);
+                sizeUpdate = -1;
+            }
+        }
+
+        /**
+         * Encode one header field.
+         * @param out Where the block goes.
+         * @param name Field name, in lower case.
+         * @param value Field value.
+         */
+        void encode(ByteArrayOutputStream out, String name, String value) {
+            Integer index = STATIC_FIELDS.get(name + '\n' + value);
+            int nameIndex = 0;
+            if (index == null) {
+                for (int i = 0; i < table.length(); i++) {
+                    if (table.name(i).equals(name)) {
+                        if (table.value(i).equals(value)) {
+                            index = STATIC.length + 1 + i;
+                            break;
+                        }
+                        if (nameIndex == 0) {
+                            nameIndex = STATIC.length + 1 + i;
+                        }
+                    }
+                }
+            }
+            if (index != null) {
+                writeInt(out, 0x80, 7, index);
+                return;
+            }
+            Integer staticName = STATIC_NAMES.get(name);
+            if (staticName != null) {
+                nameIndex = staticName;
+            }
+            // Secrets are never indexed, here or by any intermediary, since a shared table can leak them through
+            // compression side channels.  Values that change from message to message would only push useful entries
+            // out of the table.
+            switch (name) {
+                case "authorization":
+                case "proxy-authorization":
+                case "cookie":
+                case "set-cookie":
+                    writeInt(out, 0x10, 4, nameIndex);
+                    break;
+                case ":path":
+                case "content-length":
+                case "date":
+                case "age":
+                case "etag":
+                case "last-modified":
+                case "if-none-match":
+                case "if-modified-since":
+                    writeInt(out, 0x00, 4, nameIndex);
+                    break;
+                default:
+                    writeInt(out, 0x40, 6, nameIndex);
+                    table.add(name, value);
+                    break;
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Decodes header blocks.  Only the connection's reading thread uses it.
+     */
+    static final class Decoder {
+        private final Table table = new Table();
+        final int maxListSize;
+        private byte[] buf;
+        private int pos;
+        private int end;
+
+        /**
+         * Create a decoder.
+         * @param maxListSize The most a block may decode to, counting each field's name and value lengths plus 32,
+         *                    as SETTINGS_MAX_HEADER_LIST_SIZE does.
+         */
+        Decoder(int maxListSize) {
+            this.maxListSize = maxListSize;
+        }
+
+        /**
+         * Decode a header block into names and values.
+         * @param block The block.
+         * @param length Its length.
+         * @param fields List to add the names and values to, alternately.
+         * @return true if the block fitted the size limit.  The table is updated either way.
+         * @throws IOException if the block can't be decoded, which leaves the table out of step, so the connection is
+         *         done for.
+         */
+        boolean decode(byte[] block, int length, List<String> fields) throws IOException {
+            buf = block;
+            pos = 0;
+            end = length;
+            int listSize = 0;
+            boolean first = true;
+            while (pos < end) {
+                int b = buf[pos] & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    int index = readInt(7);
+                    name = nameAt(index);
+                    value = index <= STATIC.length ? STATIC[index - 1][1] : table.value(index - STATIC.length - 1);
+                } else if ((b & 0xe0) == 0x20) {
+                    int size = readInt(5);
+                    if (!first || size > TABLE_SIZE) {
+                        throw new IOException("Bad HPACK table size update.");
+                    }
+                    table.resize(size);
+                    continue;
+                } else {
+                    boolean indexed = (b & 0xc0) == 0x40;
+                    int index = readInt(indexed ? 6 : 4);
+                    name = index == 0 ? readString() : nameAt(index);
+                    value = readString();
+                    if (indexed) {
+                        table.add(name, value);
+                    }
+                }
+                first = false;
+                listSize += name.length() + value.length() + 32;
+                if (listSize <= maxListSize) {
+                    fields.add(name);
+                    fields.add(value);
+                }
+            }
+            buf = null;
+            return listSize <= maxListSize;
+        }
+
+        private String nameAt(int index) throws IOException {
+            if (index >= 1 && index <= STATIC.length) {
+                return STATIC[index - 1][0];
+            }
+            if (index > STATIC.length && index <= STATIC.length + table.length()) {
+                return table.name(index - STATIC.length - 1);
+            }
+            throw new IOException("Bad HPACK index " + index + ".");
+        }
+
+        private int readInt(int prefix) throws IOException {
+            int max = (1 << prefix) - 1;
+            int value = buf[pos++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (pos == end || shift > 21) {
+                    throw new IOException("Bad HPACK integer.");
+                }
+                int b = buf[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private String readString() throws IOException {
+            if (pos == end) {
+                throw new IOException("Truncated HPACK string.");
+            }
+            boolean huffman = (buf[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - pos) {
+                throw new IOException("Truncated HPACK string.");
+            }
+            int start = pos;
+            pos += length;
+            if (!huffman) {
+                return new String(buf, start, length, StandardCharsets.ISO_8859_1);
+            }
+            return huffmanDecode(buf, start, length);
+        }
+    }
+
+    /**
+     * Write an integer with an N-bit prefix, in the first byte along with some flag bits.
+     */
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Write a string literal, Huffman coded if that makes it shorter.
+     */
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bits += CODE_LENGTHS[s.charAt(i) & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= s.length()) {
+            writeInt(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++) {
+                out.write(s.charAt(i));
+            }
+            return;
+        }
+        writeInt(out, 0x80, 7, huffmanLength);
+        long pending = 0;
+        int pendingBits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int symbol = s.charAt(i) & 0xff;
+            pending = (pending << CODE_LENGTHS[symbol]) | CODES[symbol];
+            pendingBits += CODE_LENGTHS[symbol];
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                out.write((int) (pending >>> pendingBits));
+            }
+        }
+        if (pendingBits > 0) {
+            // Pad with the start of EOS, which is all ones.
+            out.write((int) ((pending << (8 - pendingBits)) | (0xff >>> pendingBits)));
+        }
+    }
+
+    /**
+     * Decode a Huffman coded string.  The padding at the end must be fewer than eight bits, all ones.
+     */
+    private static String huffmanDecode(byte[] buf, int start, int length) throws IOException {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int padding = 0; // bits since the last symbol, which are all ones so far
+        boolean ones = true;
+        for (int i = start; i < start + length; i++) {
+            int b = buf[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = TREE[2 * node + one];
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) {
+                        throw new IOException("EOS in Huffman string.");
+                    }
+                    sb.append((char) symbol);
+                    node = 0;
+                    padding = 0;
+                    ones = true;
+                } else if (next == 0) {
+                    throw new IOException("Bad Huffman code.");
+                } else {
+                    node = next;
+                    padding++;
+                    ones &= one == 1;
+                }
+            }
+        }
+        if (padding > 7 || !ones) {
+            throw new IOException("Bad Huffman padding.");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,1058 @@
+package io.brennan.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One HTTP/2 connection (RFC 7540), in cleartext: either a client talking h2c to us, or us talking h2c to an origin.
+ * HTTP/2 runs many requests at once over one connection as streams, each a series of frames, so a connection has one
+ * thread reading frames and handing them out to streams, and any number of stream threads writing.
+ *
+ * The rest of the proxy only speaks HTTP/1.1, so it doesn't use this class directly.  Each stream has a
+ * Http2Stream.StreamSocket, which turns the stream's frames into an HTTP/1.1 message on the way in and parses one back
+ * into frames on the way out, and that goes to a ProxyThread (for a client's stream) or to UpstreamPool's callers (for
+ * a stream to an origin) as though it were a connection of its own.
+ *
+ * Flow control: we let each stream have 256KB in flight towards us, and the connection 4MB, and give the windows back
+ * with WINDOW_UPDATE once a stream's reader has taken half of it, so a slow reader slows down only its own stream.
+ * Sending waits for the peer's windows the same way.
+ *
+ * Frames are written under writeLock, and the HPACK encoder is only used under it, since header blocks must go out in
+ * the order they were encoded.  Everything else (the streams and the windows) is guarded by lock.  Nothing takes
+ * writeLock while holding lock.
+ */
+final class Http2Connection {
+
+    /**
+     * What a client sends first on an HTTP/2 connection.  It looks like an HTTP/1.1 request for PRI *, so that a
+     * server which doesn't know HTTP/2 rejects it.
+     */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int END_STREAM = 0x1;
+    static final int ACK = 0x1;
+    static final int END_HEADERS = 0x4;
+    static final int PADDED = 0x8;
+    static final int PRIORITY_FLAG = 0x20;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    /**
+     * Window every connection and stream starts with, until SETTINGS and WINDOW_UPDATE say otherwise.
+     */
+    private static final int DEFAULT_WINDOW = 65535;
+
+    /**
+     * Largest frame payload.  We never ask for bigger frames, so this is what we accept, and what we send until the
+     * peer says it takes bigger.
+     */
+    static final int MAX_FRAME_SIZE = 16384;
+
+    /**
+     * How much each stream, and the connection as a whole, may have in flight towards us.
+     */
+    static final int STREAM_WINDOW = 256 * 1024;
+    static final int CONNECTION_WINDOW = 4 * 1024 * 1024;
+
+    /**
+     * Hears about streams coming and going.  The methods are called without any of the connection's locks held.
+     */
+    interface Listener {
+        /**
+         * A client opened a stream, and its request head has arrived.  Only servers hear about these.
+         * @param stream The new stream.
+         */
+        void opened(Http2Stream stream);
+
+        /**
+         * A stream is finished with, one way or another.
+         * @param stream The stream.
+         */
+        void closed(Http2Stream stream);
+
+        /**
+         * The connection has stopped reading frames, and every stream on it has failed or finished.
+         * @param connection The connection.
+         */
+        void ended(Http2Connection connection);
+    }
+
+    /**
+     * A connection error: the connection is closed with GOAWAY and this code.
+     */
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    final Socket socket;
+    final boolean server;
+    private final InputStream in;
+    private final OutputStream out;
+    private final int maxStreams;
+    private final Listener listener;
+
+    final ReentrantLock lock = new ReentrantLock();
+    private final Condition windowOpened = lock.newCondition();
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    private int active; // streams open, including a client's streams that haven't sent their HEADERS yet
+    private int lastPeerStream;
+    private boolean goingAway; // GOAWAY sent or received: no new streams
+    private boolean ended;
+    private int peerMaxStreams = Integer.MAX_VALUE;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = MAX_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW;
+    private long receiveWindow = CONNECTION_WINDOW;
+    private int unacknowledged; // bytes taken by streams that haven't been given back to the peer yet
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Hpack.Decoder decoder;
+    private final byte[] frameHeader = new byte[9]; // guarded by writeLock
+    private int nextStreamId = 1; // guarded by both locks
+
+    /**
+     * Create a connection.  Call start() to send our settings, and serve() on the thread that will read frames.
+     * @param socket The socket, which is closed when the connection ends.
+     * @param in Stream to read frames from, which may already hold bytes read past an HTTP/1.1 head.
+     * @param out Stream to write frames to.
+     * @param server True if we are the server, i.e. the peer is a client of ours.
+     * @param maxStreams As a server, how many streams a client may have open at once.
+     * @param maxHeaderListSize Largest header list we take, counted as HPACK does.
+     * @param listener Hears about streams.
+     */
+    Http2Connection(Socket socket, InputStream in, OutputStream out, boolean server, int maxStreams,
+                    int maxHeaderListSize, Listener listener) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.server = server;
+        this.maxStreams = maxStreams;
+        this.listener = listener;
+        this.decoder = new Hpack.Decoder(maxHeaderListSize);
+    }
+
+    /**
+     * Send the client preface (if we are the client), our SETTINGS, and a WINDOW_UPDATE to open the connection window
+     * up to its full size.
+     * @throws IOException if writing fails
+     */
+    void start() throws IOException {
+        ByteArrayOutputStream settings = new ByteArrayOutputStream();
+        if (server) {
+            setting(settings, SETTINGS_MAX_CONCURRENT_STREAMS, maxStreams);
+        } else {
+            setting(settings, SETTINGS_ENABLE_PUSH, 0);
+        }
+        setting(settings, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+        setting(settings, SETTINGS_MAX_HEADER_LIST_SIZE, decoderLimit());
+        writeLock.lock();
+        try {
+            if (!server) {
+                out.write(PREFACE);
+            }
+            frame(SETTINGS, 0, 0, settings.toByteArray(), 0, settings.size());
+            frame(WINDOW_UPDATE, 0, 0, int32(CONNECTION_WINDOW - DEFAULT_WINDOW), 0, 4);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private int decoderLimit() {
+        return decoder.maxListSize;
+    }
+
+    private static void setting(ByteArrayOutputStream out, int id, int value) {
+        out.write(id >>> 8);
+        out.write(id);
+        out.write(int32(value), 0, 4);
+    }
+
+    private static byte[] int32(int value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    /**
+     * Apply the settings a client sent in the HTTP2-Settings header of an Upgrade request, as though they had come in
+     * a SETTINGS frame.
+     * @param payload The decoded header value.
+     * @throws IOException if they are malformed
+     */
+    void applySettings(byte[] payload) throws IOException {
+        settings(payload, payload.length);
+    }
+
+    /**
+     * Return how many more streams this (client) connection can take now.
+     * @return the number of streams newStream() would open before giving up
+     */
+    int room() {
+        lock.lock();
+        try {
+            return ended || goingAway ? 0 : Math.max(peerMaxStreams - active, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return how many streams are open on this connection.
+     * @return open stream count
+     */
+    int active() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return true once the connection has stopped reading, or has been told to go away.
+     * @return true if the connection takes no more streams
+     */
+    boolean isDone() {
+        lock.lock();
+        try {
+            return ended || goingAway;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * As a client, make a stream for a new request.  It gets its id when its HEADERS are sent.
+     * @param authority The :authority for the request, the origin's host:port.
+     * @return The stream, or null if the connection can't take another one.
+     */
+    Http2Stream newStream(String authority) {
+        lock.lock();
+        try {
+            if (ended || goingAway || active >= peerMaxStreams) {
+                return null;
+            }
+            active++;
+            return new Http2Stream(this, 0, authority, socket.getInetAddress());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Serve the stream that an HTTP/1.1 Upgrade request becomes.  The request itself arrived over HTTP/1.1, so the
+     * stream is half closed already: only the response goes over HTTP/2.
+     * @param fields The request's header fields, pseudo-headers first.
+     * @return The stream, for the request's ProxyThread.
+     */
+    Http2Stream upgraded(List<String> fields) {
+        lock.lock();
+        try {
+            Http2Stream stream = new Http2Stream(this, 1, null, socket.getInetAddress());
+            stream.sendWindow = peerInitialWindow;
+            stream.receiveWindow = STREAM_WINDOW;
+            stream.inbound.add(fields);
+            stream.remoteEnded = true;
+            streams.put(1, stream);
+            lastPeerStream = 1;
+            active++;
+            return stream;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read and act on frames until the connection ends.  A server first reads the client's preface.  Whatever ends
+     * the connection, every stream left on it fails, and the listener hears that it ended.
+     */
+    void serve() {
+        String reason = "HTTP/2 connection closed";
+        try {
+            if (server) {
+                byte[] preface = new byte[PREFACE.length];
+                readFully(preface, preface.length);
+                if (!java.util.Arrays.equals(preface, PREFACE)) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Bad HTTP/2 preface.");
+                }
+            }
+            readFrames();
+        } catch (ConnectionError e) {
+            reason = e.getMessage();
+            ProxyThread.logger.fine("HTTP/2 connection error: " + reason);
+            goAway(e.code);
+        } catch (IOException e) {
+            if (!(e instanceof EOFException)) {
+                reason = e.getMessage();
+            }
+        } finally {
+            shutDown(reason);
+        }
+    }
+
+    /**
+     * Say GOAWAY, so the peer knows which streams we dealt with, and that nothing else will be.
+     * @param code Error code, NO_ERROR for a graceful close.
+     */
+    void goAway(int code) {
+        int last;
+        lock.lock();
+        try {
+            goingAway = true;
+            last = lastPeerStream;
+        } finally {
+            lock.unlock();
+        }
+        byte[] payload = new byte[8];
+        System.arraycopy(int32(last), 0, payload, 0, 4);
+        System.arraycopy(int32(code), 0, payload, 4, 4);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Close the socket, fail the streams, and tell the listener.
+     */
+    private void shutDown(String reason) {
+        try {
+            socket.close();
+        } catch (IOException e) {}
+        List<Http2Stream> failed;
+        lock.lock();
+        try {
+            ended = true;
+            failed = new ArrayList<>(streams.values());
+            streams.clear();
+            for (Http2Stream stream : failed) {
+                stream.fail(reason);
+            }
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Http2Stream stream : failed) {
+            finished(stream);
+        }
+        listener.ended(this);
+    }
+
+    private void readFully(byte[] buf, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int read = in.read(buf, n, length - n);
+            if (read == -1) {
+                throw new EOFException("HTTP/2 connection closed");
+            }
+            n += read;
+        }
+    }
+
+    private void readFrames() throws IOException {
+        byte[] header = new byte[9];
+        byte[] payload = new byte[MAX_FRAME_SIZE];
+        ByteArrayOutputStream block = null; // a header block still waiting for CONTINUATION frames
+        int blockStream = 0;
+        int blockFlags = 0;
+        for (;;) {
+            readFully(header, 9);
+            int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int streamId = readInt(header, 5) & 0x7fffffff;
+            if (length > MAX_FRAME_SIZE) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "HTTP/2 frame of " + length + " bytes.");
+            }
+            readFully(payload, length);
+            if (block != null && (type != CONTINUATION || streamId != blockStream)) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted.");
+            }
+            switch (type) {
+                case DATA:
+                    data(streamId, flags, payload, length);
+                    break;
+                case HEADERS: {
+                    if (streamId == 0) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0.");
+                    }
+                    int start = 0;
+                    int end = length;
+                    if ((flags & PADDED) != 0) {
+                        if (length < 1) throw new ConnectionError(FRAME_SIZE_ERROR, "Short HEADERS frame.");
+                        end -= payload[0] & 0xff;
+                        start = 1;
+                    }
+                    if ((flags & PRIORITY_FLAG) != 0) {
+                        start += 5;
+                    }
+                    if (end < start) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Bad HEADERS padding.");
+                    }
+                    block = new ByteArrayOutputStream(end - start);
+                    block.write(payload, start, end - start);
+                    blockStream = streamId;
+                    blockFlags = flags;
+                    break;
+                }
+                case CONTINUATION:
+                    if (block == null) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION.");
+                    }
+                    block.write(payload, 0, length);
+                    flags |= blockFlags & END_STREAM;
+                    blockFlags = flags;
+                    if (block.size() > 2 * decoderLimit() + MAX_FRAME_SIZE) {
+                        throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block too large.");
+                    }
+                    break;
+                case PRIORITY:
+                    break;
+                case RST_STREAM:
+                    if (streamId == 0 || length != 4) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Bad RST_STREAM.");
+                    }
+                    peerReset(streamId, readInt(payload, 0));
+                    break;
+                case SETTINGS:
+                    if (streamId != 0) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream.");
+                    }
+                    if ((flags & ACK) == 0) {
+                        settings(payload, length);
+                        writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+                    }
+                    break;
+                case PUSH_PROMISE:
+                    throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE, which we disabled.");
+                case PING:
+                    if (streamId != 0 || length != 8) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Bad PING.");
+                    }
+                    if ((flags & ACK) == 0) {
+                        writeFrame(PING, ACK, 0, payload, 0, 8);
+                    }
+                    break;
+                case GOAWAY:
+                    if (streamId != 0 || length < 8) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Bad GOAWAY.");
+                    }
+                    peerGoingAway(readInt(payload, 0) & 0x7fffffff);
+                    break;
+                case WINDOW_UPDATE:
+                    if (length != 4) {
+                        throw new ConnectionError(FRAME_SIZE_ERROR, "Bad WINDOW_UPDATE.");
+                    }
+                    windowUpdate(streamId, readInt(payload, 0) & 0x7fffffff);
+                    break;
+                default:
+                    break; // unknown frame types are ignored
+            }
+            if (block != null && (flags & END_HEADERS) != 0) {
+                headers(blockStream, blockFlags, block.toByteArray());
+                block = null;
+            }
+        }
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) << 24 | (buf[offset + 1] & 0xff) << 16 | (buf[offset + 2] & 0xff) << 8 |
+                (buf[offset + 3] & 0xff);
+    }
+
+    private void settings(byte[] payload, int length) throws IOException {
+        if (length % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Bad SETTINGS length.");
+        }
+        for (int i = 0; i < length; i += 6) {
+            int id = (payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff);
+            int value = readInt(payload, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    writeLock.lock();
+                    try {
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Bad SETTINGS_ENABLE_PUSH.");
+                    }
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    lock.lock();
+                    try {
+                        peerMaxStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    } finally {
+                        lock.unlock();
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE too large.");
+                    }
+                    lock.lock();
+                    try {
+                        int delta = value - peerInitialWindow;
+                        peerInitialWindow = value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > Integer.MAX_VALUE) {
+                                throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window too large.");
+                            }
+                        }
+                        windowOpened.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Bad SETTINGS_MAX_FRAME_SIZE.");
+                    }
+                    lock.lock();
+                    try {
+                        peerMaxFrameSize = value;
+                    } finally {
+                        lock.unlock();
+                    }
+                    break;
+                default:
+                    break; // including SETTINGS_MAX_HEADER_LIST_SIZE, which is only advice
+            }
+        }
+    }
+
+    private void peerGoingAway(int lastStream) {
+        List<Http2Stream> refused = new ArrayList<>();
+        lock.lock();
+        try {
+            goingAway = true;
+            if (!server) {
+                // Streams past the last one the server took were never processed, so they can safely be retried.
+                for (Http2Stream stream : streams.values()) {
+                    if (stream.id > lastStream) {
+                        refused.add(stream);
+                    }
+                }
+                for (Http2Stream stream : refused) {
+                    streams.remove(stream.id);
+                    stream.reset(REFUSED_STREAM);
+                }
+            }
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Http2Stream stream : refused) {
+            finished(stream);
+        }
+    }
+
+    private void windowUpdate(int streamId, int increment) throws IOException {
+        Http2Stream stream;
+        lock.lock();
+        try {
+            if (streamId == 0) {
+                if (increment == 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0.");
+                }
+                sendWindow += increment;
+                if (sendWindow > Integer.MAX_VALUE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window too large.");
+                }
+                windowOpened.signalAll();
+                return;
+            }
+            stream = streams.get(streamId);
+            if (stream == null) {
+                return; // closed already
+            }
+            stream.sendWindow += increment;
+            if (increment != 0 && stream.sendWindow <= Integer.MAX_VALUE) {
+                windowOpened.signalAll();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        cancel(stream, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+    }
+
+    private void data(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0.");
+        }
+        int start = 0;
+        int end = length;
+        if ((flags & PADDED) != 0) {
+            if (length < 1 || (payload[0] & 0xff) >= length) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Bad DATA padding.");
+            }
+            end -= payload[0] & 0xff;
+            start = 1;
+        }
+        int error = 0;
+        Http2Stream done = null;
+        lock.lock();
+        try {
+            receiveWindow -= length;
+            if (receiveWindow < 0) {
+                throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overrun.");
+            }
+            Http2Stream stream = streams.get(streamId);
+            if (stream == null || stream.remoteEnded) {
+                if (stream == null && (server ? streamId > lastPeerStream : streamId >= nextStreamId)) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "DATA on an idle stream.");
+                }
+                if (stream != null) {
+                    error = STREAM_CLOSED; // a stream we have closed or reset just gets ignored
+                }
+                unacknowledged += length; // nobody will read it, so it goes straight back
+            } else {
+                stream.receiveWindow -= length;
+                if (stream.receiveWindow < 0) {
+                    unacknowledged += length;
+                    streams.remove(streamId);
+                    stream.reset(FLOW_CONTROL_ERROR);
+                    error = FLOW_CONTROL_ERROR;
+                    done = stream;
+                } else {
+                    if (end > start) {
+                        byte[] data = new byte[end - start];
+                        System.arraycopy(payload, start, data, 0, data.length);
+                        stream.inbound.add(data);
+                    }
+                    unacknowledged += length - (end - start); // the padding goes straight back
+                    if ((flags & END_STREAM) != 0) {
+                        stream.remoteEnded = true;
+                        if (stream.localEnded) {
+                            streams.remove(streamId);
+                            done = stream;
+                        }
+                    }
+                    stream.changed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (error != 0) {
+            resetStream(streamId, error);
+        }
+        if (done != null) {
+            finished(done);
+        }
+        acknowledge(null, 0);
+    }
+
+    private void headers(int streamId, int flags, byte[] block) throws IOException {
+        List<String> fields = new ArrayList<>();
+        boolean fits;
+        try {
+            fits = decoder.decode(block, block.length, fields);
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean endStream = (flags & END_STREAM) != 0;
+        int error = 0;
+        Http2Stream opened = null;
+        Http2Stream done = null;
+        lock.lock();
+        try {
+            Http2Stream stream = streams.get(streamId);
+            if (stream == null && server && streamId > lastPeerStream) {
+                if ((streamId & 1) == 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Client opened an even stream.");
+                }
+                lastPeerStream = streamId;
+                if (goingAway || active >= maxStreams) {
+                    error = REFUSED_STREAM;
+                } else if (!fits || !valid(fields)) {
+                    error = PROTOCOL_ERROR;
+                } else {
+                    stream = new Http2Stream(this, streamId, null, socket.getInetAddress());
+                    stream.sendWindow = peerInitialWindow;
+                    stream.receiveWindow = STREAM_WINDOW;
+                    stream.inbound.add(fields);
+                    stream.remoteEnded = endStream;
+                    streams.put(streamId, stream);
+                    active++;
+                    opened = stream;
+                }
+            } else if (stream == null) {
+                if (!server && streamId >= nextStreamId) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on an idle stream.");
+                }
+                // A stream we have closed or reset.  The block still had to be decoded, for the HPACK table's sake.
+            } else if (stream.remoteEnded) {
+                error = STREAM_CLOSED;
+            } else if (!fits || !valid(fields)) {
+                error = PROTOCOL_ERROR;
+                streams.remove(streamId);
+                stream.reset(PROTOCOL_ERROR);
+                done = stream;
+            } else {
+                stream.inbound.add(fields); // a response head (or another one after a 1xx), or trailers
+                if (endStream) {
+                    stream.remoteEnded = true;
+                    if (stream.localEnded) {
+                        streams.remove(streamId);
+                        done = stream;
+                    }
+                }
+                stream.changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (error != 0) {
+            resetStream(streamId, error);
+        }
+        if (done != null) {
+            finished(done);
+        }
+        if (opened != null) {
+            listener.opened(opened);
+        }
+    }
+
+    /**
+     * Check decoded header fields for anything that would let the peer smuggle an extra header or message into the
+     * HTTP/1.1 we turn them into: CR, LF or NUL anywhere, or a name that isn't a plain token.
+     */
+    private static boolean valid(List<String> fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            String s = fields.get(i);
+            boolean name = i % 2 == 0;
+            if (name && s.isEmpty()) {
+                return false;
+            }
+            for (int j = 0; j < s.length(); j++) {
+                char c = s.charAt(j);
+                if (c == '\r' || c == '\n' || c == 0 || (name && (c == ' ' || c == ':' && j > 0 || c > 0x7e))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void peerReset(int streamId, int code) {
+        Http2Stream stream;
+        lock.lock();
+        try {
+            stream = streams.remove(streamId);
+            if (stream == null) {
+                return;
+            }
+            stream.reset(code);
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        finished(stream);
+    }
+
+    /**
+     * Send RST_STREAM.
+     */
+    private void resetStream(int streamId, int code) throws IOException {
+        writeFrame(RST_STREAM, 0, streamId, int32(code), 0, 4);
+    }
+
+    /**
+     * A stream is finished, both ways or by being reset: count it off, and tell the listener.  Its unread data stays
+     * for its reader until close().  Called without the locks; only the first call for a stream does anything.
+     */
+    void finished(Http2Stream stream) {
+        lock.lock();
+        try {
+            if (stream.finished) {
+                return;
+            }
+            stream.finished = true;
+            active--;
+            windowOpened.signalAll(); // for a stream that was waiting to send
+        } finally {
+            lock.unlock();
+        }
+        listener.closed(stream);
+    }
+
+    /**
+     * The owner of a stream is done with it.  If it is still open, it is cancelled (or, if we have said all we have to
+     * say, the peer is just told to stop sending), and any data it was sent that nobody read gives its window back.
+     * @param stream The stream.
+     */
+    void close(Http2Stream stream) {
+        boolean open;
+        lock.lock();
+        try {
+            open = !stream.finished;
+        } finally {
+            lock.unlock();
+        }
+        if (open) {
+            cancel(stream, stream.localEnded ? NO_ERROR : CANCEL);
+        }
+        int unread = 0;
+        lock.lock();
+        try {
+            for (Object item : stream.inbound) {
+                if (item instanceof byte[]) {
+                    unread += ((byte[]) item).length;
+                }
+            }
+            stream.inbound.clear();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            acknowledge(null, unread);
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Give flow control window back to the peer: a stream's reader has taken some data, or the data was thrown away.
+     * WINDOW_UPDATE goes out once half of a window has been taken, rather than for every frame.
+     * @param stream The stream whose reader took the data, or null if only the connection's window is affected.
+     * @param n Bytes taken.
+     * @throws IOException if writing the update fails
+     */
+    void acknowledge(Http2Stream stream, int n) throws IOException {
+        int connectionIncrement = 0;
+        int streamIncrement = 0;
+        lock.lock();
+        try {
+            unacknowledged += n;
+            if (unacknowledged >= CONNECTION_WINDOW / 2) {
+                connectionIncrement = unacknowledged;
+                receiveWindow += unacknowledged;
+                unacknowledged = 0;
+            }
+            if (stream != null && !stream.remoteEnded && !stream.finished) {
+                stream.unacknowledged += n;
+                if (stream.unacknowledged >= STREAM_WINDOW / 2) {
+                    streamIncrement = stream.unacknowledged;
+                    stream.receiveWindow += stream.unacknowledged;
+                    stream.unacknowledged = 0;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (connectionIncrement > 0) {
+            writeFrame(WINDOW_UPDATE, 0, 0, int32(connectionIncrement), 0, 4);
+        }
+        if (streamIncrement > 0) {
+            writeFrame(WINDOW_UPDATE, 0, stream.id, int32(streamIncrement), 0, 4);
+        }
+    }
+
+    /**
+     * Send a stream's HEADERS, with CONTINUATION frames if the block is bigger than a frame.  A client's stream gets
+     * its id here, since ids must go out in increasing order.
+     * @param stream The stream.
+     * @param fields Names and values, alternately, pseudo-headers first.
+     * @param endStream Whether there is no body to follow.
+     * @throws IOException if the stream has been reset, or writing fails
+     */
+    void sendHeaders(Http2Stream stream, List<String> fields, boolean endStream) throws IOException {
+        Http2Stream done = null;
+        writeLock.lock();
+        try {
+            lock.lock();
+            try {
+                stream.check();
+                if (stream.id == 0) {
+                    if (ended || goingAway) {
+                        throw new IOException("HTTP/2 connection is going away.");
+                    }
+                    stream.id = nextStreamId;
+                    nextStreamId += 2;
+                    stream.sendWindow = peerInitialWindow;
+                    stream.receiveWindow = STREAM_WINDOW;
+                    streams.put(stream.id, stream);
+                }
+                if (endStream) {
+                    stream.localEnded = true;
+                    if (stream.remoteEnded) {
+                        streams.remove(stream.id);
+                        done = stream;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.begin(block);
+            for (int i = 0; i < fields.size(); i += 2) {
+                encoder.encode(block, fields.get(i), fields.get(i + 1));
+            }
+            byte[] bytes = block.toByteArray();
+            int off = 0;
+            int type = HEADERS;
+            do {
+                int n = Math.min(bytes.length - off, MAX_FRAME_SIZE);
+                int flags = (off + n == bytes.length ? END_HEADERS : 0) | (type == HEADERS && endStream ? END_STREAM : 0);
+                frame(type, flags, stream.id, bytes, off, n);
+                off += n;
+                type = CONTINUATION;
+            } while (off < bytes.length);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+        if (done != null) {
+            finished(done);
+        }
+    }
+
+    /**
+     * Send body data on a stream, waiting for flow control windows as need be.
+     * @param stream The stream, whose HEADERS have gone already.
+     * @param buf Data.
+     * @param off Where it starts.
+     * @param len How much there is, which may be none if this is just to end the stream.
+     * @param endStream Whether this is the end of the body.
+     * @throws IOException if the stream is reset, or writing fails
+     */
+    void sendData(Http2Stream stream, byte[] buf, int off, int len, boolean endStream) throws IOException {
+        do {
+            int n;
+            Http2Stream done = null;
+            lock.lock();
+            try {
+                while (stream.check() && len > 0 && (stream.sendWindow <= 0 || sendWindow <= 0)) {
+                    windowOpened.await();
+                }
+                n = (int) Math.min(Math.min(len, peerMaxFrameSize), Math.min(stream.sendWindow, sendWindow));
+                stream.sendWindow -= n;
+                sendWindow -= n;
+                if (endStream && n == len) {
+                    stream.localEnded = true;
+                    if (stream.remoteEnded) {
+                        streams.remove(stream.id);
+                        done = stream;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for an HTTP/2 window.");
+            } finally {
+                lock.unlock();
+            }
+            writeFrame(DATA, endStream && n == len ? END_STREAM : 0, stream.id, buf, off, n);
+            off += n;
+            len -= n;
+            if (done != null) {
+                finished(done);
+            }
+        } while (len > 0);
+    }
+
+    /**
+     * Give up on a stream from our end, telling the peer with RST_STREAM if it has heard of the stream.
+     * @param stream The stream.
+     * @param code Error code.
+     */
+    void cancel(Http2Stream stream, int code) {
+        boolean known;
+        lock.lock();
+        try {
+            if (stream.finished) {
+                return;
+            }
+            known = stream.id != 0 && streams.remove(stream.id) != null;
+            stream.reset(code);
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (known) {
+            try {
+                resetStream(stream.id, code);
+            } catch (IOException e) {}
+        }
+        finished(stream);
+    }
+
+    /**
+     * Write a frame and flush it.
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len) throws IOException {
+        writeLock.lock();
+        try {
+            frame(type, flags, streamId, payload, off, len);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Write a frame, without flushing.  Must be called with writeLock held.
+     */
+    private void frame(int type, int flags, int streamId, byte[] payload, int off, int len) throws IOException {
+        frameHeader[0] = (byte) (len >>> 16);
+        frameHeader[1] = (byte) (len >>> 8);
+        frameHeader[2] = (byte) len;
+        frameHeader[3] = (byte) type;
+        frameHeader[4] = (byte) flags;
+        frameHeader[5] = (byte) (streamId >>> 24);
+        frameHeader[6] = (byte) (streamId >>> 16);
+        frameHeader[7] = (byte) (streamId >>> 8);
+        frameHeader[8] = (byte) streamId;
+        out.write(frameHeader);
+        out.write(payload, off, len);
+    }
+}
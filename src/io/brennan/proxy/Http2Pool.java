@@ -0,0 +1,275 @@
+package io.brennan.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HTTP/2 connections to the origins named in --h2c-origins.  Instead of a connection per request in flight, as the
+ * HTTP/1.1 pool has, each of these origins gets a few connections, and every request to it is a stream on whichever of
+ * them has the fewest streams open.  UpstreamPool hands the streams out dressed up as Connections, so ProxyThread
+ * talks HTTP/1.1 to them like any other, and Http2Stream does the translating.
+ *
+ * Connections are opened as they are needed, up to --h2c-origin-connections per origin, each with a thread reading
+ * its frames.  When every connection is at the origin's stream limit, a request waits for a stream to finish, for up
+ * to the pool acquire timeout.  A connection that has had no streams for the pool idle timeout is closed, and one
+ * that fails or that the origin sends GOAWAY on is dropped and replaced by the next request that needs it.
+ */
+final class Http2Pool implements MetricsSource, Http2Connection.Listener {
+
+    /**
+     * One origin's connections.  Guarded by the pool's lock.
+     */
+    private static final class Origin {
+        final List<Http2Connection> connections = new ArrayList<>();
+        final Map<Http2Connection, Long> idleSince = new HashMap<>();
+        int opening;
+    }
+
+    private final Map<String, Origin> origins = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Connector connector;
+    private final int maxConnections;
+    private final long acquireTimeout;
+    private final int maxHeadSize;
+    private final int maxHeaders;
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder streams = new LongAdder();
+
+    /**
+     * Create the pool.
+     * @param config Proxy configuration, for the h2c origins, the connections per origin, and the pool timeouts.
+     * @param connector Opens connections to origins.
+     */
+    Http2Pool(ProxyConfig config, Connector connector) {
+        this.connector = connector;
+        this.maxConnections = config.h2cOriginConnections;
+        this.acquireTimeout = config.poolAcquireTimeout;
+        this.maxHeadSize = config.maxHeadSize;
+        this.maxHeaders = config.maxHeaders;
+        for (String origin : config.h2cOrigins) {
+            origins.put(origin, new Origin());
+        }
+    }
+
+    /**
+     * Return true if an origin is one of ours.
+     * @param hostname Origin host name.
+     * @param port Origin port.
+     * @return true if requests to it go over HTTP/2
+     */
+    boolean handles(String hostname, int port) {
+        return origins.containsKey(hostname.toLowerCase(Locale.ROOT) + ":" + port);
+    }
+
+    /**
+     * Open a stream to an origin, on its least busy connection, opening a connection if there is room for another.
+     * @param hostname Origin host name.
+     * @param port Origin port.
+     * @param wait Whether to wait for a stream when every connection is full.
+     * @param spare Whether to give up unless there would still be a stream to be had afterwards, for a request sent
+     *              before its turn (see UpstreamPool.acquireEarly()).
+     * @return The stream as a connection, which must be given back with UpstreamPool.release(), or null if we weren't to
+     *         wait and there was no stream to be had.
+     * @throws UpstreamBusyException if we time out waiting for a stream.
+     * @throws IOException if connecting fails.
+     */
+    UpstreamPool.Connection acquire(String hostname, int port, boolean wait, boolean spare) throws IOException {
+        String key = hostname.toLowerCase(Locale.ROOT) + ":" + port;
+        Origin origin = origins.get(key);
+        long deadline = System.currentTimeMillis() + acquireTimeout;
+        lock.lock();
+        try {
+            for (;;) {
+                Http2Connection best = null;
+                int room = 0;
+                for (Http2Connection connection : origin.connections) {
+                    int free = connection.room();
+                    room += free;
+                    if (free > 0 && (best == null || connection.active() < best.active())) {
+                        best = connection;
+                    }
+                }
+                if (spare && best != null && room < 2 && origin.connections.size() + origin.opening >= maxConnections) {
+                    return null;
+                }
+                if (best != null) {
+                    Http2Stream stream = best.newStream(key);
+                    if (stream != null) {
+                        origin.idleSince.remove(best);
+                        streams.increment();
+                        return UpstreamPool.Connection.forStream(stream, true, maxHeadSize, maxHeaders);
+                    }
+                    continue;
+                }
+                if (origin.connections.size() + origin.opening < maxConnections) {
+                    break;
+                }
+                if (!wait) {
+                    return null;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new UpstreamBusyException("Timed out waiting for an HTTP/2 stream to " + key + ".");
+                }
+                try {
+                    changed.await(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for an HTTP/2 stream to " + key + ".");
+                }
+            }
+            origin.opening++;
+        } finally {
+            lock.unlock();
+        }
+
+        // Connecting happens without the lock.  The new connection's first stream is ours.
+        Http2Connection connection = null;
+        try {
+            connection = connect(hostname, port);
+        } finally {
+            lock.lock();
+            try {
+                origin.opening--;
+                if (connection != null) {
+                    origin.connections.add(connection);
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        Http2Stream stream = connection.newStream(key);
+        if (stream == null) {
+            throw new IOException("New HTTP/2 connection to " + key + " takes no streams.");
+        }
+        streams.increment();
+        return UpstreamPool.Connection.forStream(stream, false, maxHeadSize, maxHeaders);
+    }
+
+    private Http2Connection connect(String hostname, int port) throws IOException {
+        long start = System.nanoTime();
+        Socket socket = connector.connect(hostname, port).socket();
+        Metrics.upstreamConnect.record(System.nanoTime() - start);
+        Http2Connection connection;
+        try {
+            connection = new Http2Connection(socket,
+                    new BufferedInputStream(new CountingInputStream(SocketStreams.input(socket), Metrics.bytesIn),
+                            Http2Connection.MAX_FRAME_SIZE + 9),
+                    new BufferedOutputStream(new CountingOutputStream(SocketStreams.output(socket), Metrics.bytesOut),
+                            Http2Connection.MAX_FRAME_SIZE + 9),
+                    false, 0, maxHeadSize, this);
+            connection.start();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Thread reader = new Thread(connection::serve, "h2c-" + hostname + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+        opened.increment();
+        return connection;
+    }
+
+    @Override
+    public void opened(Http2Stream stream) {
+        // Origins don't open streams; the connection refuses their PUSH_PROMISEs.
+    }
+
+    @Override
+    public void closed(Http2Stream stream) {
+        lock.lock();
+        try {
+            Http2Connection connection = stream.connection;
+            if (connection.active() == 0) {
+                for (Origin origin : origins.values()) {
+                    if (origin.connections.contains(connection)) {
+                        origin.idleSince.put(connection, System.currentTimeMillis());
+                    }
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void ended(Http2Connection connection) {
+        lock.lock();
+        try {
+            for (Origin origin : origins.values()) {
+                origin.connections.remove(connection);
+                origin.idleSince.remove(connection);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close connections that have had no streams since before a cutoff, and drop ones the origin has sent GOAWAY on
+     * once their streams are done.  UpstreamPool's eviction thread calls this.
+     * @param cutoff Time in milliseconds.
+     */
+    void evict(long cutoff) {
+        List<Http2Connection> closing = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Origin origin : origins.values()) {
+                for (Iterator<Http2Connection> i = origin.connections.iterator(); i.hasNext(); ) {
+                    Http2Connection connection = i.next();
+                    Long idle = origin.idleSince.get(connection);
+                    if (connection.active() == 0 && (connection.isDone() || (idle != null && idle < cutoff))) {
+                        i.remove();
+                        origin.idleSince.remove(connection);
+                        closing.add(connection);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Http2Connection connection : closing) {
+            connection.goAway(Http2Connection.NO_ERROR);
+            try {
+                connection.socket.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        int connections = 0;
+        int active = 0;
+        lock.lock();
+        try {
+            for (Origin origin : origins.values()) {
+                connections += origin.connections.size();
+                for (Http2Connection connection : origin.connections) {
+                    active += connection.active();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        sink.gauge("proxy_h2c_origin_connections_open", "HTTP/2 connections to origins.", connections);
+        sink.counter("proxy_h2c_origin_connections_total", "HTTP/2 connections opened to origins.", opened.sum());
+        sink.gauge("proxy_h2c_origin_streams_active", "Requests in flight on HTTP/2 connections to origins.", active);
+        sink.counter("proxy_h2c_origin_streams_total", "Requests sent to origins over HTTP/2.", streams.sum());
+    }
+}
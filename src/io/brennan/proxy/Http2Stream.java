@@ -0,0 +1,667 @@
+package io.brennan.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * One stream of an Http2Connection: a request and its response.
+ *
+ * What arrives for the stream (header blocks, as decoded name/value lists, and DATA payloads) is queued here by the
+ * connection's reading thread.  The rest of the proxy sees the stream through socket(), a StreamSocket, whose streams
+ * speak HTTP/1.1:
+ * - Reading gives the arriving message as HTTP/1.1.  A request comes out in absolute form (GET http://host/path, or
+ *   https:// when its :scheme was https), the way a client talks to a proxy, and a response comes out with its status.
+ *   Cookie fields are joined back into one header, and a body without a Content-Length comes out chunked.  Trailers
+ *   and 1xx responses are dropped.
+ * - Writing takes an HTTP/1.1 message, parses its head with HttpRequest or HttpResponse, and sends it as HEADERS and
+ *   DATA, leaving out the fields that only mean something to one HTTP/1.1 connection.  Chunked bodies are unchunked,
+ *   and a body that runs until the connection closes ends the stream when the socket is closed.
+ */
+final class Http2Stream {
+
+    /**
+     * Fields that belong to one HTTP/1.1 connection, which HTTP/2 forbids.
+     */
+    private static final String[] CONNECTION_FIELDS = {
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host", "http2-settings",
+    };
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    final Http2Connection connection;
+    private final String authority; // for a stream to an origin, what goes in :authority
+    private final InetAddress peer;
+    private final StreamSocket socket = new StreamSocket();
+
+    // All guarded by the connection's lock.
+    int id;
+    final Condition changed;
+    final ArrayDeque<Object> inbound = new ArrayDeque<>(); // List<String> header blocks and byte[] data
+    boolean remoteEnded;
+    boolean localEnded;
+    boolean finished;
+    long sendWindow;
+    long receiveWindow;
+    int unacknowledged;
+    private int resetCode = -1;
+    private String failure;
+
+    /**
+     * Set once the request's method is known, since a response to HEAD has no body whatever its headers say.
+     */
+    private volatile boolean headRequest;
+
+    Http2Stream(Http2Connection connection, int id, String authority, InetAddress peer) {
+        this.connection = connection;
+        this.id = id;
+        this.authority = authority;
+        this.peer = peer;
+        this.changed = connection.lock.newCondition();
+    }
+
+    /**
+     * Return the stream as an HTTP/1.1 connection.
+     * @return the stream's socket
+     */
+    StreamSocket socket() {
+        return socket;
+    }
+
+    /**
+     * Note that the peer reset the stream, or that we did.  Must be called with the connection's lock held.
+     */
+    void reset(int code) {
+        if (resetCode == -1 && failure == null) {
+            resetCode = code;
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * Note that the connection failed under the stream.  Must be called with the connection's lock held.
+     */
+    void fail(String reason) {
+        if (resetCode == -1 && failure == null) {
+            failure = reason;
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * Throw if the stream can't send any more.  Must be called with the connection's lock held.
+     * @return true, to make waiting loops read nicely
+     */
+    boolean check() throws IOException {
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+        if (resetCode != -1) {
+            throw new IOException("HTTP/2 stream " + id + " reset" + (resetCode == Http2Connection.REFUSED_STREAM
+                    ? " (refused)" : "") + ".");
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the next thing to arrive on the stream.  A stream that the peer ended properly and then reset (as a
+     * server may, once it has answered) still gives up what arrived before the reset.
+     * @return A header block (a List of names and values), a byte[] of data, or null at the end of the stream.
+     * @throws IOException if the stream was reset or the connection failed before the end
+     */
+    private Object take() throws IOException {
+        connection.lock.lock();
+        try {
+            for (;;) {
+                if (!inbound.isEmpty() && (remoteEnded || (resetCode == -1 && failure == null))) {
+                    return inbound.poll();
+                }
+                if (remoteEnded) {
+                    return null;
+                }
+                check();
+                changed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an HTTP/2 stream.");
+        } finally {
+            connection.lock.unlock();
+        }
+    }
+
+    /**
+     * Return how many bytes of data are queued, without waiting.
+     */
+    private int queued() {
+        connection.lock.lock();
+        try {
+            int n = 0;
+            for (Object item : inbound) {
+                if (item instanceof byte[]) {
+                    n += ((byte[]) item).length;
+                }
+            }
+            return n;
+        } finally {
+            connection.lock.unlock();
+        }
+    }
+
+    private boolean remoteEnded() {
+        connection.lock.lock();
+        try {
+            return remoteEnded && inbound.isEmpty();
+        } finally {
+            connection.lock.unlock();
+        }
+    }
+
+    /**
+     * Turn a head that arrived as HTTP/2 into HTTP/1.1.
+     * @return The head, or null if it is a 1xx response to skip.
+     */
+    private byte[] renderHead(List<String> fields) throws IOException {
+        String method = null;
+        String scheme = "http";
+        String path = null;
+        String host = null;
+        String status = null;
+        String contentLength = null;
+        String cookie = null;
+        StringBuilder headers = new StringBuilder();
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            switch (name) {
+                case ":method": method = value; continue;
+                case ":scheme": if (value.equals("https")) scheme = value; continue;
+                case ":path": path = value; continue;
+                case ":authority": host = value; continue;
+                case ":status": status = value; continue;
+                case "host": if (host == null) host = value; continue;
+                case "content-length": contentLength = value; break;
+                case "cookie": cookie = cookie == null ? value : cookie + "; " + value; continue;
+                default: break;
+            }
+            if (name.startsWith(":") || isConnectionField(name)) {
+                throw new IOException("Bad header field in HTTP/2 message: " + name);
+            }
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (cookie != null) {
+            headers.append("cookie: ").append(cookie).append("\r\n");
+        }
+        StringBuilder head = new StringBuilder();
+        boolean body;
+        if (connection.server) {
+            if (method == null || host == null || (path == null && !method.equals("CONNECT"))) {
+                throw new IOException("HTTP/2 request without :method, :path or :authority.");
+            }
+            headRequest = method.equals("HEAD");
+            if (path == null) {
+                head.append(method).append(' ').append(host).append(" HTTP/1.1\r\n");
+            } else {
+                head.append(method).append(' ').append(scheme).append("://").append(host)
+                        .append(path.startsWith("/") ? path : "/" + path).append(" HTTP/1.1\r\n");
+            }
+            head.append("Host: ").append(host).append("\r\n");
+            body = !remoteEnded();
+        } else {
+            if (status == null) {
+                throw new IOException("HTTP/2 response without :status.");
+            }
+            if (status.startsWith("1")) {
+                return null;
+            }
+            head.append("HTTP/1.1 ").append(status).append(" \r\n");
+            body = !headRequest && !status.equals("204") && !status.equals("304");
+            if (body && contentLength == null && remoteEnded()) {
+                headers.append("Content-Length: 0\r\n");
+            }
+        }
+        head.append(headers);
+        if (body && contentLength == null && !remoteEnded()) {
+            head.append("Transfer-Encoding: chunked\r\n");
+            socket.input.chunked = true;
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isConnectionField(String name) {
+        for (String field : CONNECTION_FIELDS) {
+            if (field.equals(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Turn an HTTP/1.1 head into HTTP/2 header fields.
+     * @return the fields, pseudo-headers first
+     */
+    private List<String> fieldsFor(HttpMessage message) {
+        List<String> fields = new ArrayList<>();
+        if (message instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) message;
+            fields.add(":method");
+            fields.add(request.getMethod());
+            fields.add(":scheme");
+            fields.add("http");
+            fields.add(":authority");
+            fields.add(authority);
+            fields.add(":path");
+            fields.add(request.getUrl());
+        } else {
+            fields.add(":status");
+            fields.add(((HttpResponse) message).getStatus());
+        }
+        HttpHeaders headers = message.getHeaders();
+        String connection = headers.get(HeaderName.CONNECTION);
+        headers.forEach((name, value) -> {
+            String lower = name.toString().toLowerCase(Locale.ROOT);
+            if (isConnectionField(lower) || (lower.equals("te") && !value.equalsIgnoreCase("trailers"))) {
+                return;
+            }
+            if (connection != null && listed(connection, lower)) {
+                return; // named in Connection, so it was for the connection too
+            }
+            fields.add(lower);
+            fields.add(value);
+        });
+        return fields;
+    }
+
+    private static boolean listed(String list, String name) {
+        for (String token : list.split(",")) {
+            if (token.trim().equalsIgnoreCase(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The stream's reading side, which gives the arriving message as HTTP/1.1.
+     */
+    private final class Inbound extends InputStream {
+        private byte[] chunk;
+        private int pos;
+        private boolean started;
+        private boolean done;
+        boolean chunked;
+
+        /**
+         * Get the next piece of the message to read from.
+         * @return false at the end of the message
+         */
+        private boolean next() throws IOException {
+            for (;;) {
+                if (done) {
+                    return false;
+                }
+                Object item = take();
+                if (item == null) {
+                    done = true;
+                    if (!started) {
+                        throw new IOException("HTTP/2 stream ended without a head.");
+                    }
+                    if (chunked) {
+                        serve(LAST_CHUNK);
+                        return true;
+                    }
+                    return false;
+                }
+                if (item instanceof byte[]) {
+                    byte[] data = (byte[]) item;
+                    connection.acknowledge(Http2Stream.this, data.length);
+                    if (!started) {
+                        throw new IOException("HTTP/2 DATA before HEADERS.");
+                    }
+                    if (chunked) {
+                        byte[] framed = new byte[HttpMessage.CHUNK_HEADER_ROOM + data.length + 2];
+                        System.arraycopy(data, 0, framed, HttpMessage.CHUNK_HEADER_ROOM, data.length);
+                        int start = HttpMessage.chunkHeader(framed, HttpMessage.CHUNK_HEADER_ROOM, data.length);
+                        framed[framed.length - 2] = '\r';
+                        framed[framed.length - 1] = '\n';
+                        chunk = framed;
+                        pos = start;
+                    } else {
+                        serve(data);
+                    }
+                    return true;
+                }
+                @SuppressWarnings("unchecked")
+                List<String> fields = (List<String>) item;
+                if (started) {
+                    continue; // trailers, which we don't pass on
+                }
+                byte[] head = renderHead(fields);
+                if (head != null) {
+                    started = true;
+                    serve(head);
+                    return true;
+                }
+            }
+        }
+
+        private void serve(byte[] bytes) {
+            chunk = bytes;
+            pos = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (chunk == null || pos == chunk.length) {
+                if (!next()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (chunk == null ? 0 : chunk.length - pos) + (started ? queued() : 0);
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+
+    /**
+     * Where the sending side is in the message.
+     */
+    private enum State {
+        Head, Length, ChunkSize, ChunkData, ChunkEnd, Trailers, Identity, Done
+    }
+
+    /**
+     * The stream's writing side, which takes an HTTP/1.1 message and sends it as HTTP/2.
+     */
+    private final class Outbound extends OutputStream {
+        private State state = State.Head;
+        private byte[] line = new byte[256]; // the head, or a chunk size or trailer line, as it arrives
+        private int lineLength;
+        private long remaining;
+        private final byte[] frame = new byte[Http2Connection.MAX_FRAME_SIZE];
+        private int framed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                switch (state) {
+                    case Head:
+                        off = head(b, off, end);
+                        break;
+                    case Length:
+                    case ChunkData:
+                    case Identity: {
+                        int n = state == State.Identity ? end - off : (int) Math.min(end - off, remaining);
+                        data(b, off, n);
+                        off += n;
+                        remaining -= n;
+                        if (state == State.Length && remaining == 0) {
+                            finish();
+                        } else if (state == State.ChunkData && remaining == 0) {
+                            state = State.ChunkEnd;
+                            lineLength = 0;
+                        }
+                        break;
+                    }
+                    case ChunkSize:
+                    case ChunkEnd:
+                    case Trailers: {
+                        byte c = b[off++];
+                        if (c != '\n') {
+                            if (lineLength == line.length) {
+                                throw new IOException("Chunk header too long.");
+                            }
+                            line[lineLength++] = c;
+                            break;
+                        }
+                        int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                        lineLength = 0;
+                        if (state == State.ChunkEnd) {
+                            state = State.ChunkSize;
+                        } else if (state == State.Trailers) {
+                            if (length == 0) {
+                                finish();
+                            }
+                        } else {
+                            remaining = chunkSize(length);
+                            state = remaining == 0 ? State.Trailers : State.ChunkData;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("HTTP/2 stream " + id + " has already sent its message.");
+                }
+            }
+        }
+
+        /**
+         * Take bytes of the head until the empty line, then send it.
+         * @return where the bytes not part of the head start
+         */
+        private int head(byte[] b, int off, int end) throws IOException {
+            while (off < end) {
+                if (lineLength == line.length) {
+                    if (line.length >= HttpInputStream.DEFAULT_MAX_HEAD_SIZE) {
+                        throw new HeadTooLargeException("Message head too large for HTTP/2.");
+                    }
+                    line = java.util.Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = b[off++];
+                if (lineLength >= 4 && line[lineLength - 1] == '\n' && line[lineLength - 2] == '\r' &&
+                        line[lineLength - 3] == '\n' && line[lineLength - 4] == '\r') {
+                    sendHead();
+                    break;
+                }
+            }
+            return off;
+        }
+
+        private void sendHead() throws IOException {
+            InputStream head = new ByteArrayInputStream(line, 0, lineLength);
+            lineLength = 0;
+            HttpMessage message;
+            BodyType type;
+            if (connection.server) {
+                HttpResponse response = new HttpResponse(head);
+                message = response;
+                if (response.getStatus().startsWith("1")) {
+                    connection.sendHeaders(Http2Stream.this, fieldsFor(response), false);
+                    return; // the real response is still to come
+                }
+                type = headRequest ? BodyType.None : response.bodyType();
+            } else {
+                HttpRequest request = (HttpRequest) (message = new HttpRequest(head));
+                headRequest = request.getMethod().equals("HEAD");
+                type = request.bodyType();
+            }
+            if (type == BodyType.ContentLength && message.contentLength() == 0) {
+                type = BodyType.None;
+            }
+            connection.sendHeaders(Http2Stream.this, fieldsFor(message), type == BodyType.None);
+            switch (type) {
+                case None:
+                    state = State.Done;
+                    break;
+                case ContentLength:
+                    remaining = message.contentLength();
+                    state = State.Length;
+                    break;
+                case Chunked:
+                    state = State.ChunkSize;
+                    break;
+                default:
+                    state = State.Identity;
+                    break;
+            }
+        }
+
+        private long chunkSize(int length) throws IOException {
+            long size = 0;
+            int digits = 0;
+            for (int i = 0; i < length; i++) {
+                int digit = Character.digit(line[i], 16);
+                if (digit == -1) {
+                    break; // a chunk extension
+                }
+                size = size * 16 + digit;
+                if (++digits > 15) {
+                    throw new IOException("Chunk size too large.");
+                }
+            }
+            if (digits == 0) {
+                throw new IOException("Bad chunk header.");
+            }
+            return size;
+        }
+
+        /**
+         * Add body bytes to the frame being built, sending it each time it fills.
+         */
+        private void data(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, frame.length - framed);
+                System.arraycopy(b, off, frame, framed, n);
+                framed += n;
+                off += n;
+                len -= n;
+                if (framed == frame.length) {
+                    connection.sendData(Http2Stream.this, frame, 0, framed, false);
+                    framed = 0;
+                }
+            }
+        }
+
+        /**
+         * The body is over: send what's left of it, ending the stream.
+         */
+        void finish() throws IOException {
+            state = State.Done;
+            connection.sendData(Http2Stream.this, frame, 0, framed, true);
+            framed = 0;
+        }
+
+        boolean inIdentityBody() {
+            return state == State.Identity;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (framed > 0 && state != State.Done) {
+                connection.sendData(Http2Stream.this, frame, 0, framed, false);
+                framed = 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+
+    /**
+     * The stream, dressed up as a connected socket, so that code written for HTTP/1.1 connections can use it.  There
+     * is no channel, and the socket options do nothing.
+     */
+    final class StreamSocket extends Socket {
+        final Inbound input = new Inbound();
+        private final Outbound output = new Outbound();
+        private volatile boolean closed;
+
+        /**
+         * Return the stream this is.
+         * @return the stream
+         */
+        Http2Stream stream() {
+            return Http2Stream.this;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return null;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return peer;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {}
+
+        @Override
+        public void setSoTimeout(int timeout) {}
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Finish with the stream.  A body that runs until the connection closes ends here, and a stream that isn't
+         * finished is reset.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (output.inIdentityBody()) {
+                try {
+                    output.finish();
+                } catch (IOException e) {}
+            }
+            connection.close(Http2Stream.this);
+        }
+
+        @Override
+        public String toString() {
+            return "HTTP/2 stream " + id + " on " + connection.socket;
+        }
+    }
+}
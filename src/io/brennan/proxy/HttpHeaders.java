@@ -1,60 +1,204 @@
 package io.brennan.proxy;
 
-import java.util.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
  * This class provides a nice, simple interface to HTTP Headers.
+ *
+ * Header names are matched case-insensitively (so contains("connection") finds "Connection"), using HeaderName.  Each
+ * field keeps a reference to its original bytes in the message head, and its value is only turned into a String if
+ * somebody asks for it.  When the headers are forwarded, fields that haven't been touched are copied out of the
+ * original bytes as they are, and only the fields that were set or added get formatted.  So a head where the proxy only
+ * changed Connection and Host costs two small writes of new text, and no per-header Strings.
  * Created by stephen on 3/19/16.
  */
 public class HttpHeaders {
+
     /**
-     * The parsed headers.  I use a list of strings as the value, because a single header key can occur multiple times.
+     * One header field, in the order it appeared.  A field parsed from a message has raw bytes; a field set by the
+     * proxy has only a value.
      */
-    private Map<String,String> headers;
+    private static final class Field {
+        final HeaderName name;
+        final int rawStart;    // index of the first byte of the field's line(s) in raw, or -1 if set by us
+        final int rawEnd;      // index just past the CRLF of the field's last line
+        final int valueStart;  // index just past the colon
+        String value;          // decoded lazily for raw fields
+
+        Field(HeaderName name, int rawStart, int rawEnd, int valueStart) {
+            this.name = name;
+            this.rawStart = rawStart;
+            this.rawEnd = rawEnd;
+            this.valueStart = valueStart;
+        }
 
-    private String normalizeLWS(String fieldValue) {
-        //                 remove leading LWS        remove trailing LWS      replace inner LWS with single space
-        return fieldValue.replaceAll("^[ \t]+", "").replaceAll("[ \t]+$", "").replaceAll("[ \t]+", " ");
+        Field(HeaderName name, String value) {
+            this(name, -1, -1, -1);
+            this.value = value;
+        }
     }
 
+    private static final byte[] COLON_SPACE = ": ".getBytes();
+    private static final byte[] CRLF = "\r\n".getBytes();
+
     /**
-     * Create an HttpHeader object to parse and manage headers.
-     * @param rawHeaders The string containing headers.
+     * The parsed headers, in order.  A header name can appear more than once.
      */
-    public HttpHeaders(String rawHeaders) {
-        this.headers = new LinkedHashMap<>(); // Linked Hash Map remembers the order of keys inserted.
-        if (rawHeaders.equals("")) {
-            return; // empty headers are no fun.
-        }
-        String[] lines = rawHeaders.split("\r\n");
-        String lastKey = null;
-        for (String line : lines) {
-            if (line.startsWith(" ") || line.startsWith("\t")) {
-                add(lastKey, normalizeLWS(line));
+    private final List<Field> fields;
+
+    /**
+     * The bytes the fields were parsed from.  This is never modified.
+     */
+    private final byte[] raw;
+
+    /**
+     * Create an empty set of headers, to be filled in with set() and add().
+     */
+    public HttpHeaders() {
+        this.fields = new ArrayList<>();
+        this.raw = null;
+    }
+
+    /**
+     * Parse header fields from a buffer.  Every line in the region must end with CRLF, and the empty line that ends the
+     * head must not be included.  The buffer is kept and used for forwarding, so it must not be changed afterwards.
+     * @param buf Buffer holding the head.
+     * @param start Index of the first header line.
+     * @param end Index just past the CRLF of the last header line.
+     * @param maxCount The most header fields to accept.
+     * @throws HeadTooLargeException if there are more than maxCount fields.
+     * @throws IOException if a line isn't a valid header field.
+     */
+    public HttpHeaders(byte[] buf, int start, int end, int maxCount) throws IOException {
+        this.fields = new ArrayList<>(Math.min(maxCount, 32));
+        this.raw = buf;
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && buf[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            if (buf[lineStart] == ' ' || buf[lineStart] == '\t') {
+                // A continuation line just extends the previous field.
+                if (fields.isEmpty()) throw new IOException("Header continuation line with no header.");
+                Field last = fields.remove(fields.size() - 1);
+                fields.add(new Field(last.name, last.rawStart, lineEnd + 2, last.valueStart));
             } else {
-                int colonIndex = line.indexOf(":");
-                lastKey = line.substring(0, colonIndex);
-                add(lastKey, normalizeLWS(line.substring(colonIndex + 1)));
+                int colon = HttpMessage.indexOf(buf, ':', lineStart, lineEnd);
+                if (colon == -1 || colon == lineStart) throw new IOException("Malformed header field.");
+                if (fields.size() >= maxCount) {
+                    throw new HeadTooLargeException("More than " + maxCount + " header fields.");
+                }
+                fields.add(new Field(HeaderName.of(buf, lineStart, colon), lineStart, lineEnd + 2, colon + 1));
+            }
+            lineStart = lineEnd + 2; // skip CRLF
+        }
+    }
+
+    /**
+     * Return a field's value, decoding it from the raw bytes the first time.
+     */
+    private String valueOf(Field field) {
+        if (field.value == null) {
+            field.value = fieldValue(raw, field.valueStart, field.rawEnd);
+        }
+        return field.value;
+    }
+
+    /**
+     * Make a field value string from bytes: strip leading and trailing LWS, and squash inner LWS (including the line
+     * breaks of continuation lines) to a single space.
+     */
+    private static String fieldValue(byte[] buf, int start, int end) {
+        char[] chars = new char[end - start];
+        int n = 0;
+        boolean space = false;
+        for (int i = start; i < end; i++) {
+            byte b = buf[i];
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                space = n > 0;
+                continue;
+            }
+            if (space) {
+                chars[n++] = ' ';
+                space = false;
             }
+            chars[n++] = (char) (b & 0xff);
         }
+        return new String(chars, 0, n);
     }
 
     /**
      * Return true if the header is in this object.
-     * @param key Header key.
+     * @param key Header key (any case).
      * @return true if it exists
      */
     public boolean contains(String key) {
-        return this.headers.containsKey(key);
+        return contains(HeaderName.of(key));
     }
 
     /**
-     * Return the value of a header.
-     * @param key Header name.
+     * Return true if the header is in this object.
+     * @param name Header name.
+     * @return true if it exists
+     */
+    public boolean contains(HeaderName name) {
+        for (Field field : fields) {
+            if (field.name == name || field.name.equals(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the value of a header.  If the header appears more than once, the values are joined with commas, as
+     * described in the RFC.
+     * @param key Header name (any case).
      * @return value if it exists, or null
      */
     public String get(String key) {
-        return this.headers.get(key);
+        return get(HeaderName.of(key));
+    }
+
+    /**
+     * Return the value of a header, joining repeated headers with commas.
+     * @param name Header name.
+     * @return value if it exists, or null
+     */
+    public String get(HeaderName name) {
+        String result = null;
+        for (Field field : fields) {
+            if (field.name == name || field.name.equals(name)) {
+                result = result == null ? valueOf(field) : result + "," + valueOf(field);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the distinct header names, in the order they first appear.
+     * @return list of names
+     */
+    public List<HeaderName> names() {
+        List<HeaderName> names = new ArrayList<>(fields.size());
+        for (Field field : fields) {
+            if (!names.contains(field.name)) names.add(field.name);
+        }
+        return names;
+    }
+
+    /**
+     * Visit every field, in order, without joining repeated ones the way get() does.
+     * @param action Called with each field's name and value.
+     */
+    public void forEach(BiConsumer<HeaderName, String> action) {
+        for (Field field : fields) {
+            action.accept(field.name, valueOf(field));
+        }
     }
 
     /**
@@ -62,28 +206,86 @@ public class HttpHeaders {
      * @param key header name to remove
      */
     public void remove(String key) {
-        this.headers.remove(key);
+        remove(HeaderName.of(key));
     }
 
     /**
-     * Set a header to a value (removes all prior values).
+     * Remove every occurrence of a header.
+     * @param name header name to remove
+     * @return the index where the first occurrence was, or -1
+     */
+    public int remove(HeaderName name) {
+        int first = -1;
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            Field field = fields.get(i);
+            if (field.name == name || field.name.equals(name)) {
+                fields.remove(i);
+                first = i;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Set a header to a value (removes all prior values).  The header keeps its place if it was already there.
      * @param key Header name
      * @param value Header value
      */
     public void set(String key, String value) {
-        this.headers.put(key, value);
+        set(HeaderName.of(key), value);
+    }
+
+    /**
+     * Set a header to a value (removes all prior values).
+     * @param name Header name
+     * @param value Header value
+     */
+    public void set(HeaderName name, String value) {
+        int index = remove(name);
+        fields.add(index == -1 ? fields.size() : index, new Field(name, value));
     }
 
     /**
-     * Add another value to a header.  This should only work for values that are comma separated.
+     * Add another occurrence of a header, after any existing ones.
      * @param key Header name
      * @param value Header value
      */
     public void add(String key, String value) {
-        if (contains(key)) {
-            value = get(key) + "," + value;
+        fields.add(new Field(HeaderName.of(key), value));
+    }
+
+    /**
+     * Write the headers (not including the empty line that ends the head) to a stream.  Runs of unmodified fields are
+     * copied straight from the original bytes; only fields set by the proxy are formatted.
+     * @param os Stream to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        int runStart = -1;
+        int runEnd = -1;
+        for (Field field : fields) {
+            if (field.rawStart != -1 && field.rawStart == runEnd) {
+                runEnd = field.rawEnd; // extends the current run of untouched bytes
+                continue;
+            }
+            if (runStart != -1) {
+                os.write(raw, runStart, runEnd - runStart);
+                runStart = -1;
+                runEnd = -1;
+            }
+            if (field.rawStart != -1) {
+                runStart = field.rawStart;
+                runEnd = field.rawEnd;
+            } else {
+                os.write(field.name.toString().getBytes(StandardCharsets.ISO_8859_1));
+                os.write(COLON_SPACE);
+                os.write(field.value.getBytes(StandardCharsets.ISO_8859_1));
+                os.write(CRLF);
+            }
+        }
+        if (runStart != -1) {
+            os.write(raw, runStart, runEnd - runStart);
         }
-        set(key, value);
     }
 
     /**
@@ -91,18 +293,17 @@ public class HttpHeaders {
      * folowing considerations:
      * - HTTP allows headers to be continued across lines.  The parser also allows this, but it will output headers all
      *   on one line.
-     * - The original order of headers MAY NOT be respected.
-     * - Multiple values of the same header MAY be concatenated into a single key: value pair, with commas separating
-     *   the values, as described in the RFC.
+     * - Whitespace around and within values is normalized.
+     * This is for logging and debugging; forwarding uses writeTo(), which keeps the original bytes.
      * @return
      */
     public String assemble() {
         StringBuilder sb = new StringBuilder();
 
-        for (Map.Entry<String,String> entry : this.headers.entrySet()) {
-            sb.append(entry.getKey());
+        for (Field field : fields) {
+            sb.append(field.name);
             sb.append(": ");
-            sb.append(entry.getValue());
+            sb.append(valueOf(field));
             sb.append("\r\n");
         }
 
@@ -0,0 +1,328 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A buffered InputStream for reading HTTP messages off a connection.  It reads from the socket in large blocks into one
+ * reusable buffer, and HttpMessage parses the message head right there in the buffer instead of pulling it out a byte
+ * at a time.  Anything read past the end of the head simply stays in the buffer, so the body (and any following
+ * message on a kept-alive connection) is read through this same stream without losing a byte.  That means there should
+ * be exactly one HttpInputStream per connection, used for every message on it.
+ *
+ * Heads are limited in total size and in number of header fields, so a client can't make us buffer forever.
+ */
+public class HttpInputStream extends InputStream {
+
+    /**
+     * Default limit on the size of a message head (start line and headers), in bytes.
+     */
+    public static final int DEFAULT_MAX_HEAD_SIZE = 65536;
+
+    /**
+     * Default limit on the number of header fields in a message head.
+     */
+    public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final int maxHeadSize;
+    private final int maxHeaderCount;
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private long headStarted;
+
+    /**
+     * Wrap an input stream, with the default limits.
+     * @param in Stream to read from, probably from Socket.getInputStream().
+     */
+    public HttpInputStream(InputStream in) {
+        this(in, DEFAULT_MAX_HEAD_SIZE, DEFAULT_MAX_HEADER_COUNT);
+    }
+
+    /**
+     * Wrap an input stream.
+     * @param in Stream to read from, probably from Socket.getInputStream().
+     * @param maxHeadSize Largest message head we will accept, in bytes.
+     * @param maxHeaderCount Most header fields we will accept in one head.
+     */
+    public HttpInputStream(InputStream in, int maxHeadSize, int maxHeaderCount) {
+        this.in = in;
+        this.maxHeadSize = maxHeadSize;
+        this.maxHeaderCount = maxHeaderCount;
+    }
+
+    /**
+     * Return the most header fields allowed in one head.
+     * @return header count limit
+     */
+    int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    /**
+     * Return the internal buffer, for parsing in place.  Only the bytes from position() up to the index returned by
+     * fillHead() are meaningful, and only until the next read.
+     * @return the buffer
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Return the index in buffer() of the next unread byte.
+     * @return buffer position
+     */
+    int position() {
+        return pos;
+    }
+
+    /**
+     * Mark bytes in the buffer as read.
+     * @param n Number of bytes to consume; must not be more than are buffered.
+     */
+    void consume(int n) {
+        pos += n;
+    }
+
+    /**
+     * Return when the first byte of the last head read by fillHead() was available, from System.nanoTime().  For a
+     * kept-alive connection, that's when the client started sending the request, not when it connected.
+     * @return start time of the last head
+     */
+    long headStarted() {
+        return headStarted;
+    }
+
+    /**
+     * Read until the buffer holds a whole message head, i.e. everything up to and including the empty line.  Empty
+     * lines before the head are skipped, as RFC 7230 asks.
+     * @return The index in buffer() just past the empty line that ends the head.
+     * @throws HeadTooLargeException if the head is bigger than the size limit.
+     * @throws IOException on read errors, or if the stream ends first.
+     */
+    int fillHead() throws IOException {
+        int scanned = pos;
+        headStarted = 0;
+        for (;;) {
+            // Skip any stray CRLFs before the start line.
+            while (limit - pos >= 2 && buf[pos] == '\r' && buf[pos + 1] == '\n') {
+                pos += 2;
+                scanned = Math.max(scanned, pos);
+            }
+            if (headStarted == 0 && limit > pos) {
+                headStarted = System.nanoTime();
+            }
+            int end = findHeadEnd(scanned);
+            if (end != -1) {
+                return end;
+            }
+            if (limit - pos >= maxHeadSize) {
+                throw new HeadTooLargeException("Message head larger than " + maxHeadSize + " bytes.");
+            }
+            int unscanned = limit - pos; // fill() may move the data, so remember where to resume relative to pos
+            if (!fill(maxHeadSize)) {
+                throw new IOException("Unexpected end of stream.");
+            }
+            scanned = pos + unscanned;
+        }
+    }
+
+    /**
+     * Block until there is at least one byte to read, without reading a head.  This is how a kept-alive connection
+     * waits for its next request, so that the wait and the head that follows can be timed separately.
+     * @return false if the stream ended first
+     * @throws IOException on read errors
+     */
+    boolean awaitData() throws IOException {
+        return limit > pos || fill(maxHeadSize);
+    }
+
+    /**
+     * Check whether the stream starts with some bytes, reading only as far as it takes to tell.  Nothing is consumed.
+     * This is how a connection that starts with the HTTP/2 preface is told apart from HTTP/1.1.
+     * @param prefix Bytes to look for, no longer than the head size limit.
+     * @return true if the next bytes are the prefix, false if they differ or the stream ends first
+     * @throws IOException on read errors
+     */
+    boolean startsWith(byte[] prefix) throws IOException {
+        for (;;) {
+            int n = Math.min(limit - pos, prefix.length);
+            for (int i = 0; i < n; i++) {
+                if (buf[pos + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            if (n == prefix.length) {
+                return true;
+            }
+            if (!fill(maxHeadSize)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Check, without blocking, whether a whole message head has already arrived: either it is in our buffer, or enough
+     * of it is waiting in the socket that a read won't block.  This is how a pipelining client's requests are found.
+     * What's waiting in the socket is only seen if the stream under us has an available() that says so, which on a
+     * socket before Java 13 takes SocketStreams.input(socket, true).
+     * @return true if fillHead() would return without waiting for the network
+     * @throws IOException on read errors
+     */
+    boolean hasHead() throws IOException {
+        int scanned = pos;
+        for (;;) {
+            // Stray CRLFs before the start line would be skipped by fillHead() anyway.
+            while (limit - pos >= 2 && buf[pos] == '\r' && buf[pos + 1] == '\n') {
+                pos += 2;
+                scanned = Math.max(scanned, pos);
+            }
+            if (findHeadEnd(scanned) != -1) {
+                return true;
+            }
+            if (limit - pos >= maxHeadSize || in.available() <= 0) {
+                return false;
+            }
+            int unscanned = limit - pos;
+            if (!fill(maxHeadSize)) {
+                return false;
+            }
+            scanned = pos + unscanned;
+        }
+    }
+
+    /**
+     * Look for the CRLF CRLF that ends a head, starting the search at an index we haven't looked at yet.
+     * @return Index just past the empty line, or -1 if it isn't in the buffer.
+     */
+    private int findHeadEnd(int scanned) {
+        for (int i = Math.max(scanned, pos + 3); i < limit; i++) {
+            if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read a line, up to and including CRLF.  This is used for chunk headers and trailers.  If the stream ends before
+     * the line does, this throws an IOException.
+     * @return The line, including its CRLF.
+     * @throws IOException if reading fails, the stream ends, or the line is too long.
+     */
+    byte[] readLine() throws IOException {
+        int scanned = pos;
+        for (;;) {
+            for (int i = Math.max(scanned, pos + 1); i < limit; i++) {
+                if (buf[i] == '\n' && buf[i - 1] == '\r') {
+                    byte[] line = new byte[i + 1 - pos];
+                    System.arraycopy(buf, pos, line, 0, line.length);
+                    pos = i + 1;
+                    return line;
+                }
+            }
+            if (limit - pos >= maxHeadSize) {
+                throw new HeadTooLargeException("Line longer than " + maxHeadSize + " bytes.");
+            }
+            int unscanned = limit - pos;
+            if (!fill(maxHeadSize)) {
+                throw new IOException("Unexpected end of stream.");
+            }
+            scanned = pos + unscanned;
+        }
+    }
+
+    /**
+     * Read more data into the buffer, first moving the unread bytes to the front, and growing the buffer (up to a
+     * limit) if it is full.
+     * @param maxSize How big the buffer may grow.
+     * @return false if the stream has ended
+     */
+    private boolean fill(int maxSize) throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            byte[] bigger = new byte[Math.min(Math.max(maxSize, buf.length), buf.length * 2)];
+            System.arraycopy(buf, 0, bigger, 0, limit);
+            buf = bigger;
+        }
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read == -1) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !fill(buf.length)) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit) {
+            // Nothing buffered.  Large reads go straight to the socket rather than through our buffer.
+            if (len >= buf.length) {
+                return in.read(b, off, len);
+            }
+            if (!fill(buf.length)) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Return the number of bytes sitting in our buffer.
+     * @return buffered byte count
+     */
+    int buffered() {
+        return limit - pos;
+    }
+
+    /**
+     * Write out whatever is sitting in our buffer, and empty it.  This is for handing a connection over to something
+     * which reads the socket directly, like a CONNECT tunnel.
+     * @param os Stream to write the buffered bytes to.
+     * @throws IOException if writing fails.
+     */
+    void drainTo(OutputStream os) throws IOException {
+        if (pos < limit) {
+            os.write(buf, pos, limit - pos);
+            os.flush();
+            pos = limit;
+        }
+    }
+
+    /**
+     * Return how many bytes can be read without blocking.  The stream under us is only asked when our buffer is empty,
+     * so that anything it reads ahead to answer (see SocketStreams) goes straight into the next fill().
+     */
+    @Override
+    public int available() throws IOException {
+        int buffered = limit - pos;
+        return buffered > 0 ? buffered : in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
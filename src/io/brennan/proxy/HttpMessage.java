@@ -1,9 +1,12 @@
 package io.brennan.proxy;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import static io.brennan.proxy.BodyType.Identity;
 
@@ -22,35 +25,40 @@ import static io.brennan.proxy.BodyType.Identity;
  * the following ways:
  * - If Transfer-Encoding: identity is specified, it will be replaced with Transfer-Encoding: chunked, so that
  *   forwarding doesn't require knowledge of the size of message.
+ * - If the body is being compressed, Content-Length is removed and Transfer-Encoding: chunked is set, for the same
+ *   reason.
  *
  * Created by stephen on 3/18/16.
  */
 public abstract class HttpMessage {
 
     /**
-     * This helper function takes an input stream and reads a line, up to CRLF.  It assumes that the caller intends for
-     * there to be a full line of input, so if the connection terminates (e.g. by read() returning -1) prematurely, this
-     * will throw an IOException.
-     * @param stream Stream to read a line from.
-     * @return A byte array of line content.
-     * @throws IOException if read() fails, or if it returns -1 when we expect a character.
-     */
-    static byte[] readUntilNewline(InputStream stream) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int state = 0;
-        while (state != 2) {
-            int character = stream.read();
-            if (character == -1) throw new IOException("Unexpected end of stream.");
-            buffer.write(character);
-            if (state == 0 && character == '\r') {
-                state = 1;
-            } else if (state == 1 && character == '\n') {
-                state = 2;
-            } else {
-                state = 0;
-            }
+     * Helper function: find a byte in part of a buffer.
+     * @return Index of the first occurrence of b in [start, end), or -1.
+     */
+    static int indexOf(byte[] buf, char b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == b) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Helper function: check whether part of a buffer starts with an ASCII string.
+     */
+    static boolean startsWith(byte[] buf, int start, int end, String prefix) {
+        if (end - start < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[start + i] != prefix.charAt(i)) return false;
         }
-        return buffer.toByteArray();
+        return true;
+    }
+
+    /**
+     * Helper function: make a String from part of a buffer, one byte per character.
+     */
+    static String ascii(byte[] buf, int start, int end) {
+        return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
     }
 
     /**
@@ -58,18 +66,45 @@ public abstract class HttpMessage {
      * @param input Stream to send from.
      * @param output Stream to send to.
      * @param nbytes Number of bytes to send.
+     * @throws TruncatedBodyException if the input ends first
      * @throws IOException
      */
-    static void sendNBytes(InputStream input, OutputStream output, int nbytes) throws IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int sent = 0;
-        while (sent < nbytes) {
-            int read = input.read(buffer, 0, Math.min(nbytes - sent, buffer.length));
-            output.write(buffer, 0, read);
-            sent += read;
+    static void sendNBytes(InputStream input, OutputStream output, long nbytes) throws IOException {
+        byte[] buffer = BufferPool.array(BUFFER_SIZE);
+        try {
+            long sent = 0;
+            while (sent < nbytes) {
+                int read = input.read(buffer, 0, (int) Math.min(nbytes - sent, buffer.length));
+                if (read == -1) {
+                    throw new TruncatedBodyException(nbytes - sent);
+                }
+                output.write(buffer, 0, read);
+                sent += read;
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
     }
 
+    /**
+     * Helper function: write a chunk header for a chunk of the given size into a buffer, so that it ends just before
+     * the chunk data.  This way a whole chunk goes out in one write, without allocating anything.
+     * @param buf Buffer holding the chunk data, with CHUNK_HEADER_ROOM bytes free in front of it.
+     * @param end Index of the first byte of the chunk data.
+     * @param size Number of bytes in the chunk.
+     * @return Index where the header starts.
+     */
+    static int chunkHeader(byte[] buf, int end, int size) {
+        int i = end;
+        buf[--i] = '\n';
+        buf[--i] = '\r';
+        do {
+            buf[--i] = HEX[size & 0xf];
+            size >>>= 4;
+        } while (size != 0);
+        return i;
+    }
+
 
     /**
      * All of my body forwarding messages use byte arrays so they can read and write larger blocks of bytes at a time,
@@ -78,19 +113,50 @@ public abstract class HttpMessage {
     static final int BUFFER_SIZE = 4096;
 
     /**
-     * The input stream of the connection.  Probably from Socket.getInputStream().
+     * Room to leave in front of chunk data for chunkHeader(): up to eight hex digits and a CRLF.
+     */
+    static final int CHUNK_HEADER_ROOM = 10;
+
+    /**
+     * Smallest Content-Length body that transferMessage() moves between channels rather than through the streams.
+     * Below this, the extra flush and system calls cost more than copying through the heap.
      */
-    protected InputStream stream;
+    static final long TRANSFER_THRESHOLD = 256 * 1024;
+
     /**
-     * The unparsed header data (not including first line) read from the socket.
+     * Size of the direct buffers transferMessage() moves bodies through.
      */
-    protected String rawHeaders;
+    private static final int TRANSFER_BUFFER_SIZE = 65536;
+
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    /**
+     * The input stream of the connection.  Any bytes after the head stay buffered in here for the body.
+     */
+    protected HttpInputStream stream;
 
     /**
      * A HttpHeaders object manages headers so we don't need to worry about them.
      */
     protected HttpHeaders headers;
 
+    /**
+     * The original bytes of the head, from the start line through the empty line.
+     */
+    private byte[] head;
+
+    /**
+     * Index of the CR that ends the start line in head.
+     */
+    private int firstLineEnd;
+
+    /**
+     * Bytes of the body transferMessage() has written straight to a channel so far.
+     */
+    private volatile long transferred; // read by the timeout check on the timer wheel thread
+
     /**
      * Return the header mapping.
      * @return Header mapping.
@@ -101,20 +167,24 @@ public abstract class HttpMessage {
 
     /**
      * Create a HttpMessage.  This immediately reads the message's start-line and headers.
-     * @param stream The input stream from the socket.
+     * @param stream The input stream from the socket.  This should be the connection's HttpInputStream, so that
+     *               bytes buffered past the end of this message are not lost.  Any other stream gets wrapped in a new
+     *               HttpInputStream with the default limits.
      * @throws IOException If reading fromString the socket fails before we're through.
      */
     protected HttpMessage(InputStream stream) throws IOException {
-        this.stream = stream;
+        this.stream = stream instanceof HttpInputStream ? (HttpInputStream) stream : new HttpInputStream(stream);
         this.readHeaders();
-        this.headers = new HttpHeaders(this.rawHeaders);
     }
 
     /**
      * The start line of a HTTP message differs between requests and responses, and is thus delegated to subclasses for
      * implementation.
+     * @param buf Buffer containing the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index of the CR that ends the line.
      */
-    protected abstract void parseFirstLine() throws IOException;
+    protected abstract void parseFirstLine(byte[] buf, int start, int end) throws IOException;
 
     /**
      * Returns the reassembled first line of the HTTP message.
@@ -123,22 +193,34 @@ public abstract class HttpMessage {
     protected abstract String reassembleFirstLine();
 
     /**
-     * Read the headers from the input stream.  This converts them to a string for further parsing.
+     * Read the head from the input stream, and parse the start line and headers.  The head is copied out of the
+     * stream's buffer once, since the headers keep referring to the original bytes for forwarding.  The head is then
+     * consumed from the stream, leaving anything after it for the body.
      * @throws IOException
      */
     private void readHeaders() throws IOException {
-        this.parseFirstLine();
-        ByteArrayOutputStream bstr = new ByteArrayOutputStream();
+        int end = this.stream.fillHead();
+        int start = this.stream.position();
+        this.head = Arrays.copyOfRange(this.stream.buffer(), start, end);
+        this.stream.consume(end - start);
 
-        // This reads until CRLFCRLF, which is when the headers are done.
-        byte[] line;
-        do {
-            line = readUntilNewline(this.stream);
-            bstr.write(line);
-        } while (line.length != 2);
+        int lineEnd = 0;
+        while (this.head[lineEnd] != '\r' || this.head[lineEnd + 1] != '\n') {
+            lineEnd++;
+        }
+        this.firstLineEnd = lineEnd;
+        this.parseFirstLine(this.head, 0, lineEnd);
+        // Headers run from after the start line up to (not including) the final empty line.
+        this.headers = new HttpHeaders(this.head, lineEnd + 2, this.head.length - 2, this.stream.getMaxHeaderCount());
+    }
 
-        this.rawHeaders = bstr.toString();
-        this.rawHeaders = this.rawHeaders.trim();  // remove CRLF CRLF
+    /**
+     * Return true if the start line has been changed from the way it arrived, so it has to be reassembled for
+     * forwarding.  Otherwise the original bytes are sent.
+     * @return true if reassembleFirstLine() differs from the original
+     */
+    protected boolean firstLineChanged() {
+        return false;
     }
 
     /**
@@ -146,10 +228,10 @@ public abstract class HttpMessage {
      * @return true when body present
      */
     public BodyType bodyType() {
-        if (this.headers.contains("Content-Length")){
+        if (this.headers.contains(HeaderName.CONTENT_LENGTH)){
             return BodyType.ContentLength;
-        } else if (this.headers.contains("Transfer-Encoding")) {
-            String value = this.headers.get("Transfer-Encoding").toLowerCase();
+        } else if (this.headers.contains(HeaderName.TRANSFER_ENCODING)) {
+            String value = this.headers.get(HeaderName.TRANSFER_ENCODING).toLowerCase();
             if (value.equals("identity")) {
                 return Identity;
             } else {
@@ -174,11 +256,17 @@ public abstract class HttpMessage {
     }
 
     /**
-     * Forwards headers into an OutputStream.
+     * Forwards headers into an OutputStream.  Unchanged parts of the head are written from the original bytes.
      */
     public void forwardHeaders(OutputStream os) throws IOException {
-        String headers = this.reassembleHeaders();
-        os.write(headers.getBytes());
+        if (this.firstLineChanged()) {
+            os.write(this.reassembleFirstLine().getBytes(StandardCharsets.ISO_8859_1));
+            os.write(CRLF);
+        } else {
+            os.write(this.head, 0, this.firstLineEnd + 2);
+        }
+        this.headers.writeTo(os);
+        os.write(CRLF);
     }
 
     /**
@@ -188,17 +276,23 @@ public abstract class HttpMessage {
      * @throws IOException
      */
     private void forwardIdentityBody(OutputStream os) throws IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
-
-        for (;;) {
-            int bytes = this.stream.read(buffer);
-            if (bytes == -1) break;
-            String chunkHeader = Integer.toHexString(bytes) + "\r\n";
-            os.write(chunkHeader.getBytes());
-            os.write(buffer, 0, bytes);
-            os.write("\r\n".getBytes());
+        // Each chunk is read into the middle of the buffer, so its header and CRLF can go on either side of it.
+        byte[] buffer = BufferPool.array(BUFFER_SIZE);
+        try {
+            int room = buffer.length - CHUNK_HEADER_ROOM - 2;
+            for (;;) {
+                int bytes = this.stream.read(buffer, CHUNK_HEADER_ROOM, room);
+                if (bytes == -1) break;
+                int start = chunkHeader(buffer, CHUNK_HEADER_ROOM, bytes);
+                int end = CHUNK_HEADER_ROOM + bytes;
+                buffer[end] = '\r';
+                buffer[end + 1] = '\n';
+                os.write(buffer, start, end + 2 - start);
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
-        os.write("0\r\n".getBytes());
+        os.write(LAST_CHUNK);
     }
 
     /**
@@ -209,14 +303,11 @@ public abstract class HttpMessage {
     private void forwardChunkedBody(OutputStream os) throws IOException {
         for(;;) {
             // First, read the header.  That is, read until \r\n
-            byte[] header = readUntilNewline(this.stream);
+            byte[] header = this.stream.readLine();
 
             // Then get the number of bytes in the chunk.  This is written leniently, to allow for the possibility of a
             // chunk extension as mentioned in RFC 2616.
-            String headerstr = new String(header);
-            int lastIndex = headerstr.indexOf(";");
-            lastIndex = lastIndex == -1 ? headerstr.length() - 2 : lastIndex;
-            int chunkSize = Integer.parseInt(headerstr.substring(0, lastIndex), 16);
+            long chunkSize = chunkSize(header);
             os.write(header);
 
             // Stop when header shows 0 byte chunk.
@@ -227,8 +318,40 @@ public abstract class HttpMessage {
             // Send the chunk, plus the CRLF
             sendNBytes(this.stream, os, chunkSize + 2);
         }
-        // TODO allow headers after the chunked body, as mentioned in RFC 2616.
-        os.write("\r\n".getBytes());
+        // Forward any trailer headers, up to and including the blank line that ends the body.  These have to be read
+        // from the stream, or they would be left behind to confuse the next message on a kept-alive connection.
+        byte[] trailer;
+        do {
+            trailer = this.stream.readLine();
+            os.write(trailer);
+        } while (trailer.length != 2);
+    }
+
+    /**
+     * Parse the size from a chunk header line, ignoring any chunk extensions, without making a String of it.
+     * @param header The line, including its CRLF.
+     * @return The chunk size.
+     * @throws IOException if there is no valid size
+     */
+    private static long chunkSize(byte[] header) throws IOException {
+        long size = 0;
+        int digits = 0;
+        for (byte b : header) {
+            int digit = Character.digit(b, 16);
+            if (digit == -1) {
+                if (b == ';' || b == '\r' || b == '\n') break;
+                if (b == ' ' || b == '\t') continue;
+                throw new IOException("Bad chunk size.");
+            }
+            if (++digits > 15 && size >= 0x800000000000000L) {
+                throw new IOException("Chunk too large.");
+            }
+            size = size << 4 | digit;
+        }
+        if (digits == 0) {
+            throw new IOException("Bad chunk size.");
+        }
+        return size;
     }
 
     /**
@@ -237,29 +360,232 @@ public abstract class HttpMessage {
      * @throws IOException
      */
     private void forwardContentLengthBody(OutputStream os) throws IOException {
-        int contentLength = Integer.parseInt(this.headers.get("Content-Length"));
-        sendNBytes(this.stream, os, contentLength);
+        sendNBytes(this.stream, os, contentLength());
+    }
+
+    /**
+     * Return the Content-Length, which may be well over 2GB.
+     * @throws IOException if it isn't a valid length
+     */
+    long contentLength() throws IOException {
+        try {
+            long length = Long.parseLong(this.headers.get(HeaderName.CONTENT_LENGTH).trim());
+            if (length < 0) {
+                throw new NumberFormatException();
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad Content-Length.");
+        }
+    }
+
+    /**
+     * Send the body with its transfer coding taken off, e.g. into a compressor, which does its own framing.  The
+     * output is flushed whenever the input runs dry, so a body that arrives slowly also leaves as it arrives.
+     * @param type Body type from bodyType().
+     * @param contentLength Length of a ContentLength body.
+     * @param os Stream for the decoded body.
+     * @throws IOException
+     */
+    private void forwardDecodedBody(BodyType type, long contentLength, OutputStream os) throws IOException {
+        switch (type) {
+            case ContentLength:
+                sendNBytes(this.stream, os, contentLength);
+                break;
+            case Identity:
+                byte[] buffer = BufferPool.array(BUFFER_SIZE);
+                try {
+                    for (;;) {
+                        if (this.stream.available() <= 0) {
+                            os.flush();
+                        }
+                        int bytes = this.stream.read(buffer);
+                        if (bytes == -1) break;
+                        os.write(buffer, 0, bytes);
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+                break;
+            case Chunked:
+                for (;;) {
+                    if (this.stream.available() <= 0) {
+                        os.flush();
+                    }
+                    long chunkSize = chunkSize(this.stream.readLine());
+                    if (chunkSize == 0) {
+                        break;
+                    }
+                    sendNBytes(this.stream, os, chunkSize);
+                    this.stream.readLine(); // the CRLF after the chunk
+                }
+                // Read past the trailers, but don't send them; they belonged to the uncompressed body.
+                while (this.stream.readLine().length != 2) {
+                    // keep reading
+                }
+                break;
+        }
+    }
+
+    /**
+     * Prepare to forward this message a piece at a time, as the non-blocking engine does.  This makes the same header
+     * changes as forwardMessage(), so the headers should be reassembled after calling it.
+     * @return A BodyFramer for tracking the end of the body.
+     * @throws IOException if the Content-Length isn't valid
+     */
+    BodyFramer newBodyFramer() throws IOException {
+        BodyType type = this.bodyType();
+        long contentLength = 0;
+        if (type == Identity) {
+            this.headers.set(HeaderName.TRANSFER_ENCODING, "chunked");
+        } else if (type == BodyType.ContentLength) {
+            contentLength = contentLength();
+        }
+        return new BodyFramer(type, contentLength);
     }
 
     /**
      * Forwards an entire message into an OutputStream.  This may modify some headers!
      */
     public void forwardMessage(OutputStream os) throws IOException {
-        if (this.bodyType() == Identity) {
-            this.headers.set("Transfer-Encoding", "chunked");
+        forwardMessage(os, null);
+        os.flush();
+    }
+
+    /**
+     * Forwards an entire message into an OutputStream, and also copies the body (exactly as it was forwarded,
+     * including any chunk framing) into a second stream.  The cache uses this to keep a copy of a response as it goes
+     * by.  This does not flush os, so the caller can finish with the copy before the client sees the end of the
+     * message.  This may modify some headers!
+     * @param os Stream to forward into.
+     * @param bodyCopy Stream to get a copy of the body, or null.
+     * @throws IOException
+     */
+    public void forwardMessage(OutputStream os, OutputStream bodyCopy) throws IOException {
+        forwardMessage(os, bodyCopy, null, null);
+    }
+
+    /**
+     * Forwards an entire message, as forwardMessage(os, bodyCopy) does, but compresses the body on the way if an
+     * encoding is given.  A compressed body is always sent chunked, since its length isn't known until the end, so the
+     * Content-Length header goes and any trailers from a chunked body are dropped.  The copy gets the body as it was
+     * sent, compressed.  This may modify some headers!
+     * @param os Stream to forward into.
+     * @param bodyCopy Stream to get a copy of the body, or null.
+     * @param compression Compression stage, or null.
+     * @param encoding Encoding from Compression.prepare(), or null to forward the body as it is.
+     * @throws IOException
+     */
+    void forwardMessage(OutputStream os, OutputStream bodyCopy, Compression compression, String encoding)
+            throws IOException {
+        BodyType type = this.bodyType();
+        long contentLength = 0;
+        if (encoding != null && type != BodyType.None) {
+            if (type == BodyType.ContentLength) {
+                contentLength = contentLength();
+            }
+            this.headers.remove(HeaderName.CONTENT_LENGTH);
+            this.headers.set(HeaderName.TRANSFER_ENCODING, "chunked");
+        } else if (type == Identity) {
+            this.headers.set(HeaderName.TRANSFER_ENCODING, "chunked");
         }
         this.forwardHeaders(os);
-        switch (this.bodyType()) {
+        OutputStream body = bodyCopy == null ? os : new TeeOutputStream(os, bodyCopy);
+        if (encoding != null && type != BodyType.None) {
+            Compression.Encoder compressed = compression.open(encoding, body);
+            try {
+                this.forwardDecodedBody(type, contentLength, compressed);
+                compressed.close();
+            } finally {
+                compressed.discard();
+            }
+            return;
+        }
+        switch (type) {
             case Identity:
-                this.forwardIdentityBody(os);
+                this.forwardIdentityBody(body);
                 break;
             case Chunked:
-                this.forwardChunkedBody(os);
+                this.forwardChunkedBody(body);
                 break;
             case ContentLength:
-                this.forwardContentLengthBody(os);
+                this.forwardContentLengthBody(body);
                 break;
         }
+    }
+
+    /**
+     * Return true if transferMessage() is worth using for this message: it has a Content-Length body of at least
+     * TRANSFER_THRESHOLD bytes.
+     */
+    boolean isLargeBody() throws IOException {
+        return this.bodyType() == BodyType.ContentLength && contentLength() >= TRANSFER_THRESHOLD;
+    }
+
+    /**
+     * Forward a large Content-Length message between two channels.  The head, and any of the body that was already
+     * read along with it, go through os as usual.  Then os is flushed and the rest of the body is read from one
+     * channel and written to the other through a direct buffer, so it never comes onto the Java heap and doesn't go
+     * through the streams' buffers and counters at all.  Java can't splice one socket straight into another, so this
+     * is as close to zero copy as we can get.
+     *
+     * Progress is counted as it goes, in Metrics.bytesIn and bytesOut and in Metrics.transferBytesPending, which shows
+     * how much of all the bodies in flight is still to come.
+     * @param os Stream to forward the head into.  It must end up at the same socket as to.
+     * @param from The channel this message is being read from, in blocking mode.
+     * @param to The channel to write to, in blocking mode.
+     * @return Bytes written straight to the channel rather than through os.  If this throws, transferred() says how
+     *         many got through.
+     * @throws TruncatedBodyException if the sender closes the connection before the end of the body
+     * @throws IOException
+     */
+    long transferMessage(OutputStream os, SocketChannel from, SocketChannel to) throws IOException {
+        long remaining = contentLength();
+        this.forwardHeaders(os);
+        // The part of the body that was read with the head is still in our stream's buffer.
+        if (this.stream.buffered() > 0) {
+            long early = Math.min(this.stream.buffered(), remaining);
+            sendNBytes(this.stream, os, early);
+            remaining -= early;
+        }
         os.flush();
+
+        long total = remaining;
+        Metrics.transfers.increment();
+        Metrics.transferBytesPending.add(total);
+        ByteBuffer buffer = BufferPool.direct(TRANSFER_BUFFER_SIZE);
+        try {
+            while (remaining > 0) {
+                buffer.clear();
+                if (buffer.capacity() > remaining) {
+                    buffer.limit((int) remaining);
+                }
+                int read = from.read(buffer);
+                if (read == -1) {
+                    throw new TruncatedBodyException(remaining);
+                }
+                Metrics.bytesIn.add(read);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    int written = to.write(buffer);
+                    Metrics.bytesOut.add(written);
+                    Metrics.transferBytesPending.add(-written);
+                    transferred += written;
+                }
+                remaining -= read;
+            }
+        } finally {
+            Metrics.transferBytesPending.add(transferred - total); // whatever didn't make it
+            BufferPool.release(buffer);
+        }
+        return transferred;
+    }
+
+    /**
+     * Return how many bytes transferMessage() wrote straight to its channel, e.g. for logging one that failed.
+     * @return byte count
+     */
+    long transferred() {
+        return transferred;
     }
 }
@@ -15,6 +15,7 @@ public class HttpRequest extends HttpMessage {
     private String url;
     private String version;
     private String hostname;
+    private boolean secure;
 
     /**
      * Create a new HTTP request object, immediately reading and parsing all headers.
@@ -31,23 +32,36 @@ public class HttpRequest extends HttpMessage {
      *
      * One important operation this method does is checking if the URL argument contains the hostname.  If so, it parses
      * that out so that only the path portion of the URL is returned by reassembleFirstLine().  This is necessary for
-     * proxying, and it's also just good HTTP/1.1 form.
-     * @throws IOException
+     * proxying, and it's also just good HTTP/1.1 form.  An https:// URL is taken apart the same way, and marks the
+     * request as one for an HTTPS origin.
+     *
+     * The line is parsed in place, by looking for the two spaces, rather than splitting it into a String first.
+     * @throws IOException if the line doesn't have three parts.
      */
     @Override
-    protected void parseFirstLine() throws IOException {
-        byte[] linebytes = readUntilNewline(this.stream);
-        String line = new String(linebytes);
-        line = line.substring(0, line.length() - 2); // remove CRLF
-        String[] elements = line.split(" ", 3);
-        this.method = elements[0];
-        this.url = elements[1];
-        if (this.url.startsWith("http://")) {
-            int urlStart = this.url.indexOf("/", 7);
-            this.hostname = this.url.substring(7, urlStart);
-            this.url = this.url.substring(urlStart);
+    protected void parseFirstLine(byte[] buf, int start, int end) throws IOException {
+        int firstSpace = indexOf(buf, ' ', start, end);
+        int secondSpace = firstSpace == -1 ? -1 : indexOf(buf, ' ', firstSpace + 1, end);
+        if (secondSpace == -1) {
+            throw new IOException("Malformed request line.");
+        }
+        this.method = ascii(buf, start, firstSpace);
+        int urlStart = firstSpace + 1;
+        this.secure = startsWith(buf, urlStart, secondSpace, "https://");
+        if (secure || startsWith(buf, urlStart, secondSpace, "http://")) {
+            int hostStart = urlStart + (secure ? 8 : 7);
+            int pathStart = indexOf(buf, '/', hostStart, secondSpace);
+            if (pathStart == -1) {
+                this.hostname = ascii(buf, hostStart, secondSpace);
+                this.url = "/";
+            } else {
+                this.hostname = ascii(buf, hostStart, pathStart);
+                this.url = ascii(buf, pathStart, secondSpace);
+            }
+        } else {
+            this.url = ascii(buf, urlStart, secondSpace);
         }
-        this.version = elements[2];
+        this.version = ascii(buf, secondSpace + 1, end);
     }
 
     /**
@@ -60,6 +74,32 @@ public class HttpRequest extends HttpMessage {
         return this.getMethod() + " " + this.getUrl() + " " + this.getVersion();
     }
 
+    /**
+     * The request line only needs reassembling when we took a hostname out of the URL.
+     * @return true if the URL was absolute
+     */
+    @Override
+    protected boolean firstLineChanged() {
+        return this.hostname != null;
+    }
+
+    /**
+     * Return true if the request line had a full URL with a host name in it, as requests meant for an origin do.  A
+     * request with just a path was sent to the proxy itself.
+     * @return true if the URL was absolute
+     */
+    boolean hasHostInUrl() {
+        return this.hostname != null;
+    }
+
+    /**
+     * Return true if the request was for an https:// URL, so that its origin is to be spoken to over TLS.
+     * @return true if the URL was https
+     */
+    public boolean isSecure() {
+        return secure;
+    }
+
     /**
      * Return HTTP method used.
      * @return HTTP method.
@@ -88,7 +128,7 @@ public class HttpRequest extends HttpMessage {
         if (this.hostname != null) {
             return this.hostname;
         } else {
-            return this.headers.get("Host");
+            return this.headers.get(HeaderName.HOST);
         }
     }
 
@@ -110,15 +150,16 @@ public class HttpRequest extends HttpMessage {
     }
 
     /**
-     * Return the destination port.  This is normally 80, but a different host may have been specified in the hostname.
-     * So, this function checks for a port number in the hostname, and if one is not found, returns port 80.
+     * Return the destination port.  This is normally 80 (443 for https), but a different host may have been specified
+     * in the hostname.  So, this function checks for a port number in the hostname, and if one is not found, returns
+     * the scheme's default port.
      * @return port number for the destination host
      */
     public int getDestinationPort() {
         String hostString = getHostString();
         int colonLocation = hostString.indexOf(":");
         if (colonLocation == -1) {
-            return 80;
+            return secure ? 443 : 80;
         } else {
             return Integer.parseInt(hostString.substring(colonLocation+1));
         }
@@ -13,6 +13,7 @@ public class HttpResponse extends HttpMessage {
     private String version;
     private String status;
     private String description;
+    private boolean headRequest;
 
     /**
      * Create a new HttpResponse, immediately reading and parsing everything up to the end of the headers.
@@ -24,18 +25,64 @@ public class HttpResponse extends HttpMessage {
     }
 
     /**
-     * Read and parse the status line of the response.  This is called by constructor.
-     * @throws IOException on error reading.
+     * Create a new HttpResponse to a request, which we need to know about to tell whether the response has a body: a
+     * response to HEAD never does, whatever its headers say.
+     * @param is Input stream from the socket.
+     * @param request The request this answers.
+     * @throws IOException On error reading from socket.
+     */
+    public HttpResponse(InputStream is, HttpRequest request) throws IOException {
+        super(is);
+        this.headRequest = request.getMethod().equals("HEAD");
+    }
+
+    /**
+     * Return the body type, following RFC 7230 section 3.3.3 rather than just the headers: responses to HEAD, and 1xx,
+     * 204 and 304 responses, never have a body, and a response with neither Content-Length nor Transfer-Encoding has
+     * one that runs until the origin closes the connection, which we forward the same way as Transfer-Encoding:
+     * identity.
+     * @return the body type
+     */
+    @Override
+    public BodyType bodyType() {
+        if (headRequest || status.startsWith("1") || status.equals("204") || status.equals("304")) {
+            return BodyType.None;
+        }
+        BodyType type = super.bodyType();
+        return type == BodyType.None ? BodyType.Identity : type;
+    }
+
+    /**
+     * Return true if this is an interim (1xx) response, which isn't the answer to the request but only comes before
+     * it: the final response follows on the same connection.  Whoever reads one has to pass it on and read the next
+     * head, rather than treat it as a response with no body.  101 Switching Protocols counts as final, since nothing
+     * more of HTTP follows it.
+     * @return true for 1xx other than 101
+     */
+    public boolean isInterim() {
+        return status.startsWith("1") && !status.equals("101");
+    }
+
+    /**
+     * Parse the status line of the response, in place in the read buffer.  This is called by constructor.
+     * @throws IOException if the line is malformed.
      */
     @Override
-    protected void parseFirstLine() throws IOException {
-        byte[] linebytes = readUntilNewline(this.stream);
-        String line = new String(linebytes);
-        line = line.substring(0, line.length() - 2); // remove CRLF
-        String[] elements = line.split(" ", 3);
-        this.version = elements[0];
-        this.status = elements[1];
-        this.description = elements[2];
+    protected void parseFirstLine(byte[] buf, int start, int end) throws IOException {
+        int firstSpace = indexOf(buf, ' ', start, end);
+        if (firstSpace == -1) {
+            throw new IOException("Malformed status line.");
+        }
+        int secondSpace = indexOf(buf, ' ', firstSpace + 1, end);
+        this.version = ascii(buf, start, firstSpace);
+        if (secondSpace == -1) {
+            // The reason phrase is allowed to be empty, and some servers leave off the space before it, too.
+            this.status = ascii(buf, firstSpace + 1, end);
+            this.description = "";
+        } else {
+            this.status = ascii(buf, firstSpace + 1, secondSpace);
+            this.description = ascii(buf, secondSpace + 1, end);
+        }
     }
 
     /**
@@ -47,6 +94,24 @@ public class HttpResponse extends HttpMessage {
         return version + " " + status + " " + description;
     }
 
+    /**
+     * Decide whether the origin will keep its connection open after this response.  HTTP/1.1 connections are
+     * persistent unless the server says "Connection: close", while HTTP/1.0 connections must opt in with keep-alive.
+     * A body delimited by closing the connection obviously rules out reuse, and so does a 1xx response: an interim one
+     * still has the final response behind it, and after 101 the connection isn't speaking HTTP any more.
+     * @return true if the connection may be used for another request
+     */
+    public boolean keepsConnectionAlive() {
+        if (this.bodyType() == BodyType.Identity || status.startsWith("1")) {
+            return false;
+        }
+        String connection = this.headers.get(HeaderName.CONNECTION);
+        if (this.version.equals("HTTP/1.0")) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
     /**
      * Return HTTP version as a string: HTTP/x.x
      * @return HTTP version
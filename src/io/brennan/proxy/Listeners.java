@@ -0,0 +1,141 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The proxy's listening sockets, and the threads that accept connections on them.  By default there is one socket, on
+ * every interface at the proxy's port, with one thread accepting on it.  In a storm of new connections on a box with
+ * many cores, that thread (and the one accept queue behind it) is the bottleneck, so:
+ * - --listen gives the addresses to listen on instead, each with a socket of its own.
+ * - --listeners=N opens N sockets on each address, all bound to the same port with SO_REUSEPORT, and the kernel spreads
+ *   new connections across them (by a hash of the connection's addresses and ports, on Linux), each with its own
+ *   accept queue of --accept-backlog.
+ * Every socket gets an accept thread of its own, and the engine gives each a shard of its own to hand connections to,
+ * so that between accept() and the thread or event loop that serves a connection, acceptors share nothing but
+ * Admission's count of connections.
+ *
+ * SO_REUSEPORT is a Java 9 option, and the project still compiles for Java 8, so it is looked up reflectively.
+ */
+final class Listeners {
+
+    /**
+     * Where an acceptor hands its connections.
+     */
+    interface Shard {
+        /**
+         * Start serving a connection that Admission has found room for.
+         * @param client The accepted connection.
+         * @param slot Its place from Admission.
+         * @throws IOException if the connection can't be taken on; this stops the acceptor.
+         */
+        void accepted(SocketChannel client, Admission.Slot slot) throws IOException;
+    }
+
+    private Listeners() {}
+
+    /**
+     * Open and bind the listening sockets: --listeners of them on each of the --listen addresses.
+     * @param config Proxy configuration.
+     * @return the bound sockets, in blocking mode
+     * @throws IOException if a socket can't be opened or bound, or more than one per address was asked for and
+     *         SO_REUSEPORT isn't available.
+     */
+    static List<ServerSocketChannel> open(ProxyConfig config) throws IOException {
+        SocketOption<Boolean> reusePort = config.listeners > 1 ? reusePort() : null;
+        List<ServerSocketChannel> channels = new ArrayList<>();
+        try {
+            for (InetSocketAddress address : config.listenAddresses()) {
+                for (int i = 0; i < config.listeners; i++) {
+                    ServerSocketChannel channel = ServerSocketChannel.open();
+                    channels.add(channel);
+                    if (reusePort != null) {
+                        if (!channel.supportedOptions().contains(reusePort)) {
+                            throw new IOException("SO_REUSEPORT isn't supported here, so --listeners must be 1");
+                        }
+                        channel.setOption(reusePort, true);
+                    }
+                    channel.bind(address, config.acceptBacklog);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ServerSocketChannel channel : channels) {
+                closeQuietly(channel);
+            }
+            throw e;
+        }
+        return channels;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePort() throws IOException {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("SO_REUSEPORT needs Java 9 or newer (running " + System.getProperty("java.version") +
+                    "), so --listeners must be 1");
+        }
+    }
+
+    /**
+     * Accept connections on every socket, each on a thread of its own, until they have all failed.  Each accepted
+     * connection goes to Admission, and then either to the socket's shard or back out with a 503.
+     * @param channels The listening sockets.
+     * @param admission Limit on client connections.
+     * @param mayWait Whether connections may wait for a place (see Admission.admit()).
+     * @param shards The shard for each socket.
+     */
+    static void accept(List<ServerSocketChannel> channels, Admission admission, boolean mayWait, Shard[] shards) {
+        List<Thread> acceptors = new ArrayList<>();
+        for (int i = 0; i < channels.size(); i++) {
+            ServerSocketChannel channel = channels.get(i);
+            Shard shard = shards[i];
+            Thread acceptor = new Thread(() -> acceptLoop(channel, admission, mayWait, shard), "acceptor-" + i);
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Loop accepting connections on one socket, shedding them right here without costing a thread if we're full.
+     */
+    private static void acceptLoop(ServerSocketChannel channel, Admission admission, boolean mayWait, Shard shard) {
+        try {
+            for (;;) {
+                SocketChannel client = channel.accept();
+                Admission.Slot slot = admission.admit(mayWait);
+                if (slot == null) {
+                    admission.shed(client);
+                    continue;
+                }
+                shard.accepted(client, slot);
+            }
+        } catch (IOException e) {
+            System.err.println("failed to accept client connection:");
+            System.err.println(e.getMessage());
+        } finally {
+            // At the end of the day, always make sure the socket gets closed.
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(ServerSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+}
@@ -1,8 +1,11 @@
 package io.brennan.proxy;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.*;
 
 /**
@@ -24,40 +27,152 @@ public class Main {
         ch.setLevel(Level.INFO); // the level of messages we will see on the console
         ProxyThread.logger.addHandler(ch); // put logging on console
 
-        // Verify args.
-        if (args.length != 1) {
-            System.err.println("usage: io.brennan.proxy.Main port");
+        // Parse args.
+        ProxyConfig config;
+        try {
+            config = ProxyConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(ProxyConfig.usage());
+            return;
+        }
+
+        try {
+            AccessLog.start(config);
+        } catch (IOException e) {
+            System.err.println("failed to open access log:");
+            System.err.println(e.getMessage());
             return;
         }
 
-        int port = Integer.parseInt(args[0]);
-        ServerSocket serverSocket;
+        DnsCache dns = new DnsCache(config);
+        Metrics.register(dns);
+        Connector connector = new Connector(config, dns);
+        Metrics.register(connector);
+        Metrics.register(BufferPool.get());
+        Metrics.registerMBean();
 
-        // Create "server" socket for accepting connections.
+        // Admission control decides which clients we have room for, whichever engine serves them.
+        Admission admission;
         try {
-            serverSocket = new ServerSocket(port);
+            admission = new Admission(config);
         } catch (IOException e) {
-            System.err.println("failed to open server socket:");
+            System.err.println("failed to start admission control:");
             System.err.println(e.getMessage());
             return;
         }
+        Metrics.register(admission);
+
+        // One timer wheel, ticking every 100ms, times out every connection and tunnel.
+        TimerWheel timers = new TimerWheel(100, 512, "timer-wheel");
+        Metrics.register(timers);
 
-        // Now loop accepting connections and spawning threads to handle them.
+        if (config.engine.equals("nio")) {
+            if (!config.routes.isEmpty()) {
+                System.err.println("--route needs the blocking engine");
+                return;
+            }
+            try {
+                new NioEngine(config, dns, connector, admission, timers).run();
+            } catch (IOException e) {
+                System.err.println("nio engine failed:");
+                System.err.println(e.getMessage());
+            }
+            return;
+        }
+
+        TlsConnector tls;
         try {
-            for (;;) {
-                Socket client = serverSocket.accept();
-                ProxyThread thread = new ProxyThread(client);
-                thread.start();
+            tls = new TlsConnector(config);
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("failed to set up TLS to origins:");
+            System.err.println(e.getMessage());
+            return;
+        }
+        Metrics.register(tls);
+        UpstreamPool pool = new UpstreamPool(config, connector, tls);
+        Metrics.register(pool);
+
+        // As a reverse proxy, routes pick the backends for requests, and health checks keep dead ones out of it.
+        Routes routes = null;
+        if (!config.routes.isEmpty()) {
+            routes = new Routes(config);
+            Metrics.register(routes);
+            if (config.healthInterval > 0) {
+                HealthChecker health = new HealthChecker(config, routes, pool, timers);
+                Metrics.register(health);
+                health.start();
+            }
+        }
+        TunnelRelay relay = null;
+        ResponseCache cache = null;
+        RequestCollapser collapser = null;
+
+        // Set up the response cache, with its disk tier and collapsed forwarding if asked for.
+        if (config.cacheSize > 0 || config.diskCacheSize > 0) {
+            DiskCache disk = null;
+            if (config.diskCacheSize > 0) {
+                try {
+                    disk = new DiskCache(new File(config.diskCacheDir), config.diskCacheSize, config.diskCacheSegment);
+                } catch (IOException e) {
+                    System.err.println("failed to open disk cache:");
+                    System.err.println(e.getMessage());
+                    return;
+                }
+            }
+            cache = new ResponseCache(config.cacheSize, config.cacheMaxObject, disk);
+            Metrics.register(cache);
+            if (config.collapseTimeout > 0) {
+                collapser = new RequestCollapser(config.collapseTimeout, config.cacheMaxObject);
+                Metrics.register(collapser);
+            }
+        }
+
+        Compression compression = null;
+        if (config.compressLevel > 0) {
+            compression = new Compression(config.compressLevel, config.compressMinSize);
+            Metrics.register(compression);
+        }
+
+        // Create "server" sockets for accepting connections.  We accept through channels so that client sockets have
+        // channels too, which the tunnel relay needs.
+        List<ServerSocketChannel> listeners;
+        try {
+            listeners = Listeners.open(config);
+            if (config.tunnel.equals("relay")) {
+                relay = new TunnelRelay(config.tunnelThreads, timers, config.tunnelIdleTimeout);
             }
         } catch (IOException e) {
-            System.err.println("failed to accept client connection:");
+            System.err.println("failed to open server socket:");
             System.err.println(e.getMessage());
-        } finally {
+            return;
+        }
+
+        // Each listening socket's connections run on an executor of its own.
+        Listeners.Shard[] shards = new Listeners.Shard[listeners.size()];
+        for (int i = 0; i < shards.length; i++) {
             try {
-                // At the end of the day, always make sure the socket gets closed.
-                serverSocket.close();
-            } catch (Exception e) {}
+                shards[i] = shard(ConnectionExecutors.create(config.threads), config, pool, routes, relay, cache,
+                        collapser, compression, connector, timers);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
         }
 
+        // Now loop accepting connections and handing them to the executors, unless we're full, in which case they are
+        // shed right there without costing a thread.
+        Listeners.accept(listeners, admission, true, shards);
+    }
+
+    /**
+     * Make the shard that one listening socket hands its connections to, in the blocking engine: a ProxyThread for
+     * each, run on the shard's executor, which also runs the connection's tunnels and HTTP/2 streams.
+     */
+    private static Listeners.Shard shard(ExecutorService executor, ProxyConfig config, UpstreamPool pool, Routes routes,
+                                         TunnelRelay relay, ResponseCache cache, RequestCollapser collapser,
+                                         Compression compression, Connector connector, TimerWheel timers) {
+        return (client, slot) -> executor.execute(new ProxyThread(client.socket(), slot, config, pool, routes,
+                executor, relay, cache, collapser, compression, connector, timers));
     }
 }
@@ -0,0 +1,314 @@
+package io.brennan.proxy;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The proxy's counters, gauges and per-phase latency histograms.  Like the logger, these are static, so any part of
+ * either engine can record into them without having them passed around.  Everything is a LongAdder or a
+ * LatencyHistogram, so recording never takes a lock.
+ *
+ * The phases of a request are:
+ *   head parse:       from the first byte of the client's request head arriving to having it parsed
+ *   upstream connect: looking up and connecting to an origin (only when a new connection is opened)
+ *   request forward:  sending the request head and body to the origin
+ *   first byte:       from the request being sent to the first byte of the response arriving
+ *   response body:    sending the response on to the client, from its head to the end of its body
+ *   request:          the whole thing, from head parse to the last byte sent to the client (cache hits included)
+ *
+ * The metrics can be read two ways: the proxy answers a plain GET for config.metricsPath (sent straight to the proxy,
+ * not through it) with the Prometheus text format, and they are all attributes of the io.brennan.proxy:type=Metrics
+ * MBean.
+ */
+final class Metrics {
+
+    private Metrics() {}
+
+    static final LatencyHistogram headParse = new LatencyHistogram();
+    static final LatencyHistogram upstreamConnect = new LatencyHistogram();
+    static final LatencyHistogram requestForward = new LatencyHistogram();
+    static final LatencyHistogram firstByte = new LatencyHistogram();
+    static final LatencyHistogram responseBody = new LatencyHistogram();
+    static final LatencyHistogram request = new LatencyHistogram();
+
+    static final LongAdder activeConnections = new LongAdder();
+    static final LongAdder connections = new LongAdder();
+    static final LongAdder activeTunnels = new LongAdder();
+    static final LongAdder tunnels = new LongAdder();
+    static final LongAdder requests = new LongAdder();
+    static final LongAdder errors = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder transfers = new LongAdder();
+    static final LongAdder transferBytesPending = new LongAdder();
+    static final LongAdder idleTimeouts = new LongAdder();
+    static final LongAdder headTimeouts = new LongAdder();
+    static final LongAdder bodyTimeouts = new LongAdder();
+    static final LongAdder tunnelTimeouts = new LongAdder();
+    static final LongAdder h2cConnections = new LongAdder();
+    static final LongAdder h2cStreams = new LongAdder();
+
+    private static final List<MetricsSource> sources = new CopyOnWriteArrayList<>();
+
+    /**
+     * Somewhere to report metrics to.  The names are Prometheus style, with units in the name.
+     */
+    interface Sink {
+        void counter(String name, String help, long value);
+
+        void gauge(String name, String help, double value);
+
+        /**
+         * Report a latency histogram as a summary in seconds.
+         */
+        void summary(String name, String help, LatencyHistogram histogram);
+    }
+
+    /**
+     * Add a source of extra metrics, e.g. a cache.
+     */
+    static void register(MetricsSource source) {
+        sources.add(source);
+    }
+
+    /**
+     * Note that a connection from a client has opened.  Must be paired with connectionClosed().
+     */
+    static void connectionOpened() {
+        activeConnections.increment();
+        connections.increment();
+    }
+
+    static void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Note that a CONNECT tunnel has been established.  Must be paired with tunnelClosed().
+     */
+    static void tunnelOpened() {
+        activeTunnels.increment();
+        tunnels.increment();
+    }
+
+    static void tunnelClosed() {
+        activeTunnels.decrement();
+    }
+
+    /**
+     * Report every metric, ours first and then the registered sources'.
+     */
+    static void collect(Sink sink) {
+        sink.summary("proxy_head_parse_seconds", "Time to receive and parse a request head.", headParse);
+        sink.summary("proxy_upstream_connect_seconds", "Time to resolve and connect to an origin.", upstreamConnect);
+        sink.summary("proxy_request_forward_seconds", "Time to send a request to the origin.", requestForward);
+        sink.summary("proxy_first_byte_seconds", "Time from sending a request to the first byte of the response.",
+                firstByte);
+        sink.summary("proxy_response_body_seconds", "Time to send a response on to the client.", responseBody);
+        sink.summary("proxy_request_seconds", "Time to handle a whole request.", request);
+        sink.gauge("proxy_connections_active", "Client connections open now.", activeConnections.sum());
+        sink.counter("proxy_connections_total", "Client connections accepted.", connections.sum());
+        sink.gauge("proxy_tunnels_active", "CONNECT tunnels open now.", activeTunnels.sum());
+        sink.counter("proxy_tunnels_total", "CONNECT tunnels established.", tunnels.sum());
+        sink.counter("proxy_requests_total", "Requests answered, from an origin or the cache.", requests.sum());
+        sink.counter("proxy_errors_total", "Requests that failed with an error response or a dropped connection.",
+                errors.sum());
+        sink.counter("proxy_bytes_in_total", "Bytes read from clients and origins.", bytesIn.sum());
+        sink.counter("proxy_bytes_out_total", "Bytes written to clients and origins.", bytesOut.sum());
+        sink.counter("proxy_transfers_total", "Large bodies moved from channel to channel.", transfers.sum());
+        sink.gauge("proxy_transfer_bytes_pending", "Bytes of large bodies in flight still to be sent.",
+                transferBytesPending.sum());
+        sink.counter("proxy_idle_timeouts_total", "Kept-alive client connections closed for sitting idle.",
+                idleTimeouts.sum());
+        sink.counter("proxy_head_timeouts_total", "Client connections closed for being too slow to send a head.",
+                headTimeouts.sum());
+        sink.counter("proxy_body_timeouts_total", "Requests cut off because no bytes moved for too long.",
+                bodyTimeouts.sum());
+        sink.counter("proxy_tunnel_timeouts_total", "CONNECT tunnels closed for sitting idle.", tunnelTimeouts.sum());
+        sink.counter("proxy_h2c_connections_total", "Client connections that spoke HTTP/2.", h2cConnections.sum());
+        sink.counter("proxy_h2c_streams_total", "Requests from clients over HTTP/2.", h2cStreams.sum());
+        for (MetricsSource source : sources) {
+            source.collect(sink);
+        }
+    }
+
+    /**
+     * Check whether a request is asking for the metrics.  It must be a GET sent to the proxy itself, i.e. with just a
+     * path in the request line rather than a full URL.
+     * @param request The client's request.
+     * @param path The configured metrics path, or "" if the endpoint is off.
+     * @return true if we should answer with scrapeResponse()
+     */
+    static boolean isScrape(HttpRequest request, String path) {
+        return !path.isEmpty() && request.getMethod().equals("GET") && !request.hasHostInUrl() &&
+                request.getUrl().equals(path);
+    }
+
+    /**
+     * Return a whole HTTP response carrying the metrics in the Prometheus text format.
+     * @param keepAlive Whether the client's connection stays open afterwards.
+     * @return the response bytes
+     */
+    static byte[] scrapeResponse(boolean keepAlive) {
+        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+                "Cache-Control: no-store\r\nContent-Length: " + body.length + "\r\n" +
+                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] response = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+        System.arraycopy(body, 0, response, headBytes.length, body.length);
+        return response;
+    }
+
+    /**
+     * Return all the metrics in the Prometheus text exposition format.
+     */
+    static String scrape() {
+        final StringBuilder out = new StringBuilder(4096);
+        collect(new Sink() {
+            @Override
+            public void counter(String name, String help, long value) {
+                describe(name, help, "counter");
+                out.append(name).append(' ').append(value).append('\n');
+            }
+
+            @Override
+            public void gauge(String name, String help, double value) {
+                describe(name, help, "gauge");
+                out.append(name).append(' ').append(value).append('\n');
+            }
+
+            @Override
+            public void summary(String name, String help, LatencyHistogram histogram) {
+                describe(name, help, "summary");
+                for (String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+                    out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                            .append(seconds(histogram.percentile(Double.parseDouble(quantile) * 100))).append('\n');
+                }
+                out.append(name).append("_sum ").append(seconds(histogram.sum())).append('\n');
+                out.append(name).append("_count ").append(histogram.count()).append('\n');
+            }
+
+            private void describe(String name, String help, String type) {
+                out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            }
+        });
+        return out.toString();
+    }
+
+    /**
+     * Register the metrics as an MBean, io.brennan.proxy:type=Metrics, on the platform MBean server.
+     */
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(),
+                    new ObjectName("io.brennan.proxy:type=Metrics"));
+        } catch (JMException e) {
+            ProxyThread.logger.warning("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Return every metric as a flat map of name to value, the way JMX sees them.  Each summary becomes _p50, _p90,
+     * _p99, _p999, _sum and _count attributes.
+     */
+    private static Map<String, Object> snapshot() {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        collect(new Sink() {
+            @Override
+            public void counter(String name, String help, long value) {
+                values.put(name, value);
+            }
+
+            @Override
+            public void gauge(String name, String help, double value) {
+                values.put(name, value);
+            }
+
+            @Override
+            public void summary(String name, String help, LatencyHistogram histogram) {
+                values.put(name + "_p50", seconds(histogram.percentile(50)));
+                values.put(name + "_p90", seconds(histogram.percentile(90)));
+                values.put(name + "_p99", seconds(histogram.percentile(99)));
+                values.put(name + "_p999", seconds(histogram.percentile(99.9)));
+                values.put(name + "_sum", seconds(histogram.sum()));
+                values.put(name + "_count", histogram.count());
+            }
+        });
+        return values;
+    }
+
+    /**
+     * A read-only DynamicMBean over snapshot(), so the attributes follow whatever sources are registered.
+     */
+    private static class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Object value = snapshot().get(name);
+            if (value == null) throw new AttributeNotFoundException(name);
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (values.containsKey(name)) {
+                    list.add(new Attribute(name, values.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(action);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "HTTP proxy metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0],
+                    new MBeanNotificationInfo[0]);
+        }
+    }
+}
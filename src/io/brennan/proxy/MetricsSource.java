@@ -0,0 +1,14 @@
+package io.brennan.proxy;
+
+/**
+ * Something with statistics to report alongside the proxy's own metrics, such as a cache.  Sources are registered with
+ * Metrics and asked for their current values whenever the metrics are read.
+ */
+interface MetricsSource {
+
+    /**
+     * Report current values.
+     * @param sink Where to report them.
+     */
+    void collect(Metrics.Sink sink);
+}
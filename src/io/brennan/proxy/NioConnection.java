@@ -0,0 +1,1060 @@
+package io.brennan.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Serves one client connection in the non-blocking engine.  This does the same job as ProxyThread, but instead of
+ * blocking on streams it is driven by its EventLoop whenever the client or server channel is ready, and keeps track of
+ * where it is in the exchange between calls.  Request and response heads are collected until the blank line that ends
+ * them, then parsed by HttpRequest and HttpResponse as usual.  Bodies are passed through as they arrive, with a
+ * BodyFramer deciding where each one ends.
+ *
+ * All the buffers are kept in "write mode" (ready to be read into) between events, and are flipped only briefly to
+ * take data out of them.
+ */
+class NioConnection implements EventLoop.Handler {
+
+    private static final int BUFFER_SIZE = 16384;
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+    private static final byte[] ESTABLISHED = "HTTP/1.1 200 Connection established\r\n\r\n".getBytes();
+    private static final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Where the connection is in its life.
+     * RequestHead: waiting for the next request head from the client.
+     * Exchange: forwarding a request to the server and its response back.
+     * Tunnel: blindly copying bytes both ways for a CONNECT request.
+     * Closing: finishing writing to the client, then closing.
+     */
+    private enum State {
+        RequestHead, Exchange, Tunnel, Closing
+    }
+
+    private final long id = ids.incrementAndGet();
+    private final ProxyConfig config;
+    private final EventLoop loop;
+    private final DnsCache dns;
+    private final Connector connector;
+    private final SocketChannel client;
+    private final Admission.Slot slot;
+    private SelectionKey clientKey;
+    private SocketChannel server;
+    private SelectionKey serverKey;
+    private String serverAddress;
+    private boolean serverConnected;
+    private boolean serverReusable;
+    private int serverGeneration; // bumped whenever the server connection changes, so late DNS answers are ignored
+    private Race race; // while connecting, the attempts on the server's addresses; server stays null until one wins
+
+    // Direct buffers from the BufferPool, borrowed on the event loop thread (so they usually come from its own cache)
+    // in register() and given back when the connection closes.
+    private ByteBuffer clientIn;
+    private ByteBuffer serverIn;
+    private ByteBuffer toClient;
+    private ByteBuffer toServer;
+    private int clientScanned;
+    private int serverScanned;
+    private boolean clientEof;
+    private boolean serverEof;
+    private boolean serverShutdown;
+    private boolean clientShutdown;
+
+    private State state = State.RequestHead;
+    private boolean clientWantsClose;
+    private HttpRequest request;
+    private BodyFramer requestBody;
+    private HttpResponse response;
+    private BodyFramer responseBody;
+    private boolean closed;
+    private boolean tunnelOpen;
+    private String tunnelNote = "TUNNEL";
+
+    // Timeouts.  The timer goes off on the wheel thread, which hands it to our event loop.  Exchanges and tunnels only
+    // time out when no bytes have moved to or from the client for the whole timeout.
+    private final TimerWheel timers;
+    private TimerWheel.Timer timer;
+    private long progressMark;
+    private boolean requestSeen;
+
+    // Phase timings for Metrics, from System.nanoTime(); zero when the phase hasn't started.
+    private long headStarted;
+    private long requestStarted;
+    private long connectStarted;
+    private long forwardStarted;
+    private long requestSent;
+    private long responseStarted;
+
+    // Byte counts on the client channel for the access log, and where the current request started.  "Queued" counts
+    // what we have committed to sending, including what is still in toClient.
+    private long clientReceived;
+    private long clientSent;
+    private long receivedBefore;
+    private long queuedBefore;
+
+    /**
+     * Create a connection handler.  It does nothing until register() is run on the event loop.
+     * @param client The accepted client channel.
+     * @param slot The connection's place from Admission, released when it closes.
+     * @param config Proxy configuration.
+     * @param loop The event loop that will serve it.
+     * @param dns Resolver cache for origin host names.
+     * @param connector Orders origin addresses for connecting, and remembers which ones worked.
+     * @param timers Timer wheel for the connection's timeouts.
+     */
+    NioConnection(SocketChannel client, Admission.Slot slot, ProxyConfig config, EventLoop loop, DnsCache dns,
+                  Connector connector, TimerWheel timers) {
+        this.client = client;
+        this.slot = slot;
+        this.timers = timers;
+        this.config = config;
+        this.loop = loop;
+        this.dns = dns;
+        this.connector = connector;
+    }
+
+    /**
+     * Register the client channel with the event loop's selector.  Must run on the event loop thread.
+     */
+    void register() {
+        clientIn = BufferPool.direct(BUFFER_SIZE);
+        serverIn = BufferPool.direct(BUFFER_SIZE);
+        toClient = BufferPool.direct(BUFFER_SIZE);
+        toServer = BufferPool.direct(BUFFER_SIZE);
+        Metrics.connectionOpened();
+        timer = timers.newTimer(() -> loop.execute(this::timedOut));
+        setTimer(config.headTimeout); // the first request's head is timed from when the client connected
+        try {
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            clientKey = client.register(loop.getSelector(), SelectionKey.OP_READ, this);
+            ProxyThread.logger.fine("Starting connection " + id);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Handle a ready key for either of our channels, then move as much data along as we can.
+     * @param key The selected key.
+     */
+    @Override
+    public void handle(SelectionKey key) {
+        if (closed) return;
+        try {
+            if (key.channel() == client) {
+                if (key.isReadable()) {
+                    int n = read(client, clientIn);
+                    if (n == -1) {
+                        clientEof = true;
+                    } else {
+                        clientReceived += n;
+                    }
+                }
+                if (key.isValid() && key.isWritable()) {
+                    clientSent += flush(client, toClient);
+                }
+            } else if (key == serverKey) {
+                try {
+                    handleServer(key);
+                } catch (IOException e) {
+                    serverFailed(e);
+                }
+            } else if (race != null) {
+                race.connected(key);
+            }
+            process();
+            if (!closed) {
+                updateInterest();
+            }
+        } catch (IOException | RuntimeException e) {
+            ProxyThread.logger.fine("Connection " + id + " exception: " + e.getMessage());
+            Metrics.errors.increment();
+            close();
+        }
+    }
+
+    private void handleServer(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            server.finishConnect();
+            serverReady();
+        }
+        if (key.isValid() && key.isReadable() && read(server, serverIn) == -1) {
+            serverEof = true;
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush(server, toServer);
+        }
+    }
+
+    /**
+     * Move data between buffers until nothing more can be done, then deal with any end-of-stream conditions.
+     */
+    private void process() throws IOException {
+        boolean progress;
+        do {
+            progress = false;
+            switch (state) {
+                case RequestHead:
+                    progress = parseRequestHead();
+                    break;
+                case Exchange:
+                    progress = pumpRequest() | pumpResponse();
+                    if (forwardStarted != 0 && requestBody.isComplete() && toServer.position() == 0) {
+                        requestSent = System.nanoTime();
+                        Metrics.requestForward.record(requestSent - forwardStarted);
+                        forwardStarted = 0;
+                    }
+                    break;
+                case Tunnel:
+                    progress = copy(clientIn, toServer) | copy(serverIn, toClient);
+                    break;
+            }
+        } while (progress && !closed);
+
+        if (closed) return;
+        switch (state) {
+            case RequestHead:
+                if (serverEof) {
+                    closeServer(); // an idle kept-alive server hung up on us
+                }
+                if (clientEof) {
+                    state = State.Closing;
+                }
+                break;
+            case Exchange:
+                if (clientEof && !requestBody.isComplete()) {
+                    close();
+                } else if (serverEof) {
+                    serverFinished();
+                }
+                break;
+            case Tunnel:
+                tunnelHalfClose();
+                break;
+        }
+        if (state == State.Closing && toClient.position() == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Look for a complete request head from the client, and start forwarding it if there is one.
+     * @return true if a request was started
+     */
+    private boolean parseRequestHead() throws IOException {
+        if (toServer.position() != 0) {
+            return false; // wait until the last request has gone out before switching servers
+        }
+        if (headStarted == 0 && clientIn.position() > 0) {
+            headStarted = System.nanoTime();
+            if (requestSeen) {
+                setTimer(config.headTimeout);
+            }
+        }
+        int end = findHeadEnd(clientIn, clientScanned);
+        if (end == -1) {
+            clientScanned = clientIn.position();
+            if (!clientIn.hasRemaining()) {
+                if (clientIn.capacity() >= config.maxHeadSize) {
+                    respondWithError("431 Request Header Fields Too Large");
+                } else {
+                    clientIn = grow(clientIn, config.maxHeadSize);
+                }
+            }
+            return false;
+        }
+        receivedBefore = clientReceived - clientIn.position();
+        queuedBefore = clientSent + toClient.position();
+        byte[] head = take(clientIn, end);
+        clientScanned = 0;
+        try {
+            request = new HttpRequest(headStream(head));
+        } catch (HeadTooLargeException e) {
+            respondWithError("431 Request Header Fields Too Large");
+            return false;
+        }
+        requestStarted = headStarted;
+        headStarted = 0;
+        requestSeen = true;
+        Metrics.headParse.record(System.nanoTime() - requestStarted);
+
+        // Requests for our own metrics are answered here, not forwarded.
+        if (Metrics.isScrape(request, config.metricsPath)) {
+            boolean keepAlive = ProxyThread.prepareRequest(request);
+            toClient = append(toClient, Metrics.scrapeResponse(keepAlive));
+            if (!keepAlive) {
+                state = State.Closing;
+            }
+            setTimer(config.idleTimeout);
+            access("200", "METRICS");
+            request = null;
+            return true;
+        }
+
+        if (request.getMethod().equals("CONNECT")) {
+            String[] urlparts = request.getUrl().split(":", 2);
+            prepareServer(urlparts[0], Integer.parseInt(urlparts[1]));
+            state = State.Tunnel;
+            progressMark = clientReceived + clientSent;
+            setTimer(config.tunnelIdleTimeout);
+            openServer(urlparts[0], Integer.parseInt(urlparts[1]));
+            return true;
+        }
+
+        // TLS to origins is the blocking engine's; sending an HTTPS origin plain HTTP would only get garbage back.
+        if (request.isSecure() || config.tlsOrigins.contains(
+                request.getDestinationHost().toLowerCase(Locale.ROOT) + ":" + request.getDestinationPort())) {
+            respond("501 Not Implemented", "TLS-ORIGIN");
+            return false;
+        }
+
+        if (ProxyThread.logger.isLoggable(Level.FINE)) {
+            ProxyThread.logger.fine(request.reassembleFirstLine() + " [BodyType " + request.bodyType() + "]" + id);
+        }
+        clientWantsClose = !ProxyThread.prepareRequest(request);
+        requestBody = request.newBodyFramer();
+        boolean reused = prepareServer(request.getDestinationHost(), request.getDestinationPort());
+        toServer = append(toServer, headBytes(request));
+        response = null;
+        responseBody = null;
+        state = State.Exchange;
+        progressMark = clientReceived + clientSent;
+        setTimer(config.bodyTimeout);
+        requestSent = 0;
+        responseStarted = 0;
+        if (reused) {
+            forwardStarted = System.nanoTime();
+        } else {
+            forwardStarted = 0; // starts once we're connected
+            openServer(request.getDestinationHost(), request.getDestinationPort());
+        }
+        return true;
+    }
+
+    /**
+     * Move request body bytes from the client to the server.
+     * @return true if anything moved
+     */
+    private boolean pumpRequest() {
+        return moveBody(clientIn, toServer, requestBody);
+    }
+
+    /**
+     * Parse the response head once it has arrived, and then move response body bytes to the client.  When both the
+     * request and response are done, finish the exchange.
+     * @return true if anything happened
+     */
+    private boolean pumpResponse() throws IOException {
+        boolean progress = false;
+        while (response == null) {
+            if (responseStarted == 0 && serverIn.position() > 0) {
+                responseStarted = System.nanoTime();
+                if (requestSent != 0) {
+                    Metrics.firstByte.record(responseStarted - requestSent);
+                }
+            }
+            int end = findHeadEnd(serverIn, serverScanned);
+            if (end == -1) {
+                serverScanned = serverIn.position();
+                if (!serverIn.hasRemaining()) {
+                    if (serverIn.capacity() >= config.maxHeadSize) {
+                        throw new HeadTooLargeException("Response head too large.");
+                    }
+                    serverIn = grow(serverIn, config.maxHeadSize);
+                }
+                return progress;
+            }
+            HttpResponse head = new HttpResponse(headStream(take(serverIn, end)), request);
+            serverScanned = 0;
+            progress = true;
+            if (head.isInterim()) {
+                // An interim response (like 100 Continue) goes on to the client, unless it only speaks HTTP/1.0, and
+                // the final one is still to come.
+                if (!request.getVersion().equals("HTTP/1.0")) {
+                    toClient = append(toClient, headBytes(head));
+                }
+                continue;
+            }
+            response = head;
+            responseBody = response.newBodyFramer();
+            if (!clientWantsClose) {
+                response.getHeaders().set(HeaderName.CONNECTION, "keep-alive");
+            }
+            toClient = append(toClient, headBytes(response));
+        }
+        progress |= moveBody(serverIn, toClient, responseBody);
+        if (responseBody.isComplete() && requestBody.isComplete()) {
+            finishExchange();
+            progress = true;
+        }
+        return progress;
+    }
+
+    /**
+     * Both halves of an exchange are done.  Keep the server connection around if it can be reused, and get ready for
+     * the next request (or close, if the client wanted that).
+     */
+    private void finishExchange() throws IOException {
+        long finished = System.nanoTime();
+        Metrics.responseBody.record(finished - responseStarted);
+        Metrics.requests.increment();
+        Metrics.request.record(finished - requestStarted);
+        access(response.getStatus(), "-");
+        serverReusable = response.keepsConnectionAlive() && serverIn.position() == 0 && !serverEof;
+        if (!serverReusable) {
+            closeServer();
+        }
+        request = null;
+        response = null;
+        state = clientWantsClose ? State.Closing : State.RequestHead;
+        setTimer(config.idleTimeout);
+    }
+
+    private void setTimer(long timeout) {
+        if (timeout > 0) {
+            timer.arm(timeout);
+        } else {
+            timer.disarm();
+        }
+    }
+
+    /**
+     * The timer went off.  Between requests, that means the client sat idle too long, and we just close.  Part way
+     * through a head, it gets a 408.  In an exchange or a tunnel, we close only if no bytes have moved since the timer
+     * was set; otherwise we set it again.
+     */
+    private void timedOut() {
+        if (closed || timer.isArmed()) return; // armed again while the task was on its way to us
+        try {
+            switch (state) {
+                case RequestHead:
+                    if (headStarted == 0 && clientIn.position() == 0 && requestSeen) {
+                        Metrics.idleTimeouts.increment();
+                        close();
+                    } else {
+                        Metrics.headTimeouts.increment();
+                        respond("408 Request Timeout", "HEAD-TIMEOUT");
+                        clientSent += flush(client, toClient); // a few bytes into an empty socket buffer
+                        close();
+                    }
+                    return;
+                case Exchange:
+                case Tunnel:
+                    long progress = clientReceived + clientSent;
+                    if (progress != progressMark) {
+                        progressMark = progress;
+                        timer.rearm(state == State.Tunnel ? config.tunnelIdleTimeout : config.bodyTimeout);
+                        return;
+                    }
+                    if (state == State.Tunnel) {
+                        Metrics.tunnelTimeouts.increment();
+                        tunnelNote = "TUNNEL-TIMEOUT";
+                    } else {
+                        Metrics.bodyTimeouts.increment();
+                        access(response == null ? "-" : response.getStatus(), "BODY-TIMEOUT");
+                    }
+                    close();
+                    return;
+                default:
+                    close(); // couldn't even get an error response out
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * The server closed its side during an exchange.  That is fine for an identity response body, which ends this
+     * way, but anything else means the response was cut short.
+     */
+    private void serverFinished() throws IOException {
+        if (response == null) {
+            respondWithError("502 Bad Gateway");
+        } else if (responseBody.endOfStream()) {
+            if (responseBody.getType() == BodyType.Identity) {
+                toClient = append(toClient, LAST_CHUNK);
+            }
+            if (requestBody.isComplete()) {
+                finishExchange();
+            } else {
+                close();
+            }
+        } else {
+            Metrics.errors.increment();
+            access(response.getStatus(), "TRUNCATED");
+            close(); // truncated response, and the client can only tell if we hang up
+        }
+    }
+
+    /**
+     * The server connection failed (e.g. the connect was refused).
+     */
+    private void serverFailed(IOException e) throws IOException {
+        ProxyThread.logger.fine("Connection " + id + " server error: " + e.getMessage());
+        closeServer();
+        if (state == State.Exchange && response == null || state == State.Tunnel && !serverConnected) {
+            respondWithError("502 Bad Gateway");
+        } else {
+            Metrics.errors.increment();
+            close();
+        }
+    }
+
+    /**
+     * Send a short error response and close once it has been written.
+     * @param status Status code and reason phrase.
+     */
+    private void respondWithError(String status) throws IOException {
+        Metrics.errors.increment();
+        respond(status, "ERROR");
+    }
+
+    /**
+     * Send a short response with no body and close once it has been written.
+     * @param status Status code and reason phrase.
+     * @param note Access log note.
+     */
+    private void respond(String status, String note) throws IOException {
+        closeServer();
+        if (request == null) {
+            // a head we couldn't parse, so the request hasn't started yet
+            receivedBefore = clientReceived - clientIn.position();
+            queuedBefore = clientSent + toClient.position();
+            requestStarted = headStarted != 0 ? headStarted : System.nanoTime();
+        }
+        toClient = append(toClient, ("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes());
+        access(status.substring(0, 3), note);
+        request = null;
+        state = State.Closing;
+    }
+
+    /**
+     * Write the current request (or tunnel) to the access log.
+     * @param status Status we answered with.
+     * @param note How the request was served.
+     */
+    private void access(String status, String note) {
+        long received = clientReceived - clientIn.position() - receivedBefore;
+        long sent = clientSent + toClient.position() - queuedBefore;
+        AccessLog.log(id, client.socket().getInetAddress(), request, status, received, sent,
+                System.nanoTime() - requestStarted, note);
+    }
+
+    /**
+     * In a tunnel, once one side has stopped sending and we have passed everything along, shut down our output to the
+     * other side.  When both directions are finished, close up.
+     */
+    private void tunnelHalfClose() throws IOException {
+        if (clientEof && !serverShutdown && clientIn.position() == 0 && toServer.position() == 0 && serverConnected) {
+            server.shutdownOutput();
+            serverShutdown = true;
+        }
+        if (serverEof && !clientShutdown && serverIn.position() == 0 && toClient.position() == 0) {
+            client.shutdownOutput();
+            clientShutdown = true;
+        }
+        if (clientShutdown && serverShutdown) {
+            close();
+        }
+    }
+
+    /**
+     * Get ready to talk to a server.  If we already have a reusable connection to the same one, we keep it; otherwise
+     * the old one is closed, and the caller must openServer() once the request is queued.
+     * @return true if the existing connection will be reused
+     */
+    private boolean prepareServer(String host, int port) {
+        String address = host + ":" + port;
+        if (server != null && serverReusable && address.equals(serverAddress)) {
+            serverReusable = false;
+            return true;
+        }
+        closeServer();
+        serverAddress = address;
+        serverEof = false;
+        serverShutdown = false;
+        return false;
+    }
+
+    /**
+     * Look up a server and start connecting to it.  The lookup must not block the event loop: usually the DNS cache
+     * already has the answer and we connect right away, but otherwise we carry on when the lookup finishes, and the
+     * request waits in toServer until then.
+     */
+    private void openServer(String host, int port) throws IOException {
+        connectStarted = System.nanoTime();
+        CompletableFuture<InetAddress[]> lookup = dns.resolveAsync(host);
+        if (lookup.isDone()) {
+            connectServer(host, lookup, port);
+            return;
+        }
+        int generation = serverGeneration;
+        lookup.whenComplete((addresses, e) -> loop.execute(() -> {
+            if (closed || generation != serverGeneration) return;
+            try {
+                connectServer(host, lookup, port);
+                process();
+                if (!closed) {
+                    updateInterest();
+                }
+            } catch (IOException | RuntimeException x) {
+                ProxyThread.logger.fine("Connection " + id + " exception: " + x.getMessage());
+                close();
+            }
+        }));
+    }
+
+    /**
+     * Start racing connections to the addresses from a finished lookup.
+     */
+    private void connectServer(String host, CompletableFuture<InetAddress[]> lookup, int port) throws IOException {
+        InetAddress[] addresses;
+        try {
+            addresses = lookup.join();
+        } catch (CompletionException e) {
+            serverFailed(new IOException(e.getCause().getMessage()));
+            return;
+        }
+        race = new Race(host, connector.order(host, addresses), port);
+        race.step();
+    }
+
+    /**
+     * The server connection is up.  A tunnel only tells the client so now, so that a failed connect can still get a
+     * proper 502.
+     */
+    private void serverReady() {
+        serverConnected = true;
+        long now = System.nanoTime();
+        Metrics.upstreamConnect.record(now - connectStarted);
+        if (state == State.Tunnel) {
+            toClient = append(toClient, ESTABLISHED);
+            Metrics.tunnelOpened();
+            tunnelOpen = true;
+            // Like the blocking engine's relay, a tunnel's access log record counts just the bytes tunneled.
+            receivedBefore = clientReceived - clientIn.position();
+            queuedBefore = clientSent + toClient.position();
+        } else if (state == State.Exchange) {
+            forwardStarted = now;
+        }
+    }
+
+    private void closeServer() {
+        if (race != null) {
+            race.abandon();
+        }
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {}
+        }
+        server = null;
+        serverKey = null;
+        serverGeneration++;
+        serverConnected = false;
+        serverReusable = false;
+        serverEof = false;
+        serverIn.clear();
+        serverScanned = 0;
+        toServer.clear();
+    }
+
+    /**
+     * Close everything down.
+     */
+    private void close() {
+        if (closed) return;
+        closed = true;
+        if (timer != null) {
+            timer.disarm();
+        }
+        closeServer();
+        try {
+            client.close();
+        } catch (IOException e) {}
+        slot.release();
+        Metrics.connectionClosed();
+        if (tunnelOpen) {
+            Metrics.tunnelClosed();
+            access("200", tunnelNote);
+        }
+        releaseBuffers();
+        ProxyThread.logger.fine("Finishing connection " + id);
+    }
+
+    /**
+     * Give our buffers back to the pool.  Something may still look at them before the event loop notices we're closed
+     * (a late DNS answer, say), so they are swapped for an empty buffer rather than left pointing at buffers some other
+     * connection may be using.
+     */
+    private void releaseBuffers() {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        BufferPool.release(clientIn);
+        BufferPool.release(serverIn);
+        BufferPool.release(toClient);
+        BufferPool.release(toServer);
+        clientIn = empty;
+        serverIn = empty;
+        toClient = empty;
+        toServer = empty;
+    }
+
+    /**
+     * Choose which events we care about on each channel, based on how much room and data our buffers have.
+     */
+    private void updateInterest() {
+        int ops = 0;
+        if (!clientEof && clientIn.hasRemaining() && state != State.Closing) ops |= SelectionKey.OP_READ;
+        if (toClient.position() != 0) ops |= SelectionKey.OP_WRITE;
+        clientKey.interestOps(ops);
+
+        if (serverKey != null && serverKey.isValid()) {
+            ops = 0;
+            if (!serverConnected) {
+                ops = SelectionKey.OP_CONNECT;
+            } else {
+                if (!serverEof && serverIn.hasRemaining()) ops |= SelectionKey.OP_READ;
+                if (toServer.position() != 0) ops |= SelectionKey.OP_WRITE;
+            }
+            serverKey.interestOps(ops);
+        }
+    }
+
+    /**
+     * Move body bytes from an input buffer to an output buffer, stopping at the end of the body.  Identity bodies are
+     * wrapped into chunks, just like in HttpMessage.
+     * @return true if anything moved
+     */
+    private static boolean moveBody(ByteBuffer in, ByteBuffer out, BodyFramer framer) {
+        boolean identity = framer.getType() == BodyType.Identity;
+        int room = out.remaining() - (identity ? 12 : 0); // leave space for chunk framing
+        if (room <= 0 || in.position() == 0) {
+            return false;
+        }
+        in.flip();
+        int n = framer.scan(in, room);
+        if (n > 0) {
+            if (identity) {
+                int digits = Math.max(1, (35 - Integer.numberOfLeadingZeros(n)) / 4);
+                for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+                    out.put(HEX[(n >>> shift) & 0xf]);
+                }
+                out.put(CRLF);
+            }
+            int limit = in.limit();
+            in.limit(in.position() + n);
+            out.put(in);
+            in.limit(limit);
+            if (identity) {
+                out.put(CRLF);
+            }
+        }
+        in.compact();
+        return n > 0;
+    }
+
+    /**
+     * Copy as much as will fit from one buffer to another.
+     * @return true if anything moved
+     */
+    private static boolean copy(ByteBuffer in, ByteBuffer out) {
+        if (in.position() == 0 || !out.hasRemaining()) {
+            return false;
+        }
+        in.flip();
+        int limit = in.limit();
+        in.limit(in.position() + Math.min(in.remaining(), out.remaining()));
+        out.put(in);
+        in.limit(limit);
+        in.compact();
+        return true;
+    }
+
+    /**
+     * Read what a channel has into a buffer.
+     * @return bytes read, or -1 at the end of the stream
+     */
+    private static int read(SocketChannel channel, ByteBuffer buf) throws IOException {
+        int n = channel.read(buf);
+        if (n > 0) {
+            Metrics.bytesIn.add(n);
+        }
+        return n;
+    }
+
+    /**
+     * Write as much of a buffer to a channel as it will take.
+     * @return bytes written
+     */
+    private static int flush(SocketChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        int n = channel.write(buf);
+        Metrics.bytesOut.add(n);
+        buf.compact();
+        return n;
+    }
+
+    /**
+     * Find the end of a message head (the CRLF CRLF) in a buffer.
+     * @param buf Buffer in write mode.
+     * @param from How far we searched last time, so we don't search it again.
+     * @return Index just past the blank line, or -1 if it isn't there yet.
+     */
+    private static int findHeadEnd(ByteBuffer buf, int from) {
+        for (int i = Math.max(from, 3); i < buf.position(); i++) {
+            if (buf.get(i) == '\n' && buf.get(i - 1) == '\r' && buf.get(i - 2) == '\n' && buf.get(i - 3) == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove the first n bytes from a buffer and return them.
+     */
+    private static byte[] take(ByteBuffer buf, int n) {
+        byte[] bytes = new byte[n];
+        buf.flip();
+        buf.get(bytes);
+        buf.compact();
+        return bytes;
+    }
+
+    /**
+     * Get the bytes of a message head for forwarding, the same way HttpMessage.forwardHeaders() writes them.
+     */
+    private static byte[] headBytes(HttpMessage message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        message.forwardHeaders(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Wrap a complete head for parsing by HttpRequest or HttpResponse, with our configured limits.
+     */
+    private HttpInputStream headStream(byte[] head) {
+        return new HttpInputStream(new ByteArrayInputStream(head), config.maxHeadSize, config.maxHeaders);
+    }
+
+    /**
+     * Double the size of a full input buffer (but not past max), so a large head can fit.
+     */
+    private static ByteBuffer grow(ByteBuffer buf, int max) {
+        ByteBuffer bigger = BufferPool.direct(Math.min(buf.capacity() * 2, max));
+        buf.flip();
+        bigger.put(buf);
+        BufferPool.release(buf);
+        return bigger;
+    }
+
+    /**
+     * Add bytes to a buffer, growing it if needed.  This is only used for message heads, so a buffer only grows as big
+     * as the largest head we forward.
+     * @return The buffer holding the data (possibly a new one).
+     */
+    private static ByteBuffer append(ByteBuffer buf, byte[] bytes) {
+        if (buf.remaining() < bytes.length) {
+            ByteBuffer bigger = BufferPool.direct(buf.position() + bytes.length);
+            buf.flip();
+            bigger.put(buf);
+            BufferPool.release(buf);
+            buf = bigger;
+        }
+        buf.put(bytes);
+        return buf;
+    }
+
+    /**
+     * Connection racing on the event loop, the nio engine's version of Connector.connect().  Attempts are started one
+     * at a time, the next one --connect-attempt-delay after the last, or at once when one fails; the first to connect
+     * becomes the server connection and the rest are closed.  A timer on the wheel starts the attempts and gives up on
+     * slow ones, so the delays come out a tick (100ms) or so longer than asked for.
+     */
+    private final class Race {
+        private final String host;
+        private final InetAddress[] addresses;
+        private final int port;
+        private final long deadline;
+        private final List<Attempt> attempts = new ArrayList<>();
+        private final TimerWheel.Timer timer = timers.newTimer(() -> loop.execute(this::timedOut));
+        private int next;
+        private long nextAt;
+        private IOException failure;
+
+        Race(String host, InetAddress[] addresses, int port) {
+            this.host = host;
+            this.addresses = addresses;
+            this.port = port;
+            long now = System.nanoTime();
+            this.deadline = connector.timeout > 0 ? now + TimeUnit.MILLISECONDS.toNanos(connector.timeout) : 0;
+            this.nextAt = now;
+        }
+
+        /**
+         * Start the next attempt if it is due, give up on attempts (or the whole race) that are out of time, and set
+         * the timer for whenever something next needs doing.
+         */
+        void step() throws IOException {
+            long now = System.nanoTime();
+            if (deadline != 0 && now - deadline >= 0) {
+                connector.failed(true);
+                serverFailed(new SocketTimeoutException("connect to " + host + " timed out"));
+                return;
+            }
+            for (Iterator<Attempt> i = attempts.iterator(); i.hasNext(); ) {
+                Attempt attempt = i.next();
+                if (attempt.expiresAt != 0 && now - attempt.expiresAt >= 0) {
+                    i.remove();
+                    attempt.close();
+                    failure = new SocketTimeoutException("connect to " + attempt.address + " timed out");
+                }
+            }
+            while (next < addresses.length && (now - nextAt >= 0 || attempts.isEmpty())) {
+                if (start(addresses[next++], now)) {
+                    return;
+                }
+                nextAt = now + TimeUnit.MILLISECONDS.toNanos(connector.attemptDelay);
+            }
+            if (attempts.isEmpty()) {
+                connector.failed(failure instanceof SocketTimeoutException);
+                serverFailed(failure);
+                return;
+            }
+            long wakeAt = deadline != 0 ? deadline : now + TimeUnit.DAYS.toNanos(1);
+            if (next < addresses.length && nextAt - wakeAt < 0) {
+                wakeAt = nextAt;
+            }
+            for (Attempt attempt : attempts) {
+                if (attempt.expiresAt != 0 && attempt.expiresAt - wakeAt < 0) {
+                    wakeAt = attempt.expiresAt;
+                }
+            }
+            timer.arm(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeAt - now)));
+        }
+
+        /**
+         * Start an attempt on one address.
+         * @return true if it connected at once and won the race
+         */
+        private boolean start(InetAddress address, long now) {
+            connector.attempted();
+            Attempt attempt = new Attempt(address, now);
+            try {
+                attempt.channel = SocketChannel.open();
+                attempt.channel.configureBlocking(false);
+                attempt.channel.socket().setTcpNoDelay(true);
+                boolean connected = attempt.channel.connect(new InetSocketAddress(address, port));
+                attempt.key = attempt.channel.register(loop.getSelector(), connected ? 0 : SelectionKey.OP_CONNECT,
+                        NioConnection.this);
+                if (connected) {
+                    win(attempt);
+                    return true;
+                }
+                attempts.add(attempt);
+            } catch (IOException e) {
+                attempt.close();
+                failure = e;
+            }
+            return false;
+        }
+
+        /**
+         * One of the attempts' keys was selected: it has connected or failed.
+         */
+        void connected(SelectionKey key) throws IOException {
+            for (Iterator<Attempt> i = attempts.iterator(); i.hasNext(); ) {
+                Attempt attempt = i.next();
+                if (attempt.key != key) continue;
+                try {
+                    if (attempt.channel.finishConnect()) {
+                        i.remove();
+                        win(attempt);
+                    }
+                } catch (IOException e) {
+                    i.remove();
+                    attempt.close();
+                    failure = e;
+                    step(); // on to the next address without waiting
+                }
+                return;
+            }
+        }
+
+        private void win(Attempt attempt) {
+            abandon();
+            connector.won(host, attempt.address, next);
+            server = attempt.channel;
+            serverKey = attempt.key;
+            serverReady();
+        }
+
+        private void timedOut() {
+            if (race != this || closed || timer.isArmed()) return;
+            try {
+                step();
+                process();
+                if (!closed) {
+                    updateInterest();
+                }
+            } catch (IOException | RuntimeException e) {
+                ProxyThread.logger.fine("Connection " + id + " exception: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Stop racing: close the attempts still going, and forget the race.
+         */
+        void abandon() {
+            timer.disarm();
+            for (Attempt attempt : attempts) {
+                attempt.close();
+            }
+            attempts.clear();
+            race = null;
+        }
+    }
+
+    /**
+     * One address's attempt to connect, during a Race.
+     */
+    private final class Attempt {
+        final InetAddress address;
+        final long expiresAt; // zero for never
+        SocketChannel channel;
+        SelectionKey key;
+
+        Attempt(InetAddress address, long now) {
+            this.address = address;
+            this.expiresAt = connector.attemptTimeout > 0
+                    ? now + TimeUnit.MILLISECONDS.toNanos(connector.attemptTimeout) : 0;
+        }
+
+        void close() {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The non-blocking engine.  Rather than a thread per client, a handful of EventLoop threads each multiplex many client
+ * connections with a Selector.  Each listening socket's accept thread deals its connections out round-robin to a shard
+ * of the loops of its own (every loop, when there is one socket), or sheds them if Admission says the proxy is full.
+ * When there are more sockets than loops, sockets share loops.  Connections here are cheap, so none wait for a place.
+ */
+class NioEngine {
+
+    private final ProxyConfig config;
+    private final EventLoop[] loops;
+    private final DnsCache dns;
+    private final Connector connector;
+    private final Admission admission;
+    private final TimerWheel timers;
+
+    /**
+     * Create the engine and its event loops.
+     * @param config Proxy configuration.
+     * @param dns Resolver cache for origin host names.
+     * @param connector Orders origin addresses for connecting.
+     * @param admission Limit on client connections.
+     * @param timers Timer wheel for connection timeouts.
+     * @throws IOException if a selector can't be opened.
+     */
+    NioEngine(ProxyConfig config, DnsCache dns, Connector connector, Admission admission, TimerWheel timers)
+            throws IOException {
+        this.timers = timers;
+        this.config = config;
+        this.dns = dns;
+        this.connector = connector;
+        this.admission = admission;
+        this.loops = new EventLoop[config.eventLoops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("event-loop-" + i);
+        }
+    }
+
+    /**
+     * Start the event loops and accept connections until every listening socket has failed.
+     * @throws IOException if the listening sockets can't be opened.
+     */
+    void run() throws IOException {
+        List<ServerSocketChannel> listeners = Listeners.open(config);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        Listeners.Shard[] shards = new Listeners.Shard[listeners.size()];
+        for (int i = 0; i < shards.length; i++) {
+            List<EventLoop> shard = new ArrayList<>();
+            for (int j = i % loops.length; j < loops.length; j += shards.length) {
+                shard.add(loops[j]);
+            }
+            shards[i] = new Shard(shard.toArray(new EventLoop[0]));
+        }
+        Listeners.accept(listeners, admission, false, shards);
+    }
+
+    /**
+     * The loops that one listening socket deals its connections out to.  Only that socket's accept thread uses it, so
+     * the round-robin needs no synchronization.
+     */
+    private final class Shard implements Listeners.Shard {
+        private final EventLoop[] shardLoops;
+        private int next;
+
+        Shard(EventLoop[] shardLoops) {
+            this.shardLoops = shardLoops;
+        }
+
+        @Override
+        public void accepted(SocketChannel client, Admission.Slot slot) {
+            EventLoop loop = shardLoops[next];
+            next = (next + 1) % shardLoops.length;
+            NioConnection connection = new NioConnection(client, slot, config, loop, dns, connector, timers);
+            loop.execute(connection::register);
+        }
+    }
+}
@@ -0,0 +1,748 @@
+package io.brennan.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Holds the runtime settings for the proxy, which are parsed from the command line.  Every option has the form
+ * --name=value and they may appear in any order before the port number.
+ */
+public class ProxyConfig {
+
+    /**
+     * Port to listen on for client connections.
+     */
+    int port;
+
+    /**
+     * Addresses to listen on, as given: a host or IP address, optionally with a port (IPv6 addresses in brackets).
+     * Empty means every interface, at the port.
+     */
+    List<String> listen = new ArrayList<>();
+
+    /**
+     * Listening sockets to open on each address, sharing its port with SO_REUSEPORT, each with its own accept thread.
+     */
+    int listeners = 1;
+
+    /**
+     * Which engine serves clients: "blocking" (a ProxyThread per client) or "nio" (a few event loop threads).
+     */
+    String engine = "blocking";
+
+    /**
+     * Number of event loop threads for the nio engine.
+     */
+    int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * What kind of thread the blocking engine runs each connection and tunnel on: "platform" or "virtual".
+     */
+    String threads = "platform";
+
+    /**
+     * How the blocking engine relays CONNECT tunnels: "relay" (a few selector threads) or "threads" (two per tunnel).
+     */
+    String tunnel = "relay";
+
+    /**
+     * Number of selector threads in the tunnel relay.
+     */
+    int tunnelThreads = 2;
+
+    /**
+     * Most requests from one pipelining client that the blocking engine will have in progress at once, counting the
+     * one being answered.  One turns read-ahead off.
+     */
+    int pipelineDepth = 8;
+
+    /**
+     * Most client connections served at once.  Zero means no limit.
+     */
+    int maxConnections = 0;
+
+    /**
+     * How many client connections over the limit may wait for a place before more are shed.
+     */
+    int acceptQueue = 0;
+
+    /**
+     * How long a client connection waits for a place before it is shed, in milliseconds.
+     */
+    long acceptQueueTimeout = 1000;
+
+    /**
+     * Length of each listening socket's queue of connections the kernel has accepted but we haven't.
+     */
+    int acceptBacklog = 1024;
+
+    /**
+     * Seconds a shed client is told to wait before trying again, in the Retry-After header of its 503.
+     */
+    int retryAfter = 1;
+
+    /**
+     * How long a kept-alive client connection may sit idle between requests, in milliseconds.  Zero means forever.
+     */
+    long idleTimeout = 60000;
+
+    /**
+     * How long a client has to send a whole request head, in milliseconds: from connecting, for the first request, and
+     * from its first byte for later ones.  Zero means forever.
+     */
+    long headTimeout = 10000;
+
+    /**
+     * Longest time, in milliseconds, that no bytes may move to or from the client while a request is being forwarded
+     * and answered.  This catches both a stalled client and a stalled origin.  Zero means forever.
+     */
+    long bodyTimeout = 60000;
+
+    /**
+     * How long a CONNECT tunnel may go with no bytes moving either way, in milliseconds.  Zero means forever.
+     */
+    long tunnelIdleTimeout = 300000;
+
+    /**
+     * Largest request or response head (start line plus headers) we will accept, in bytes.
+     */
+    int maxHeadSize = HttpInputStream.DEFAULT_MAX_HEAD_SIZE;
+
+    /**
+     * Most header fields we will accept in a request or response head.
+     */
+    int maxHeaders = HttpInputStream.DEFAULT_MAX_HEADER_COUNT;
+
+    /**
+     * Longest we will spend connecting to an origin, over all its addresses, in milliseconds.  Zero means no limit.
+     */
+    long connectTimeout = 10000;
+
+    /**
+     * Longest a single connection attempt to one of an origin's addresses may take, in milliseconds.  Zero means no
+     * limit but the overall connect timeout.
+     */
+    long connectAttemptTimeout = 5000;
+
+    /**
+     * How long a connection attempt has before the attempt to the origin's next address starts alongside it, in
+     * milliseconds.
+     */
+    long connectAttemptDelay = 250;
+
+    /**
+     * The most connections (idle or in use) that the upstream pool will hold open to a single host:port.
+     */
+    int poolMaxPerHost = 8;
+
+    /**
+     * The most connections the upstream pool will hold open to all origins together.  Zero means no limit.
+     */
+    int maxUpstream = 0;
+
+    /**
+     * How many requests may wait for an origin connection at the caps before more are refused.  Zero means no limit.
+     */
+    int poolMaxWaiting = 0;
+
+    /**
+     * How long an origin connection may sit idle in the pool before it is closed, in milliseconds.
+     */
+    long poolIdleTimeout = 30000;
+
+    /**
+     * How long a ProxyThread will wait for a pooled connection when its host is at the cap, in milliseconds.
+     */
+    long poolAcquireTimeout = 10000;
+
+    /**
+     * Most streams a client may have open at once on an HTTP/2 (h2c) connection.  Zero turns h2c off for clients, and
+     * a connection that starts with the HTTP/2 preface is then treated as a bad HTTP/1.1 request.  Blocking engine
+     * only.
+     */
+    int h2cStreams = 100;
+
+    /**
+     * Origins (lower case host:port) that take prior-knowledge HTTP/2, whose requests are multiplexed over a few
+     * connections instead of going through the HTTP/1.1 pool.
+     */
+    Set<String> h2cOrigins = new HashSet<>();
+
+    /**
+     * How many HTTP/2 connections to open to each of the h2c origins.
+     */
+    int h2cOriginConnections = 2;
+
+    /**
+     * Origins (lower case host:port) that are spoken to over TLS even when the request says http://, as HTTPS backends
+     * behind a reverse proxy are.  Requests for https:// URLs get TLS whether or not their origin is listed.
+     */
+    Set<String> tlsOrigins = new HashSet<>();
+
+    /**
+     * Trust store for checking origins' certificates.  Empty means the JVM's default trust store.
+     */
+    String tlsTrustStore = "";
+
+    /**
+     * Password for the trust store, if it has one.
+     */
+    String tlsTrustStorePassword = "";
+
+    /**
+     * How many TLS sessions to keep for resuming, across all origins.
+     */
+    int tlsSessions = 1024;
+
+    /**
+     * How long a TLS session may be resumed for, in milliseconds.
+     */
+    long tlsSessionTimeout = 3600000;
+
+    /**
+     * Reverse proxy routes, as given: [HOST][/PREFIX]=BACKEND,...  Each --route adds one.  See Routes.
+     */
+    List<String> routes = new ArrayList<>();
+
+    /**
+     * How a route picks among its backends: "least-requests" (fewest outstanding) or "peak-ewma" (lowest recent
+     * latency, weighted by outstanding requests).
+     */
+    String balance = "least-requests";
+
+    /**
+     * Path that health checks GET from each backend.
+     */
+    String healthPath = "/";
+
+    /**
+     * How often each backend is health checked, in milliseconds.  Zero turns health checks off, and every backend is
+     * taken to be healthy.
+     */
+    long healthInterval = 5000;
+
+    /**
+     * How long a health check may take before it fails, in milliseconds.
+     */
+    long healthTimeout = 2000;
+
+    /**
+     * Failed health checks in a row that take a backend out of balancing.
+     */
+    int unhealthyThreshold = 2;
+
+    /**
+     * Passed health checks in a row that put it back.
+     */
+    int healthyThreshold = 2;
+
+    /**
+     * Idle connections to keep open to each healthy backend, topped up after each health check.
+     */
+    int warmConnections = 1;
+
+    /**
+     * Bytes of responses the blocking engine keeps in its shared cache.  Zero turns the cache off.
+     */
+    long cacheSize = 0;
+
+    /**
+     * Largest single response (head plus body) the cache will store, in bytes.
+     */
+    long cacheMaxObject = 1048576;
+
+    /**
+     * How long a request following another's fetch of the same cache miss waits on it before fetching for itself, in
+     * milliseconds.  Zero turns collapsed forwarding off.
+     */
+    long collapseTimeout = 5000;
+
+    /**
+     * Deflate level (1-9) for compressing responses on the fly in the blocking engine.  Zero turns compression off.
+     */
+    int compressLevel = 0;
+
+    /**
+     * Responses with a Content-Length below this many bytes are not worth compressing.
+     */
+    long compressMinSize = 1024;
+
+    /**
+     * Directory for the on-disk cache tier.
+     */
+    String diskCacheDir = "proxy-cache";
+
+    /**
+     * Bytes of segment files the on-disk cache tier keeps.  Zero turns the disk tier off.
+     */
+    long diskCacheSize = 0;
+
+    /**
+     * Size of each disk cache segment file, which is also the largest response body the disk tier will store.
+     */
+    int diskCacheSegment = 64 * 1024 * 1024;
+
+    /**
+     * How long to cache successful DNS lookups, in milliseconds.
+     */
+    long dnsTtl = 60000;
+
+    /**
+     * How long to cache failed DNS lookups, in milliseconds.
+     */
+    long dnsNegativeTtl = 5000;
+
+    /**
+     * Path the proxy answers with its metrics, when asked directly rather than as a proxy.  Empty turns it off.
+     */
+    String metricsPath = "/__proxy/metrics";
+
+    /**
+     * Where the access log goes: a file, "-" for standard output, or empty for no access log.
+     */
+    String accessLog = "-";
+
+    /**
+     * Size at which the access log file is rotated, in bytes.
+     */
+    long accessLogSize = 64 * 1024 * 1024;
+
+    /**
+     * How many rotated access log files to keep.
+     */
+    int accessLogFiles = 5;
+
+    /**
+     * How many records the access log can hold while waiting to be written, before it starts dropping them.
+     */
+    int accessLogBuffer = 8192;
+
+    /**
+     * Return a usage string describing the options.
+     * @return usage message
+     */
+    static String usage() {
+        return "usage: io.brennan.proxy.Main [options] port\n" +
+                "options:\n" +
+                "  --engine=blocking|nio     thread per client, or non-blocking event loops (default blocking)\n" +
+                "  --event-loops=N           event loop threads for the nio engine (default: number of CPUs)\n" +
+                "  --threads=platform|virtual  threads for the blocking engine (virtual needs Java 21)\n" +
+                "  --tunnel=relay|threads    how the blocking engine relays CONNECT tunnels (default relay)\n" +
+                "  --tunnel-threads=N        selector threads in the tunnel relay (default 2)\n" +
+                "  --pipeline-depth=N        pipelined requests per client in progress at once (default 8)\n" +
+                "  --max-connections=N       client connections served at once, 503 past that (default 0, no limit)\n" +
+                "  --accept-queue=N          connections over the limit that may wait for a place (default 0)\n" +
+                "  --accept-queue-timeout=MS how long they wait before getting a 503 (default 1000)\n" +
+                "  --listen=ADDRESS[:PORT],...  addresses to listen on (default: every interface, at the port)\n" +
+                "  --listeners=N             sockets per address, sharing it with SO_REUSEPORT, each with its own\n" +
+                "                            accept thread (default 1)\n" +
+                "  --accept-backlog=N        listen queue length for each listening socket (default 1024)\n" +
+                "  --retry-after=SECONDS     Retry-After for 503s when the proxy is full (default 1)\n" +
+                "  --idle-timeout=MS         close kept-alive clients idle this long (default 60000, 0 for never)\n" +
+                "  --head-timeout=MS         time allowed to send a request head (default 10000, 0 for no limit)\n" +
+                "  --body-timeout=MS         time allowed with no bytes moving during a request (default 60000)\n" +
+                "  --tunnel-idle-timeout=MS  close CONNECT tunnels idle this long (default 300000)\n" +
+                "  --max-head-size=BYTES     largest request/response head accepted (default 65536)\n" +
+                "  --max-headers=N           most header fields accepted in one head (default 100)\n" +
+                "  --connect-timeout=MS      give up connecting to an origin after this long (default 10000)\n" +
+                "  --connect-attempt-timeout=MS  give up on one of its addresses after this long (default 5000)\n" +
+                "  --connect-attempt-delay=MS  try the next address alongside after this long (default 250)\n" +
+                "  --pool-max-per-host=N     max open origin connections per host:port (default 8)\n" +
+                "  --max-upstream=N          max open origin connections in all (default 0, no limit)\n" +
+                "  --pool-max-waiting=N      requests waiting for an origin connection before 503s (default 0,\n" +
+                "                            no limit)\n" +
+                "  --pool-idle-timeout=MS    close pooled origin connections idle this long (default 30000)\n" +
+                "  --pool-acquire-timeout=MS wait this long for a pooled connection at the cap (default 10000)\n" +
+                "  --h2c-streams=N           streams per HTTP/2 client connection (default 100, 0 for no h2c)\n" +
+                "  --h2c-origins=HOST:PORT,...  origins to talk prior-knowledge HTTP/2 to (default none)\n" +
+                "  --h2c-origin-connections=N  HTTP/2 connections to open to each of them (default 2)\n" +
+                "  --tls-origins=HOST:PORT,...  origins to use TLS with even for http:// requests (default none)\n" +
+                "  --tls-trust-store=PATH    trust store for origin certificates (default: the JVM's)\n" +
+                "  --tls-trust-store-password=PASSWORD  its password, if it has one\n" +
+                "  --tls-sessions=N          TLS sessions kept for resumption (default 1024)\n" +
+                "  --tls-session-timeout=MS  resume TLS sessions for this long (default 3600000)\n" +
+                "  --route=[HOST][/PREFIX]=BACKEND,...  send matching requests to these [https://]HOST[:PORT]\n" +
+                "                            backends, as a reverse proxy; may be given more than once\n" +
+                "  --balance=least-requests|peak-ewma  how a route picks a backend (default least-requests)\n" +
+                "  --health-path=PATH        path health checks GET from backends (default /)\n" +
+                "  --health-interval=MS      health check each backend this often (default 5000, 0 for off)\n" +
+                "  --health-timeout=MS       fail a health check that takes this long (default 2000)\n" +
+                "  --unhealthy-threshold=N   failed checks in a row that take a backend out (default 2)\n" +
+                "  --healthy-threshold=N     passed checks in a row that put it back (default 2)\n" +
+                "  --warm-connections=N      idle connections kept open to each healthy backend (default 1)\n" +
+                "  --cache-size=BYTES        keep up to this many bytes of responses in memory (default 0, off)\n" +
+                "  --cache-max-object=BYTES  largest response the cache will store (default 1048576)\n" +
+                "  --collapse-timeout=MS     share one fetch between identical cache misses, waiting this long\n" +
+                "                            for it before fetching alone (default 5000, 0 for off)\n" +
+                "  --compress-level=N        gzip/deflate compressible responses at this level, 1-9 (default 0, off)\n" +
+                "  --compress-min-size=BYTES don't compress responses smaller than this (default 1024)\n" +
+                "  --disk-cache-size=BYTES   keep larger responses in segment files on disk (default 0, off)\n" +
+                "  --disk-cache-dir=PATH     directory for the disk cache (default proxy-cache)\n" +
+                "  --disk-cache-segment=BYTES  disk cache segment size and largest object (default 67108864)\n" +
+                "  --dns-ttl=MS              cache successful DNS lookups this long (default 60000)\n" +
+                "  --dns-negative-ttl=MS     cache failed DNS lookups this long (default 5000)\n" +
+                "  --metrics-path=PATH       where GET answers with metrics (default /__proxy/metrics, empty for off)\n" +
+                "  --access-log=PATH         access log file, - for standard output (the default), empty for none\n" +
+                "  --access-log-size=BYTES   rotate the access log file at this size (default 67108864)\n" +
+                "  --access-log-files=N      rotated access log files to keep (default 5)\n" +
+                "  --access-log-buffer=N     records to hold before dropping them when the disk is slow (default 8192)\n";
+    }
+
+    /**
+     * Parse the command line arguments into a configuration.
+     * @param args Arguments given to main().
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException if the arguments are malformed.
+     */
+    static ProxyConfig parse(String[] args) {
+        ProxyConfig config = new ProxyConfig();
+        String port = null;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                if (port != null) throw new IllegalArgumentException("more than one port given");
+                port = arg;
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            if (equals == -1) throw new IllegalArgumentException("option " + arg + " needs a value");
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            try {
+                config.set(name, value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad value for --" + name + ": " + value);
+            }
+        }
+        if (port == null) throw new IllegalArgumentException("no port given");
+        config.port = Integer.parseInt(port);
+        config.listenAddresses(); // so that a bad --listen is a usage error
+        new Routes(config); // and a bad --route
+        return config;
+    }
+
+    /**
+     * Return the addresses to listen on, resolving any host names.
+     * @return the --listen addresses, or the wildcard address if there are none, with the port filled in where the
+     *         address didn't give one
+     * @throws IllegalArgumentException if an address is malformed or can't be resolved.
+     */
+    List<InetSocketAddress> listenAddresses() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (listen.isEmpty()) {
+            addresses.add(new InetSocketAddress(port));
+            return addresses;
+        }
+        for (String spec : listen) {
+            String host = spec;
+            int listenPort = port;
+            try {
+                if (spec.startsWith("[")) {
+                    int close = spec.indexOf(']');
+                    if (close == -1 || (close + 1 < spec.length() && spec.charAt(close + 1) != ':')) {
+                        throw new IllegalArgumentException("bad listen address " + spec);
+                    }
+                    host = spec.substring(1, close);
+                    if (close + 1 < spec.length()) {
+                        listenPort = Integer.parseInt(spec.substring(close + 2));
+                    }
+                } else if (spec.indexOf(':') != -1 && spec.indexOf(':') == spec.lastIndexOf(':')) {
+                    host = spec.substring(0, spec.indexOf(':'));
+                    listenPort = Integer.parseInt(spec.substring(spec.indexOf(':') + 1));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad listen address " + spec);
+            }
+            if (listenPort < 0 || listenPort > 65535) {
+                throw new IllegalArgumentException("bad listen port in " + spec);
+            }
+            InetSocketAddress address = new InetSocketAddress(host, listenPort);
+            if (address.isUnresolved()) {
+                throw new IllegalArgumentException("can't resolve listen address " + host);
+            }
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    /**
+     * Set a single option by name.
+     */
+    private void set(String name, String value) {
+        switch (name) {
+            case "engine":
+                if (!value.equals("blocking") && !value.equals("nio")) {
+                    throw new IllegalArgumentException("unknown engine " + value);
+                }
+                engine = value;
+                break;
+            case "event-loops":
+                eventLoops = Integer.parseInt(value);
+                break;
+            case "threads":
+                if (!value.equals("platform") && !value.equals("virtual")) {
+                    throw new IllegalArgumentException("unknown thread mode " + value);
+                }
+                threads = value;
+                break;
+            case "tunnel":
+                if (!value.equals("relay") && !value.equals("threads")) {
+                    throw new IllegalArgumentException("unknown tunnel mode " + value);
+                }
+                tunnel = value;
+                break;
+            case "tunnel-threads":
+                tunnelThreads = Integer.parseInt(value);
+                break;
+            case "pipeline-depth":
+                pipelineDepth = Integer.parseInt(value);
+                if (pipelineDepth < 1) {
+                    throw new IllegalArgumentException("pipeline depth must be at least 1");
+                }
+                break;
+            case "max-connections":
+                maxConnections = Integer.parseInt(value);
+                break;
+            case "accept-queue":
+                acceptQueue = Integer.parseInt(value);
+                break;
+            case "accept-queue-timeout":
+                acceptQueueTimeout = Long.parseLong(value);
+                break;
+            case "listen":
+                listen.clear();
+                for (String address : value.split(",")) {
+                    address = address.trim();
+                    if (!address.isEmpty()) {
+                        listen.add(address);
+                    }
+                }
+                break;
+            case "listeners":
+                listeners = Integer.parseInt(value);
+                if (listeners < 1) {
+                    throw new IllegalArgumentException("listeners must be at least 1");
+                }
+                break;
+            case "accept-backlog":
+                acceptBacklog = Integer.parseInt(value);
+                if (acceptBacklog < 1) {
+                    throw new IllegalArgumentException("accept backlog must be at least 1");
+                }
+                break;
+            case "retry-after":
+                retryAfter = Integer.parseInt(value);
+                if (retryAfter < 0) {
+                    throw new IllegalArgumentException("retry-after must not be negative");
+                }
+                break;
+            case "idle-timeout":
+                idleTimeout = Long.parseLong(value);
+                break;
+            case "head-timeout":
+                headTimeout = Long.parseLong(value);
+                break;
+            case "body-timeout":
+                bodyTimeout = Long.parseLong(value);
+                break;
+            case "tunnel-idle-timeout":
+                tunnelIdleTimeout = Long.parseLong(value);
+                break;
+            case "max-head-size":
+                maxHeadSize = Integer.parseInt(value);
+                break;
+            case "max-headers":
+                maxHeaders = Integer.parseInt(value);
+                break;
+            case "connect-timeout":
+                connectTimeout = Long.parseLong(value);
+                break;
+            case "connect-attempt-timeout":
+                connectAttemptTimeout = Long.parseLong(value);
+                break;
+            case "connect-attempt-delay":
+                connectAttemptDelay = Long.parseLong(value);
+                if (connectAttemptDelay < 1) {
+                    throw new IllegalArgumentException("connect attempt delay must be at least 1");
+                }
+                break;
+            case "pool-max-per-host":
+                poolMaxPerHost = Integer.parseInt(value);
+                if (poolMaxPerHost < 1) {
+                    throw new IllegalArgumentException("pool max per host must be at least 1");
+                }
+                break;
+            case "max-upstream":
+                maxUpstream = Integer.parseInt(value);
+                if (maxUpstream < 0) {
+                    throw new IllegalArgumentException("max upstream can't be negative");
+                }
+                break;
+            case "pool-max-waiting":
+                poolMaxWaiting = Integer.parseInt(value);
+                if (poolMaxWaiting < 0) {
+                    throw new IllegalArgumentException("pool max waiting can't be negative");
+                }
+                break;
+            case "pool-idle-timeout":
+                poolIdleTimeout = Long.parseLong(value);
+                break;
+            case "pool-acquire-timeout":
+                poolAcquireTimeout = Long.parseLong(value);
+                break;
+            case "h2c-streams":
+                h2cStreams = Integer.parseInt(value);
+                break;
+            case "h2c-origins":
+                parseOrigins(value, 80, "h2c", h2cOrigins);
+                break;
+            case "h2c-origin-connections":
+                h2cOriginConnections = Integer.parseInt(value);
+                if (h2cOriginConnections < 1) {
+                    throw new IllegalArgumentException("h2c origin connections must be at least 1");
+                }
+                break;
+            case "tls-origins":
+                parseOrigins(value, 443, "TLS", tlsOrigins);
+                break;
+            case "tls-trust-store":
+                tlsTrustStore = value;
+                break;
+            case "tls-trust-store-password":
+                tlsTrustStorePassword = value;
+                break;
+            case "tls-sessions":
+                tlsSessions = Integer.parseInt(value);
+                if (tlsSessions < 1) {
+                    throw new IllegalArgumentException("TLS sessions must be at least 1");
+                }
+                break;
+            case "tls-session-timeout":
+                tlsSessionTimeout = Long.parseLong(value);
+                if (tlsSessionTimeout < 1000) {
+                    throw new IllegalArgumentException("TLS session timeout must be at least 1000");
+                }
+                break;
+            case "route":
+                routes.add(value);
+                break;
+            case "balance":
+                if (!value.equals("least-requests") && !value.equals("peak-ewma")) {
+                    throw new IllegalArgumentException("unknown balancing " + value);
+                }
+                balance = value;
+                break;
+            case "health-path":
+                if (!value.startsWith("/")) {
+                    throw new IllegalArgumentException("health path must start with /");
+                }
+                healthPath = value;
+                break;
+            case "health-interval":
+                healthInterval = Long.parseLong(value);
+                if (healthInterval < 0) {
+                    throw new IllegalArgumentException("health interval can't be negative");
+                }
+                break;
+            case "health-timeout":
+                healthTimeout = Long.parseLong(value);
+                if (healthTimeout < 1) {
+                    throw new IllegalArgumentException("health timeout must be at least 1");
+                }
+                break;
+            case "unhealthy-threshold":
+                unhealthyThreshold = Integer.parseInt(value);
+                if (unhealthyThreshold < 1) {
+                    throw new IllegalArgumentException("unhealthy threshold must be at least 1");
+                }
+                break;
+            case "healthy-threshold":
+                healthyThreshold = Integer.parseInt(value);
+                if (healthyThreshold < 1) {
+                    throw new IllegalArgumentException("healthy threshold must be at least 1");
+                }
+                break;
+            case "warm-connections":
+                warmConnections = Integer.parseInt(value);
+                if (warmConnections < 0) {
+                    throw new IllegalArgumentException("warm connections can't be negative");
+                }
+                break;
+            case "cache-size":
+                cacheSize = Long.parseLong(value);
+                break;
+            case "cache-max-object":
+                cacheMaxObject = Long.parseLong(value);
+                break;
+            case "collapse-timeout":
+                collapseTimeout = Long.parseLong(value);
+                break;
+            case "compress-level":
+                compressLevel = Integer.parseInt(value);
+                if (compressLevel < 0 || compressLevel > 9) {
+                    throw new IllegalArgumentException("compress level must be from 0 to 9");
+                }
+                break;
+            case "compress-min-size":
+                compressMinSize = Long.parseLong(value);
+                break;
+            case "disk-cache-dir":
+                diskCacheDir = value;
+                break;
+            case "disk-cache-size":
+                diskCacheSize = Long.parseLong(value);
+                break;
+            case "disk-cache-segment":
+                diskCacheSegment = Integer.parseInt(value);
+                break;
+            case "dns-ttl":
+                dnsTtl = Long.parseLong(value);
+                break;
+            case "dns-negative-ttl":
+                dnsNegativeTtl = Long.parseLong(value);
+                break;
+            case "metrics-path":
+                if (!value.isEmpty() && !value.startsWith("/")) {
+                    throw new IllegalArgumentException("metrics path must start with /");
+                }
+                metricsPath = value;
+                break;
+            case "access-log":
+                accessLog = value;
+                break;
+            case "access-log-size":
+                accessLogSize = Long.parseLong(value);
+                break;
+            case "access-log-files":
+                accessLogFiles = Integer.parseInt(value);
+                break;
+            case "access-log-buffer":
+                accessLogBuffer = Integer.parseInt(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option --" + name);
+        }
+    }
+
+    /**
+     * Parse a comma separated list of host:port origins into a set, lower casing the hosts and giving the ones
+     * without a port the default one.
+     */
+    private static void parseOrigins(String value, int defaultPort, String what, Set<String> origins) {
+        origins.clear();
+        for (String origin : value.split(",")) {
+            origin = origin.trim().toLowerCase(Locale.ROOT);
+            if (origin.isEmpty()) continue;
+            int colon = origin.lastIndexOf(':');
+            if (colon == -1) {
+                origin += ":" + defaultPort;
+            } else if (colon == 0 || Integer.parseInt(origin.substring(colon + 1)) <= 0) {
+                throw new IllegalArgumentException("bad " + what + " origin " + origin);
+            }
+            origins.add(origin);
+        }
+    }
+}
@@ -2,44 +2,763 @@ package io.brennan.proxy;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Represents a thread that serves a single client connection.
+ * Serves a single client connection.  Despite the name, this is a Runnable: Main hands it to an executor, which runs it
+ * on either a platform thread or a virtual thread.  The code is written in plain blocking style either way.
  * Created by stephen on 3/18/16.
  */
-public class ProxyThread extends Thread {
+public class ProxyThread implements Runnable {
     static final Logger logger = Logger.getLogger(ProxyThread.class.getCanonicalName());
+    private static final AtomicLong ids = new AtomicLong();
 
+    // What the connection is doing, which decides which timeout applies.  Body and Tunnel time out only when no bytes
+    // have moved for their whole timeout.  Untimed is for a connection that something else now looks after: a tunnel
+    // handed to the relay, or an HTTP/2 connection whose streams are open.
+    private static final int IDLE = 0;
+    private static final int HEAD = 1;
+    private static final int BODY = 2;
+    private static final int TUNNEL = 3;
+    private static final int UNTIMED = 4;
+    private static final int EXPIRED = 5;
+
+    private final long id = ids.incrementAndGet();
     private Socket client;
+    private Admission.Slot slot;
+    private ProxyConfig config;
+    private UpstreamPool pool;
+    private Routes routes;
+    private Executor executor;
+    private TunnelRelay relay;
+    private ResponseCache cache;
+    private RequestCollapser collapser;
+    private Compression compression;
+    private Connector connector;
+    private TimerWheel timers;
+    private TimerWheel.Timer timer;
+
+    // The timeout state.  The timer task runs on the wheel thread, so all of this is shared with it.
+    private final AtomicInteger phase = new AtomicInteger(HEAD);
+    private volatile long progressMark;
+    private volatile Socket origin; // what a stalled exchange or tunnel is blocked on, to be closed with the client
+    private final Set<Socket> early = ConcurrentHashMap.newKeySet(); // origins of pipelined requests sent early
+    private final AtomicLong sentDirect = new AtomicLong(); // cached bodies sent past the client's counting stream
+    private volatile HttpMessage transferring;
+    private volatile ConnectTunnelOneDirection[] tunnel;
+    private volatile String expired; // the access log note for the timeout that closed the connection
+    private volatile HttpRequest current;
+    private volatile String currentStatus;
+    private volatile long currentStarted;
+
+    // Byte counts on the client connection, and where they stood when the current request started.
+    private CountingInputStream clientCountIn;
+    private CountingOutputStream clientCountOut;
+    private long receivedBefore;
+    private long sentBefore;
 
-    public ProxyThread(Socket client) {
+    /**
+     * Create a connection handler.
+     * @param client The accepted client socket.
+     * @param slot The connection's place from Admission, released when the connection closes.
+     * @param config Proxy configuration.
+     * @param pool Pool of origin connections.
+     * @param routes Reverse proxy routes, or null if there are none.
+     * @param executor Executor to run the extra direction of CONNECT tunnels on.
+     * @param relay Relay for CONNECT tunnels, or null to tunnel with ConnectTunnelOneDirection.
+     * @param cache Shared response cache, or null if caching is off.
+     * @param collapser Collapsed forwarding for cache misses, or null if that is off.
+     * @param compression Compression of responses, or null if that is off.
+     * @param connector Opens connections for CONNECT tunnels.
+     * @param timers Timer wheel for the connection's timeouts.
+     */
+    public ProxyThread(Socket client, Admission.Slot slot, ProxyConfig config, UpstreamPool pool, Routes routes,
+                       Executor executor, TunnelRelay relay, ResponseCache cache, RequestCollapser collapser,
+                       Compression compression, Connector connector, TimerWheel timers) {
         this.client = client;
+        this.slot = slot;
+        this.config = config;
+        this.pool = pool;
+        this.routes = routes;
+        this.executor = executor;
+        this.relay = relay;
+        this.cache = cache;
+        this.collapser = collapser;
+        this.compression = compression;
+        this.connector = connector;
+        this.timers = timers;
+        this.timer = timers.newTimer(this::timedOut);
+    }
+
+    /**
+     * Return an ID number for this connection, for log messages.
+     * @return connection ID
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Write the current request to the access log.
+     * @param request The request, which may be null if it couldn't be parsed.
+     * @param status Status we answered with, or null.
+     * @param direct Bytes sent to the client without going through its stream (see CachedResponse.writeTo()).
+     * @param started When the request started, from System.nanoTime().
+     * @param note How the request was served.
+     */
+    private void access(HttpRequest request, String status, long direct, long started, String note) {
+        long received = clientCountIn.count() - receivedBefore;
+        long sent = clientCountOut.count() - sentBefore + direct;
+        AccessLog.log(id, client.getInetAddress(), request, status, received, sent, System.nanoTime() - started,
+                note);
+    }
+
+    /**
+     * Move the connection into a new phase, and set the timer for it.  The timer is set first, so that if the old
+     * phase's timer goes off meanwhile, it finds the old phase and expires that.
+     * @param next The new phase.
+     * @param timeout Its timeout in milliseconds, or zero for none.
+     * @throws IOException if the connection already timed out, and has been closed
+     */
+    private void enter(int next, long timeout) throws IOException {
+        if (next == BODY || next == TUNNEL) {
+            progressMark = progress();
+        }
+        if (timeout > 0) {
+            timer.arm(timeout);
+        } else {
+            timer.disarm();
+        }
+        if (phase.getAndSet(next) == EXPIRED) {
+            phase.set(EXPIRED);
+            timer.disarm();
+            throw new IOException("Connection timed out.");
+        }
+    }
+
+    /**
+     * Return a count that goes up whenever bytes move on this connection.
+     */
+    private long progress() {
+        long n = clientCountIn.count() + clientCountOut.count() + sentDirect.get();
+        HttpMessage message = transferring;
+        if (message != null) {
+            n += message.transferred();
+        }
+        ConnectTunnelOneDirection[] directions = tunnel;
+        if (directions != null) {
+            n += directions[0].getBytes() + directions[1].getBytes();
+        }
+        return n;
+    }
+
+    /**
+     * The timer went off.  This runs on the wheel thread, so it mustn't block: it just closes the sockets, and the
+     * connection's own thread finds out when its next read or write fails.  Not even a 408 for a client that took too
+     * long over its request head: a client that stopped reading an earlier response may have left no room to write
+     * one, and a write that blocked here would hold up every other timeout in the proxy.
+     */
+    private void timedOut() {
+        if (timer.isArmed()) {
+            return; // armed again just as it went off
+        }
+        int p = phase.get();
+        if (p == BODY || p == TUNNEL) {
+            long progress = progress();
+            if (progress != progressMark) {
+                progressMark = progress;
+                timer.rearm(p == BODY ? config.bodyTimeout : config.tunnelIdleTimeout);
+                return;
+            }
+        }
+        if (p == UNTIMED || p == EXPIRED || !phase.compareAndSet(p, EXPIRED)) {
+            return;
+        }
+        switch (p) {
+            case IDLE:
+                Metrics.idleTimeouts.increment();
+                expired = "IDLE-TIMEOUT";
+                break;
+            case HEAD:
+                Metrics.headTimeouts.increment();
+                expired = "HEAD-TIMEOUT";
+                break;
+            case BODY:
+                Metrics.bodyTimeouts.increment();
+                expired = "BODY-TIMEOUT";
+                break;
+            default:
+                Metrics.tunnelTimeouts.increment();
+                expired = "TUNNEL-TIMEOUT";
+                break;
+        }
+        try {
+            client.close();
+        } catch (IOException e) {}
+        Socket server = origin;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {}
+        }
+        // The requests a pipelining client sent early are blocked on their origins too, on the executor, and this
+        // connection's thread may be waiting on one of them.
+        for (Socket socket : early) {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
     }
 
-    private void connectForwarding(Socket client, HttpRequest request) throws IOException {
+    /**
+     * Check whether the client would like the connection kept alive, and then modify the request headers for sending
+     * to the origin.  Both engines do this to every request they forward.
+     * @param request The request from the client.
+     * @return true if the client asked us to keep its connection alive
+     */
+    static boolean prepareRequest(HttpRequest request) {
+        HttpHeaders headers = request.getHeaders();
+        String connection = headers.get(HeaderName.CONNECTION);
+        String proxyConnection = headers.get(HeaderName.PROXY_CONNECTION);
+        boolean keepAlive = "keep-alive".equalsIgnoreCase(connection) || "keep-alive".equalsIgnoreCase(proxyConnection);
+
+        headers.remove(HeaderName.PROXY_CONNECTION);
+        headers.set(HeaderName.CONNECTION, "keep-alive");
+        headers.set(HeaderName.HOST, request.getDestinationHost());
+        String upgrade = headers.get(HeaderName.UPGRADE);
+        if (upgrade != null && (upgrade.equals("h2") || upgrade.equals("h2c"))) {
+            // An upgrade we take is dealt with before this.  Passing one on would have the origin switch a
+            // connection that the pool thinks is HTTP/1.1.
+            headers.remove(HeaderName.UPGRADE);
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Set up a tunnel for a CONNECT request.  If the client socket has a channel and we have a TunnelRelay, the tunnel
+     * is handed to the relay and this thread is free to finish.  Otherwise, we fall back on a pair of
+     * ConnectTunnelOneDirection tasks, one of which runs on this thread.  Either way, anything the client sent after the
+     * CONNECT head that is still in our read buffer is sent to the server first.
+     * @return true if the relay now owns the client connection, so we must not close it
+     */
+    private boolean connectForwarding(Socket client, HttpInputStream clientInput, HttpRequest request)
+            throws IOException {
         String[] urlparts = request.getUrl().split(":", 2);
-        Socket server;
+        boolean relayed = relay != null && client.getChannel() != null;
+        Socket server = null;
+        SocketChannel serverChannel = null;
         try {
-            server = new Socket(urlparts[0], Integer.parseInt(urlparts[1]));
+            long start = System.nanoTime();
+            serverChannel = connector.connect(urlparts[0], Integer.parseInt(urlparts[1]));
+            server = serverChannel.socket();
+            Metrics.upstreamConnect.record(System.nanoTime() - start);
         } catch (Exception e) {
             // When we can't connect to the server, we should return a error response.
+            Metrics.errors.increment();
             try {
-                client.getOutputStream().write("404 Not Found\r\n\r\n".getBytes());
+                client.getOutputStream().write("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n".getBytes());
+                access(request, "502", 0, clientInput.headStarted(), "CONNECT-FAILED");
             } finally {
+                return false;
+            }
+        }
+        client.getOutputStream().write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes());
+        clientInput.drainTo(server.getOutputStream());
+        Metrics.tunnelOpened();
+        if (relayed) {
+            // The relay writes the access log record, gives up our place, and times the tunnel out.
+            enter(UNTIMED, 0);
+            relay.relay(client.getChannel(), serverChannel, getId(), client.getInetAddress(), request, slot);
+            return true;
+        }
+        long started = clientInput.headStarted();
+        ConnectTunnelOneDirection upstream = new ConnectTunnelOneDirection(client, server, "client to server");
+        ConnectTunnelOneDirection downstream = new ConnectTunnelOneDirection(server, client, "server to client");
+        origin = server;
+        tunnel = new ConnectTunnelOneDirection[] {upstream, downstream};
+        enter(TUNNEL, config.tunnelIdleTimeout);
+        executor.execute(upstream);
+        downstream.run();
+        Metrics.tunnelClosed();
+        AccessLog.log(id, client.getInetAddress(), request, "200", upstream.getBytes(), downstream.getBytes(),
+                System.nanoTime() - started, expired != null ? expired : "TUNNEL");
+        return false;
+    }
+
+    /**
+     * The origin's half of a request: the connection it went over, the backend it went to if a route chose one, and the
+     * response head.  The response body is still waiting to be read from the connection.
+     */
+    private static class Exchange {
+        final UpstreamPool.Connection server;
+        final Routes.Backend backend;
+        final HttpResponse response;
+        final long requestTime;
+        final long responseTime;
+
+        Exchange(UpstreamPool.Connection server, Routes.Backend backend, HttpResponse response, long requestTime,
+                 long responseTime) {
+            this.server = server;
+            this.backend = backend;
+            this.response = response;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+        }
+    }
+
+    /**
+     * A request that a pipelining client sent before we had answered the ones ahead of it.  If it is safe to send
+     * early, its exchange with the origin runs on the executor in the meantime.  Either way, it is answered in turn.
+     */
+    private static class Pipelined {
+        final HttpRequest request;
+        final HeadTooLargeException tooLarge;
+        final long started;
+        final boolean keepAlive;
+        CompletableFuture<Exchange> exchange; // null if it is sent when its turn comes
+
+        Pipelined(HttpRequest request, HeadTooLargeException tooLarge, long started, boolean keepAlive) {
+            this.request = request;
+            this.tooLarge = tooLarge;
+            this.started = started;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    /**
+     * Send a request to its origin over a pooled connection and read the response head.  If a reused connection turns
+     * out to be dead before any of the response arrived, and the request may safely be sent again (see canRetry()),
+     * retry it on another connection.  A request
+     * that matches a route goes to the backend the route picks instead, and counts as outstanding there until the
+     * exchange is released.
+     * @param request The request, with its headers already prepared.
+     * @param wait Whether to wait for a connection when the origin is at its cap.  A request sent before its turn
+     *             doesn't, and doesn't take the origin's last connection either (see UpstreamPool.acquireEarly()).
+     * @return The exchange, or null if we weren't to wait and there was no connection to be had.
+     * @throws IOException if the request can't be sent or the response head can't be read
+     */
+    private Exchange exchange(HttpRequest request, boolean wait) throws IOException {
+        long requestTime = System.currentTimeMillis();
+        Routes.Route route = routes == null ? null : routes.match(request);
+        Routes.Backend backend = route == null ? null : routes.choose(route);
+        String host = backend == null ? request.getDestinationHost() : backend.host;
+        int port = backend == null ? request.getDestinationPort() : backend.port;
+        boolean secure = backend == null ? request.isSecure() : backend.secure;
+        if (backend != null) {
+            backend.started();
+        }
+        try {
+            for (;;) {
+                UpstreamPool.Connection server = wait ? pool.acquire(host, port, secure)
+                        : pool.acquireEarly(host, port, secure);
+                if (server == null) {
+                    if (backend != null) {
+                        backend.finished();
+                    }
+                    return null;
+                }
+                if (wait) {
+                    origin = server.getSocket(); // only the connection's own thread waits, so it's what we block on
+                } else {
+                    // Sent early, on the executor: the timer closes it along with the client, and if the timer has
+                    // gone off already, it has to be closed here, since the timer won't see it.
+                    early.add(server.getSocket());
+                    if (phase.get() == EXPIRED) {
+                        server.getSocket().close();
+                    }
+                }
+                long forwarded = 0;
+                try {
+                    long forwardStart = System.nanoTime();
+                    request.forwardMessage(server.getOutputStream());
+                    forwarded = System.nanoTime();
+                    HttpResponse response = new HttpResponse(server.getInputStream(), request);
+                    Metrics.requestForward.record(forwarded - forwardStart);
+                    Metrics.firstByte.record(server.getInputStream().headStarted() - forwarded);
+                    if (backend != null) {
+                        backend.observe(System.nanoTime() - forwardStart);
+                    }
+                    return new Exchange(server, backend, response, requestTime, System.currentTimeMillis());
+                } catch (IOException e) {
+                    early.remove(server.getSocket());
+                    pool.release(server, false);
+                    // The head's start time is only this response's once the request has gone out.
+                    boolean answered = forwarded != 0 && server.getInputStream().headStarted() != 0;
+                    if (!server.isReused() || answered || !canRetry(request) || phase.get() == EXPIRED) {
+                        throw e;
+                    }
+                    logger.fine("Thread " + getId() + ": stale pooled connection, retrying");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (backend != null) {
+                backend.finished();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return true if a request may be sent again after the connection it went out on failed, since the origin may have
+     * acted on it before the connection went.  RFC 7230 section 6.3.1 allows that only for idempotent methods, and
+     * only if there is no body to send again.
+     */
+    private static boolean canRetry(HttpRequest request) {
+        if (request.bodyType() != BodyType.None) {
+            return false;
+        }
+        switch (request.getMethod()) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+            case "TRACE":
+            case "PUT":
+            case "DELETE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Finish with an exchange: put its connection back in the pool, or close it, and stop counting it against its
+     * backend.  The connection stops being ours to close on a timeout first, since once it is in the pool it may be
+     * carrying another client's request.
+     */
+    private void release(Exchange exchange, boolean reusable) {
+        Socket socket = exchange.server.getSocket();
+        if (origin == socket) {
+            origin = null;
+        }
+        early.remove(socket);
+        pool.release(exchange.server, reusable);
+        if (exchange.backend != null) {
+            exchange.backend.finished();
+        }
+    }
+
+    /**
+     * Pass any interim (1xx) responses on to the client as they arrive, like the 100 Continue a request with Expect:
+     * 100-continue gets, and return the final response that follows them on the same connection.  An HTTP/1.0 client
+     * doesn't get them, since it wouldn't know what they were.  If reading one fails, the exchange is released.
+     * @param exchange The exchange, with the first response head read.
+     * @param request The request.
+     * @param clientOut Stream to the client.
+     * @return the final response
+     * @throws IOException if the client can't be written to or the next head can't be read
+     */
+    private HttpResponse finalResponse(Exchange exchange, HttpRequest request, OutputStream clientOut)
+            throws IOException {
+        HttpResponse response = exchange.response;
+        try {
+            while (response.isInterim()) {
+                if (!request.getVersion().equals("HTTP/1.0")) {
+                    response.forwardMessage(clientOut);
+                    clientOut.flush();
+                }
+                response = new HttpResponse(exchange.server.getInputStream(), request);
+            }
+        } catch (IOException | RuntimeException e) {
+            release(exchange, false);
+            throw e;
+        }
+        return response;
+    }
+
+    /**
+     * Return true if a request was sent to us as its origin server (with just a path) but matches none of our routes,
+     * so that there is nowhere to send it.  Without routes, such a request goes where its Host header says.
+     */
+    private boolean unrouted(HttpRequest request) {
+        return routes != null && !request.hasHostInUrl() && routes.match(request) == null;
+    }
+
+    /**
+     * Return true if we may read the next request off the connection while this one is still being answered.  That
+     * rules out requests with bodies (the body is next in the stream, not a head), anything but GET and HEAD (whose
+     * effects later requests might depend on), CONNECT, and a request that wants the connection closed.
+     */
+    private static boolean canReadPast(HttpRequest request, boolean keepAlive) {
+        String method = request.getMethod();
+        return keepAlive && request.bodyType() == BodyType.None && (method.equals("GET") || method.equals("HEAD"));
+    }
+
+    /**
+     * Return true if a request read ahead may go to its origin before its turn.  If the cache has something for it, it
+     * waits, so that the copy can be served or revalidated in turn.
+     */
+    private boolean canSendEarly(HttpRequest request) {
+        String method = request.getMethod();
+        if (!(method.equals("GET") || method.equals("HEAD")) || request.bodyType() != BodyType.None ||
+                Metrics.isScrape(request, config.metricsPath) || unrouted(request)) {
+            return false;
+        }
+        if (cache != null && cache.isCacheable(request)) {
+            return !ResponseCache.requestCacheControl(request).has("only-if-cached") && cache.lookup(request) == null;
+        }
+        return true;
+    }
+
+    /**
+     * Read the requests a pipelining client has already sent, without waiting for more, up to the pipeline depth.
+     * The ones that are safe to send early are started on the executor right away.
+     * @param clientInput The client's stream.
+     * @param ahead Requests read ahead so far, which this adds to.
+     * @param last The last request read off the connection.
+     * @param lastKeepAlive Whether that request asked to keep the connection alive.
+     */
+    private void readAhead(HttpInputStream clientInput, ArrayDeque<Pipelined> ahead, HttpRequest last,
+                           boolean lastKeepAlive) throws IOException {
+        while (ahead.size() + 1 < config.pipelineDepth && canReadPast(last, lastKeepAlive) && clientInput.hasHead()) {
+            HttpRequest request;
+            try {
+                request = new HttpRequest(clientInput);
+            } catch (HeadTooLargeException e) {
+                ahead.addLast(new Pipelined(null, e, clientInput.headStarted(), false)); // answered with a 431
                 return;
             }
+            long started = clientInput.headStarted();
+            Metrics.headParse.record(System.nanoTime() - started);
+            boolean keepAlive = !request.getMethod().equals("CONNECT") && prepareRequest(request);
+            Pipelined pipelined = new Pipelined(request, null, started, keepAlive);
+            if (canSendEarly(request)) {
+                CompletableFuture<Exchange> exchange = new CompletableFuture<>();
+                executor.execute(() -> {
+                    try {
+                        exchange.complete(exchange(request, false));
+                    } catch (Throwable e) {
+                        exchange.completeExceptionally(e);
+                    }
+                });
+                pipelined.exchange = exchange;
+            }
+            ahead.addLast(pipelined);
+            last = request;
+            lastKeepAlive = keepAlive;
+        }
+    }
+
+    /**
+     * Wait for an exchange that was started early.
+     * @return The exchange, or null if it couldn't get a connection without waiting.
+     * @throws IOException if the exchange failed
+     */
+    private static Exchange await(CompletableFuture<Exchange> exchange) throws IOException {
+        try {
+            return exchange.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a pipelined request.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Forget requests that were read ahead but will never be answered, because the connection is finishing.  Any that
+     * went to an origin early close their connections whenever they finish, since their responses will never be read.
+     */
+    private void abandon(ArrayDeque<Pipelined> ahead) {
+        for (Pipelined pipelined : ahead) {
+            if (pipelined.exchange != null) {
+                pipelined.exchange.thenAccept(exchange -> {
+                    if (exchange != null) {
+                        release(exchange, false);
+                    }
+                });
+            }
+        }
+        ahead.clear();
+    }
+
+    /**
+     * Answer a request by following another client's fetch of the same response.
+     * @param follower Our place in the other fetch.
+     * @param request The request.
+     * @param clientOut Client stream.
+     * @param keepAlive Whether to tell the client the connection stays open.
+     * @return The response status, or null if the fetch couldn't be shared and we have to make our own.
+     * @throws IOException if writing to the client fails, or the other fetch fails part way through
+     */
+    private String follow(RequestCollapser.Follower follower, HttpRequest request, OutputStream clientOut,
+                          boolean keepAlive) throws IOException {
+        try {
+            if (!follower.await(request)) {
+                return null;
+            }
+            // The fetch is fed exactly what its leader's client gets, so all we change is the Connection header.
+            HttpInputStream input = new HttpInputStream(follower, config.maxHeadSize, config.maxHeaders);
+            HttpResponse response = new HttpResponse(input);
+            response.getHeaders().set(HeaderName.CONNECTION, keepAlive ? "keep-alive" : "close");
+            response.forwardHeaders(clientOut);
+            byte[] buffer = BufferPool.array(HttpMessage.BUFFER_SIZE);
+            try {
+                int n;
+                while ((n = input.read(buffer)) != -1) {
+                    clientOut.write(buffer, 0, n);
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+            clientOut.flush();
+            return response.getStatus();
+        } finally {
+            follower.leave();
+        }
+    }
+
+    /**
+     * Decide whether to take a client up on an HTTP/1.1 request to upgrade to h2c.  We only do so for a connection's
+     * first request, and only when it has no body and nothing has been sent after it, since the client sends nothing
+     * else until it sees our 101.
+     * @return the decoded HTTP2-Settings, or null to answer the request over HTTP/1.1 as usual
+     */
+    private byte[] http2Upgrade(HttpRequest request, HttpInputStream clientInput, boolean first) {
+        HttpHeaders headers = request.getHeaders();
+        String upgrade = headers.get(HeaderName.UPGRADE);
+        String settings = headers.get("HTTP2-Settings");
+        if (!first || config.h2cStreams <= 0 || client instanceof Http2Stream.StreamSocket || upgrade == null ||
+                settings == null || !upgrade.trim().equalsIgnoreCase("h2c") || request.bodyType() != BodyType.None ||
+                request.getMethod().equals("CONNECT") || clientInput.buffered() > 0) {
+            return null;
+        }
+        try {
+            return Base64.getUrlDecoder().decode(settings.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Serve the client connection as HTTP/2, on this thread, until it closes.  Each stream the client opens is served
+     * by a ProxyThread of its own, on the executor, reading and writing HTTP/1.1 through the stream's StreamSocket.
+     * @param clientInput The client's stream, holding whatever has been read past the last head.
+     * @param clientOut The client's output.
+     * @param upgrade The request that asked to upgrade, which becomes stream 1, or null if the client started with the
+     *                HTTP/2 preface.
+     * @param settings The client's settings from the upgrade request.
+     */
+    private void serveHttp2(HttpInputStream clientInput, OutputStream clientOut, HttpRequest upgrade, byte[] settings)
+            throws IOException {
+        Http2Server server = new Http2Server();
+        Http2Connection connection = new Http2Connection(this.client, clientInput, clientOut, true, config.h2cStreams,
+                config.maxHeadSize, server);
+        Metrics.h2cConnections.increment();
+        if (upgrade != null) {
+            connection.applySettings(settings);
+            clientOut.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes());
+        }
+        connection.start();
+        enter(IDLE, config.idleTimeout);
+        if (upgrade != null) {
+            server.opened(connection.upgraded(upgradedFields(upgrade)));
+        }
+        connection.serve();
+    }
+
+    /**
+     * Turn a request that asked to upgrade back into the HTTP/2 fields it would have been sent as.
+     */
+    private static List<String> upgradedFields(HttpRequest request) {
+        List<String> fields = new ArrayList<>();
+        int port = request.getDestinationPort();
+        fields.add(":method");
+        fields.add(request.getMethod());
+        fields.add(":scheme");
+        fields.add("http");
+        fields.add(":authority");
+        fields.add(request.getDestinationHost() + (port == 80 ? "" : ":" + port));
+        fields.add(":path");
+        fields.add(request.getUrl());
+        request.getHeaders().forEach((name, value) -> {
+            String lower = name.toString().toLowerCase(Locale.ROOT);
+            if (!lower.equals("connection") && !lower.equals("upgrade") && !lower.equals("http2-settings") &&
+                    !lower.equals("host") && !lower.equals("proxy-connection") && !lower.equals("keep-alive")) {
+                fields.add(lower);
+                fields.add(value);
+            }
+        });
+        return fields;
+    }
+
+    /**
+     * Starts a ProxyThread for each stream of an HTTP/2 client connection, and keeps the connection under the idle
+     * timeout whenever it has no streams open.
+     */
+    private final class Http2Server implements Http2Connection.Listener {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int streams;
+
+        @Override
+        public void opened(Http2Stream stream) {
+            Metrics.h2cStreams.increment();
+            changed(1);
+            executor.execute(new ProxyThread(stream.socket(), slot.child(), config, pool, routes, executor, relay,
+                    cache, collapser, compression, connector, timers));
+        }
+
+        @Override
+        public void closed(Http2Stream stream) {
+            changed(-1);
+        }
+
+        @Override
+        public void ended(Http2Connection connection) {}
+
+        private void changed(int delta) {
+            lock.lock();
+            try {
+                streams += delta;
+                if (streams == 0) {
+                    enter(IDLE, config.idleTimeout);
+                } else if (streams == 1 && delta > 0) {
+                    enter(UNTIMED, 0);
+                }
+            } catch (IOException e) {
+                // Timed out already, and the connection is closed.
+            } finally {
+                lock.unlock();
+            }
         }
-        logger.info("Thread " + getId() + ": " + request.reassembleFirstLine() + "; 200 OK -> " +
-                urlparts[0] + ":" + urlparts[1]);
-        client.getOutputStream().write("204 No Content\r\n\r\n".getBytes());
-        new ConnectTunnelOneDirection(client, server, "client to server").start();
-        new ConnectTunnelOneDirection(server, client, "server to client").run();
     }
 
     public void run() {
+        // A connection that arrived while the proxy was full waits here for a place, on its own thread rather than the
+        // accept loop's.
+        if (!slot.await(this.client.getChannel())) {
+            return;
+        }
         logger.fine("Starting thread " + this.getId());
+        // One of an HTTP/2 connection's streams isn't a connection of its own, and its bytes are counted on the
+        // connection it came on.
+        boolean stream = this.client instanceof Http2Stream.StreamSocket;
+        if (!stream) {
+            Metrics.connectionOpened();
+        }
+        boolean handedOff = false;
+        ArrayDeque<Pipelined> ahead = new ArrayDeque<>();
         try {
             // This flag tracks whether the client would like us to close the connection afterwards.  We assume they do,
             // unless they use the Connection: keep-alive header.
@@ -50,78 +769,397 @@ public class ProxyThread extends Thread {
             // This way, we know that our messages get sent when we mean them to.
             this.client.setTcpNoDelay(true);
 
-            for (;;) {
-                // Read the request part.
-                HttpRequest request = new HttpRequest(this.client.getInputStream());
+            // One buffered stream for the whole connection, so bytes read past the end of one request are kept for
+            // the next.  They go to the socket's channel directly (see SocketStreams), since over HTTP/2 one thread
+            // reads the connection while others write to it.
+            clientCountIn = new CountingInputStream(SocketStreams.input(this.client, true),
+                    stream ? new LongAdder() : Metrics.bytesIn);
+            clientCountOut = new CountingOutputStream(SocketStreams.output(this.client),
+                    stream ? new LongAdder() : Metrics.bytesOut);
+            HttpInputStream clientInput = new HttpInputStream(clientCountIn, config.maxHeadSize, config.maxHeaders);
+            BufferedOutputStream clientOut = new BufferedOutputStream(clientCountOut);
+            enter(HEAD, config.headTimeout);
+
+            // A client with prior knowledge of HTTP/2 starts with its preface instead of a request.
+            if (config.h2cStreams > 0 && !stream && clientInput.startsWith(Http2Connection.PREFACE)) {
+                serveHttp2(clientInput, clientOut, null, null);
+                return;
+            }
+
+            for (boolean first = true; ; first = false) {
+                // Take the next request: either one we read ahead from a pipelining client, or the next one off the
+                // connection.  The byte counts for the access log are only approximate for pipelined requests, since
+                // their heads arrive in one read and their responses may be flushed together.
+                receivedBefore = clientCountIn.count();
+                sentBefore = clientCountOut.count();
+                Pipelined next = ahead.pollFirst();
+
+                // Between requests, the connection gets the idle timeout, and then the head timeout once the next
+                // request starts to arrive.  The first request's head is timed from when the client connected.
+                current = null;
+                currentStatus = "-";
+                origin = null;
+                if (next == null && !first) {
+                    enter(IDLE, config.idleTimeout);
+                    if (!clientInput.awaitData()) {
+                        break;
+                    }
+                    enter(HEAD, config.headTimeout);
+                }
+                HttpRequest request;
+                long started;
+                boolean keepAlive;
+                try {
+                    if (next != null) {
+                        if (next.tooLarge != null) {
+                            throw next.tooLarge;
+                        }
+                        request = next.request;
+                        started = next.started;
+                        keepAlive = next.keepAlive;
+                    } else {
+                        request = new HttpRequest(clientInput);
+                        started = clientInput.headStarted();
+                        Metrics.headParse.record(System.nanoTime() - started);
+                        byte[] settings = http2Upgrade(request, clientInput, first);
+                        if (settings != null) {
+                            serveHttp2(clientInput, clientOut, request, settings);
+                            return;
+                        }
+                        keepAlive = !request.getMethod().equals("CONNECT") && prepareRequest(request);
+                    }
+                } catch (HeadTooLargeException e) {
+                    enter(BODY, config.bodyTimeout);
+                    logger.fine("Thread " + getId() + ": " + e.getMessage());
+                    Metrics.errors.increment();
+                    clientOut.write(("HTTP/1.1 431 Request Header Fields Too Large\r\n" +
+                            "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes());
+                    clientOut.flush();
+                    access(null, "431", 0, clientInput.headStarted(), "HEAD-TOO-LARGE");
+                    break;
+                }
+                enter(BODY, config.bodyTimeout);
+                current = request;
+                currentStarted = started;
                 HttpHeaders headers = request.getHeaders();
 
-                // Handling for the CONNECT method.
+                // If the client has already sent more requests, read them now and start the safe ones, so that their
+                // origins are working on them while we answer this one.
+                Pipelined last = ahead.peekLast();
+                if (last == null) {
+                    readAhead(clientInput, ahead, request, keepAlive);
+                } else if (last.request != null) {
+                    readAhead(clientInput, ahead, last.request, last.keepAlive);
+                }
+
+                // Requests for our own metrics are answered here, not forwarded.
+                if (Metrics.isScrape(request, config.metricsPath)) {
+                    clientOut.write(Metrics.scrapeResponse(keepAlive));
+                    clientOut.flush();
+                    access(request, "200", 0, started, "METRICS");
+                    if (!keepAlive) {
+                        break;
+                    }
+                    continue;
+                }
+
+                // Handling for the CONNECT method.  A tunnel inside an HTTP/2 stream is more than we do.
+                if (request.getMethod().equals("CONNECT") && stream) {
+                    clientOut.write("HTTP/1.1 501 Not Implemented\r\nContent-Length: 0\r\n\r\n".getBytes());
+                    clientOut.flush();
+                    access(request, "501", 0, started, "H2-CONNECT");
+                    break;
+                }
                 if (request.getMethod().equals("CONNECT")) {
-                    connectForwarding(this.client, request);
+                    handedOff = connectForwarding(this.client, clientInput, request);
                     return;
                 }
 
-                // Log information about the request we received.
-                logger.fine(request.reassembleFirstLine() + " [BodyType " + request.bodyType() + "]" + getId());
-                logger.finest("Client Request:\n" + request.reassembleHeaders());
+                // As a reverse proxy, a request for a host and path we have no route for gets a 404.  One with a body
+                // closes the connection, since the body is still in the way of the next request.
+                if (unrouted(request)) {
+                    routes.unmatched();
+                    boolean close = !keepAlive || request.bodyType() != BodyType.None;
+                    clientOut.write(("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n" +
+                            (close ? "Connection: close\r\n" : "") + "\r\n").getBytes());
+                    clientOut.flush();
+                    Metrics.requests.increment();
+                    Metrics.request.record(System.nanoTime() - started);
+                    access(request, "404", 0, started, "NO-ROUTE");
+                    if (close) {
+                        break;
+                    }
+                    continue;
+                }
 
-                // Check whether the client would like us to keep the connection alive.
-                if (headers.contains("Connection") && headers.get("Connection").equals("keep-alive") ||
-                        headers.contains("Proxy-Connection") && headers.get("Proxy-Connection").equals("keep-alive")) {
+                // Log information about the request we received.  Reassembling the head isn't free, so only do it
+                // when someone will see it.
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine(request.reassembleFirstLine() + " [BodyType " + request.bodyType() + "]" + getId());
+                }
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.finest("Client Request:\n" + request.reassembleHeaders());
+                }
+
+                // Check whether the client would like us to keep the connection alive.  The headers were already
+                // modified for forwarding when the request was read.
+                if (keepAlive) {
                     clientWantsClose = false;
                 }
 
-                // Modify some headers.
-                headers.remove("Proxy-Connection");
-                headers.set("Connection", "close");
-                headers.set("Host", request.getDestinationHost());
-                if (headers.contains("Upgrade") && (headers.get("Upgrade").equals("h2") || headers.get("Upgrade").equals("h2c"))) {
-                    headers.remove("Upgrade"); // we shall not support no HTTP/2
-                    // but let's be honest, if your browser is dumb enough to ask an HTTP/1.1 proxy to upgrade to
-                    // HTTP/2, it kinda deserves to have everything crash and burn.
+                // See whether the cache can answer.  A fresh entry is served without going near the origin.  A stale
+                // one with a validator turns this into a conditional request, so the origin can just say 304.
+                // A request that already went out early found nothing in the cache, so it doesn't look again.
+                boolean sentEarly = next != null && next.exchange != null;
+                boolean cacheable = cache != null && cache.isCacheable(request);
+                CachedResponse revalidating = null;
+                if (cache != null && ResponseCache.isUnsafe(request.getMethod())) {
+                    cache.invalidate(request);
+                }
+                if (cacheable && !sentEarly) {
+                    CacheControl requestCacheControl = ResponseCache.requestCacheControl(request);
+                    CachedResponse cached = cache.lookup(request);
+                    long now = System.currentTimeMillis();
+                    if (cached != null && cached.isFresh(requestCacheControl, now)) {
+                        cache.recordHit();
+                        enter(BODY, config.bodyTimeout);
+                        long direct = cached.writeTo(clientOut, this.client.getChannel(), !clientWantsClose, now,
+                                sentDirect);
+                        Metrics.requests.increment();
+                        Metrics.request.record(System.nanoTime() - started);
+                        access(request, cached.status, direct, started, "HIT");
+                        if (clientWantsClose) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (requestCacheControl.has("only-if-cached")) {
+                        clientOut.write(("HTTP/1.1 504 Gateway Timeout\r\nContent-Length: 0\r\n" +
+                                (clientWantsClose ? "Connection: close\r\n" : "") + "\r\n").getBytes());
+                        clientOut.flush();
+                        Metrics.requests.increment();
+                        Metrics.request.record(System.nanoTime() - started);
+                        access(request, "504", 0, started, "NOT-CACHED");
+                        if (clientWantsClose) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (cached != null && cached.canRevalidate() && !headers.contains("If-None-Match") &&
+                            !headers.contains("If-Modified-Since")) {
+                        revalidating = cached;
+                        if (cached.etag != null) {
+                            headers.set("If-None-Match", cached.etag);
+                        }
+                        if (cached.lastModified != null) {
+                            headers.set("If-Modified-Since", cached.lastModified);
+                        }
+                    }
                 }
 
-                // Open a socket to the server, and forward the message.
-                Socket server = new Socket(request.getDestinationHost(), request.getDestinationPort());
-                request.forwardMessage(new BufferedOutputStream(server.getOutputStream()));
-                HttpResponse response = new HttpResponse(server.getInputStream());
+                // On a plain miss, if another client is already fetching the same thing, follow its fetch rather than
+                // making another.  Otherwise, lead a fetch that later requests can follow.
+                RequestCollapser.Flight flight = null;
+                if (cacheable && !sentEarly && revalidating == null && collapser != null) {
+                    String key = ResponseCache.keyFor("GET", request);
+                    RequestCollapser.Follower follower = collapser.follow(key);
+                    if (follower == null) {
+                        flight = collapser.lead(key);
+                    } else {
+                        String status = follow(follower, request, clientOut, !clientWantsClose);
+                        if (status != null) {
+                            Metrics.requests.increment();
+                            Metrics.request.record(System.nanoTime() - started);
+                            access(request, status, 0, started, "COLLAPSED");
+                            if (clientWantsClose) {
+                                break;
+                            }
+                            continue;
+                        }
+                    }
+                }
+
+                // Get the response head from the origin: either the request already went out early, or we send it now
+                // over a pooled connection.  An early request that found its origin at the connection cap didn't go
+                // out at all, so it is sent now too.  Any interim responses go on to the client ahead of the final one.
+                Exchange exchange = null;
+                HttpResponse response;
+                try {
+                    if (sentEarly) {
+                        exchange = await(next.exchange);
+                    }
+                    if (exchange == null) {
+                        exchange = exchange(request, true);
+                    }
+                    response = finalResponse(exchange, request, clientOut);
+                } catch (IOException | RuntimeException e) {
+                    if (flight != null) {
+                        flight.fail();
+                    }
+                    if (e instanceof UpstreamBusyException) {
+                        // Too many requests are queued for origin connections already.  Tell the client to come back
+                        // later, and hang up, which takes its other requests out of the queue too.
+                        logger.fine("Thread " + getId() + ": " + e.getMessage());
+                        clientOut.write(Admission.busyResponse(config.retryAfter));
+                        clientOut.flush();
+                        Metrics.requests.increment();
+                        Metrics.request.record(System.nanoTime() - started);
+                        access(request, "503", 0, started, "SHED");
+                        break;
+                    }
+                    throw e;
+                }
+                UpstreamPool.Connection server = exchange.server;
+                currentStatus = response.getStatus();
 
                 // Log information about the response we received.
-                logger.fine(response.reassembleFirstLine() + " [BodyType " + request.bodyType() + "]" + getId());
-                logger.finest("Server response:\n" + response.reassembleHeaders());
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine(response.reassembleFirstLine() + " [BodyType " + response.bodyType() + "]" + getId());
+                }
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.finest("Server response:\n" + response.reassembleHeaders());
+                }
 
                 // Edit some headers.
                 headers = response.getHeaders();
                 if (!clientWantsClose) {
-                    headers.set("Connection", "keep-alive");
+                    headers.set(HeaderName.CONNECTION, "keep-alive");
                 }
 
-                // Now that we have information about the request and response, we put those together to form one mega
-                // log entry that will be at a high log level, so we can see the output when we run.
-                logger.info("Thread " + getId() + ": " + request.getDestinationHost() + ": " +
-                        request.reassembleFirstLine() + " [BodyType " + request.bodyType() + "] " +
-                        response.reassembleFirstLine() + " [BodyType " + response.bodyType() + "]");
+                // If we were revalidating and the origin says our copy is still good, serve the copy.
+                if (revalidating != null && response.getStatus().equals("304")) {
+                    release(exchange, response.keepsConnectionAlive());
+                    CachedResponse updated = cache.revalidated(revalidating, request, response, exchange.requestTime,
+                            exchange.responseTime);
+                    enter(BODY, config.bodyTimeout);
+                    long direct = updated.writeTo(clientOut, this.client.getChannel(), !clientWantsClose,
+                            System.currentTimeMillis(), sentDirect);
+                    Metrics.requests.increment();
+                    Metrics.request.record(System.nanoTime() - started);
+                    access(request, updated.status, direct, started, "REVALIDATED");
+                    if (clientWantsClose) {
+                        break;
+                    }
+                    continue;
+                }
 
-                // Forward the response to the client :D
-                response.forwardMessage(new BufferedOutputStream(this.client.getOutputStream()));
+                // Compress the body on the way through if the client can take it.  This changes the headers, so it
+                // happens before the cache and any followers see them: the cache stores the compressed variant, with
+                // Vary: Accept-Encoding keeping it from clients that didn't ask for it.
+                String encoding = compression == null ? null : compression.prepare(request, response);
+
+                // Forward the response to the client :D  The origin connection only goes back into the pool if the
+                // whole response made it through.  If the cache wants this response, it gets a copy of the body on
+                // the way past, and it is stored before the last of it is flushed, so the client's next request can
+                // already hit.
+                ResponseCache.Capture capture = null;
+                if (cacheable) {
+                    cache.recordMiss();
+                    if (cache.isStorable(request, response)) {
+                        capture = cache.newCapture();
+                    }
+                }
+                // Anyone following this fetch gets a copy of everything our client does, but only if the response is
+                // one the cache would share.
+                OutputStream out = clientOut;
+                if (flight != null) {
+                    if (capture != null) {
+                        flight.share(request, response);
+                        out = new TeeOutputStream(clientOut, flight);
+                    } else {
+                        flight.fail();
+                        flight = null;
+                    }
+                }
+                // A large body that nothing else needs a copy of goes from the origin's channel straight to the
+                // client's, rather than through the streams.
+                boolean reusable = response.keepsConnectionAlive();
+                long bodyStart = System.nanoTime();
+                long direct = 0;
+                try {
+                    SocketChannel serverChannel = server.getSocket().getChannel();
+                    if (capture == null && flight == null && encoding == null && serverChannel != null &&
+                            this.client.getChannel() != null && response.isLargeBody()) {
+                        transferring = response;
+                        direct = response.transferMessage(out, serverChannel, this.client.getChannel());
+                    } else {
+                        response.forwardMessage(out, capture, compression, encoding);
+                    }
+                } catch (IOException e) {
+                    reusable = false;
+                    if (capture != null) {
+                        capture.discard();
+                    }
+                    if (flight != null) {
+                        flight.fail();
+                    }
+                    if (e instanceof TruncatedBodyException) {
+                        Metrics.errors.increment();
+                        access(request, response.getStatus(), response.transferred(), started, "TRUNCATED");
+                        logger.warning("Thread " + getId() + ": response to " + request.getUrl() + " was cut short: " +
+                                e.getMessage());
+                    }
+                    throw e;
+                } finally {
+                    transferring = null;
+                    release(exchange, reusable);
+                }
+                if (capture != null) {
+                    cache.store(request, response, capture, exchange.requestTime, exchange.responseTime);
+                }
+                if (flight != null) {
+                    flight.finish();
+                }
+                // If the next response in a pipeline is already here, it goes straight out after this one, so there's
+                // no need to flush in between.
+                Pipelined following = ahead.peekFirst();
+                if (following == null || following.exchange == null || !following.exchange.isDone()) {
+                    clientOut.flush();
+                }
+                long finished = System.nanoTime();
+                Metrics.responseBody.record(finished - bodyStart);
+                Metrics.requests.increment();
+                Metrics.request.record(finished - started);
+                access(request, response.getStatus(), direct, started, cacheable ? "MISS" : "-");
 
-                // Finally, close our connections.
-                server.close();
                 if (clientWantsClose) {
                     break;
                 }
             }
+        } catch (TruncatedBodyException e) {
+            // Already logged.  Closing the client connection is how it finds out.
         } catch (IOException e) {
-            if (!e.getMessage().equals( "Unexpected end of stream.")) {
+            String timeout = expired;
+            if (timeout != null) {
+                // The timer closed the connection under us.  An idle connection going isn't worth a log line.
+                logger.fine("Thread " + getId() + ": " + timeout);
+                HttpRequest request = current;
+                if (request != null) {
+                    access(request, currentStatus, 0, currentStarted, timeout);
+                } else if (!timeout.equals("IDLE-TIMEOUT")) {
+                    access(null, "-", 0, System.nanoTime(), timeout);
+                }
+            } else if (!e.getMessage().equals( "Unexpected end of stream.")) {
+                Metrics.errors.increment();
                 System.err.println("Thread " + getId() + " exception: " + e.getMessage());
                 e.printStackTrace();
             }
         } finally {
+            timer.disarm();
+            abandon(ahead);
             try {
-                this.client.close();
+                if (!handedOff) {
+                    this.client.close();
+                }
             } catch (Exception e) {
                 System.out.println("Trouble closing client socket!");
             } finally {
+                if (!handedOff) {
+                    slot.release();
+                }
+                if (!stream) {
+                    Metrics.connectionClosed();
+                }
                 logger.fine("Finishing thread " + this.getId());
             }
         }
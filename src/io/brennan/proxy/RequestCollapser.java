@@ -0,0 +1,376 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collapsed forwarding for the blocking engine's cache.  When a popular URL is missing from the cache (or has just
+ * expired), lots of clients ask for it at once, and there's no point in each of them going to the origin.  The first
+ * one to miss leads a "flight": it fetches the response as usual, and everything it sends its client is also fed into
+ * the flight.  Requests with the same cache key that miss while the flight is up follow it instead, and copy the
+ * response out of the flight as it arrives.  A follower that joins late starts from the beginning, from the flight's
+ * buffer, and then catches up.
+ *
+ * A follower only uses the response if the leader says it can be shared, which is when the cache would store it and
+ * the follower sent the same values for the headers it varies on.  Otherwise, or if the leader doesn't get that far
+ * within the timeout, the follower fetches for itself.
+ *
+ * The buffer is what lets late joiners start at the beginning, so it is limited: once a flight has buffered more than
+ * the limit, it stops taking followers, and the bytes that all of its followers have copied are let go.  A follower
+ * that falls more than the limit behind the leader is dropped, and gets an error just as the leader's client would if
+ * it stopped reading, so that one slow client can't make the flight keep the whole response.
+ *
+ * Locks and conditions rather than monitors, for the same reason as UpstreamPool: virtual threads park on them
+ * without pinning their carriers.
+ */
+final class RequestCollapser implements MetricsSource {
+
+    private static final int CHUNK_SIZE = 16384;
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final long timeout;
+    private final long maxBuffer;
+
+    private final LongAdder led = new LongAdder();
+    private final LongAdder followed = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    /**
+     * Create a collapser.
+     * @param timeout How long a follower waits for the leader's response head, or for more of its body, in ms.
+     * @param maxBuffer Most bytes of a response a flight keeps for late joiners.
+     */
+    RequestCollapser(long timeout, long maxBuffer) {
+        this.timeout = timeout;
+        this.maxBuffer = maxBuffer;
+    }
+
+    /**
+     * Start a flight for a cache key, if there isn't one already.
+     * @param key Cache key of the request.
+     * @return The new flight, which the caller must finish() or fail(), or null if another thread has one up.
+     */
+    Flight lead(String key) {
+        Flight flight = new Flight(key);
+        if (flights.putIfAbsent(key, flight) != null) {
+            return null;
+        }
+        led.increment();
+        return flight;
+    }
+
+    /**
+     * Join the flight for a cache key, if there is one that still takes followers.
+     * @param key Cache key of the request.
+     * @return A follower, which the caller must leave(), or null if there is no flight to follow.
+     */
+    Follower follow(String key) {
+        Flight flight = flights.get(key);
+        return flight == null ? null : flight.attach();
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        sink.gauge("proxy_collapse_flights", "Origin fetches that other requests may currently join.", flights.size());
+        sink.counter("proxy_collapse_leaders_total", "Cache misses that led a collapsed fetch.", led.sum());
+        sink.counter("proxy_collapse_followers_total", "Cache misses answered from another request's fetch.",
+                followed.sum());
+        sink.counter("proxy_collapse_fallbacks_total", "Followers that had to fetch for themselves after all.",
+                fallbacks.sum());
+    }
+
+    /**
+     * One origin fetch that other requests can follow.  The leader writes the whole response into it, head first,
+     * exactly as it sends it to its own client.
+     */
+    final class Flight extends OutputStream {
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final ArrayList<byte[]> chunks = new ArrayList<>();
+        private final ArrayList<Follower> followers = new ArrayList<>();
+        private long base;   // offset of the first byte of chunks.get(0)
+        private long length; // bytes written so far
+        private boolean shared;
+        private boolean finished;
+        private boolean failed;
+        private boolean closed; // no more followers
+        private HeaderName[] varyNames;
+        private String[] varyValues;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        private Follower attach() {
+            lock.lock();
+            try {
+                if (closed || failed) {
+                    return null;
+                }
+                Follower follower = new Follower(this);
+                followers.add(follower);
+                return follower;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Tell followers that the response can be shared, once its head has arrived and the cache has agreed to store
+         * it.  Call this before writing anything.
+         * @param request The leader's request.
+         * @param response The response from the origin.
+         */
+        void share(HttpRequest request, HttpResponse response) {
+            HeaderName[] names = CachedResponse.varyNames(response);
+            String[] values = CachedResponse.varyValues(request, names);
+            lock.lock();
+            try {
+                varyNames = names;
+                varyValues = values;
+                shared = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            lock.lock();
+            try {
+                while (len > 0) {
+                    int used = (int) (length % CHUNK_SIZE);
+                    if (used == 0) {
+                        chunks.add(new byte[CHUNK_SIZE]);
+                    }
+                    int n = Math.min(len, CHUNK_SIZE - used);
+                    System.arraycopy(b, off, chunks.get(chunks.size() - 1), used, n);
+                    off += n;
+                    len -= n;
+                    length += n;
+                }
+                if (length - base > maxBuffer) {
+                    closed = true;
+                    flights.remove(key, this);
+                    drop(length - maxBuffer);
+                    trim();
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Drop the followers that haven't read up to a position yet.  Called with the lock held.
+         */
+        private void drop(long position) {
+            for (Iterator<Follower> it = followers.iterator(); it.hasNext(); ) {
+                Follower follower = it.next();
+                if (follower.position < position) {
+                    follower.dropped = true;
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * Let go of whole chunks that every follower has copied.  The last chunk is kept, since it is still being
+         * filled.  Called with the lock held, once the flight is closed to new followers.
+         */
+        private void trim() {
+            long low = length;
+            for (Follower follower : followers) {
+                low = Math.min(low, follower.position);
+            }
+            int drop = (int) Math.min((low - base) / CHUNK_SIZE, chunks.size() - 1);
+            if (drop > 0) {
+                chunks.subList(0, drop).clear();
+                base += (long) drop * CHUNK_SIZE;
+            }
+        }
+
+        /**
+         * The whole response has been written.
+         */
+        void finish() {
+            end(false);
+        }
+
+        /**
+         * The response can't be shared after all, or the fetch failed.  Followers that are still waiting for it fetch
+         * for themselves; ones that were already copying it get an error, just like the leader's client.
+         */
+        void fail() {
+            end(true);
+        }
+
+        private void end(boolean failure) {
+            flights.remove(key, this);
+            lock.lock();
+            try {
+                if (failure) {
+                    failed = true;
+                } else {
+                    finished = true;
+                }
+                closed = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One request following a flight.  Once the flight is shared, this is an InputStream of the response, head and
+     * all.
+     */
+    final class Follower extends InputStream {
+        private final Flight flight;
+        private long position;
+        private boolean left;
+        private boolean dropped; // fell too far behind, guarded by the flight's lock
+
+        private Follower(Flight flight) {
+            this.flight = flight;
+        }
+
+        /**
+         * Wait until the leader says whether the response can be shared, and check that it suits our request.  If
+         * not, we leave the flight, and the caller should fetch the response for itself.
+         * @param request The follower's request.
+         * @return true if the response can be read from this stream
+         */
+        boolean await(HttpRequest request) {
+            Flight f = flight;
+            f.lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (!f.shared && !f.failed) {
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        remaining = f.changed.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (f.shared && !f.failed && !dropped && matches(request)) {
+                    followed.increment();
+                    return true;
+                }
+            } finally {
+                f.lock.unlock();
+            }
+            fallbacks.increment();
+            leave();
+            return false;
+        }
+
+        /**
+         * Check the follower's request against the Vary values of the leader's.
+         */
+        private boolean matches(HttpRequest request) {
+            for (int i = 0; i < flight.varyNames.length; i++) {
+                if (flight.varyNames[i].toString().equals("*")) return false;
+                String value = request.getHeaders().get(flight.varyNames[i]);
+                String expected = flight.varyValues[i];
+                if (value == null ? expected != null : !value.equals(expected)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        /**
+         * Copy out whatever the leader has written that we haven't read yet, waiting for more if we have it all.
+         * @throws IOException if the fetch failed, or nothing new arrives within the timeout
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            Flight f = flight;
+            f.lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (position == f.length && !f.finished && !f.failed && !dropped) {
+                    if (remaining <= 0) {
+                        throw new IOException("Timed out waiting for a collapsed response.");
+                    }
+                    try {
+                        remaining = f.changed.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for a collapsed response.");
+                    }
+                }
+                if (f.failed) {
+                    throw new IOException("The collapsed fetch failed.");
+                }
+                if (dropped) {
+                    throw new IOException("Fell too far behind a collapsed response.");
+                }
+                if (position == f.length) {
+                    return -1;
+                }
+                // Find our chunk; the chunks before it may have been let go, so count from the first one kept.
+                long offset = position - f.base;
+                byte[] chunk = f.chunks.get((int) (offset / CHUNK_SIZE));
+                int within = (int) (offset % CHUNK_SIZE);
+                int n = (int) Math.min(Math.min(len, CHUNK_SIZE - within), f.length - position);
+                System.arraycopy(chunk, within, b, off, n);
+                position += n;
+                return n;
+            } finally {
+                f.lock.unlock();
+            }
+        }
+
+        /**
+         * Stop following, so that the flight doesn't keep bytes for us.  Safe to call more than once.
+         */
+        void leave() {
+            Flight f = flight;
+            f.lock.lock();
+            try {
+                if (!left) {
+                    left = true;
+                    f.followers.remove(this);
+                }
+            } finally {
+                f.lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            leave();
+        }
+    }
+}
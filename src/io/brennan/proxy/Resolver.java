@@ -0,0 +1,24 @@
+package io.brennan.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Turns a host name into addresses.  The proxy looks up every origin through one of these (normally a DnsCache in
+ * front of SYSTEM), which also makes it easy to substitute a stub when trying things out.
+ */
+interface Resolver {
+
+    /**
+     * The JVM's own resolver.
+     */
+    Resolver SYSTEM = InetAddress::getAllByName;
+
+    /**
+     * Look up a host.
+     * @param host Host name or address literal.
+     * @return Its addresses, at least one.
+     * @throws UnknownHostException if it can't be resolved
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,537 @@
+package io.brennan.proxy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A shared HTTP cache, following the parts of RFC 7234 that matter for a proxy.  Only GET responses are stored.  An
+ * entry is found by method, host, port and URL, and then among the variants stored for that URL by the request
+ * headers named in the response's Vary header.
+ *
+ * Lookups don't take a lock: the index is a ConcurrentHashMap of immutable variant arrays.  Eviction is a segmented LRU
+ * over a byte budget.  New entries go into the probation segment, and an entry that gets hit again moves to the
+ * protected segment (about 80% of the budget), so a burst of one-off responses can't push out the ones that are
+ * actually popular.  The lists are guarded by a lock, but a hit only tries the lock and skips the promotion if someone
+ * else has it, so busy hits never queue up behind each other.  Bodies are kept in direct buffers, off the Java heap.
+ * Responses too big for memory go to the DiskCache tier, if there is one.
+ */
+class ResponseCache implements MetricsSource {
+
+    /**
+     * Collects a copy of a response body while it is forwarded.  Small bodies are kept in memory.  A body that
+     * outgrows the memory tier is spilled to a file for the disk tier, if there is one, and a body too big for either is
+     * dropped.  Writes never throw, since a problem with the copy mustn't break the response going to the client.
+     */
+    static class Capture extends OutputStream {
+        private final long memoryLimit;
+        private final DiskCache disk;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream(4096);
+        private File spillFile;
+        private OutputStream spill;
+        private long size;
+        private boolean overflowed;
+
+        Capture(long memoryLimit, DiskCache disk) {
+            this.memoryLimit = memoryLimit;
+            this.disk = disk;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (overflowed) return;
+            try {
+                if (spill == null && size + len > memoryLimit) {
+                    if (disk == null || size + len > disk.maxObjectSize()) {
+                        discard();
+                        return;
+                    }
+                    spillFile = disk.newSpillFile();
+                    spill = new BufferedOutputStream(new FileOutputStream(spillFile), 65536);
+                    memory.writeTo(spill);
+                    memory = null;
+                }
+                if (spill != null) {
+                    if (size + len > disk.maxObjectSize()) {
+                        discard();
+                        return;
+                    }
+                    spill.write(b, off, len);
+                } else {
+                    memory.write(b, off, len);
+                }
+                size += len;
+            } catch (IOException e) {
+                discard();
+            }
+        }
+
+        /**
+         * Give up on the copy.
+         */
+        void discard() {
+            overflowed = true;
+            memory = null;
+            closeSpill();
+            if (spillFile != null) {
+                spillFile.delete();
+            }
+        }
+
+        private void closeSpill() {
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    overflowed = true;
+                }
+                spill = null;
+            }
+        }
+
+        boolean overflowed() {
+            return overflowed;
+        }
+
+        boolean spilled() {
+            return spillFile != null;
+        }
+
+        long size() {
+            return size;
+        }
+    }
+
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final long maxBytes;
+    private final long maxObjectSize;
+    private final long maxProtectedBytes;
+    private final ConcurrentHashMap<String, CachedResponse[]> index = new ConcurrentHashMap<>();
+
+    // Segmented LRU lists.  Each is circular, with a sentinel; the most recently used entry is just after the sentinel.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CachedResponse probation = sentinel();
+    private final CachedResponse protectedList = sentinel();
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final DiskCache disk;
+
+    /**
+     * Create a cache.
+     * @param maxBytes Total bytes of heads and bodies to keep in memory.
+     * @param maxObjectSize Largest single response to store in memory.
+     * @param disk Disk tier for larger responses, or null for none.
+     */
+    ResponseCache(long maxBytes, long maxObjectSize, DiskCache disk) {
+        this.disk = disk;
+        this.maxBytes = maxBytes;
+        this.maxObjectSize = Math.min(maxObjectSize, maxBytes);
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+    }
+
+    private static CachedResponse sentinel() {
+        CachedResponse sentinel = new CachedResponse();
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+        return sentinel;
+    }
+
+    /**
+     * Return the primary key for a request.
+     */
+    static String keyFor(String method, HttpRequest request) {
+        return method + " " + (request.isSecure() ? "https://" : "") + request.getDestinationHost() + ":" +
+                request.getDestinationPort() + request.getUrl();
+    }
+
+    /**
+     * Return the Cache-Control directives of a request.  "Pragma: no-cache" counts as "Cache-Control: no-cache" when
+     * there is no Cache-Control header, for the sake of HTTP/1.0 clients.
+     * @param request The request.
+     * @return its directives
+     */
+    static CacheControl requestCacheControl(HttpRequest request) {
+        HttpHeaders headers = request.getHeaders();
+        String value = headers.get("Cache-Control");
+        if (value == null && "no-cache".equalsIgnoreCase(headers.get("Pragma"))) {
+            value = "no-cache";
+        }
+        return new CacheControl(value);
+    }
+
+    /**
+     * Decide whether we can answer a request from the cache at all.  Range requests and requests with bodies go
+     * straight through.
+     * @param request The request.
+     * @return true if it may be looked up and stored
+     */
+    boolean isCacheable(HttpRequest request) {
+        return request.getMethod().equals("GET") && request.bodyType() == BodyType.None &&
+                !request.getHeaders().contains("Range");
+    }
+
+    /**
+     * Return true for methods that may change things on the origin, and so invalidate what we have stored for the URL.
+     * @param method Request method.
+     * @return true if the method is unsafe
+     */
+    static boolean isUnsafe(String method) {
+        return method.equals("POST") || method.equals("PUT") || method.equals("DELETE") || method.equals("PATCH");
+    }
+
+    /**
+     * Find a stored response for a request.  This does not check freshness.
+     * @param request A cacheable request.
+     * @return The matching entry, or null
+     */
+    CachedResponse lookup(HttpRequest request) {
+        String key = keyFor("GET", request);
+        CachedResponse[] variants = index.get(key);
+        if (variants == null) {
+            return disk == null ? null : disk.lookup(key, request);
+        }
+        for (CachedResponse entry : variants) {
+            if (entry.matches(request)) {
+                if (lock.tryLock()) {
+                    try {
+                        touch(entry);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                return entry;
+            }
+        }
+        return disk == null ? null : disk.lookup(key, request);
+    }
+
+    /**
+     * Decide whether a response may be stored (RFC 7234 section 3).  We also insist that it is worth storing, i.e. it
+     * has either an explicit lifetime or a validator.
+     * @param request The request, which must be cacheable.
+     * @param response The response from the origin.
+     * @return true if we should keep a copy
+     */
+    boolean isStorable(HttpRequest request, HttpResponse response) {
+        switch (response.getStatus()) {
+            case "200": case "203": case "204": case "300": case "301": case "404": case "405": case "410":
+            case "414": case "501":
+                break;
+            default:
+                return false;
+        }
+        HttpHeaders headers = response.getHeaders();
+        CacheControl cc = new CacheControl(headers.get("Cache-Control"));
+        if (cc.has("no-store") || cc.has("private") || requestCacheControl(request).has("no-store")) {
+            return false;
+        }
+        if (request.getHeaders().contains("Authorization") &&
+                !(cc.has("public") || cc.has("s-maxage") || cc.has("must-revalidate"))) {
+            return false;
+        }
+        // Set-Cookie is allowed by the RFC, but handing one client's cookie to everybody else is never what anyone
+        // wanted.
+        if (headers.contains("Set-Cookie")) {
+            return false;
+        }
+        String vary = headers.get("Vary");
+        if (vary != null && vary.contains("*")) {
+            return false;
+        }
+        if (response.bodyType() == BodyType.ContentLength &&
+                Long.parseLong(headers.get(HeaderName.CONTENT_LENGTH).trim()) >
+                        Math.max(maxObjectSize, disk == null ? 0 : disk.maxObjectSize())) {
+            return false;
+        }
+        return cc.has("max-age") || cc.has("s-maxage") || headers.contains("Expires") || headers.contains("ETag") ||
+                headers.contains("Last-Modified");
+    }
+
+    /**
+     * Make a stream to capture a response body for storing.
+     * @return a new capture
+     */
+    Capture newCapture() {
+        return new Capture(maxObjectSize, disk);
+    }
+
+    /**
+     * Store a response that has been forwarded to the client.
+     * @param request The request.
+     * @param response The response, with its headers as they were forwarded.
+     * @param capture The body, as it was forwarded.
+     * @param requestTime When the request was sent.
+     * @param responseTime When the response head arrived.
+     * @throws IOException if writing the head out fails (it can't, really)
+     */
+    void store(HttpRequest request, HttpResponse response, Capture capture, long requestTime, long responseTime)
+            throws IOException {
+        if (capture.overflowed()) {
+            return;
+        }
+        capture.closeSpill();
+        ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+        response.forwardHeaders(head);
+        if (capture.spilled()) {
+            disk.store(keyFor("GET", request), request, response, head.toByteArray(), capture.spillFile, capture.size(),
+                    requestTime, responseTime);
+            return;
+        }
+        if (head.size() + capture.size() > maxObjectSize) {
+            return;
+        }
+        ByteBuffer body = ByteBuffer.allocateDirect((int) capture.size());
+        body.put(capture.memory.toByteArray());
+        body.flip();
+        CachedResponse entry = new CachedResponse(keyFor("GET", request), request, response, head.toByteArray(),
+                body.asReadOnlyBuffer(), requestTime, responseTime);
+        insert(null, entry);
+        stores.increment();
+    }
+
+    /**
+     * Update an entry after the origin answered our conditional request with 304 Not Modified.  The stored headers are
+     * replaced by the ones in the 304 (RFC 7234 section 4.3.4), and the body is kept.
+     * @param old The stale entry we revalidated.
+     * @param request The request.
+     * @param notModified The 304 response.
+     * @param requestTime When the request was sent.
+     * @param responseTime When the response head arrived.
+     * @return The updated entry, to serve to the client.
+     * @throws IOException if the stored head can't be parsed (it can't, really)
+     */
+    CachedResponse revalidated(CachedResponse old, HttpRequest request, HttpResponse notModified, long requestTime,
+                               long responseTime) throws IOException {
+        HttpResponse merged = old.parseHead();
+        HttpHeaders headers = merged.getHeaders();
+        HttpHeaders updates = notModified.getHeaders();
+        for (HeaderName name : updates.names()) {
+            if (name.equals(HeaderName.CONNECTION) || name.equals(HeaderName.CONTENT_LENGTH) ||
+                    name.equals(HeaderName.TRANSFER_ENCODING) || name.equals(HeaderName.PROXY_CONNECTION) ||
+                    name.equals(HeaderName.UPGRADE) || name.toString().equalsIgnoreCase("Keep-Alive")) {
+                continue;
+            }
+            headers.set(name, updates.get(name));
+        }
+        ByteArrayOutputStream head = new ByteArrayOutputStream(old.head.length + 64);
+        merged.forwardHeaders(head);
+        revalidations.increment();
+        if (old instanceof DiskCache.Entry) {
+            return disk.revalidated((DiskCache.Entry) old, request, merged, head.toByteArray(), requestTime,
+                    responseTime);
+        }
+        CachedResponse entry = new CachedResponse(old, request, merged, head.toByteArray(), requestTime, responseTime);
+        insert(old, entry);
+        return entry;
+    }
+
+    /**
+     * Drop everything stored for a URL.  Unsafe methods (POST, PUT, DELETE and so on) call this, since a change on the
+     * origin probably makes our copy wrong (RFC 7234 section 4.4).
+     * @param request The request with the unsafe method.
+     */
+    void invalidate(HttpRequest request) {
+        String key = keyFor("GET", request);
+        lock.lock();
+        try {
+            CachedResponse[] variants = index.remove(key);
+            if (variants != null) {
+                for (CachedResponse entry : variants) {
+                    unlink(entry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (disk != null) {
+            disk.invalidate(key);
+        }
+    }
+
+    /**
+     * Put an entry into the index, in place of the given old one or any variant with the same Vary values, and then
+     * evict until we are within budget.
+     */
+    private void insert(CachedResponse old, CachedResponse entry) {
+        lock.lock();
+        try {
+            CachedResponse[] variants = index.get(entry.key);
+            int count = 0;
+            CachedResponse[] updated = new CachedResponse[variants == null ? 1 : variants.length + 1];
+            if (variants != null) {
+                for (CachedResponse variant : variants) {
+                    if (variant == old || sameVariant(variant, entry)) {
+                        unlink(variant);
+                    } else {
+                        updated[count++] = variant;
+                    }
+                }
+            }
+            updated[count++] = entry;
+            index.put(entry.key, count == updated.length ? updated : Arrays.copyOf(updated, count));
+            linkFirst(probation, entry);
+            probationBytes += entry.size();
+
+            while (probationBytes + protectedBytes > maxBytes) {
+                CachedResponse victim = probation.prev != probation ? probation.prev : protectedList.prev;
+                if (victim == protectedList) break;
+                evict(victim);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static boolean sameVariant(CachedResponse a, CachedResponse b) {
+        return Arrays.equals(a.varyNames, b.varyNames) && Arrays.equals(a.varyValues, b.varyValues);
+    }
+
+    /**
+     * Remove an entry from its list and from the index.
+     */
+    private void evict(CachedResponse victim) {
+        unlink(victim);
+        CachedResponse[] variants = index.get(victim.key);
+        if (variants != null) {
+            int count = 0;
+            CachedResponse[] updated = new CachedResponse[variants.length];
+            for (CachedResponse variant : variants) {
+                if (variant != victim) updated[count++] = variant;
+            }
+            if (count == 0) {
+                index.remove(victim.key);
+            } else {
+                index.put(victim.key, Arrays.copyOf(updated, count));
+            }
+        }
+        evictions.increment();
+    }
+
+    /**
+     * Record a hit: promote a probation entry to protected, or move a protected entry to the front.  If that overfills
+     * the protected segment, its least recently used entries drop back to probation.
+     */
+    private void touch(CachedResponse entry) {
+        if (entry.removed) {
+            return;
+        }
+        unlink(entry);
+        entry.removed = false;
+        entry.inProtected = true;
+        linkFirst(protectedList, entry);
+        protectedBytes += entry.size();
+        while (protectedBytes > maxProtectedBytes && protectedList.prev != entry) {
+            CachedResponse demoted = protectedList.prev;
+            unlink(demoted);
+            demoted.removed = false;
+            linkFirst(probation, demoted);
+            probationBytes += demoted.size();
+        }
+    }
+
+    private void linkFirst(CachedResponse list, CachedResponse entry) {
+        entry.inProtected = list == protectedList;
+        entry.next = list.next;
+        entry.prev = list;
+        list.next.prev = entry;
+        list.next = entry;
+    }
+
+    private void unlink(CachedResponse entry) {
+        if (entry.removed || entry.prev == null) {
+            return;
+        }
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        entry.removed = true;
+        if (entry.inProtected) {
+            protectedBytes -= entry.size();
+        } else {
+            probationBytes -= entry.size();
+        }
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    long getStores() {
+        return stores.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Return the bytes held in memory, in both segments.
+     */
+    long getBytes() {
+        lock.lock();
+        try {
+            return probationBytes + protectedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        sink.counter("proxy_cache_hits_total", "Requests answered from the cache without asking the origin.",
+                getHits());
+        sink.counter("proxy_cache_revalidations_total", "Cached responses the origin confirmed with a 304.",
+                getRevalidations());
+        sink.counter("proxy_cache_misses_total", "Cacheable requests that had to go to the origin.", getMisses());
+        sink.counter("proxy_cache_stores_total", "Responses stored in memory.", getStores());
+        sink.counter("proxy_cache_evictions_total", "Responses evicted from memory.", getEvictions());
+        sink.gauge("proxy_cache_bytes", "Bytes of responses held in memory.", getBytes());
+        if (disk != null) {
+            disk.collect(sink);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "cache: " + getHits() + " hits, " + getRevalidations() + " revalidated, " + getMisses() + " misses, " +
+                getStores() + " stored, " + getEvictions() + " evicted" + (disk == null ? "" : "; " + disk);
+    }
+}
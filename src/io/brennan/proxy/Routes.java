@@ -0,0 +1,295 @@
+package io.brennan.proxy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reverse proxy routes.  Each --route maps a host, a path prefix, or both, to a set of backends, and a request that
+ * matches a route goes to one of its backends instead of to the origin its URL or Host header names.  Of the routes a
+ * request matches, one naming its host wins over one for any host, and then the longest prefix wins.  A request sent to
+ * us as an origin server (with just a path in its request line) that matches no route gets a 404, rather than being
+ * forwarded wherever its Host header says.
+ *
+ * Within a route, each request goes to the backend with the least load, looking only at healthy ones (HealthChecker
+ * decides which those are) unless none are, in which case all of them are tried rather than none.  Load is either:
+ * - least-requests: the number of requests the backend has outstanding, or
+ * - peak-ewma: the backend's latency, as a moving average that jumps straight up to a slower response and decays back
+ *   down over about ten seconds, multiplied by its outstanding requests plus one.  This steers requests away from a
+ *   backend as soon as it slows down, before a queue builds up there.
+ * Ties are broken by starting the search at a random backend, so equally loaded backends share requests evenly.
+ */
+final class Routes implements MetricsSource {
+
+    /**
+     * How long it takes a latency sample's weight in the moving average to fall to 1/e.
+     */
+    private static final double DECAY = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The load of a backend that has requests outstanding but has never answered one, so that we don't pile requests
+     * onto a backend we know nothing about.
+     */
+    private static final double PENALTY = Double.MAX_VALUE / 2;
+
+    /**
+     * One backend server, shared by every route that names it.
+     */
+    static final class Backend {
+        final String host;
+        final int port;
+        final boolean secure;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final LongAdder requests = new LongAdder();
+        volatile boolean healthy = true;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private double cost; // peak EWMA latency in nanoseconds, guarded by lock
+        private long stamp = System.nanoTime();
+
+        Backend(String host, int port, boolean secure) {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+        }
+
+        /**
+         * Count a request as outstanding.  Must be paired with finished().
+         */
+        void started() {
+            outstanding.incrementAndGet();
+            requests.increment();
+        }
+
+        void finished() {
+            outstanding.decrementAndGet();
+        }
+
+        /**
+         * Feed a latency sample into the moving average.
+         * @param nanos Time from sending a request to getting the response head.
+         */
+        void observe(long nanos) {
+            lock.lock();
+            try {
+                decay(nanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Update the average with a sample: a slower one than the average replaces it, and a faster one is mixed in
+         * with a weight that depends on how long it has been since the last.  Must be called with the lock held.
+         */
+        private void decay(double sample) {
+            long now = System.nanoTime();
+            double weight = Math.exp(-Math.max(now - stamp, 0) / DECAY);
+            cost = sample > cost ? sample : cost * weight + sample * (1 - weight);
+            stamp = now;
+        }
+
+        /**
+         * Return the backend's load for peak-ewma.  Time without samples counts as a sample of zero, so that a backend
+         * that was slow once gets tried again eventually.
+         */
+        double latencyLoad() {
+            int pending = outstanding.get();
+            double latency;
+            lock.lock();
+            try {
+                decay(0);
+                latency = cost;
+            } finally {
+                lock.unlock();
+            }
+            if (latency == 0 && pending != 0) {
+                return PENALTY + pending;
+            }
+            return latency * (pending + 1);
+        }
+
+        @Override
+        public String toString() {
+            return (secure ? "https://" : "") + host + ":" + port;
+        }
+    }
+
+    /**
+     * A host and path prefix, and the backends that serve them.
+     */
+    static final class Route {
+        final String host; // lower case, or null for any host
+        final String prefix;
+        final Backend[] backends;
+
+        Route(String host, String prefix, Backend[] backends) {
+            this.host = host;
+            this.prefix = prefix;
+            this.backends = backends;
+        }
+    }
+
+    private final List<Route> routes = new ArrayList<>();
+    private final Map<String, Backend> backends = new LinkedHashMap<>();
+    private final boolean ewma;
+    private final LongAdder unmatched = new LongAdder();
+
+    /**
+     * Parse the --route options.
+     * @param config Proxy configuration, for the routes and the balancing policy.
+     * @throws IllegalArgumentException if a route is malformed.
+     */
+    Routes(ProxyConfig config) {
+        this.ewma = config.balance.equals("peak-ewma");
+        for (String spec : config.routes) {
+            int equals = spec.indexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("bad route " + spec + ": expected [HOST][/PREFIX]=BACKEND,...");
+            }
+            String match = spec.substring(0, equals).trim();
+            int slash = match.indexOf('/');
+            String host = (slash == -1 ? match : match.substring(0, slash)).toLowerCase(Locale.ROOT);
+            String prefix = slash == -1 ? "/" : match.substring(slash);
+            List<Backend> routeBackends = new ArrayList<>();
+            for (String backend : spec.substring(equals + 1).split(",")) {
+                backend = backend.trim();
+                if (!backend.isEmpty()) {
+                    routeBackends.add(backend(backend, spec));
+                }
+            }
+            if (routeBackends.isEmpty()) {
+                throw new IllegalArgumentException("route " + spec + " has no backends");
+            }
+            routes.add(new Route(host.isEmpty() ? null : host, prefix, routeBackends.toArray(new Backend[0])));
+        }
+    }
+
+    /**
+     * Parse one backend, [http://|https://]host[:port], returning the existing one if another route named it already.
+     */
+    private Backend backend(String spec, String route) {
+        boolean secure = false;
+        String address = spec.toLowerCase(Locale.ROOT);
+        if (address.startsWith("https://")) {
+            secure = true;
+            address = address.substring(8);
+        } else if (address.startsWith("http://")) {
+            address = address.substring(7);
+        }
+        if (address.endsWith("/")) {
+            address = address.substring(0, address.length() - 1);
+        }
+        int port = secure ? 443 : 80;
+        int colon = address.lastIndexOf(':');
+        if (colon != -1) {
+            try {
+                port = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                port = 0;
+            }
+            address = address.substring(0, colon);
+        }
+        if (address.isEmpty() || port <= 0 || port > 65535 || address.indexOf('/') != -1) {
+            throw new IllegalArgumentException("bad backend " + spec + " in route " + route);
+        }
+        String key = (secure ? "https://" : "") + address + ":" + port;
+        Backend backend = backends.get(key);
+        if (backend == null) {
+            backend = new Backend(address, port, secure);
+            backends.put(key, backend);
+        }
+        return backend;
+    }
+
+    /**
+     * Return every backend, each once.
+     * @return the backends
+     */
+    Collection<Backend> backends() {
+        return backends.values();
+    }
+
+    /**
+     * Find the route for a request.
+     * @param request The request.
+     * @return the best matching route, or null if none matches
+     */
+    Route match(HttpRequest request) {
+        String host = request.hasHostInUrl() || request.getHeaders().contains(HeaderName.HOST)
+                ? request.getDestinationHost().toLowerCase(Locale.ROOT) : "";
+        String path = request.getUrl();
+        Route best = null;
+        for (Route route : routes) {
+            if ((route.host == null || route.host.equals(host)) && path.startsWith(route.prefix) &&
+                    (best == null || (route.host != null && best.host == null) ||
+                            ((route.host == null) == (best.host == null) &&
+                                    route.prefix.length() > best.prefix.length()))) {
+                best = route;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Note that a request sent to us as an origin server matched no route.
+     */
+    void unmatched() {
+        unmatched.increment();
+    }
+
+    /**
+     * Pick the backend for a request on a route: the least loaded healthy one, or the least loaded of all of them if
+     * none is healthy.
+     * @param route The route.
+     * @return the backend
+     */
+    Backend choose(Route route) {
+        Backend[] candidates = route.backends;
+        int start = candidates.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(candidates.length);
+        Backend best = null;
+        double bestLoad = 0;
+        for (int pass = 0; pass < 2 && best == null; pass++) {
+            for (int i = 0; i < candidates.length; i++) {
+                Backend backend = candidates[(start + i) % candidates.length];
+                if (pass == 0 && !backend.healthy) {
+                    continue;
+                }
+                double load = ewma ? backend.latencyLoad() : backend.outstanding.get();
+                if (best == null || load < bestLoad) {
+                    best = backend;
+                    bestLoad = load;
+                }
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        int healthy = 0;
+        int outstanding = 0;
+        long requests = 0;
+        for (Backend backend : backends.values()) {
+            if (backend.healthy) {
+                healthy++;
+            }
+            outstanding += backend.outstanding.get();
+            requests += backend.requests.sum();
+        }
+        sink.gauge("proxy_backends", "Backends named in routes.", backends.size());
+        sink.gauge("proxy_backends_healthy", "Backends that are passing their health checks.", healthy);
+        sink.gauge("proxy_backend_requests_outstanding", "Requests in progress at backends.", outstanding);
+        sink.counter("proxy_backend_requests_total", "Requests sent to backends by routes.", requests);
+        sink.counter("proxy_route_unmatched_total", "Requests to the proxy as an origin that matched no route.",
+                unmatched.sum());
+    }
+}
@@ -0,0 +1,216 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Streams for a socket that may have come from a SocketChannel, as client sockets (accepted through channels) and
+ * origin sockets (opened by Connector) do.  Up to Java 12, the streams that Socket.getInputStream() and
+ * getOutputStream() give for such a socket both synchronize on the channel's blockingLock(), so a thread blocked in a
+ * read keeps every other thread from writing: a threads-mode tunnel never relays a byte, and an HTTP/2 connection's
+ * streams can't send while its reader waits for frames.  Java 13 rewrote the socket adaptor and its streams don't do
+ * that, but these go to the channel directly, whose reads and writes have separate locks on every version, so that
+ * the same code runs everywhere.  A socket without a channel (TLS, or an HTTP/2 stream) just gets its own streams.
+ *
+ * The old adaptor's available() always says 0, too, which would keep a pipelining client's requests from ever being
+ * read ahead.  A stream asked for with peek set gets that right on every version, by reading ahead itself.
+ */
+final class SocketStreams {
+
+    /**
+     * Whether the socket adaptor's available() is always 0, which is the case before Java 13.
+     */
+    private static final boolean BLIND = javaVersion() < 13;
+
+    private SocketStreams() {}
+
+    /**
+     * Return a stream to read from a socket.  Closing it closes the socket.
+     * @param socket The socket.
+     * @return the stream
+     * @throws IOException if the socket is closed or not connected
+     */
+    static InputStream input(Socket socket) throws IOException {
+        return input(socket, false);
+    }
+
+    /**
+     * Return a stream to read from a socket.  Closing it closes the socket.
+     * @param socket The socket.
+     * @param peek Whether available() may read a byte ahead, where there's no other way to tell (before Java 13).
+     *             Only a stream whose connection has one thread at a time using it, reading or writing, may do that:
+     *             see Input.available().
+     * @return the stream
+     * @throws IOException if the socket is closed or not connected
+     */
+    static InputStream input(Socket socket, boolean peek) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        return channel == null ? socket.getInputStream() : new Input(socket, channel, peek && BLIND);
+    }
+
+    /**
+     * Return a stream to write to a socket.  Closing it closes the socket.
+     * @param socket The socket.
+     * @return the stream
+     * @throws IOException if the socket is closed or not connected
+     */
+    static OutputStream output(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        return channel == null ? socket.getOutputStream() : new Output(socket, channel);
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        try {
+            return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+
+    /**
+     * The exception the socket adaptor throws for a socket that has been closed, which is what callers look for.
+     */
+    private static SocketException closed(ClosedChannelException e) {
+        SocketException closed = new SocketException("Socket closed");
+        closed.initCause(e);
+        return closed;
+    }
+
+    /**
+     * A channel's input, for the socket's own.
+     */
+    static final class Input extends InputStream {
+        private final Socket socket;
+        private final SocketChannel channel;
+        private final boolean peek;
+        private int peeked = -1; // a byte available() read ahead
+
+        Input(Socket socket, SocketChannel channel, boolean peek) throws IOException {
+            if (!channel.isConnected()) {
+                throw new SocketException("Socket is not connected");
+            }
+            this.socket = socket;
+            this.channel = channel;
+            this.peek = peek;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                if (peeked != -1) {
+                    // Whatever else has arrived can be had without waiting too.
+                    b[off] = (byte) peeked;
+                    peeked = -1;
+                    int more = 0;
+                    if (len > 1) {
+                        try {
+                            more = readNow(ByteBuffer.wrap(b, off + 1, len - 1));
+                        } catch (IOException e) {
+                            // not without losing the byte we have; the next read will see it
+                        }
+                    }
+                    return 1 + Math.max(more, 0);
+                }
+                // A blocking channel reads at least one byte, or reports the end of the stream.
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            } catch (ClosedChannelException e) {
+                throw closed(e);
+            }
+        }
+
+        /**
+         * Return how many bytes can be read without blocking.  Before Java 13 there is no asking the channel, so a
+         * peeking stream reads a byte if one has arrived, without waiting, and keeps it for read(), which then takes
+         * the rest of what has arrived along with it.  That switches the channel to non-blocking for a moment, so no
+         * other thread may be writing to the socket meanwhile: an HTTP/1.1 client connection is only ever used by its
+         * own thread, but an HTTP/2 one isn't, which is fine as long as nothing on it asks (Http2Connection doesn't).
+         */
+        @Override
+        public int available() throws IOException {
+            if (peeked != -1) {
+                return 1;
+            }
+            if (!peek) {
+                return socket.getInputStream().available();
+            }
+            ByteBuffer one = ByteBuffer.allocate(1);
+            try {
+                if (readNow(one) == 1) {
+                    peeked = one.get(0) & 0xff;
+                    return 1;
+                }
+            } catch (ClosedChannelException e) {
+                throw closed(e);
+            }
+            return 0;
+        }
+
+        /**
+         * Read whatever has arrived, without waiting for more.
+         */
+        private int readNow(ByteBuffer buffer) throws IOException {
+            channel.configureBlocking(false);
+            try {
+                return channel.read(buffer);
+            } finally {
+                channel.configureBlocking(true);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static final class Output extends OutputStream {
+        private final Socket socket;
+        private final SocketChannel channel;
+
+        Output(Socket socket, SocketChannel channel) throws IOException {
+            if (!channel.isConnected()) {
+                throw new SocketException("Socket is not connected");
+            }
+            this.socket = socket;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (ClosedChannelException e) {
+                throw closed(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
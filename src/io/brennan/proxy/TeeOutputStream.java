@@ -0,0 +1,41 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that writes everything to a main stream and also hands a copy to a second one.  Flushing and closing
+ * only affect the main stream.
+ */
+class TeeOutputStream extends OutputStream {
+
+    private final OutputStream main;
+    private final OutputStream copy;
+
+    TeeOutputStream(OutputStream main, OutputStream copy) {
+        this.main = main;
+        this.copy = copy;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        main.write(b);
+        copy.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        main.write(b, off, len);
+        copy.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        main.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        main.close();
+    }
+}
@@ -0,0 +1,236 @@
+package io.brennan.proxy;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timing wheel, which drives every connection and tunnel timeout.  There are far too many of those to give
+ * each its own timer thread or scheduled task, and nearly all of them are pushed back or cancelled long before they go
+ * off, so the wheel is built to make that cheap.
+ *
+ * The wheel is a ring of buckets, one per tick, and a timer sits in the bucket for the tick its deadline falls in
+ * (going round the ring as many times as it takes).  A single thread moves round the ring one bucket per tick and
+ * looks only at the timers in that bucket, so the cost of a tick doesn't depend on how many timers there are.  Deadlines
+ * are only as exact as a tick, which is fine for timeouts measured in seconds.
+ *
+ * Only the wheel thread touches the buckets.  Other threads arm a timer by setting its deadline.  A timer already in the
+ * wheel with an earlier deadline just stays put: when its bucket comes round, the wheel sees the new deadline and moves
+ * it along.  So pushing a timeout back, which is by far the commonest thing to do with one, costs a single write.  Only
+ * a timer that isn't in the wheel, or whose new deadline is earlier, is queued for the wheel thread to put in place.
+ */
+final class TimerWheel implements MetricsSource {
+
+    private final long tick;
+    private final Timer[] buckets;
+    private final int mask;
+    private final long origin = System.nanoTime();
+    private final ConcurrentLinkedQueue<Timer> pending = new ConcurrentLinkedQueue<>();
+    private long ticks; // ticks done, only touched by the wheel thread
+    private volatile int scheduled;
+
+    /**
+     * Create a wheel and start its thread.
+     * @param tick Length of a tick, in milliseconds.
+     * @param size Number of buckets, which is rounded up to a power of two.
+     * @param name Name for the thread.
+     */
+    TimerWheel(long tick, int size, String name) {
+        this.tick = tick;
+        int n = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.buckets = new Timer[n];
+        this.mask = n - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Return the time in milliseconds since the wheel was created, plus one so that it is never zero.
+     */
+    private long now() {
+        return (System.nanoTime() - origin) / 1000000 + 1;
+    }
+
+    /**
+     * Create a timer.  It does nothing until it is armed.
+     * @param task What to do when the timer goes off.  It runs on the wheel thread, so it must be quick and must never
+     *             block; anything more should be handed to another thread.
+     * @return the timer
+     */
+    Timer newTimer(Runnable task) {
+        return new Timer(task);
+    }
+
+    private void run() {
+        for (;;) {
+            long next = (ticks + 1) * tick;
+            long wait;
+            while ((wait = next - now()) > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            ticks++;
+            Timer timer;
+            while ((timer = pending.poll()) != null) {
+                place(timer);
+            }
+            expire(now());
+        }
+    }
+
+    /**
+     * Go through this tick's bucket, firing the timers that are due and moving along those that have been pushed back.
+     */
+    private void expire(long now) {
+        int index = (int) (ticks & mask);
+        Timer timer = buckets[index];
+        while (timer != null) {
+            Timer next = timer.next;
+            if (timer.tick <= ticks) {
+                long deadline = timer.deadline.get();
+                if (deadline == 0) {
+                    drop(timer);
+                } else if (deadline > now) {
+                    place(timer);
+                } else if (timer.deadline.compareAndSet(deadline, 0)) {
+                    drop(timer);
+                    try {
+                        timer.task.run();
+                    } catch (RuntimeException e) {
+                        ProxyThread.logger.warning("Timer task failed: " + e);
+                    }
+                } else {
+                    place(timer); // armed again just now
+                }
+            }
+            timer = next;
+        }
+    }
+
+    /**
+     * Put a timer in the bucket for its deadline, taking it out of any bucket it was in.  If it has been disarmed, just
+     * take it out.
+     */
+    private void place(Timer timer) {
+        long deadline = timer.deadline.get();
+        if (deadline == 0) {
+            drop(timer);
+            return;
+        }
+        unlink(timer);
+        long target = Math.max((deadline + tick - 1) / tick, ticks + 1);
+        int index = (int) (target & mask);
+        timer.tick = target;
+        timer.bucket = index;
+        timer.next = buckets[index];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        buckets[index] = timer;
+        timer.scheduledFor = deadline;
+        scheduled++;
+    }
+
+    /**
+     * Take a timer out of the wheel.  If it was armed again meanwhile, it goes straight back in.
+     */
+    private void drop(Timer timer) {
+        unlink(timer);
+        timer.scheduledFor = Long.MAX_VALUE;
+        timer.inWheel.set(false);
+        if (timer.deadline.get() != 0 && timer.inWheel.compareAndSet(false, true)) {
+            place(timer);
+        }
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.bucket == -1) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.bucket = -1;
+        scheduled--;
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        sink.gauge("proxy_timers_scheduled", "Timeouts waiting in the timer wheel.", scheduled);
+    }
+
+    /**
+     * A timeout that can be armed, pushed back and disarmed again as often as need be.  Any thread may use it.
+     */
+    final class Timer {
+        private final Runnable task;
+        private final AtomicLong deadline = new AtomicLong(); // zero when disarmed
+        private final AtomicBoolean inWheel = new AtomicBoolean(); // in the wheel, or queued to go in
+        private volatile long scheduledFor = Long.MAX_VALUE;
+
+        // Owned by the wheel thread.
+        private Timer prev;
+        private Timer next;
+        private int bucket = -1;
+        private long tick;
+
+        private Timer(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Set the timer to go off after a delay, replacing any deadline it had.
+         * @param delay Milliseconds from now.
+         */
+        void arm(long delay) {
+            long when = now() + delay;
+            deadline.set(when);
+            schedule(when);
+        }
+
+        /**
+         * Arm the timer again from its own task, unless something else has armed it since it went off, in which case
+         * that deadline stands.
+         * @param delay Milliseconds from now.
+         */
+        void rearm(long delay) {
+            long when = now() + delay;
+            if (deadline.compareAndSet(0, when)) {
+                schedule(when);
+            }
+        }
+
+        private void schedule(long when) {
+            if (inWheel.compareAndSet(false, true) || when < scheduledFor) {
+                pending.add(this);
+            }
+        }
+
+        /**
+         * Stop the timer from going off.  It leaves the wheel the next time its bucket comes round.
+         */
+        void disarm() {
+            deadline.set(0);
+        }
+
+        /**
+         * Return true if the timer is armed, i.e. it hasn't gone off or been disarmed since it was last armed.  A task
+         * can use this to see whether the timer was armed again while it was going off.
+         * @return whether there is a deadline
+         */
+        boolean isArmed() {
+            return deadline.get() != 0;
+        }
+    }
+}
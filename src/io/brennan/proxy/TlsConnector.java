@@ -0,0 +1,132 @@
+package io.brennan.proxy;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handshakes TLS with HTTPS origins: those asked for with an https:// URL, and those listed in --tls-origins, which get
+ * TLS whatever scheme the client used (as a reverse proxy in front of HTTPS backends wants).  The TCP connection is
+ * made by the Connector as usual, and then an SSLSocket is layered on top of it and handshaken here, so that the pool
+ * only ever holds connections that are ready for a request.
+ *
+ * A full handshake costs a couple of round trips and the certificate checks, which for a short request is most of its
+ * time.  All of our sockets come from one SSLContext, whose client session cache remembers each origin's sessions (by
+ * host and port), so the next connection to the origin resumes one instead: with a session ID under TLS 1.2 or a
+ * session ticket under TLS 1.3, skipping the certificate exchange.  Together with pooling, most requests to a busy
+ * origin need no handshake at all, and most of the rest a short one.
+ *
+ * Origins' certificates are checked against the trust store given with --tls-trust-store (the JVM's default trust
+ * store otherwise), and their host names against the certificate, as a browser would.  The nio engine doesn't do TLS.
+ */
+final class TlsConnector implements MetricsSource {
+
+    private final SSLSocketFactory factory;
+    private final Set<String> origins;
+    private final long handshakeTimeout;
+
+    private final LatencyHistogram handshakeTime = new LatencyHistogram();
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Create the connector, loading the trust store if one was given.
+     * @param config Proxy configuration, for the TLS origins, the trust store, and the session cache settings.
+     * @throws IOException if the trust store can't be read.
+     * @throws GeneralSecurityException if the trust store or the TLS implementation is unusable.
+     */
+    TlsConnector(ProxyConfig config) throws IOException, GeneralSecurityException {
+        this.origins = config.tlsOrigins;
+        this.handshakeTimeout = config.connectTimeout;
+        TrustManagerFactory trust = null;
+        if (!config.tlsTrustStore.isEmpty()) {
+            KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+            try (InputStream in = new FileInputStream(config.tlsTrustStore)) {
+                store.load(in, config.tlsTrustStorePassword.isEmpty() ? null
+                        : config.tlsTrustStorePassword.toCharArray());
+            }
+            trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(store);
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust == null ? null : trust.getTrustManagers(), null);
+        SSLSessionContext sessions = context.getClientSessionContext();
+        sessions.setSessionCacheSize(config.tlsSessions);
+        sessions.setSessionTimeout((int) Math.max(1, config.tlsSessionTimeout / 1000));
+        this.factory = context.getSocketFactory();
+    }
+
+    /**
+     * Return true if an origin is to be spoken to with TLS even when the request said http://.
+     * @param hostname Origin host name.
+     * @param port Origin port.
+     * @return true if it is one of the --tls-origins
+     */
+    boolean handles(String hostname, int port) {
+        return !origins.isEmpty() && origins.contains(hostname.toLowerCase(Locale.ROOT) + ":" + port);
+    }
+
+    /**
+     * Handshake over a new connection to an origin, resuming a cached session for it if there is one.
+     * @param plain The connected socket, which is closed if the handshake fails.
+     * @param host Host name, which is also the name sent in SNI and checked against the certificate.
+     * @param port Port.
+     * @return the TLS socket, handshaken and in blocking mode
+     * @throws IOException if the handshake fails or times out.
+     */
+    Socket handshake(Socket plain, String host, int port) throws IOException {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        SSLSocket socket;
+        try {
+            socket = (SSLSocket) factory.createSocket(plain, host, port, true);
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+        try {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            socket.setSoTimeout((int) handshakeTimeout);
+            socket.startHandshake();
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            failed.increment();
+            socket.close();
+            throw e;
+        }
+        handshakeTime.record(System.nanoTime() - start);
+        handshakes.increment();
+        // A resumed session keeps the creation time of the handshake that made it.
+        SSLSession session = socket.getSession();
+        if (session.getCreationTime() < startMillis) {
+            resumed.increment();
+        }
+        return socket;
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        sink.summary("proxy_tls_handshake_seconds", "Time to handshake with an HTTPS origin, once connected.",
+                handshakeTime);
+        sink.counter("proxy_tls_handshakes_total", "Handshakes with HTTPS origins.", handshakes.sum());
+        sink.counter("proxy_tls_resumed_total", "Handshakes with HTTPS origins that resumed a cached session.",
+                resumed.sum());
+        sink.counter("proxy_tls_handshake_failures_total", "Handshakes with HTTPS origins that failed.", failed.sum());
+    }
+}
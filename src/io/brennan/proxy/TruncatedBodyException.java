@@ -0,0 +1,16 @@
+package io.brennan.proxy;
+
+import java.io.EOFException;
+
+/**
+ * Thrown when a message body ends before its Content-Length (or the chunk it is in) says it should, because the other
+ * end closed the connection.  ProxyThread logs it as a truncated response and closes the client connection, which is
+ * the only way a client of a Content-Length body can tell that it didn't get all of it.
+ */
+public class TruncatedBodyException extends EOFException {
+    private static final long serialVersionUID = 1L;
+
+    public TruncatedBodyException(long missing) {
+        super("Body ended " + missing + " bytes short.");
+    }
+}
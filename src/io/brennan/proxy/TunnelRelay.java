@@ -0,0 +1,252 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relays CONNECT tunnels for the blocking engine.  Once a tunnel is set up, there's no HTTP left to understand, so
+ * instead of tying up two threads per tunnel (as ConnectTunnelOneDirection does), the two SocketChannels are handed to
+ * one of a few EventLoops, which shuffle bytes for many tunnels at once.
+ *
+ * Bytes move through direct buffers from the BufferPool, so they are never copied onto the Java heap.  A
+ * direction only holds a buffer while it has data the other side hasn't accepted yet; an idle tunnel holds none.  A
+ * tunnel that moves no bytes either way for the idle timeout is closed.
+ */
+class TunnelRelay {
+
+    private static final int BUFFER_SIZE = 16384;
+
+    /**
+     * Most buffers to move in one direction per event, so one busy tunnel can't starve the others on its loop.
+     */
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final TimerWheel timers;
+    private final long idleTimeout;
+
+    /**
+     * Create and start a relay.
+     * @param threads Number of event loop threads.
+     * @param timers Timer wheel for idle timeouts.
+     * @param idleTimeout How long a tunnel may go without moving a byte, in milliseconds, or zero for no limit.
+     * @throws IOException if a selector can't be opened.
+     */
+    TunnelRelay(int threads, TimerWheel timers, long idleTimeout) throws IOException {
+        this.timers = timers;
+        this.idleTimeout = idleTimeout;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("tunnel-relay-" + i);
+            loops[i].setDaemon(true);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Start relaying between two connected channels.  From now on the relay owns both channels and will close them.
+     * @param client Channel to the client.
+     * @param server Channel to the server.
+     * @param connection ID of the client connection, for the access log.
+     * @param address Client address, for the access log.
+     * @param request The CONNECT request.
+     * @param slot The client connection's place from Admission, released when the tunnel closes.
+     */
+    void relay(SocketChannel client, SocketChannel server, long connection, InetAddress address, HttpRequest request,
+               Admission.Slot slot) {
+        EventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        Tunnel tunnel = new Tunnel(client, server, connection, address, request, slot);
+        loop.execute(() -> tunnel.register(loop));
+    }
+
+    /**
+     * One half of a tunnel.
+     */
+    private static class Direction {
+        final SocketChannel from;
+        final SocketChannel to;
+        ByteBuffer pending; // data read but not yet written, in read mode; null when there is none
+        long bytes;
+        boolean eof;
+        boolean shutdown;
+
+        Direction(SocketChannel from, SocketChannel to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Both halves of a tunnel, registered with a single event loop.
+     */
+    private class Tunnel implements EventLoop.Handler {
+        private final SocketChannel client;
+        private final SocketChannel server;
+        private final long connection;
+        private final InetAddress address;
+        private final HttpRequest request;
+        private final Admission.Slot slot;
+        private final Direction upstream;
+        private final Direction downstream;
+        private final long started = System.nanoTime();
+        private EventLoop loop;
+        private TimerWheel.Timer timer;
+        private long progressMark;
+        private SelectionKey clientKey;
+        private SelectionKey serverKey;
+        private boolean closed;
+
+        Tunnel(SocketChannel client, SocketChannel server, long connection, InetAddress address,
+               HttpRequest request, Admission.Slot slot) {
+            this.client = client;
+            this.server = server;
+            this.connection = connection;
+            this.address = address;
+            this.request = request;
+            this.slot = slot;
+            this.upstream = new Direction(client, server);
+            this.downstream = new Direction(server, client);
+        }
+
+        void register(EventLoop loop) {
+            this.loop = loop;
+            if (idleTimeout > 0) {
+                timer = timers.newTimer(() -> loop.execute(this::checkIdle));
+                timer.arm(idleTimeout);
+            }
+            try {
+                client.configureBlocking(false);
+                server.configureBlocking(false);
+                clientKey = client.register(loop.getSelector(), SelectionKey.OP_READ, this);
+                serverKey = server.register(loop.getSelector(), SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close("registration failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void handle(SelectionKey key) {
+            if (closed) return;
+            try {
+                // Writable means some pending data can go out; readable means new data came in.  Either way the
+                // simplest thing is to try moving data in whichever direction touches this channel.
+                if (key.channel() == client) {
+                    if (key.isWritable()) pump(downstream);
+                    if (key.isReadable()) pump(upstream);
+                } else {
+                    if (key.isWritable()) pump(upstream);
+                    if (key.isReadable()) pump(downstream);
+                }
+                if (upstream.shutdown && downstream.shutdown) {
+                    close(null);
+                    return;
+                }
+                clientKey.interestOps(interest(upstream, downstream));
+                serverKey.interestOps(interest(downstream, upstream));
+            } catch (IOException e) {
+                close(e.getMessage());
+            }
+        }
+
+        /**
+         * Move data in one direction: first finish writing anything pending, then read and write as much as we can
+         * without blocking.  If the destination stops accepting data, keep the remainder in a buffer and stop reading
+         * until it drains.
+         */
+        private void pump(Direction d) throws IOException {
+            for (int reads = 0; reads < MAX_READS_PER_EVENT; reads++) {
+                if (d.pending != null) {
+                    int written = d.to.write(d.pending);
+                    d.bytes += written;
+                    Metrics.bytesOut.add(written);
+                    if (d.pending.hasRemaining()) {
+                        return; // wait for OP_WRITE
+                    }
+                    BufferPool.release(d.pending);
+                    d.pending = null;
+                }
+                if (d.eof) {
+                    if (!d.shutdown) {
+                        // Half-close: the sender is done, so tell the receiver, but keep the other direction going.
+                        d.to.shutdownOutput();
+                        d.shutdown = true;
+                    }
+                    return;
+                }
+                ByteBuffer buf = BufferPool.direct(BUFFER_SIZE);
+                int read = d.from.read(buf);
+                if (read <= 0) {
+                    BufferPool.release(buf);
+                    d.eof = read == -1;
+                    if (!d.eof) return;
+                    reads--; // go around once more to shut down
+                    continue;
+                }
+                Metrics.bytesIn.add(read);
+                buf.flip();
+                d.pending = buf;
+            }
+        }
+
+        /**
+         * Interest for a channel which is the source of one direction and destination of the other.
+         */
+        private int interest(Direction outOf, Direction into) {
+            int ops = 0;
+            if (outOf.pending == null && !outOf.eof) ops |= SelectionKey.OP_READ;
+            if (into.pending != null) ops |= SelectionKey.OP_WRITE;
+            return ops;
+        }
+
+        /**
+         * The idle timer went off.  If bytes have moved since it was set, set it again; otherwise close the tunnel.
+         */
+        private void checkIdle() {
+            if (closed || timer.isArmed()) return;
+            long progress = upstream.bytes + downstream.bytes;
+            if (progress != progressMark) {
+                progressMark = progress;
+                timer.rearm(idleTimeout);
+                return;
+            }
+            Metrics.tunnelTimeouts.increment();
+            close("TUNNEL-TIMEOUT", null);
+        }
+
+        private void close(String error) {
+            close(error == null ? "TUNNEL" : "TUNNEL-ERROR", error);
+        }
+
+        private void close(String note, String error) {
+            if (closed) return;
+            closed = true;
+            if (timer != null) {
+                timer.disarm();
+            }
+            for (Direction d : new Direction[] {upstream, downstream}) {
+                if (d.pending != null) {
+                    BufferPool.release(d.pending);
+                    d.pending = null;
+                }
+            }
+            try {
+                client.close();
+            } catch (IOException e) {}
+            try {
+                server.close();
+            } catch (IOException e) {}
+            slot.release();
+            Metrics.tunnelClosed();
+            if (error != null) {
+                ProxyThread.logger.fine("Tunnel for connection " + connection + " failed: " + error);
+            }
+            AccessLog.log(connection, address, request, "200", upstream.bytes, downstream.bytes,
+                    System.nanoTime() - started, note);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package io.brennan.proxy;
+
+import java.io.IOException;
+
+/**
+ * Thrown by UpstreamPool when a request can't have an origin connection: its origin (or the proxy as a whole) is at its
+ * connection cap, and either too many requests are waiting already or none came free in time.  ProxyThread answers the
+ * client with a 503, which is kinder than letting it hang.
+ */
+public class UpstreamBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public UpstreamBusyException(String message) {
+        super(message);
+    }
+}
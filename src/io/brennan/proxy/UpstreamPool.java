@@ -0,0 +1,544 @@
+package io.brennan.proxy;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of keep-alive connections to origin servers, kept per host:port.  ProxyThreads acquire() a connection, forward
+ * one request/response over it, and then release() it.  If the exchange left the connection in a reusable state, it
+ * goes back into the pool for the next request to the same origin, which saves us a TCP handshake (and a TIME_WAIT
+ * socket) per request.  Connections to HTTPS origins are pooled apart from plain ones to the same host:port, already
+ * handshaken, which saves the TLS handshake as well.
+ *
+ * Idle connections are validated before they are handed out again, since the origin may have closed them while they
+ * sat in the pool.  A background thread closes connections that have been idle for too long.  The number of open
+ * connections to a single host:port is capped, and so (optionally) is the number open to all origins together.  A
+ * request at a cap waits for a connection to come free, but only so many may wait, and only for so long; past that,
+ * acquire() throws UpstreamBusyException, and the client gets a 503 rather than joining an ever longer queue.
+ *
+ * The pool is guarded by a ReentrantLock rather than synchronized blocks.  A virtual thread that waits on a monitor
+ * (or does I/O while holding one) pins its carrier thread, while one waiting on a Condition just parks.
+ */
+public class UpstreamPool implements MetricsSource {
+
+    /**
+     * A single connection to an origin server.  The streams are created once and reused for every request on the
+     * connection, so that any buffered input stays with the connection.
+     */
+    public static class Connection {
+        private final Host host;
+        private final Socket socket;
+        private final HttpInputStream input;
+        private final OutputStream output;
+        private long lastUsed;
+        private boolean reused;
+
+        private Connection(Host host, Socket socket, int maxHeadSize, int maxHeaders) throws IOException {
+            this.host = host;
+            this.socket = socket;
+            this.input = new HttpInputStream(new CountingInputStream(socket.getInputStream(), Metrics.bytesIn),
+                    maxHeadSize, maxHeaders);
+            this.output = new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream(),
+                    Metrics.bytesOut), HttpMessage.BUFFER_SIZE);
+        }
+
+        private Connection(Http2Stream.StreamSocket socket, boolean reused, int maxHeadSize, int maxHeaders) {
+            this.host = null;
+            this.socket = socket;
+            this.input = new HttpInputStream(socket.getInputStream(), maxHeadSize, maxHeaders);
+            this.output = new BufferedOutputStream(socket.getOutputStream(), HttpMessage.BUFFER_SIZE);
+            this.reused = reused;
+        }
+
+        /**
+         * Wrap an HTTP/2 stream to an origin as a connection.  The bytes are counted on the HTTP/2 connection, not
+         * here, and the connection never goes into the pool: releasing it finishes the stream.
+         * @param stream The stream.
+         * @param reused Whether it went on a connection that was open already, so a request may be retried.
+         * @param maxHeadSize Largest response head to accept.
+         * @param maxHeaders Most header fields to accept.
+         * @return the connection
+         */
+        static Connection forStream(Http2Stream stream, boolean reused, int maxHeadSize, int maxHeaders) {
+            return new Connection(stream.socket(), reused, maxHeadSize, maxHeaders);
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        public HttpInputStream getInputStream() {
+            return input;
+        }
+
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        /**
+         * Return true if this connection came out of the pool, rather than being freshly opened.  A request that fails
+         * on a reused connection may be retried, since the origin may have closed it just as we picked it up.
+         * @return true if the connection was reused
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Bookkeeping for one host:port.  Guarded by the pool's lock.
+     */
+    private static class Host {
+        final String name;
+        final int port;
+        final boolean secure;
+        final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        int open;
+
+        Host(String name, int port, boolean secure) {
+            this.name = name;
+            this.port = port;
+            this.secure = secure;
+        }
+    }
+
+    private final Map<String, Host> hosts = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private int open; // connections open (or being opened) to all hosts
+    private int waiting; // requests waiting at a cap
+    private final LongAdder shed = new LongAdder();
+    private final int maxPerHost;
+    private final int maxTotal;
+    private final int maxWaiting;
+    private final long idleTimeout;
+    private final long acquireTimeout;
+    private final int maxHeadSize;
+    private final int maxHeaders;
+    private final Connector connector;
+    private final TlsConnector tls;
+    private final Http2Pool h2c; // null unless there are h2c origins
+
+    /**
+     * Create a pool and start its eviction thread.  The pool-* settings in the configuration give the connection cap
+     * per host:port, the idle timeout, and how long and how many requests may wait at the caps, and --max-upstream
+     * gives the cap for all origins together.  Response heads read over pooled connections
+     * get the same limits as requests.  Origins in --h2c-origins get HTTP/2 streams from an Http2Pool instead.
+     * @param config Proxy configuration.
+     * @param connector Opens connections to origins.
+     * @param tls Handshakes with HTTPS origins.
+     */
+    public UpstreamPool(ProxyConfig config, Connector connector, TlsConnector tls) {
+        this.connector = connector;
+        this.tls = tls;
+        this.maxPerHost = config.poolMaxPerHost;
+        this.maxTotal = config.maxUpstream;
+        this.maxWaiting = config.poolMaxWaiting;
+        this.idleTimeout = config.poolIdleTimeout;
+        this.acquireTimeout = config.poolAcquireTimeout;
+        this.maxHeadSize = config.maxHeadSize;
+        this.maxHeaders = config.maxHeaders;
+        this.h2c = config.h2cOrigins.isEmpty() ? null : new Http2Pool(config, connector);
+        Thread evictor = new Thread(this::evictLoop, "upstream-pool-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Get a connection to an origin, either by reusing a validated idle one, or opening a new one.  If the host is
+     * already at its connection cap, or the pool is at its overall cap, wait for one to be released.
+     * @param hostname Origin host name.
+     * @param port Origin port.
+     * @param secure Whether the request was for an https:// URL.  Origins in --tls-origins get TLS either way.
+     * @return A connection, which must be given back with release().
+     * @throws UpstreamBusyException If we time out waiting at the cap, or too many requests are waiting already.
+     * @throws IOException If connecting or the TLS handshake fails.
+     */
+    public Connection acquire(String hostname, int port, boolean secure) throws IOException {
+        return acquire(hostname, port, secure, true, false);
+    }
+
+    /**
+     * Get a connection to an origin like acquire(), but if the host or pool is at its cap, give up at once instead
+     * of waiting.
+     * @param hostname Origin host name.
+     * @param port Origin port.
+     * @param secure Whether the request was for an https:// URL.
+     * @return A connection, which must be given back with release(), or null if the host or pool is at its cap.
+     * @throws IOException If connecting or the TLS handshake fails.
+     */
+    public Connection tryAcquire(String hostname, int port, boolean secure) throws IOException {
+        return acquire(hostname, port, secure, false, false);
+    }
+
+    /**
+     * Get a connection for a request that a client has pipelined, to send it before its turn.  Like tryAcquire(), this
+     * never waits, but it also gives up unless there would still be room for another connection to the host (and in
+     * the pool) once it has taken one.  Such a request holds its connection until the requests before it are done, so
+     * the request whose turn it is must never be left waiting on it: that would be waiting on ourselves, or on another
+     * client that is waiting on us.
+     * @param hostname Origin host name.
+     * @param port Origin port.
+     * @param secure Whether the request was for an https:// URL.
+     * @return A connection, which must be given back with release(), or null if it would leave no room.
+     * @throws IOException If connecting or the TLS handshake fails.
+     */
+    public Connection acquireEarly(String hostname, int port, boolean secure) throws IOException {
+        return acquire(hostname, port, secure, false, true);
+    }
+
+    private Connection acquire(String hostname, int port, boolean secure, boolean wait, boolean spare)
+            throws IOException {
+        secure = secure || tls.handles(hostname, port);
+        if (!secure && h2c != null && h2c.handles(hostname, port)) {
+            return h2c.acquire(hostname, port, wait, spare);
+        }
+        String key = (secure ? "https://" : "") + hostname + ":" + port;
+        long deadline = System.currentTimeMillis() + acquireTimeout;
+        for (;;) {
+            Host host;
+            Connection conn = null;
+            Connection evicted = null;
+            boolean counted = false;
+            lock.lock();
+            try {
+                host = hosts.get(key);
+                if (host == null) {
+                    host = new Host(hostname, port, secure);
+                    hosts.put(key, host);
+                }
+                if (spare && !hasSpare(host)) {
+                    return null;
+                }
+                while ((conn = host.idle.pollLast()) == null &&
+                        (host.open >= maxPerHost || (maxTotal > 0 && open >= maxTotal &&
+                                (evicted = evictIdle()) == null))) {
+                    if (!wait) {
+                        return null;
+                    }
+                    if (!counted) {
+                        if (maxWaiting > 0 && waiting >= maxWaiting) {
+                            shed.increment();
+                            throw new UpstreamBusyException("Too many requests waiting for a connection to " + key +
+                                    ".");
+                        }
+                        waiting++;
+                        counted = true;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        shed.increment();
+                        throw new UpstreamBusyException("Timed out waiting for a connection to " + key + ".");
+                    }
+                    try {
+                        released.await(remaining, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for a connection to " + key + ".");
+                    }
+                }
+                if (conn == null) {
+                    host.open++; // reserve our slot before connecting outside the lock
+                    open++;
+                }
+            } finally {
+                if (counted) {
+                    waiting--;
+                }
+                lock.unlock();
+                if (evicted != null) {
+                    evicted.closeQuietly();
+                }
+            }
+
+            // Validation and connecting both do I/O, so they happen without holding the lock.
+            if (conn == null) {
+                return connect(host);
+            }
+            if (isUsable(conn)) {
+                conn.reused = true;
+                return conn;
+            }
+            release(conn, false);
+        }
+    }
+
+    /**
+     * Return true if taking one more connection to a host would still leave room, under both caps, for a request that
+     * waits for one: another idle connection, or a slot to open one in.  Must be called with the lock held.
+     */
+    private boolean hasSpare(Host host) {
+        if (host.open - host.idle.size() + 1 >= maxPerHost) {
+            return false;
+        }
+        if (maxTotal <= 0) {
+            return true;
+        }
+        int inUse = open;
+        for (Host other : hosts.values()) {
+            inUse -= other.idle.size();
+        }
+        return inUse + 1 < maxTotal;
+    }
+
+    /**
+     * Open connections to an origin until it has some idle in the pool, so that the next requests to it don't wait on
+     * a connect (or a TLS handshake).  This never goes past the caps, and never waits.
+     * @param hostname Origin host name.
+     * @param port Origin port.
+     * @param secure Whether to speak TLS to it.
+     * @param count How many idle connections to have.
+     * @return How many connections were opened.
+     * @throws IOException If connecting or the TLS handshake fails.
+     */
+    public int warm(String hostname, int port, boolean secure, int count) throws IOException {
+        secure = secure || tls.handles(hostname, port);
+        if (!secure && h2c != null && h2c.handles(hostname, port)) {
+            return 0; // one connection carries every stream, and it stays open anyway
+        }
+        String key = (secure ? "https://" : "") + hostname + ":" + port;
+        Host host;
+        int reserved = 0;
+        lock.lock();
+        try {
+            host = hosts.get(key);
+            if (host == null) {
+                host = new Host(hostname, port, secure);
+                hosts.put(key, host);
+            }
+            while (host.idle.size() + reserved < count && host.open < maxPerHost &&
+                    (maxTotal <= 0 || open < maxTotal)) {
+                host.open++;
+                open++;
+                reserved++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < reserved; i++) {
+            Connection conn;
+            try {
+                conn = connect(host);
+            } catch (IOException | RuntimeException e) {
+                giveBack(host, reserved - i - 1);
+                throw e;
+            }
+            release(conn, true);
+        }
+        return reserved;
+    }
+
+    /**
+     * Give back slots that were reserved for connections that won't be opened after all.
+     */
+    private void giveBack(Host host, int slots) {
+        if (slots == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            host.open -= slots;
+            open -= slots;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * When the pool is at its overall cap, make room by closing the longest idle connection to some other origin,
+     * since an idle connection is doing nobody any good.  Must be called with the lock held.
+     * @return The connection to close once the lock is released, or null if nothing is idle.
+     */
+    private Connection evictIdle() {
+        Connection oldest = null;
+        for (Host other : hosts.values()) {
+            Connection first = other.idle.peekFirst();
+            if (first != null && (oldest == null || first.lastUsed < oldest.lastUsed)) {
+                oldest = first;
+            }
+        }
+        if (oldest != null) {
+            oldest.host.idle.pollFirst();
+            oldest.host.open--;
+            open--;
+        }
+        return oldest;
+    }
+
+    /**
+     * Open a new connection for a slot that has already been reserved, giving the slot back if it fails.
+     */
+    private Connection connect(Host host) throws IOException {
+        try {
+            return new Connection(host, open(host), maxHeadSize, maxHeaders);
+        } catch (IOException | RuntimeException e) {
+            lock.lock();
+            try {
+                host.open--;
+                open--;
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Connect to a host, racing its addresses, and handshake if it is an HTTPS origin.
+     */
+    private Socket open(Host host) throws IOException {
+        long start = System.nanoTime();
+        // Open through a channel, so that large bodies can be moved channel to channel.  A TLS socket has no channel,
+        // so bodies from HTTPS origins always go through streams.
+        Socket socket = connector.connect(host.name, host.port).socket();
+        Metrics.upstreamConnect.record(System.nanoTime() - start);
+        return host.secure ? tls.handshake(socket, host.name, host.port) : socket;
+    }
+
+    /**
+     * Give a connection back to the pool.
+     * @param conn Connection obtained from acquire().
+     * @param reusable True if the last exchange finished cleanly and the origin agreed to keep the connection open.
+     */
+    public void release(Connection conn, boolean reusable) {
+        if (conn.host == null) {
+            conn.closeQuietly(); // an HTTP/2 stream, which is done with either way
+            return;
+        }
+        if (reusable && conn.socket.isClosed()) {
+            reusable = false;
+        }
+        lock.lock();
+        try {
+            if (reusable) {
+                conn.lastUsed = System.currentTimeMillis();
+                conn.host.idle.addLast(conn);
+            } else {
+                conn.host.open--;
+                open--;
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (!reusable) {
+            conn.closeQuietly();
+        }
+    }
+
+    @Override
+    public void collect(Metrics.Sink sink) {
+        int open;
+        int idle = 0;
+        int waiting;
+        lock.lock();
+        try {
+            open = this.open;
+            waiting = this.waiting;
+            for (Host host : hosts.values()) {
+                idle += host.idle.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        sink.gauge("proxy_upstream_connections_open", "Connections to origins, in use or idle.", open);
+        sink.gauge("proxy_upstream_connections_idle", "Idle connections to origins waiting in the pool.", idle);
+        sink.gauge("proxy_upstream_waiting", "Requests waiting for a connection at a cap.", waiting);
+        sink.counter("proxy_upstream_shed_total",
+                "Requests refused with a 503 because origin connections were at their caps.", shed.sum());
+        if (h2c != null) {
+            h2c.collect(sink);
+        }
+    }
+
+    /**
+     * Check that an idle connection is still good to use, without waiting.  An origin which has closed the connection
+     * will make a read return -1 at once, and any stray bytes mean the connection is out of sync, while on a healthy
+     * idle connection there is nothing to read.  So a plain connection gets a non-blocking read of its channel.  A TLS
+     * connection has no channel of its own, and reading the one underneath would take bytes out of the TLS stream
+     * (which a TLS 1.3 origin may well have sent, as session tickets), so all it gets is a look for unread data.  If
+     * its origin has closed it, the request finds out, and is retried on a fresh connection.
+     * @param conn Connection to check.
+     * @return true if the connection may be handed out.
+     */
+    private static boolean isUsable(Connection conn) {
+        Socket socket = conn.socket;
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            if (conn.input.available() > 0) {
+                return false;
+            }
+            SocketChannel channel = socket.getChannel();
+            if (channel == null) {
+                return true;
+            }
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0; // -1 for EOF, or unexpected data
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Periodically close connections that have been idle for longer than the idle timeout.
+     */
+    private void evictLoop() {
+        long interval = Math.max(1000, idleTimeout / 2);
+        for (;;) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long cutoff = System.currentTimeMillis() - idleTimeout;
+            lock.lock();
+            try {
+                Iterator<Host> hostIterator = hosts.values().iterator();
+                while (hostIterator.hasNext()) {
+                    Host host = hostIterator.next();
+                    // Oldest connections are at the front, since release() adds to the back.
+                    while (!host.idle.isEmpty() && host.idle.peekFirst().lastUsed < cutoff) {
+                        host.idle.pollFirst().closeQuietly();
+                        host.open--;
+                        open--;
+                    }
+                    if (host.open == 0) {
+                        hostIterator.remove();
+                    }
+                }
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (h2c != null) {
+                h2c.evict(cutoff);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package io.brennan.proxy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CONNECT tunnels, through the relay, through a pair of threads, and through the nio engine.  The origin echoes, and
+ * the client writes while it reads, so both directions of the tunnel are busy at once.
+ */
+@RunWith(Parameterized.class)
+public class ConnectTunnelTest {
+
+    private static final int SIZE = 256 * 1024;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> modes() {
+        return Arrays.asList(new Object[][] {
+                {"--tunnel=relay"},
+                {"--tunnel=threads"},
+                {"--engine=nio"},
+        });
+    }
+
+    private final String mode;
+
+    public ConnectTunnelTest(String mode) {
+        this.mode = mode;
+    }
+
+    private static void echo(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void bytesGoBothWaysAtOnce() throws Exception {
+        try (StubOrigin origin = new StubOrigin(ConnectTunnelTest::echo);
+             ProxyProcess proxy = new ProxyProcess(mode);
+             Socket client = proxy.connect(5000)) {
+            OutputStream out = client.getOutputStream();
+            out.write(("CONNECT 127.0.0.1:" + origin.port + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            InputStream in = client.getInputStream();
+            String head = StubOrigin.readHead(in);
+            assertEquals(head, "200", head.split(" ", 3)[1]);
+
+            byte[] sent = new byte[SIZE];
+            new Random(42).nextBytes(sent);
+            CompletableFuture<byte[]> echoed = CompletableFuture.supplyAsync(() -> {
+                try {
+                    ByteArrayOutputStream received = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    while (received.size() < SIZE) {
+                        int n = in.read(buffer);
+                        if (n == -1) break;
+                        received.write(buffer, 0, n);
+                    }
+                    return received.toByteArray();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            for (int off = 0; off < SIZE; off += 4096) {
+                out.write(sent, off, 4096);
+                out.flush();
+            }
+            assertArrayEquals(sent, echoed.get(20, TimeUnit.SECONDS));
+        }
+    }
+}
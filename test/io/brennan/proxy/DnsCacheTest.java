@@ -0,0 +1,148 @@
+package io.brennan.proxy;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The DNS cache in front of a stub resolver, which counts its lookups and answers or fails as each test says.
+ */
+public class DnsCacheTest {
+
+    private static final InetAddress[] OLD = {address(10, 0, 0, 1)};
+    private static final InetAddress[] NEW = {address(10, 0, 0, 2)};
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * A resolver that answers its first lookup with OLD and the rest from next(), counting them.
+     */
+    private static class StubResolver implements Resolver {
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return lookups.incrementAndGet() == 1 ? OLD : next();
+        }
+
+        InetAddress[] next() throws UnknownHostException {
+            return NEW;
+        }
+    }
+
+    @Test
+    public void answersFromTheCacheUntilTheTtlRunsOut() throws Exception {
+        StubResolver stub = new StubResolver();
+        DnsCache cache = new DnsCache(stub, 1000, 1000, Runnable::run);
+        assertArrayEquals(OLD, cache.resolve("origin.test"));
+        assertArrayEquals(OLD, cache.resolve("ORIGIN.test"));
+        assertEquals(1, stub.lookups.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        Thread.sleep(1100);
+        assertArrayEquals(NEW, cache.resolve("origin.test"));
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getLookups());
+    }
+
+    @Test
+    public void failuresAreRemembered() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        DnsCache cache = new DnsCache(host -> {
+            lookups.incrementAndGet();
+            throw new UnknownHostException(host);
+        }, 10000, 10000, Runnable::run);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.resolve("nowhere.test");
+                fail("resolved a name that doesn't");
+            } catch (UnknownHostException e) {
+                assertEquals("nowhere.test", e.getMessage());
+            }
+        }
+        assertEquals(1, lookups.get());
+        assertEquals(1, cache.getNegativeHits());
+        assertEquals(1, cache.getFailures());
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentLookupsAreCoalesced() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StubResolver stub = new StubResolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new UnknownHostException("interrupted");
+                }
+                return super.resolve(host);
+            }
+        };
+        DnsCache cache = new DnsCache(stub, 10000, 10000, Runnable::run);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<InetAddress[]> first = threads.submit(() -> cache.resolve("origin.test"));
+            started.await();
+            CompletableFuture<InetAddress[]> second = cache.resolveAsync("origin.test");
+            release.countDown();
+            assertArrayEquals(OLD, first.get(5, TimeUnit.SECONDS));
+            assertArrayEquals(OLD, second.get(5, TimeUnit.SECONDS));
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(1, stub.lookups.get());
+        assertEquals(1, cache.getCoalesced());
+    }
+
+    @Test
+    public void oldEntriesInUseAreRefreshedInTheBackground() throws Exception {
+        StubResolver stub = new StubResolver();
+        DnsCache cache = new DnsCache(stub, 1000, 1000, Runnable::run);
+        cache.resolve("origin.test");
+        Thread.sleep(800);
+        // Still answered from the cache, but the refresh it started (on this thread, here) has replaced it.
+        assertArrayEquals(OLD, cache.resolve("origin.test"));
+        assertArrayEquals(NEW, cache.resolve("origin.test"));
+        assertEquals(1, cache.getRefreshes());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, stub.lookups.get());
+    }
+
+    @Test
+    public void aFailedRefreshKeepsTheOldAddresses() throws Exception {
+        StubResolver stub = new StubResolver() {
+            @Override
+            InetAddress[] next() throws UnknownHostException {
+                throw new UnknownHostException("resolver down");
+            }
+        };
+        DnsCache cache = new DnsCache(stub, 1000, 1000, Runnable::run);
+        cache.resolve("origin.test");
+        Thread.sleep(800);
+        assertArrayEquals(OLD, cache.resolve("origin.test"));
+        assertArrayEquals(OLD, cache.resolve("origin.test"));
+        assertEquals(1, cache.getFailures());
+    }
+}
@@ -0,0 +1,85 @@
+package io.brennan.proxy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Interim (1xx) responses, in both engines.  The client gets the origin's 100 Continue and then its final response, and
+ * the origin connection only goes back into the pool once the final response has been read from it, so the next
+ * request over it gets its own answer.  With one connection per host, that next request is sure to reuse it.
+ */
+@RunWith(Parameterized.class)
+public class ExpectContinueTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        return Arrays.asList(new Object[][] {{"blocking"}, {"nio"}});
+    }
+
+    private final String engine;
+
+    public ExpectContinueTest(String engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Answer requests on a connection, sending 100 Continue first to any that expect it, and a 200 with the path and
+     * body of the request.
+     */
+    private static void continuing(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        for (String head; (head = StubOrigin.readHead(in)) != null; ) {
+            if ("100-continue".equalsIgnoreCase(StubOrigin.header(head, "Expect"))) {
+                out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+            }
+            String length = StubOrigin.header(head, "Content-Length");
+            byte[] body = StubOrigin.readBody(in, length == null ? 0 : Integer.parseInt(length));
+            StubOrigin.writeResponse(out, "200 OK",
+                    StubOrigin.path(head) + " " + new String(body, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void interimResponseComesBeforeTheFinalOne() throws Exception {
+        try (StubOrigin origin = new StubOrigin(ExpectContinueTest::continuing);
+             ProxyProcess proxy = new ProxyProcess("--engine=" + engine, "--pool-max-per-host=1")) {
+            try (Socket client = proxy.connect(5000)) {
+                OutputStream out = client.getOutputStream();
+                out.write(("POST " + origin.url("/upload") + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port + "\r\n" +
+                        "Expect: 100-continue\r\nContent-Length: 5\r\nConnection: keep-alive\r\n\r\nhello")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                InputStream in = client.getInputStream();
+                StubOrigin.Response interim = StubOrigin.readResponse(in);
+                assertEquals(interim.toString(), "100", interim.status);
+                StubOrigin.Response response = StubOrigin.readResponse(in);
+                assertEquals(response.toString(), "200", response.status);
+                assertEquals("/upload hello", response.body);
+            }
+
+            // The origin connection is the only one there is, so this goes over it.
+            try (Socket client = proxy.connect(5000)) {
+                OutputStream out = client.getOutputStream();
+                out.write(("GET " + origin.url("/next") + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port + "\r\n" +
+                        "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                StubOrigin.Response response = StubOrigin.readResponse(client.getInputStream());
+                assertEquals(response.toString(), "200", response.status);
+                assertEquals("/next ", response.body);
+            }
+        }
+    }
+}
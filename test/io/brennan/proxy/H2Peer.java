@@ -0,0 +1,144 @@
+package io.brennan.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.brennan.proxy.Http2Connection.ACK;
+import static io.brennan.proxy.Http2Connection.SETTINGS;
+
+/**
+ * One end of an HTTP/2 connection, for tests, spoken a frame at a time.  It does nothing on its own but acknowledge
+ * SETTINGS; there's no flow control, which is fine for bodies well inside the initial windows.  Header blocks go
+ * through the proxy's own HPACK, which is tested elsewhere: what matters here is the framing and who waits on whom.
+ */
+final class H2Peer {
+
+    /**
+     * A frame as it came off the wire.
+     */
+    static final class Frame {
+        final int type;
+        final int flags;
+        final int stream;
+        final byte[] payload;
+
+        private Frame(int type, int flags, int stream, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.stream = stream;
+            this.payload = payload;
+        }
+
+        boolean has(int flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(64 * 1024);
+
+    H2Peer(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(in);
+        this.out = out;
+    }
+
+    /**
+     * Send the client preface and an empty SETTINGS frame.
+     */
+    void startClient() throws IOException {
+        out.write(Http2Connection.PREFACE);
+        write(SETTINGS, 0, 0, new byte[0]);
+    }
+
+    /**
+     * Read the client preface, and send an empty SETTINGS frame.
+     */
+    void startServer() throws IOException {
+        byte[] preface = new byte[Http2Connection.PREFACE.length];
+        in.readFully(preface);
+        if (!Arrays.equals(preface, Http2Connection.PREFACE)) {
+            throw new IOException("bad preface: " + new String(preface, "ISO-8859-1"));
+        }
+        write(SETTINGS, 0, 0, new byte[0]);
+    }
+
+    /**
+     * Write a frame and flush it.
+     */
+    void write(int type, int flags, int stream, byte[] payload) throws IOException {
+        byte[] head = {(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+                (byte) type, (byte) flags,
+                (byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream};
+        out.write(head);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Write a HEADERS frame holding the whole of a header block.
+     * @param fields Names and values, alternately.
+     */
+    void headers(int stream, boolean endStream, String... fields) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.begin(block);
+        for (int i = 0; i < fields.length; i += 2) {
+            encoder.encode(block, fields[i], fields[i + 1]);
+        }
+        write(Http2Connection.HEADERS, Http2Connection.END_HEADERS | (endStream ? Http2Connection.END_STREAM : 0),
+                stream, block.toByteArray());
+    }
+
+    /**
+     * Read the next frame that isn't SETTINGS, acknowledging any SETTINGS on the way.
+     */
+    Frame read() throws IOException {
+        for (;;) {
+            int length = in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int stream = in.readInt() & 0x7fffffff;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (type != SETTINGS) {
+                return new Frame(type, flags, stream, payload);
+            }
+            if ((flags & ACK) == 0) {
+                write(SETTINGS, ACK, 0, new byte[0]);
+            }
+        }
+    }
+
+    /**
+     * Decode a HEADERS frame's block, which must be all there is of it (no padding, priority or CONTINUATION).
+     * @return Names and values, alternately.
+     */
+    List<String> fields(Frame frame) throws IOException {
+        if (frame.has(Http2Connection.PADDED) || frame.has(Http2Connection.PRIORITY_FLAG)
+                || !frame.has(Http2Connection.END_HEADERS)) {
+            throw new IOException("HEADERS frame with flags " + frame.flags + " isn't handled here");
+        }
+        List<String> fields = new ArrayList<>();
+        decoder.decode(frame.payload, frame.payload.length, fields);
+        return fields;
+    }
+
+    /**
+     * Return a field's value, or null if it isn't there.
+     */
+    static String field(List<String> fields, String name) {
+        for (int i = 0; i < fields.size(); i += 2) {
+            if (fields.get(i).equals(name)) {
+                return fields.get(i + 1);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,128 @@
+package io.brennan.proxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cleartext HTTP/2, from a client with prior knowledge and to an origin listed in --h2c-origins.  Either way one thread
+ * reads the connection while the streams' threads write to it, so a socket whose reads and writes share a lock hangs
+ * here instead of answering.
+ */
+public class Http2Test {
+
+    private static final int TIMEOUT = 5000;
+
+    @Test(timeout = 30000)
+    public void clientStreamsAreAnswered() throws Exception {
+        try (StubOrigin origin = new StubOrigin(StubOrigin::echoPath);
+             ProxyProcess proxy = new ProxyProcess();
+             Socket client = proxy.connect(TIMEOUT)) {
+            H2Peer peer = new H2Peer(client.getInputStream(), client.getOutputStream());
+            peer.startClient();
+            String authority = "127.0.0.1:" + origin.port;
+            for (int stream = 1; stream <= 5; stream += 2) {
+                peer.headers(stream, true, ":method", "GET", ":scheme", "http", ":authority", authority,
+                        ":path", "/h2/" + stream);
+            }
+
+            Map<Integer, String> statuses = new HashMap<>();
+            Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+            for (int ended = 0; ended < 3; ) {
+                H2Peer.Frame frame = peer.read();
+                switch (frame.type) {
+                    case Http2Connection.HEADERS:
+                        statuses.put(frame.stream, H2Peer.field(peer.fields(frame), ":status"));
+                        break;
+                    case Http2Connection.DATA:
+                        bodies.computeIfAbsent(frame.stream, s -> new ByteArrayOutputStream()).write(frame.payload);
+                        break;
+                    case Http2Connection.GOAWAY:
+                    case Http2Connection.RST_STREAM:
+                        throw new AssertionError("frame type " + frame.type + " on stream " + frame.stream);
+                    default:
+                        continue;
+                }
+                if (frame.has(Http2Connection.END_STREAM)) {
+                    ended++;
+                }
+            }
+            for (int stream = 1; stream <= 5; stream += 2) {
+                assertEquals("200", statuses.get(stream));
+                assertEquals("/h2/" + stream, bodies.get(stream).toString("ISO-8859-1"));
+            }
+        }
+    }
+
+    /**
+     * Answer every request on an HTTP/2 connection with a 200 whose body is the request's path.  A request is answered
+     * once its stream has ended, whether that came with its HEADERS or with the last of its DATA.
+     */
+    private static void h2EchoPath(Socket socket) throws IOException {
+        H2Peer peer = new H2Peer(socket.getInputStream(), socket.getOutputStream());
+        peer.startServer();
+        Map<Integer, String> paths = new HashMap<>();
+        for (;;) {
+            H2Peer.Frame frame = peer.read();
+            if (frame.type == Http2Connection.HEADERS) {
+                paths.put(frame.stream, H2Peer.field(peer.fields(frame), ":path"));
+            } else if (frame.type == Http2Connection.GOAWAY) {
+                return;
+            } else if (frame.type != Http2Connection.DATA) {
+                continue;
+            }
+            if (frame.has(Http2Connection.END_STREAM)) {
+                byte[] body = paths.remove(frame.stream).getBytes(StandardCharsets.ISO_8859_1);
+                peer.headers(frame.stream, false, ":status", "200", "content-length", String.valueOf(body.length));
+                peer.write(Http2Connection.DATA, Http2Connection.END_STREAM, frame.stream, body);
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void originStreamsAreAnswered() throws Exception {
+        try (StubOrigin origin = new StubOrigin(Http2Test::h2EchoPath);
+             ProxyProcess proxy = new ProxyProcess("--h2c-origins=127.0.0.1:" + origin.port,
+                     "--h2c-origin-connections=1")) {
+            ExecutorService clients = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> done = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    String path = "/up/" + i;
+                    done.add(clients.submit(() -> {
+                        try (Socket client = proxy.connect(TIMEOUT)) {
+                            OutputStream out = client.getOutputStream();
+                            out.write(("GET " + origin.url(path) + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port +
+                                    "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                            out.flush();
+                            StubOrigin.Response response = StubOrigin.readResponse(client.getInputStream());
+                            assertEquals(response.toString(), "200", response.status);
+                            assertEquals(path, response.body);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : done) {
+                    future.get();
+                }
+            } finally {
+                clients.shutdownNow();
+            }
+            assertTrue("opened " + origin.connections.get() + " connections", origin.connections.get() <= 1);
+        }
+    }
+}
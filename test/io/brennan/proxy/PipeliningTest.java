@@ -0,0 +1,77 @@
+package io.brennan.proxy;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pipelined requests through the blocking engine when the origin is at its connection cap.  Requests read ahead must
+ * never hold the connections that the request whose turn it is needs, or the connection stalls until the pool gives up
+ * with a 503.  The acquire timeout is longer than the clients' read timeout, so a stall fails the test either way.
+ */
+public class PipeliningTest {
+
+    private static final int TIMEOUT = 5000;
+
+    @Test(timeout = 30000)
+    public void pipelinedRequestsWithOneConnectionPerHost() throws Exception {
+        try (StubOrigin origin = new StubOrigin(StubOrigin::echoPath);
+             ProxyProcess proxy = new ProxyProcess("--pool-max-per-host=1", "--pool-acquire-timeout=10000")) {
+            pipeline(proxy, origin, "a");
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void pipeliningClientsDontWaitOnEachOther() throws Exception {
+        try (StubOrigin origin = new StubOrigin(StubOrigin::echoPath);
+             ProxyProcess proxy = new ProxyProcess("--pool-max-per-host=2", "--pool-acquire-timeout=10000")) {
+            ExecutorService clients = Executors.newFixedThreadPool(4);
+            try {
+                Future<?>[] done = new Future<?>[4];
+                for (int i = 0; i < done.length; i++) {
+                    String name = "client" + i;
+                    done[i] = clients.submit(() -> {
+                        pipeline(proxy, origin, name);
+                        return null;
+                    });
+                }
+                for (Future<?> future : done) {
+                    future.get();
+                }
+            } finally {
+                clients.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Send three GETs in one write, and check that the answers come back in order.
+     */
+    private static void pipeline(ProxyProcess proxy, StubOrigin origin, String name) throws Exception {
+        try (Socket client = proxy.connect(TIMEOUT)) {
+            StringBuilder requests = new StringBuilder();
+            for (int i = 1; i <= 3; i++) {
+                requests.append("GET ").append(origin.url("/" + name + "/" + i)).append(" HTTP/1.1\r\n")
+                        .append("Host: 127.0.0.1:").append(origin.port).append("\r\n")
+                        .append("Connection: keep-alive\r\n\r\n");
+            }
+            OutputStream out = client.getOutputStream();
+            out.write(requests.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            InputStream in = client.getInputStream();
+            for (int i = 1; i <= 3; i++) {
+                StubOrigin.Response response = StubOrigin.readResponse(in);
+                assertEquals(response.toString(), "200", response.status);
+                assertEquals("/" + name + "/" + i, response.body);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package io.brennan.proxy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A proxy for a test to talk to, running io.brennan.proxy.Main in a separate JVM on an unused loopback port, the same
+ * way LoadTest does.  A JVM of its own keeps the proxy's static state (metrics, the access log, the buffer pool) from
+ * leaking between tests.
+ */
+final class ProxyProcess implements Closeable {
+
+    final int port;
+    private final Process process;
+    private final File log;
+
+    /**
+     * Start a proxy and wait up to ten seconds for it to accept connections.
+     * @param args Options for Main, without the port.
+     * @throws IOException if it can't be started, or dies before it accepts
+     */
+    ProxyProcess(String... args) throws IOException, InterruptedException {
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        log = File.createTempFile("proxy-test", ".log");
+        log.deleteOnExit();
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        command.add("-cp");
+        command.add(new File(Main.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getPath());
+        command.add(Main.class.getName());
+        command.addAll(Arrays.asList(args));
+        command.add(Integer.toString(port));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(log);
+        process = builder.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!accepts()) {
+            if (!process.isAlive() || System.nanoTime() > deadline) {
+                close();
+                throw new IOException("proxy didn't start:\n" + log());
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private boolean accepts() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Open a client connection to the proxy.
+     * @param timeout Read timeout in milliseconds, so a test that hangs fails instead.
+     */
+    Socket connect(int timeout) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(timeout);
+        return socket;
+    }
+
+    /**
+     * Return what the proxy has written to its console so far, for failure messages.
+     */
+    String log() {
+        try {
+            return new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return e.toString();
+        }
+    }
+
+    @Override
+    public void close() {
+        process.destroy();
+        try {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package io.brennan.proxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reverse-proxy routes over stub backends: requests are shared among a route's backends, requests matching no route
+ * are turned away, and a backend that fails its health checks stops getting requests.
+ */
+public class RoutesTest {
+
+    private static final int TIMEOUT = 5000;
+
+    /**
+     * A backend that answers with its name and the request's path, and health checks (to /health) with a 200 or,
+     * if it's sick, a 503.
+     */
+    private static StubOrigin backend(String name, boolean sick) throws IOException {
+        return new StubOrigin(socket -> {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            for (String head; (head = StubOrigin.readHead(in)) != null; ) {
+                String path = StubOrigin.path(head);
+                if (path.equals("/health")) {
+                    StubOrigin.writeResponse(out, sick ? "503 Service Unavailable" : "200 OK", "");
+                } else {
+                    StubOrigin.writeResponse(out, "200 OK", name + " " + path);
+                }
+            }
+        });
+    }
+
+    /**
+     * Send requests for a path over one connection, in origin form as a reverse proxy gets them, and count the
+     * answers by backend.
+     */
+    private static Map<String, Integer> send(ProxyProcess proxy, int n) throws IOException {
+        Map<String, Integer> counts = new HashMap<>();
+        try (Socket client = proxy.connect(TIMEOUT)) {
+            OutputStream out = client.getOutputStream();
+            InputStream in = client.getInputStream();
+            for (int i = 0; i < n; i++) {
+                out.write(("GET /api/" + i + " HTTP/1.1\r\nHost: site.test\r\nConnection: keep-alive\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                StubOrigin.Response response = StubOrigin.readResponse(in);
+                assertEquals(response.toString(), "200", response.status);
+                String[] body = response.body.split(" ");
+                assertEquals("/api/" + i, body[1]);
+                counts.merge(body[0], 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    @Test(timeout = 30000)
+    public void requestsAreSharedAmongBackends() throws Exception {
+        try (StubOrigin a = backend("a", false);
+             StubOrigin b = backend("b", false);
+             ProxyProcess proxy = new ProxyProcess("--route=/api=127.0.0.1:" + a.port + ",127.0.0.1:" + b.port,
+                     "--health-interval=0")) {
+            Map<String, Integer> counts = send(proxy, 40);
+            assertTrue(counts.toString(), counts.getOrDefault("a", 0) > 0 && counts.getOrDefault("b", 0) > 0);
+
+            try (Socket client = proxy.connect(TIMEOUT)) {
+                client.getOutputStream().write("GET /elsewhere HTTP/1.1\r\nHost: site.test\r\n\r\n"
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                StubOrigin.Response response = StubOrigin.readResponse(client.getInputStream());
+                assertEquals(response.toString(), "404", response.status);
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void unhealthyBackendsAreTakenOut() throws Exception {
+        try (StubOrigin a = backend("a", false);
+             StubOrigin b = backend("b", true);
+             ProxyProcess proxy = new ProxyProcess("--route=/api=127.0.0.1:" + a.port + ",127.0.0.1:" + b.port,
+                     "--health-path=/health", "--health-interval=100", "--unhealthy-threshold=1",
+                     "--healthy-threshold=1")) {
+            // A few rounds of checks, so b has certainly failed one.
+            Thread.sleep(1000);
+            Map<String, Integer> counts = send(proxy, 20);
+            assertEquals(counts.toString(), Integer.valueOf(20), counts.get("a"));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package io.brennan.proxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams over a connected pair of channels on loopback.  Reading ahead in available() is what runtimes before Java 13
+ * get, and is tested here on whatever runtime runs the tests.
+ */
+public class SocketStreamsTest {
+
+    private SocketChannel near;
+    private SocketChannel far;
+
+    @Before
+    public void connect() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            far = SocketChannel.open(server.getLocalAddress());
+            near = server.accept();
+        }
+    }
+
+    @After
+    public void close() throws IOException {
+        near.close();
+        far.close();
+    }
+
+    private void send(String s) throws IOException {
+        OutputStream out = far.socket().getOutputStream();
+        out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * Wait for available() to see something, as a read-ahead check would see it once the bytes had arrived.
+     */
+    private static void awaitAvailable(InputStream in) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (in.available() <= 0) {
+            assertTrue("nothing became available", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void peekedByteComesBackWithTheRest() throws Exception {
+        InputStream in = new SocketStreams.Input(near.socket(), near, true);
+        assertEquals(0, in.available());
+        send("hello");
+        awaitAvailable(in);
+        Thread.sleep(50); // let the rest of it land, though a short read would be fine too
+        byte[] buffer = new byte[16];
+        int n = in.read(buffer);
+        assertEquals("hello", new String(buffer, 0, n, StandardCharsets.ISO_8859_1));
+        assertEquals(0, in.available());
+    }
+
+    @Test(timeout = 10000)
+    public void pipelinedHeadIsFoundWhenItArrivesLater() throws Exception {
+        HttpInputStream in = new HttpInputStream(new SocketStreams.Input(near.socket(), near, true), 8192, 100);
+        send("GET /1 HTTP/1.1\r\nHost: a\r\n\r\n");
+        assertTrue(in.awaitData());
+        new HttpRequest(in);
+        assertFalse(in.hasHead());
+        send("GET /2 HTTP/1.1\r\nHost: a\r\n\r\n");
+        awaitAvailable(in);
+        assertTrue(in.hasHead());
+        assertEquals("/2", new HttpRequest(in).getUrl());
+    }
+
+    @Test(timeout = 10000)
+    public void writesGoThroughWhileAReadWaits() throws Exception {
+        InputStream in = SocketStreams.input(near.socket());
+        OutputStream out = SocketStreams.output(near.socket());
+        CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+            try {
+                return in.read();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100); // the read is blocked by now
+        out.write('x');
+        out.flush();
+        assertEquals('x', far.socket().getInputStream().read());
+        send("y");
+        assertEquals('y', (int) read.get(5, TimeUnit.SECONDS));
+    }
+}
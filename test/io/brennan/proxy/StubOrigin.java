@@ -0,0 +1,202 @@
+package io.brennan.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An origin server for tests, on an unused loopback port.  Each connection gets a thread of its own and is handed to a
+ * Handler, which does whatever the test needs with it, byte for byte.  There are helpers here for reading and writing
+ * the messages, kept deliberately separate from the proxy's own parsing, so that tests don't take its word for it.
+ */
+final class StubOrigin implements Closeable {
+
+    /**
+     * What the origin does with a connection.  The socket is closed when it returns.
+     */
+    interface Handler {
+        void serve(Socket socket) throws IOException, InterruptedException;
+    }
+
+    final int port;
+    final AtomicInteger connections = new AtomicInteger();
+    private final ServerSocket server;
+
+    /**
+     * Start accepting connections.
+     * @param handler What to do with each one.
+     */
+    StubOrigin(Handler handler) throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        port = server.getLocalPort();
+        Thread acceptor = new Thread(() -> {
+            try {
+                for (;;) {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(() -> {
+                        try (Socket s = socket) {
+                            handler.serve(s);
+                        } catch (IOException e) {
+                            // the proxy hung up
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }, "stub-origin");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }, "stub-origin-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Return an absolute URL for a path on this origin, for sending through the proxy.
+     */
+    String url(String path) {
+        return "http://127.0.0.1:" + port + path;
+    }
+
+    /**
+     * A handler that answers every request on a connection, keeping it alive, with a 200 whose body is the request's
+     * path.
+     */
+    static void echoPath(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        for (String head; (head = readHead(in)) != null; ) {
+            writeResponse(out, "200 OK", path(head));
+        }
+    }
+
+    /**
+     * Read a message head, up to and including the blank line.
+     * @return The head, or null if the stream ended before it started.
+     * @throws EOFException if the stream ends part way through it
+     */
+    static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) {
+                if (head.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("message head cut short: " + head);
+            }
+            head.write(b);
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : b == '\r' ? 1 : 0;
+        }
+        return head.toString("ISO-8859-1");
+    }
+
+    /**
+     * Return a header field's value from a head, or null if it isn't there.
+     */
+    static String header(String head, String name) {
+        String prefix = name.toLowerCase(Locale.ROOT) + ":";
+        for (String line : head.split("\r\n")) {
+            if (line.toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                return line.substring(prefix.length()).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the path of the request target in a request head, whether it was sent in absolute or origin form.
+     */
+    static String path(String head) {
+        String target = head.split(" ", 3)[1];
+        if (target.startsWith("http://")) {
+            int slash = target.indexOf('/', 7);
+            target = slash == -1 ? "/" : target.substring(slash);
+        }
+        return target;
+    }
+
+    /**
+     * Read exactly n bytes.
+     */
+    static byte[] readBody(InputStream in, int n) throws IOException {
+        byte[] body = new byte[n];
+        for (int off = 0; off < n; ) {
+            int read = in.read(body, off, n - off);
+            if (read == -1) {
+                throw new EOFException("body cut short after " + off + " of " + n + " bytes");
+            }
+            off += read;
+        }
+        return body;
+    }
+
+    /**
+     * Write a response with a Content-Length body and flush it.
+     * @param status Status code and reason, like "200 OK".
+     */
+    static void writeResponse(OutputStream out, String status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + bytes.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * A response as a client sees it.
+     */
+    static final class Response {
+        final String head;
+        final String status;
+        final String body;
+
+        private Response(String head, String body) {
+            this.head = head;
+            this.status = head.split(" ", 3)[1];
+            this.body = body;
+        }
+
+        @Override
+        public String toString() {
+            return head + body;
+        }
+    }
+
+    /**
+     * Read one response off a connection, framed by its Content-Length.  An interim (1xx) response comes back on its
+     * own, with no body.
+     * @throws EOFException if the connection closes first
+     */
+    static Response readResponse(InputStream in) throws IOException {
+        String head = readHead(in);
+        if (head == null) {
+            throw new EOFException("connection closed before a response");
+        }
+        String length = header(head, "Content-Length");
+        if (head.split(" ", 3)[1].startsWith("1") || length == null) {
+            return new Response(head, "");
+        }
+        return new Response(head, new String(readBody(in, Integer.parseInt(length)), StandardCharsets.ISO_8859_1));
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {}
+    }
+}
@@ -0,0 +1,159 @@
+package io.brennan.proxy;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HTTPS origins, with a certificate made for the occasion by keytool and a trust store holding just that.  Connections
+ * to the origin are pooled once handshaken, and a new one resumes the session of the last.
+ */
+public class TlsOriginTest {
+
+    private static final int TIMEOUT = 5000;
+    private static final String PASSWORD = "changeit";
+
+    @ClassRule
+    public static final TemporaryFolder keys = new TemporaryFolder();
+
+    private static File keyStore;
+    private static File trustStore;
+    private static SSLContext context;
+
+    private static void keytool(String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(new File(keys.getRoot(), "keytool.log")).start();
+        assertTrue("keytool didn't finish", process.waitFor(60, TimeUnit.SECONDS));
+        assertEquals("keytool failed", 0, process.exitValue());
+    }
+
+    @BeforeClass
+    public static void makeKeys() throws Exception {
+        keyStore = new File(keys.getRoot(), "origin.p12");
+        trustStore = new File(keys.getRoot(), "trust.p12");
+        File cert = new File(keys.getRoot(), "origin.pem");
+        keytool("-genkeypair", "-alias", "origin", "-keyalg", "EC", "-dname", "CN=localhost",
+                "-ext", "san=ip:127.0.0.1", "-validity", "2", "-storetype", "PKCS12",
+                "-keystore", keyStore.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD);
+        keytool("-exportcert", "-rfc", "-alias", "origin", "-keystore", keyStore.getPath(), "-storepass", PASSWORD,
+                "-file", cert.getPath());
+        keytool("-importcert", "-noprompt", "-alias", "origin", "-file", cert.getPath(), "-storetype", "PKCS12",
+                "-keystore", trustStore.getPath(), "-storepass", PASSWORD);
+
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            store.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, PASSWORD.toCharArray());
+        context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+    }
+
+    /**
+     * A TLS origin that answers with the request's path, keeping the connection alive or closing it after each
+     * response.
+     */
+    private static StubOrigin origin(boolean close) throws IOException {
+        return new StubOrigin(plain -> {
+            try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(plain, null, true)) {
+                socket.setUseClientMode(false);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                for (String head; (head = StubOrigin.readHead(in)) != null; ) {
+                    byte[] body = StubOrigin.path(head).getBytes(StandardCharsets.ISO_8859_1);
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n" +
+                            (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(body);
+                    out.flush();
+                    if (close) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    private static ProxyProcess proxy(StubOrigin origin) throws IOException, InterruptedException {
+        return new ProxyProcess("--tls-origins=127.0.0.1:" + origin.port, "--tls-trust-store=" + trustStore.getPath(),
+                "--tls-trust-store-password=" + PASSWORD);
+    }
+
+    /**
+     * Send GETs over one client connection and check each comes back with its path.
+     */
+    private static void get(ProxyProcess proxy, StubOrigin origin, int n) throws Exception {
+        try (Socket client = proxy.connect(TIMEOUT)) {
+            OutputStream out = client.getOutputStream();
+            InputStream in = client.getInputStream();
+            for (int i = 0; i < n; i++) {
+                out.write(("GET " + origin.url("/tls/" + i) + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port + "\r\n" +
+                        "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                StubOrigin.Response response = StubOrigin.readResponse(in);
+                assertEquals(response.toString(), "200", response.status);
+                assertEquals("/tls/" + i, response.body);
+                Thread.sleep(10); // so a resumed session is seen to be older than the handshake that resumed it
+            }
+        }
+    }
+
+    /**
+     * Return the value of a counter from the proxy's metrics.
+     */
+    private static long metric(ProxyProcess proxy, String name) throws IOException {
+        try (Socket client = proxy.connect(TIMEOUT)) {
+            client.getOutputStream().write("GET /__proxy/metrics HTTP/1.1\r\nHost: proxy\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            StubOrigin.Response response = StubOrigin.readResponse(client.getInputStream());
+            for (String line : response.body.split("\n")) {
+                if (line.startsWith(name + " ")) {
+                    return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+                }
+            }
+        }
+        throw new AssertionError("no metric " + name);
+    }
+
+    @Test(timeout = 60000)
+    public void handshakenConnectionsArePooled() throws Exception {
+        try (StubOrigin origin = origin(false);
+             ProxyProcess proxy = proxy(origin)) {
+            get(proxy, origin, 3);
+            get(proxy, origin, 3);
+            assertEquals(1, origin.connections.get());
+            assertEquals(1, metric(proxy, "proxy_tls_handshakes_total"));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void newConnectionsResumeTheSession() throws Exception {
+        try (StubOrigin origin = origin(true);
+             ProxyProcess proxy = proxy(origin)) {
+            get(proxy, origin, 3);
+            assertEquals(3, origin.connections.get());
+            assertEquals(3, metric(proxy, "proxy_tls_handshakes_total"));
+            assertEquals(2, metric(proxy, "proxy_tls_resumed_total"));
+        }
+    }
+}